@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.archive;
+
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import filemanager.harshapp.hm.fileexplorer.libcore.io.IoUtils;
+import filemanager.harshapp.hm.fileexplorer.model.DocumentsContract;
+
+/**
+ * Zips the same corpus with the sequential {@link ZipOutputStream} path that
+ * {@link ParallelZipWriter} replaced and with the writer itself, and logs the
+ * time and size of both archives.
+ */
+public class ParallelZipWriterBenchmarkTest extends InstrumentationTestCase {
+    private static final String TAG = "ParallelZipBenchmark";
+
+    private static final String[] WORDS = {
+            "document", "archive", "thumbnail", "storage", "provider", "folder",
+            "transfer", "entry", "deflate", "block", "\n", " ", ", ",
+    };
+
+    private File mDir;
+    private File[] mCorpus;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getInstrumentation().getTargetContext().getCacheDir(), TAG);
+        deleteRecursively(mDir);
+        final File corpus = new File(mDir, "corpus");
+        assertTrue(corpus.mkdirs());
+
+        // Fixed seed, so every run zips the same bytes
+        final Random random = new Random(42);
+        mCorpus = new File[] {
+                writeText(new File(corpus, "large.txt"), 8 * 1024 * 1024, random),
+                writeText(new File(corpus, "medium.txt"), 1024 * 1024, random),
+                writeRandom(new File(corpus, "photo.jpg"), 4 * 1024 * 1024, random),
+                writeRandom(new File(corpus, "blob.bin"), 2 * 1024 * 1024, random),
+                writeText(new File(corpus, "small1.txt"), 16 * 1024, random),
+                writeText(new File(corpus, "small2.txt"), 16 * 1024, random),
+                writeText(new File(corpus, "empty.txt"), 0, random),
+        };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(mDir);
+        super.tearDown();
+    }
+
+    public void testParallelAgainstSequential() throws Exception {
+        final File sequential = new File(mDir, "sequential.zip");
+        long start = SystemClock.elapsedRealtime();
+        zipSequentially(sequential);
+        final long sequentialMs = SystemClock.elapsedRealtime() - start;
+
+        final File parallel = new File(mDir, "parallel.zip");
+        start = SystemClock.elapsedRealtime();
+        final ParallelZipWriter writer = new ParallelZipWriter(parallel,
+                ZipEntryPolicy.forPreset(DocumentsContract.COMPRESSION_BALANCED));
+        for (File file : mCorpus) {
+            writer.add(file.getName(), file);
+        }
+        writer.write();
+        final long parallelMs = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, "ZipOutputStream: " + sequentialMs + "ms, " + sequential.length() + " bytes");
+        Log.i(TAG, "ParallelZipWriter: " + parallelMs + "ms, " + parallel.length()
+                + " bytes on " + Runtime.getRuntime().availableProcessors() + " cores");
+
+        assertArchiveMatches(parallel);
+    }
+
+    /**
+     * The path {@link ParallelZipWriter} replaced, one stream at the default
+     * level.
+     */
+    private void zipSequentially(File dest) throws IOException {
+        final ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(dest));
+        try {
+            final byte[] buffer = new byte[1024];
+            for (File file : mCorpus) {
+                zout.putNextEntry(new ZipEntry(file.getName()));
+                final InputStream in = new FileInputStream(file);
+                try {
+                    int length;
+                    while ((length = in.read(buffer)) > 0) {
+                        zout.write(buffer, 0, length);
+                    }
+                } finally {
+                    IoUtils.closeQuietly(in);
+                }
+                zout.closeEntry();
+            }
+        } finally {
+            zout.close();
+        }
+    }
+
+    private void assertArchiveMatches(File archive) throws IOException {
+        final ZipFile zip = new ZipFile(archive);
+        try {
+            assertEquals(mCorpus.length, zip.size());
+            for (File file : mCorpus) {
+                final ZipEntry entry = zip.getEntry(file.getName());
+                assertNotNull(file.getName(), entry);
+                final InputStream in = zip.getInputStream(entry);
+                try {
+                    assertEquals(file.getName(), crcOf(new FileInputStream(file)), crcOf(in));
+                } finally {
+                    IoUtils.closeQuietly(in);
+                }
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static long crcOf(InputStream in) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[64 * 1024];
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        return crc.getValue();
+    }
+
+    private static File writeText(File file, int length, Random random) throws IOException {
+        final StringBuilder text = new StringBuilder(length + 16);
+        while (text.length() < length) {
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        text.setLength(length);
+        return write(file, text.toString().getBytes("UTF-8"));
+    }
+
+    private static File writeRandom(File file, int length, Random random) throws IOException {
+        final byte[] data = new byte[length];
+        random.nextBytes(data);
+        return write(file, data);
+    }
+
+    private static File write(File file, byte[] data) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
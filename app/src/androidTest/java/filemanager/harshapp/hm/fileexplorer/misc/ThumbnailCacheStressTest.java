@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.misc;
+
+import android.graphics.Bitmap;
+import android.graphics.Point;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Puts, removes and evicts thumbnails from several threads while the main thread looks them
+ * up, then checks the size index still matches what the cache holds.
+ */
+public class ThumbnailCacheStressTest extends InstrumentationTestCase {
+    private static final String TAG = "ThumbnailCacheStress";
+
+    private static final int URI_COUNT = 64;
+    private static final int THREAD_COUNT = 4;
+    private static final int OPERATIONS = 5000;
+    private static final int BENCHMARK_OPERATIONS = 20000;
+    private static final Point[] SIZES = {
+            new Point(16, 16), new Point(32, 32), new Point(48, 48), new Point(64, 64) };
+    // Room for a fraction of the thumbnails, so puts keep evicting
+    private static final int CACHE_SIZE = 32 * 64 * 64 * 4;
+
+    private Uri[] mUris;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mUris = new Uri[URI_COUNT];
+        for (int i = 0; i < URI_COUNT; i++) {
+            mUris[i] = Uri.parse("content://stress/document/" + i);
+        }
+    }
+
+    public void testConcurrentAccessKeepsIndexConsistent() throws Exception {
+        final ThumbnailCache cache = new ThumbnailCache(CACHE_SIZE);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(THREAD_COUNT);
+
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            final long seed = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final Random random = new Random(seed);
+                        for (int i = 0; i < OPERATIONS; i++) {
+                            final Uri uri = mUris[random.nextInt(URI_COUNT)];
+                            final int operation = random.nextInt(10);
+                            if (operation < 7) {
+                                final Point size = SIZES[random.nextInt(SIZES.length)];
+                                cache.putThumbnail(uri, size, createThumbnail(size),
+                                        random.nextInt(4));
+                            } else if (operation < 9) {
+                                cache.removeUri(uri);
+                            } else {
+                                cache.trimToSize(CACHE_SIZE / 2);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, TAG + "-" + t).start();
+        }
+
+        // Results are pooled for the main thread only
+        final Random random = new Random();
+        final Runnable lookup = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 100; i++) {
+                    final Uri uri = mUris[random.nextInt(URI_COUNT)];
+                    final Point size = SIZES[random.nextInt(SIZES.length)];
+                    final ThumbnailCache.Result result = cache.getThumbnail(uri, size);
+                    try {
+                        if (result.isHit() && (result.getThumbnail() == null
+                                || result.getThumbnail().isRecycled())) {
+                            failure.compareAndSet(null,
+                                    new AssertionError("Unusable thumbnail for " + uri));
+                        }
+                    } finally {
+                        result.recycle();
+                    }
+                }
+            }
+        };
+        while (done.getCount() > 0) {
+            getInstrumentation().runOnMainSync(lookup);
+        }
+        done.await();
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertTrue(cache.isIndexConsistent());
+    }
+
+    public void testLookupBenchmark() {
+        final ThumbnailCache cache = new ThumbnailCache(CACHE_SIZE * 4);
+        for (Uri uri : mUris) {
+            for (Point size : SIZES) {
+                cache.putThumbnail(uri, size, createThumbnail(size), 0);
+            }
+        }
+
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                final Point size = new Point(40, 40);
+                final long start = SystemClock.elapsedRealtimeNanos();
+                for (int i = 0; i < BENCHMARK_OPERATIONS; i++) {
+                    cache.getThumbnail(mUris[i % URI_COUNT], size).recycle();
+                }
+                final long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+                Log.i(TAG, "getThumbnail: " + (elapsed / BENCHMARK_OPERATIONS) + " ns/op");
+            }
+        });
+
+        // Includes allocating the thumbnails, as every put of a decoder does
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_OPERATIONS; i++) {
+            final Point size = SIZES[i % SIZES.length];
+            cache.putThumbnail(mUris[i % URI_COUNT], size, createThumbnail(size), i);
+        }
+        final long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        Log.i(TAG, "putThumbnail: " + (elapsed / BENCHMARK_OPERATIONS) + " ns/op");
+        assertTrue(cache.isIndexConsistent());
+    }
+
+    private static Bitmap createThumbnail(Point size) {
+        return Bitmap.createBitmap(size.x, size.y, Bitmap.Config.ARGB_8888);
+    }
+}
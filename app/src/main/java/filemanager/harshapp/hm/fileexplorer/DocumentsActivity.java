@@ -26,6 +26,7 @@ import android.content.ContentProviderClient;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.ResolveInfo;
 import android.content.res.Configuration;
@@ -40,9 +41,13 @@ import android.graphics.drawable.TransitionDrawable;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
 import android.text.TextUtils;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.view.Gravity;
 import android.view.LayoutInflater;
@@ -56,6 +61,8 @@ import android.widget.BaseAdapter;
 import android.widget.FrameLayout;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
+import android.widget.RadioButton;
+import android.widget.RadioGroup;
 import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -95,6 +102,7 @@ import androidx.recyclerview.widget.RecyclerView;
 import filemanager.harshapp.hm.fileexplorer.archive.DocumentArchiveHelper;
 import filemanager.harshapp.hm.fileexplorer.cast.CastUtils;
 import filemanager.harshapp.hm.fileexplorer.cast.Casty;
+import filemanager.harshapp.hm.fileexplorer.common.DialogBuilder;
 import filemanager.harshapp.hm.fileexplorer.common.RootsCommonFragment;
 import filemanager.harshapp.hm.fileexplorer.fragment.ConnectionsFragment;
 import filemanager.harshapp.hm.fileexplorer.fragment.CreateDirectoryFragment;
@@ -136,6 +144,11 @@ import filemanager.harshapp.hm.fileexplorer.provider.RecentsProvider;
 import filemanager.harshapp.hm.fileexplorer.provider.RecentsProvider.RecentColumns;
 import filemanager.harshapp.hm.fileexplorer.provider.RecentsProvider.ResumeColumns;
 import filemanager.harshapp.hm.fileexplorer.setting.SettingsActivity;
+import filemanager.harshapp.hm.fileexplorer.transfer.ConflictResolver;
+import filemanager.harshapp.hm.fileexplorer.transfer.ThroughputEstimator;
+import filemanager.harshapp.hm.fileexplorer.transfer.TransferJob;
+import filemanager.harshapp.hm.fileexplorer.transfer.TransferPlan;
+import filemanager.harshapp.hm.fileexplorer.transfer.TransferPlanner;
 import filemanager.harshapp.hm.fileexplorer.ui.DirectoryContainerView;
 import filemanager.harshapp.hm.fileexplorer.ui.DrawerLayoutHelper;
 import filemanager.harshapp.hm.fileexplorer.ui.FloatingActionsMenu;
@@ -190,6 +203,7 @@ public class DocumentsActivity extends BaseActivity implements MenuItem.OnMenuIt
     private DirectoryContainerView mDirectoryContainer;
 
     private boolean mIgnoreNextNavigation;
+    private MoveTask mMoveTask;
     private boolean mIgnoreNextClose;
     private boolean mIgnoreNextCollapse;
 
@@ -1717,7 +1731,18 @@ public class DocumentsActivity extends BaseActivity implements MenuItem.OnMenuIt
     }
 
     public void onMoveRequested(ArrayList<DocumentInfo> docs, DocumentInfo toDoc, boolean deleteAfter) {
-    	new MoveTask(docs, toDoc, deleteAfter).executeOnExecutor(getCurrentExecutor());
+    	mMoveTask = new MoveTask(docs, toDoc, deleteAfter);
+    	mMoveTask.executeOnExecutor(getCurrentExecutor());
+    }
+
+    /**
+     * Stops the running transfer, if any, at the next item. A transfer still
+     * being planned stops right away.
+     */
+    public void onMoveCancelled() {
+        if (mMoveTask != null) {
+            mMoveTask.cancelTransfer();
+        }
     }
 
     private void saveStackBlocking() {
@@ -1874,15 +1899,45 @@ public class DocumentsActivity extends BaseActivity implements MenuItem.OnMenuIt
         }
     }
     
-    private class MoveTask extends AsyncTask<Void, Void, Boolean> {
-        private final DocumentInfo toDoc;
+    private class MoveTask extends AsyncTask<Void, Long, Boolean> {
+        private static final long PROGRESS_INTERVAL = 250;
+        /** Ask the user how to handle names that already exist at the destination. */
+        private static final int POLICY_ASK = -1;
+        private DocumentInfo toDoc;
         private final ArrayList<DocumentInfo> docs;
 		private boolean deleteAfter;
+        private TransferPlan plan;
+        private final int policy;
+        private boolean needsPolicy;
+        private TransferJob job;
+        private final ThroughputEstimator estimator = new ThroughputEstimator();
+        // Progress of the item being copied, fed from the copy loops
+        private long itemStartBytes;
+        private long itemStartCopied;
+        private long itemBytes;
+        private long lastPublished;
+        private final CancellationSignal signal = new CancellationSignal();
+        private String totals;
 
         public MoveTask(ArrayList<DocumentInfo> docs, DocumentInfo toDoc, boolean deleteAfter) {
+            this(docs, toDoc, deleteAfter, null, POLICY_ASK);
+        }
+
+        /**
+         * @param plan plan made by an earlier task, or {@code null} to make one.
+         * @param policy conflict policy picked by the user, or {@link #POLICY_ASK}.
+         */
+        public MoveTask(ArrayList<DocumentInfo> docs, DocumentInfo toDoc, boolean deleteAfter,
+                        TransferPlan plan, int policy) {
             this.docs = docs;
             this.toDoc = toDoc;
             this.deleteAfter = deleteAfter;
+            this.plan = plan;
+            this.policy = policy;
+        }
+
+        public void cancelTransfer() {
+            signal.cancel();
         }
 
         @Override
@@ -1894,9 +1949,53 @@ public class DocumentsActivity extends BaseActivity implements MenuItem.OnMenuIt
         protected Boolean doInBackground(Void... params) {
             final ContentResolver resolver = getContentResolver();
             final DocumentInfo cwd = null == toDoc ? getCurrentDirectory() : toDoc;
+            toDoc = cwd;
+
+            if (null == plan) {
+                try {
+                    plan = new TransferPlanner(DocumentsActivity.this).plan(docs, cwd,
+                            getCurrentRoot(), deleteAfter, signal);
+                } catch (OperationCanceledException e) {
+                    return false;
+                }
+            }
+            // Shows the totals before anything is copied
+            publishProgress(0L);
+            if (!plan.hasEnoughSpace()) {
+                return true;
+            }
+            if (policy == POLICY_ASK && plan.hasCollisions()) {
+                // Nothing copied yet, onPostExecute asks and starts again
+                needsPolicy = true;
+                return false;
+            }
 
 			boolean hadTrouble = false;
+            long bytesDone = 0;
+            // One resolver for the whole job, so the policy and destination listings carry over
+            job = TransferJob.start(policy != POLICY_ASK ? policy
+                            : SettingsActivity.getConflictPolicy(DocumentsActivity.this),
+                    new TransferJob.ProgressListener() {
+                        @Override
+                        public void onProgress(long bytesCopied) {
+                            final long now = SystemClock.elapsedRealtime();
+                            if (now - lastPublished < PROGRESS_INTERVAL) {
+                                return;
+                            }
+                            lastPublished = now;
+                            final long done = itemStartBytes
+                                    + Math.min(bytesCopied - itemStartCopied, itemBytes);
+                            estimator.update(done);
+                            publishProgress(done);
+                        }
+                    });
     		for (DocumentInfo doc : docs) {
+                if (signal.isCanceled()) {
+                    break;
+                }
+                itemStartBytes = bytesDone;
+                itemStartCopied = job.getBytesCopied();
+                itemBytes = plan.getBytes(doc);
 
 				if (!doc.isMoveSupported()) {
     				Log.w(TAG, "Skipping " + doc);
@@ -1907,17 +2006,21 @@ public class DocumentsActivity extends BaseActivity implements MenuItem.OnMenuIt
     			try {
                     if(deleteAfter) {
                         hadTrouble = DocumentsContract.moveDocument(resolver, doc.derivedUri, null,
-                                cwd.derivedUri) == null;
+                                cwd.derivedUri, job.getId()) == null;
                     } else {
                         hadTrouble = DocumentsContract.copyDocument(resolver, doc.derivedUri,
-                                cwd.derivedUri) == null;
+                                cwd.derivedUri, job.getId()) == null;
                     }
     			} catch (Exception e) {
     				Log.w(TAG, "Failed to move " + doc);
     				hadTrouble = true;
                     CrashReportingManager.logException(e);
     			}
+                bytesDone += plan.getBytes(doc);
+                estimator.update(bytesDone);
+                publishProgress(bytesDone);
     		}
+            job.finish();
 
             Bundle params2 = new Bundle();
             params2.putBoolean(FILE_MOVE, deleteAfter);
@@ -1927,15 +2030,55 @@ public class DocumentsActivity extends BaseActivity implements MenuItem.OnMenuIt
             return hadTrouble;
         }
 
+        @Override
+        protected void onProgressUpdate(Long... values) {
+            final MoveFragment move = MoveFragment.get(getSupportFragmentManager());
+            if (move == null || plan.getTotalBytes() <= 0) {
+                return;
+            }
+            if (totals == null) {
+                totals = getString(R.string.transfer_totals,
+                        FileUtils.formatFileCount(plan.getFileCount()),
+                        Formatter.formatFileSize(DocumentsActivity.this, plan.getTotalBytes()));
+            }
+            final long bytesDone = values[0];
+            final int percent = (int) (bytesDone * 100 / plan.getTotalBytes());
+            move.setProgress(totals, percent,
+                    estimator.getEtaSeconds(plan.getTotalBytes() - bytesDone));
+        }
+
         @Override
         protected void onPostExecute(Boolean result) {
+            if (mMoveTask == this) {
+                mMoveTask = null;
+            }
             if(!Utils.isActivityAlive(DocumentsActivity.this)){
                 return;
             }
-            if (result){
+            if (null == plan) {
+                // Cancelled while planning
+                setMovePending(false);
+                return;
+            }
+            if (needsPolicy) {
+                setMovePending(false);
+                showConflictDialog(docs, toDoc, deleteAfter, plan);
+                return;
+            }
+            if (!plan.hasEnoughSpace()){
+                Utils.showError(DocumentsActivity.this, R.string.transfer_insufficient_space);
+            } else if (result){
                 //if(!isSAFIssue(toDoc.documentId)){
                 Utils.showError(DocumentsActivity.this, R.string.save_error);
                 //}
+            } else if (null != job) {
+                final ConflictResolver conflicts = job.getResolver();
+                if (conflicts.getSkippedCount() + conflicts.getReplacedCount()
+                        + conflicts.getRenamedCount() > 0) {
+                    Utils.showSnackBar(DocumentsActivity.this, getString(
+                            R.string.transfer_conflicts_summary, conflicts.getSkippedCount(),
+                            conflicts.getReplacedCount(), conflicts.getRenamedCount()));
+                }
             }
             MoveFragment.hide(getSupportFragmentManager());
             setMovePending(false);
@@ -1943,6 +2086,43 @@ public class DocumentsActivity extends BaseActivity implements MenuItem.OnMenuIt
         }
     }
 
+    /**
+     * Lists the sources that already exist at the destination and lets the
+     * user pick the conflict policy for this transfer, the setting being
+     * preselected. Continuing starts the transfer with the plan already made.
+     */
+    private void showConflictDialog(final ArrayList<DocumentInfo> docs, final DocumentInfo toDoc,
+                                    final boolean deleteAfter, final TransferPlan plan) {
+        final View view = LayoutInflater.from(this).inflate(R.layout.dialog_transfer_conflicts, null);
+        final TextView names = (TextView) view.findViewById(android.R.id.message);
+        names.setText(TextUtils.join(", ", plan.getCollisions()));
+
+        final RadioGroup group = (RadioGroup) view.findViewById(R.id.conflict_policy);
+        final String[] policies = getResources().getStringArray(R.array.conflict_policy_names);
+        for (int i = 0; i < policies.length; i++) {
+            final RadioButton button = new RadioButton(this);
+            button.setId(i + 1);
+            button.setText(policies[i]);
+            group.addView(button);
+        }
+        group.check(SettingsActivity.getConflictPolicy(this) + 1);
+
+        final DialogBuilder builder = new DialogBuilder(this);
+        builder.setTitle(R.string.transfer_conflicts_title)
+                .setView(view)
+                .setPositiveButton(R.string.transfer_conflicts_continue,
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                final int policy = group.getCheckedRadioButtonId() - 1;
+                                mMoveTask = new MoveTask(docs, toDoc, deleteAfter, plan, policy);
+                                mMoveTask.executeOnExecutor(getCurrentExecutor());
+                            }
+                        })
+                .setNegativeButton(android.R.string.cancel, null);
+        builder.showDialog();
+    }
+
     public void setMovePending(boolean pending) {
         final MoveFragment move = MoveFragment.get(getSupportFragmentManager());
         if (move != null) {
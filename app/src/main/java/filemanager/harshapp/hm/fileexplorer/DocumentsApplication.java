@@ -30,26 +30,35 @@ import android.net.Uri;
 import android.os.RemoteException;
 import android.text.format.DateUtils;
 
+import java.io.File;
+
 import com.cloudrail.si.CloudRail;
 import com.google.android.gms.ads.AdRequest;
 import com.google.android.gms.ads.InterstitialAd;
 
 import androidx.appcompat.app.AppCompatDelegate;
 import androidx.collection.ArrayMap;
+import filemanager.harshapp.hm.fileexplorer.archive.ArchivePool;
 import filemanager.harshapp.hm.fileexplorer.cast.Casty;
 import filemanager.harshapp.hm.fileexplorer.misc.AnalyticsManager;
 import filemanager.harshapp.hm.fileexplorer.misc.ContentProviderClientCompat;
 import filemanager.harshapp.hm.fileexplorer.misc.CrashReportingManager;
+import filemanager.harshapp.hm.fileexplorer.misc.DiskThumbnailCache;
 import filemanager.harshapp.hm.fileexplorer.misc.NotificationUtils;
+import filemanager.harshapp.hm.fileexplorer.misc.PreviewCache;
 import filemanager.harshapp.hm.fileexplorer.misc.RootsCache;
 import filemanager.harshapp.hm.fileexplorer.misc.SAFManager;
 import filemanager.harshapp.hm.fileexplorer.misc.ThumbnailCache;
+import filemanager.harshapp.hm.fileexplorer.misc.ThumbnailPregenerator;
 import filemanager.harshapp.hm.fileexplorer.misc.Utils;
+import filemanager.harshapp.hm.fileexplorer.misc.VideoThumbnailExtractor;
 import filemanager.harshapp.hm.fileexplorer.server.SimpleWebServer;
 import filemanager.harshapp.hm.fileexplorer.setting.SettingsActivity;
 
 public class DocumentsApplication extends AppPaymentFlavour {
 	private static final long PROVIDER_ANR_TIMEOUT = 20 * DateUtils.SECOND_IN_MILLIS;
+    private static final String THUMBNAIL_DIR = "thumbnails";
+    private static final long THUMBNAIL_DISK_CACHE_SIZE = 64 * 1024 * 1024;
     private static DocumentsApplication sInstance;
 
     static {
@@ -123,7 +132,9 @@ public class DocumentsApplication extends AppPaymentFlavour {
 
         mSAFManager = new SAFManager(this);
 
-        mThumbnailCache = new ThumbnailCache(memoryClassBytes / 4);
+        mThumbnailCache = new ThumbnailCache(memoryClassBytes / 4, new DiskThumbnailCache(
+                new File(getCacheDir(), THUMBNAIL_DIR), THUMBNAIL_DISK_CACHE_SIZE));
+        ThumbnailPregenerator.schedule(this);
 
         final IntentFilter packageFilter = new IntentFilter();
         packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
@@ -165,6 +176,9 @@ public class DocumentsApplication extends AppPaymentFlavour {
     public void onTrimMemory(int level) {
         super.onTrimMemory(level);
         mThumbnailCache.onTrimMemory(level);
+        ArchivePool.getInstance().onTrimMemory(level);
+        VideoThumbnailExtractor.getInstance().onTrimMemory(level);
+        PreviewCache.getInstance().onTrimMemory(level);
     }
 
     private BroadcastReceiver mCacheReceiver = new BroadcastReceiver() {
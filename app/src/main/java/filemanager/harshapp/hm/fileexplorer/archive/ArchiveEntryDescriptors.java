@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.archive;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.ProxyFileDescriptorCallback;
+import android.os.storage.StorageManager;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import filemanager.harshapp.hm.fileexplorer.misc.ParcelFileDescriptorUtil;
+
+/**
+ * Hands out descriptors for documents within archives without a thread per
+ * opened document.
+ *
+ * <p>Entries stored without compression are served by a proxy descriptor
+ * reading the archive in place, which can seek and needs no copying; all of
+ * them share one thread. Other entries are inflated into a pipe by a small
+ * shared pool. A reader that stops reading holds its pool thread until it
+ * closes the pipe, so the pool is bounded rather than sized for every open
+ * document.
+ */
+final class ArchiveEntryDescriptors {
+    private static final String TAG = "ArchiveEntryDescriptors";
+
+    private static final int POOL_SIZE =
+            Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "ArchiveEntry #" + mCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private static final ThreadPoolExecutor sPipeExecutor;
+    static {
+        sPipeExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), sThreadFactory);
+        sPipeExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static Handler sProxyHandler;
+
+    private ArchiveEntryDescriptors() {
+    }
+
+    /**
+     * Pipes the stream, which is closed once copied, on the shared pool.
+     *
+     * @param onClosed run once the stream is closed, whether it was copied
+     *                 to the end or the reader went away.
+     */
+    static ParcelFileDescriptor openPipe(InputStream in, final Runnable onClosed)
+            throws IOException {
+        return ParcelFileDescriptorUtil.pipeFrom(new FilterInputStream(in) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    onClosed.run();
+                }
+            }
+        }, sPipeExecutor);
+    }
+
+    /**
+     * Opens a seekable descriptor over a range of the source. The source must
+     * stay open until {@code onRelease} runs, once the descriptor is closed.
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    static ParcelFileDescriptor openRange(Context context, RangedSource source, long start,
+            long length, Runnable onRelease) throws IOException {
+        final StorageManager storageManager = context.getSystemService(StorageManager.class);
+        return storageManager.openProxyFileDescriptor(ParcelFileDescriptor.MODE_READ_ONLY,
+                new RangeCallback(source, start, length, onRelease), getProxyHandler());
+    }
+
+    private static synchronized Handler getProxyHandler() {
+        if (sProxyHandler == null) {
+            final HandlerThread thread = new HandlerThread("ArchiveEntryProxy");
+            thread.start();
+            sProxyHandler = new Handler(thread.getLooper());
+        }
+        return sProxyHandler;
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private static class RangeCallback extends ProxyFileDescriptorCallback {
+        private final RangedSource mSource;
+        private final long mStart;
+        private final long mLength;
+        private final Runnable mOnRelease;
+
+        RangeCallback(RangedSource source, long start, long length, Runnable onRelease) {
+            mSource = source;
+            mStart = start;
+            mLength = length;
+            mOnRelease = onRelease;
+        }
+
+        @Override
+        public long onGetSize() {
+            return mLength;
+        }
+
+        @Override
+        public int onRead(long offset, int size, byte[] data) throws ErrnoException {
+            if (offset >= mLength) {
+                return 0;
+            }
+            final int count = (int) Math.min(size, mLength - offset);
+            try {
+                int total = 0;
+                while (total < count) {
+                    final int read = mSource.read(mStart + offset + total, data, total,
+                            count - total);
+                    if (read <= 0) {
+                        break;
+                    }
+                    total += read;
+                }
+                return total;
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read archive entry", e);
+                throw new ErrnoException("onRead", OsConstants.EIO);
+            }
+        }
+
+        @Override
+        public void onRelease() {
+            // The source belongs to the archive, which closes it once unused
+            mOnRelease.run();
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.archive;
+
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.Nullable;
+import filemanager.harshapp.hm.fileexplorer.libcore.io.IoUtils;
+import filemanager.harshapp.hm.fileexplorer.transfer.BufferPool;
+
+/**
+ * Extracts an archive, or chosen entries of it, into a directory. Entries are
+ * taken from its {@link ArchiveIndex} rather than by scanning the archive, so
+ * ZIP and plain tar entries are read in place and written by several workers
+ * at once, each with a pooled buffer. Gzipped tars can only be decompressed
+ * from the front and are extracted in a single pass in archive order.
+ */
+public class ArchiveExtractor {
+    private static final String TAG = "ArchiveExtractor";
+
+    private static final int MAX_THREADS = 4;
+    private static final long PROGRESS_INTERVAL_MS = 250;
+
+    /**
+     * Receives progress while extracting, on any of the worker threads.
+     */
+    public interface Listener {
+        void onProgress(long bytesDone, long bytesTotal);
+    }
+
+    private final RangedSource mSource;
+    private final ArchiveIndex mIndex;
+    private final ArchiveReader mReader;
+
+    private final AtomicLong mBytesDone = new AtomicLong();
+    private final AtomicLong mLastProgress = new AtomicLong();
+    private long mBytesTotal;
+    private Listener mListener;
+    private CancellationSignal mSignal;
+
+    public ArchiveExtractor(RangedSource source, ArchiveIndex index) throws IOException {
+        mSource = source;
+        mIndex = index;
+        mReader = ArchiveReader.forFormat(index.getFormat());
+    }
+
+    /**
+     * Name of the directory an archive is extracted into by default: its name
+     * without its extensions, such as both of ".tar.gz".
+     */
+    public static String getDestinationName(String archiveName) {
+        String name = archiveName;
+        final String[] extensions = { ".gz", ".tgz", ".tar", ".zip" };
+        boolean stripped = true;
+        while (stripped) {
+            stripped = false;
+            for (String extension : extensions) {
+                if (name.length() > extension.length()
+                        && name.regionMatches(true, name.length() - extension.length(),
+                        extension, 0, extension.length())) {
+                    name = name.substring(0, name.length() - extension.length());
+                    stripped = true;
+                }
+            }
+        }
+        if (name.equals(archiveName)) {
+            final int dot = name.lastIndexOf('.');
+            // Without an extension the directory would take the archive's own name
+            return dot > 0 ? name.substring(0, dot) : name + "_extracted";
+        }
+        return name;
+    }
+
+    /**
+     * Extracts entries into {@code destDir}, keeping their paths within the
+     * archive. On failure or cancellation the file being written is deleted,
+     * files already finished are kept.
+     *
+     * @param positions entries of the index to extract along with everything
+     *            below them, or null for the whole archive.
+     * @throws android.os.OperationCanceledException if the signal is canceled.
+     */
+    public void extract(File destDir, @Nullable int[] positions, @Nullable Listener listener,
+            @Nullable CancellationSignal signal) throws IOException {
+        final long start = SystemClock.elapsedRealtime();
+        mListener = listener;
+        mSignal = signal;
+        mBytesDone.set(0);
+
+        final ArrayList<Integer> files = new ArrayList<>();
+        final ArrayList<Integer> directories = new ArrayList<>();
+        collect(positions != null ? positions : new int[] { ArchiveIndex.ROOT },
+                files, directories);
+
+        final String destPath = destDir.getCanonicalPath() + File.separator;
+        if (!destDir.isDirectory() && !destDir.mkdirs()) {
+            throw new IOException("Failed to create " + destDir);
+        }
+        for (int position : directories) {
+            final File dir = resolve(destPath, position);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Failed to create " + dir);
+            }
+        }
+
+        long total = 0;
+        for (int position : files) {
+            total += Math.max(0, mIndex.getSize(position));
+            // Parents of a chosen file which wasn't chosen with its directory
+            final File parent = resolve(destPath, position).getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Failed to create " + parent);
+            }
+        }
+        mBytesTotal = total;
+        reportProgress(true);
+
+        if (mReader.isRandomAccess()) {
+            extractParallel(destPath, files);
+        } else {
+            extractSequential(destPath, files);
+        }
+        reportProgress(true);
+
+        Log.d(TAG, "Extracted " + files.size() + " files, " + total + " bytes in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    /**
+     * Lists the files and directories below the given entries once each,
+     * directories parents first.
+     */
+    private void collect(int[] positions, ArrayList<Integer> files,
+            ArrayList<Integer> directories) {
+        final boolean[] seen = new boolean[mIndex.getCount()];
+        final ArrayList<Integer> pending = new ArrayList<>();
+        for (int position : positions) {
+            pending.add(position);
+            while (!pending.isEmpty()) {
+                final int current = pending.remove(pending.size() - 1);
+                if (seen[current]) {
+                    continue;
+                }
+                seen[current] = true;
+                if (!mIndex.isDirectory(current)) {
+                    files.add(current);
+                    continue;
+                }
+                if (current != ArchiveIndex.ROOT) {
+                    directories.add(current);
+                }
+                final int count = mIndex.getChildCount(current);
+                for (int i = count - 1; i >= 0; i--) {
+                    pending.add(mIndex.getChild(current, i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Destination of an entry, refusing names which would land outside the
+     * destination directory such as "../x".
+     */
+    private File resolve(String destPath, int position) throws IOException {
+        final File file = new File(destPath, mIndex.getName(position));
+        final String path = file.getCanonicalPath();
+        if (!path.startsWith(destPath) && !(path + File.separator).equals(destPath)) {
+            throw new IOException("Entry outside of destination: " + mIndex.getName(position));
+        }
+        return file;
+    }
+
+    private void extractParallel(final String destPath, ArrayList<Integer> files)
+            throws IOException {
+        // Largest first, so one big entry doesn't run alone at the end
+        Collections.sort(files, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                final long left = mIndex.getSize(lhs);
+                final long right = mIndex.getSize(rhs);
+                return left > right ? -1 : left < right ? 1 : 0;
+            }
+        });
+
+        final int threads = Math.max(1, Math.min(files.size(),
+                Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors())));
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final AtomicBoolean failed = new AtomicBoolean();
+        final ArrayList<Future<Void>> futures = new ArrayList<>(files.size());
+        try {
+            for (final int position : files) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        if (failed.get()) {
+                            return null;
+                        }
+                        try {
+                            final InputStream in = mReader.openEntry(mSource, mIndex, position);
+                            try {
+                                write(in, resolve(destPath, position), position);
+                            } finally {
+                                IoUtils.closeQuietly(in);
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            failed.set(true);
+                            throw e;
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted extracting");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Failed to extract", cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void extractSequential(String destPath, ArrayList<Integer> files)
+            throws IOException {
+        Collections.sort(files, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                final long left = mIndex.getDataOffset(lhs);
+                final long right = mIndex.getDataOffset(rhs);
+                return left < right ? -1 : left > right ? 1 : 0;
+            }
+        });
+
+        final InputStream in = mReader.openSequential(mSource);
+        try {
+            long position = 0;
+            for (int entry : files) {
+                final long offset = mIndex.getDataOffset(entry);
+                while (position < offset) {
+                    throwIfCanceled();
+                    final long skipped = in.skip(offset - position);
+                    if (skipped <= 0) {
+                        throw new EOFException("Unexpected end of archive");
+                    }
+                    position += skipped;
+                }
+                final long size = Math.max(0, mIndex.getSize(entry));
+                write(new BoundedInputStream(in, size), resolve(destPath, entry), entry);
+                position += size;
+            }
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    private void write(InputStream in, File dest, int position) throws IOException {
+        final long size = mIndex.getSize(position);
+        final byte[] buffer = BufferPool.acquire();
+        boolean success = false;
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(dest);
+            long written = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                throwIfCanceled();
+                out.write(buffer, 0, read);
+                written += read;
+                mBytesDone.addAndGet(read);
+                reportProgress(false);
+            }
+            if (size != ArchiveIndex.UNKNOWN && written != size) {
+                throw new EOFException("Entry " + mIndex.getName(position) + " is truncated");
+            }
+            out.close();
+            out = null;
+            success = true;
+        } finally {
+            BufferPool.release(buffer);
+            IoUtils.closeQuietly(out);
+            if (!success) {
+                dest.delete();
+            }
+        }
+        final long time = mIndex.getTime(position);
+        if (time > 0) {
+            dest.setLastModified(time);
+        }
+    }
+
+    private void throwIfCanceled() {
+        if (mSignal != null) {
+            mSignal.throwIfCanceled();
+        }
+    }
+
+    private void reportProgress(boolean force) {
+        if (mListener == null) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        final long last = mLastProgress.get();
+        if (force || (now - last >= PROGRESS_INTERVAL_MS
+                && mLastProgress.compareAndSet(last, now))) {
+            mListener.onProgress(mBytesDone.get(), mBytesTotal);
+        }
+    }
+
+    /**
+     * Reads up to a number of bytes of the shared sequential stream without
+     * closing it.
+     */
+    private static class BoundedInputStream extends InputStream {
+        private final InputStream mIn;
+        private long mRemaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            mIn = in;
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return read(single, 0, 1) == 1 ? single[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            final int read = mIn.read(buffer, offset, (int) Math.min(count, mRemaining));
+            if (read > 0) {
+                mRemaining -= read;
+            }
+            return read;
+        }
+    }
+}
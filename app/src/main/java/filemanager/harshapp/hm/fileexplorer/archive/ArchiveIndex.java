@@ -0,0 +1,584 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.archive;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import filemanager.harshapp.hm.fileexplorer.libcore.io.IoUtils;
+import filemanager.harshapp.hm.fileexplorer.misc.StandardCharsets;
+
+/**
+ * Read only listing of an archive: a table of entries sorted by path, the
+ * children of every directory, and the path strings, all in one flat buffer.
+ * Indexes are stored in the cache directory under a key naming the archive
+ * version they describe, and memory mapped when opened again, so browsing
+ * a known archive starts without reading it and the heap used does not grow
+ * with the number of entries.
+ *
+ * <p>Entries are addressed by their position in the table. Position
+ * {@link #ROOT} is always the root directory, with path "/".
+ */
+public class ArchiveIndex {
+    private static final String TAG = "ArchiveIndex";
+
+    public static final int ROOT = 0;
+    public static final long UNKNOWN = -1;
+
+    private static final String INDEX_DIR = "archive_index";
+    private static final int MAX_INDEXES = 32;
+
+    private static final int MAGIC = 0x41494458;
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 40;
+
+    private static final int RECORD_SIZE = 64;
+    private static final int NAME_OFFSET = 0;
+    private static final int NAME_LENGTH = 4;
+    private static final int PARENT = 8;
+    private static final int CHILD_START = 12;
+    private static final int CHILD_COUNT = 16;
+    private static final int FLAGS = 20;
+    private static final int SIZE = 24;
+    private static final int COMPRESSED_SIZE = 32;
+    private static final int TIME = 40;
+    private static final int DATA_OFFSET = 48;
+    private static final int CRC = 56;
+    private static final int METHOD = 60;
+
+    private static final int SEEK_POINT_SIZE = 16;
+
+    private static final int FLAG_DIRECTORY = 1;
+
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+    private final int mRecordsStart;
+    private final int mChildrenStart;
+    private final int mNamesStart;
+    private final int mFormat;
+    private final int mSeekPointCount;
+    private final int mSeekPointsStart;
+
+    private ArchiveIndex(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (mBuffer.limit() < HEADER_SIZE || mBuffer.getInt(0) != MAGIC
+                || mBuffer.getInt(4) != VERSION) {
+            throw new IOException("Not an archive index");
+        }
+        mCount = mBuffer.getInt(8);
+        final int keyLength = mBuffer.getInt(12);
+        mRecordsStart = mBuffer.getInt(16);
+        mChildrenStart = mBuffer.getInt(20);
+        mNamesStart = mBuffer.getInt(24);
+        mFormat = mBuffer.getInt(28);
+        mSeekPointCount = mBuffer.getInt(32);
+        mSeekPointsStart = mBuffer.getInt(36);
+        if (mCount <= 0 || keyLength < 0 || mRecordsStart < HEADER_SIZE + keyLength
+                || mSeekPointsStart != mRecordsStart + mCount * RECORD_SIZE
+                || mChildrenStart != mSeekPointsStart + mSeekPointCount * SEEK_POINT_SIZE
+                || mNamesStart > mBuffer.limit()) {
+            throw new IOException("Corrupt archive index");
+        }
+    }
+
+    /**
+     * Key identifying one version of an archive. An index stored under it is
+     * only used while the archive keeps the same path, size and modification
+     * time.
+     */
+    public static String keyFor(String path, long size, long lastModified) {
+        return path + "|" + size + "|" + lastModified;
+    }
+
+    /**
+     * @return the stored index for the given key, or {@code null} if there is
+     * none or it can't be read.
+     */
+    public static ArchiveIndex open(Context context, String key) {
+        final File file = getIndexFile(context, key);
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            final ByteBuffer buffer = raf.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            final ArchiveIndex index = new ArchiveIndex(buffer);
+            if (!key.equals(index.getKey())) {
+                // Hash collision with another archive
+                return null;
+            }
+            file.setLastModified(System.currentTimeMillis());
+            return index;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to open index " + file, e);
+            file.delete();
+            return null;
+        } finally {
+            // The mapping stays valid after the file is closed
+            IoUtils.closeQuietly(raf);
+        }
+    }
+
+    private static File getIndexFile(Context context, String key) {
+        final File dir = new File(context.getCacheDir(), INDEX_DIR);
+        return new File(dir, Integer.toHexString(key.hashCode()) + "_" + key.length() + ".idx");
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return format of the archive, as given to {@link Builder#setFormat(int)}.
+     */
+    public int getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * Finds where to start decompressing to reach an offset in the
+     * uncompressed stream of a compressed archive, see
+     * {@link Builder#addSeekPoint(long, long)}.
+     *
+     * @return {compressed offset, uncompressed offset} of the closest point at
+     * or before {@code uncompressedOffset}, or {0, 0} if there is none.
+     */
+    public long[] findSeekPoint(long uncompressedOffset) {
+        int low = 0;
+        int high = mSeekPointCount - 1;
+        int found = -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (mBuffer.getLong(mSeekPointsStart + mid * SEEK_POINT_SIZE + 8)
+                    <= uncompressedOffset) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (found == -1) {
+            return new long[] { 0, 0 };
+        }
+        final int point = mSeekPointsStart + found * SEEK_POINT_SIZE;
+        return new long[] { mBuffer.getLong(point), mBuffer.getLong(point + 8) };
+    }
+
+    /**
+     * @return position of the entry with the given path, or -1.
+     */
+    public int indexOf(String path) {
+        if ("/".equals(path)) {
+            return ROOT;
+        }
+        // The rest of the table is sorted, the root is kept first regardless
+        final byte[] key = path.getBytes(StandardCharsets.UTF_8);
+        int low = ROOT + 1;
+        int high = mCount - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = compareName(mid, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public String getName(int index) {
+        final int record = record(index);
+        final int length = mBuffer.getInt(record + NAME_LENGTH);
+        final byte[] name = new byte[length];
+        final ByteBuffer names = mBuffer.duplicate();
+        names.position(mNamesStart + mBuffer.getInt(record + NAME_OFFSET));
+        names.get(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    public boolean isDirectory(int index) {
+        return (mBuffer.getInt(record(index) + FLAGS) & FLAG_DIRECTORY) != 0;
+    }
+
+    public int getParent(int index) {
+        return mBuffer.getInt(record(index) + PARENT);
+    }
+
+    public int getChildCount(int index) {
+        return mBuffer.getInt(record(index) + CHILD_COUNT);
+    }
+
+    public int getChild(int index, int position) {
+        final int start = mBuffer.getInt(record(index) + CHILD_START);
+        return mBuffer.getInt(mChildrenStart + (start + position) * 4);
+    }
+
+    public long getSize(int index) {
+        return mBuffer.getLong(record(index) + SIZE);
+    }
+
+    public long getCompressedSize(int index) {
+        return mBuffer.getLong(record(index) + COMPRESSED_SIZE);
+    }
+
+    public long getTime(int index) {
+        return mBuffer.getLong(record(index) + TIME);
+    }
+
+    /**
+     * @return where the entry's data is found, such as the offset of a ZIP
+     * local header, or {@link #UNKNOWN}.
+     */
+    public long getDataOffset(int index) {
+        return mBuffer.getLong(record(index) + DATA_OFFSET);
+    }
+
+    public long getCrc(int index) {
+        return mBuffer.getInt(record(index) + CRC) & 0xffffffffL;
+    }
+
+    public int getMethod(int index) {
+        return mBuffer.getInt(record(index) + METHOD);
+    }
+
+    /**
+     * Whether the entry at {@code index} is {@code ancestor} or lies below it.
+     */
+    public boolean isDescendant(int ancestor, int index) {
+        while (index != -1) {
+            if (index == ancestor) {
+                return true;
+            }
+            index = getParent(index);
+        }
+        return false;
+    }
+
+    private String getKey() {
+        final byte[] key = new byte[mBuffer.getInt(12)];
+        final ByteBuffer header = mBuffer.duplicate();
+        header.position(HEADER_SIZE);
+        header.get(key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    private int record(int index) {
+        if (index < 0 || index >= mCount) {
+            throw new IndexOutOfBoundsException("Entry " + index + " of " + mCount);
+        }
+        return mRecordsStart + index * RECORD_SIZE;
+    }
+
+    private int compareName(int index, byte[] key) {
+        final int record = record(index);
+        final int offset = mNamesStart + mBuffer.getInt(record + NAME_OFFSET);
+        final int length = mBuffer.getInt(record + NAME_LENGTH);
+        final int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            final int cmp = (mBuffer.get(offset + i) & 0xff) - (key[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - key.length;
+    }
+
+    /**
+     * Collects entries while an archive is read, then lays them out as an
+     * index. Directories missing from the archive are added, as are the
+     * links from each directory to its children.
+     */
+    public static class Builder {
+        private final ArrayList<Node> mNodes = new ArrayList<>();
+        private final HashMap<String, Node> mByName = new HashMap<>();
+        private final ArrayList<long[]> mSeekPoints = new ArrayList<>();
+        private int mFormat;
+
+        public Builder() {
+            final Node root = new Node("/", true);
+            mNodes.add(root);
+            mByName.put(root.name, root);
+        }
+
+        public void setFormat(int format) {
+            mFormat = format;
+        }
+
+        /**
+         * Record a point where decompression can start afresh, such as the
+         * start of a gzip member. Points must be added in increasing order.
+         */
+        public void addSeekPoint(long compressedOffset, long uncompressedOffset) {
+            mSeekPoints.add(new long[] { compressedOffset, uncompressedOffset });
+        }
+
+        public boolean contains(String name) {
+            return mByName.containsKey(name);
+        }
+
+        /**
+         * @param dataOffset where the entry's data is found, as understood by
+         *                   the archive's reader, or {@link #UNKNOWN}.
+         */
+        public void add(String name, boolean directory, long size, long compressedSize,
+                        long time, long crc, int method, long dataOffset) throws IOException {
+            if (directory != name.endsWith("/")) {
+                throw new IOException(
+                        "Directories must have a trailing slash, and files must not.");
+            }
+            if ("/".equals(name)) {
+                return;
+            }
+            if (mByName.containsKey(name)) {
+                throw new IOException("Multiple entries with the same name are not supported.");
+            }
+            final Node node = new Node(name, directory);
+            node.size = size;
+            node.compressedSize = compressedSize;
+            node.time = time;
+            node.crc = crc;
+            node.method = method;
+            node.dataOffset = dataOffset;
+            mNodes.add(node);
+            mByName.put(name, node);
+        }
+
+        /**
+         * Lay out the index and store it under the given key. If it can't be
+         * stored, the index is still returned, backed by the heap.
+         */
+        public ArchiveIndex build(Context context, String key) throws IOException {
+            addMissingParents();
+
+            // Sort by the bytes of the path, as lookups compare them
+            final int count = mNodes.size();
+            for (Node node : mNodes) {
+                node.nameBytes = node.name.getBytes(StandardCharsets.UTF_8);
+            }
+            Collections.sort(mNodes, new Comparator<Node>() {
+                @Override
+                public int compare(Node lhs, Node rhs) {
+                    return compareBytes(lhs.nameBytes, rhs.nameBytes);
+                }
+            });
+            // Keep the root first, lookups skip it
+            final Node root = mByName.get("/");
+            mNodes.remove(root);
+            mNodes.add(ROOT, root);
+            for (int i = 0; i < count; i++) {
+                mNodes.get(i).index = i;
+            }
+
+            // Children, grouped by parent
+            final int[] childCounts = new int[count];
+            for (int i = 1; i < count; i++) {
+                childCounts[mNodes.get(i).parent.index]++;
+            }
+            final int[] childStarts = new int[count];
+            for (int i = 1; i < count; i++) {
+                childStarts[i] = childStarts[i - 1] + childCounts[i - 1];
+            }
+            final int[] children = new int[count - 1];
+            final int[] filled = new int[count];
+            for (int i = 1; i < count; i++) {
+                final int parent = mNodes.get(i).parent.index;
+                children[childStarts[parent] + filled[parent]++] = i;
+            }
+
+            final byte[] keyBytes = key != null ? key.getBytes(StandardCharsets.UTF_8) : new byte[0];
+            final int recordsStart = align(HEADER_SIZE + keyBytes.length);
+            final int seekPointsStart = recordsStart + count * RECORD_SIZE;
+            final int childrenStart = seekPointsStart + mSeekPoints.size() * SEEK_POINT_SIZE;
+            final int namesStart = childrenStart + children.length * 4;
+            int namesLength = 0;
+            for (Node node : mNodes) {
+                namesLength += node.nameBytes.length;
+            }
+
+            final ByteBuffer buffer = ByteBuffer.allocate(namesStart + namesLength)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(keyBytes.length)
+                    .putInt(recordsStart).putInt(childrenStart).putInt(namesStart)
+                    .putInt(mFormat).putInt(mSeekPoints.size()).putInt(seekPointsStart);
+            buffer.position(HEADER_SIZE);
+            buffer.put(keyBytes);
+
+            int nameOffset = 0;
+            for (int i = 0; i < count; i++) {
+                final Node node = mNodes.get(i);
+                final int record = recordsStart + i * RECORD_SIZE;
+                buffer.putInt(record + NAME_OFFSET, nameOffset);
+                buffer.putInt(record + NAME_LENGTH, node.nameBytes.length);
+                buffer.putInt(record + PARENT, node.parent != null ? node.parent.index : -1);
+                buffer.putInt(record + CHILD_START, childStarts[i]);
+                buffer.putInt(record + CHILD_COUNT, childCounts[i]);
+                buffer.putInt(record + FLAGS, node.directory ? FLAG_DIRECTORY : 0);
+                buffer.putLong(record + SIZE, node.size);
+                buffer.putLong(record + COMPRESSED_SIZE, node.compressedSize);
+                buffer.putLong(record + TIME, node.time);
+                buffer.putLong(record + DATA_OFFSET, node.dataOffset);
+                buffer.putInt(record + CRC, (int) node.crc);
+                buffer.putInt(record + METHOD, node.method);
+
+                buffer.position(namesStart + nameOffset);
+                buffer.put(node.nameBytes);
+                nameOffset += node.nameBytes.length;
+            }
+            for (int i = 0; i < children.length; i++) {
+                buffer.putInt(childrenStart + i * 4, children[i]);
+            }
+            for (int i = 0; i < mSeekPoints.size(); i++) {
+                final long[] point = mSeekPoints.get(i);
+                buffer.putLong(seekPointsStart + i * SEEK_POINT_SIZE, point[0]);
+                buffer.putLong(seekPointsStart + i * SEEK_POINT_SIZE + 8, point[1]);
+            }
+
+            mNodes.clear();
+            mByName.clear();
+            mSeekPoints.clear();
+
+            if (key != null) {
+                store(context, key, buffer.array());
+            }
+            buffer.clear();
+            return new ArchiveIndex(buffer);
+        }
+
+        private void addMissingParents() {
+            // Iterating by position picks up parents added on the way
+            for (int i = 0; i < mNodes.size(); i++) {
+                final Node node = mNodes.get(i);
+                if (node == mByName.get("/")) {
+                    continue;
+                }
+                final String name = node.name;
+                final int delimiterIndex = name.lastIndexOf('/', node.directory
+                        ? name.length() - 2 : name.length() - 1);
+                final String parentPath =
+                        delimiterIndex != -1 ? name.substring(0, delimiterIndex) + "/" : "/";
+                Node parent = mByName.get(parentPath);
+                if (parent == null) {
+                    // The ZIP file doesn't contain all directories leading to the entry.
+                    // It's rare, but can happen in a valid ZIP archive.
+                    parent = new Node(parentPath, true);
+                    parent.time = node.time;
+                    mNodes.add(parent);
+                    mByName.put(parentPath, parent);
+                } else if (!parent.directory) {
+                    parent = mByName.get("/");
+                }
+                node.parent = parent;
+            }
+        }
+
+        private static void store(Context context, String key, byte[] data) {
+            final File file = getIndexFile(context, key);
+            final File dir = file.getParentFile();
+            dir.mkdirs();
+            trim(dir);
+
+            final File temp = new File(dir, file.getName() + ".tmp");
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(temp);
+                out.write(data);
+                out.getFD().sync();
+                out.close();
+                out = null;
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Failed to rename " + temp);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to store index " + file, e);
+                temp.delete();
+            } finally {
+                IoUtils.closeQuietly(out);
+            }
+        }
+
+        /**
+         * Drop the least recently used indexes beyond {@link #MAX_INDEXES}.
+         */
+        private static void trim(File dir) {
+            final File[] files = dir.listFiles();
+            if (files == null || files.length < MAX_INDEXES) {
+                return;
+            }
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File lhs, File rhs) {
+                    return Long.valueOf(rhs.lastModified()).compareTo(lhs.lastModified());
+                }
+            });
+            for (int i = MAX_INDEXES - 1; i < files.length; i++) {
+                files[i].delete();
+            }
+        }
+
+        private static int align(int offset) {
+            return (offset + 7) & ~7;
+        }
+
+        private static int compareBytes(byte[] lhs, byte[] rhs) {
+            final int common = Math.min(lhs.length, rhs.length);
+            for (int i = 0; i < common; i++) {
+                final int cmp = (lhs[i] & 0xff) - (rhs[i] & 0xff);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return lhs.length - rhs.length;
+        }
+    }
+
+    private static class Node {
+        final String name;
+        final boolean directory;
+        byte[] nameBytes;
+        Node parent;
+        int index;
+        long size;
+        long compressedSize = UNKNOWN;
+        long time;
+        long crc;
+        int method;
+        long dataOffset = UNKNOWN;
+
+        Node(String name, boolean directory) {
+            this.name = name;
+            this.directory = directory;
+        }
+    }
+}
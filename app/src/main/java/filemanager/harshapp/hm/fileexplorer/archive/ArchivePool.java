@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.archive;
+
+import android.content.ComponentCallbacks2;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import java.util.Locale;
+import java.util.Map;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import androidx.collection.LruCache;
+
+/**
+ * Archives kept open by every {@link DocumentArchiveHelper} of the process.
+ * The pool is bounded by the estimated memory of the archives rather than by
+ * their number, so a few huge archives or many small ones fit alike. The
+ * budget shrinks on memory pressure and grows back once it has passed, and
+ * archives left unused for {@link #IDLE_TIMEOUT_MS} are closed.
+ *
+ * <p>Archives leaving the pool are closed on the pool's own thread once
+ * nothing reads them anymore, so callers holding the pool never wait for
+ * them.
+ */
+public final class ArchivePool {
+    private static final String TAG = "ArchivePool";
+
+    private static final long IDLE_TIMEOUT_MS = 60 * 1000;
+
+    // Descriptor, thread and buffers of an open archive, so that many small
+    // archives aren't kept open at once
+    private static final int ARCHIVE_OVERHEAD = 256 * 1024;
+    // Record of an entry in the mapped index, names aside
+    private static final int ENTRY_OVERHEAD = 64;
+
+    /**
+     * An archive kept in the pool.
+     */
+    interface Entry {
+        /**
+         * @return whether the archive is being read, so isn't idle.
+         */
+        boolean isInUse();
+
+        /**
+         * @return {@link SystemClock#elapsedRealtime()} of the last use.
+         */
+        long getLastUsed();
+
+        /**
+         * Closes the archive once no one reads it. Called on the pool's
+         * thread.
+         */
+        void close();
+    }
+
+    private static ArchivePool sInstance;
+
+    private final LruCache<String, Slot> mCache;
+    private final Runnable mSweep = new Runnable() {
+        @Override
+        public void run() {
+            sweep();
+        }
+    };
+    private Handler mHandler;
+
+    @GuardedBy("this")
+    private int mMaxSize;
+    @GuardedBy("this")
+    private long mTrimmedAt;
+    @GuardedBy("this")
+    private boolean mSweepScheduled;
+    @GuardedBy("this")
+    private long mHits;
+    @GuardedBy("this")
+    private long mMisses;
+    @GuardedBy("this")
+    private long mEvictions;
+    @GuardedBy("this")
+    private long mIdleCloses;
+
+    /**
+     * The pool of the process, with a budget of an eighth of the heap.
+     */
+    public static synchronized ArchivePool getInstance() {
+        if (sInstance == null) {
+            sInstance = new ArchivePool(
+                    (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8));
+        }
+        return sInstance;
+    }
+
+    private ArchivePool(int maxSize) {
+        mMaxSize = maxSize;
+        mCache = new LruCache<String, Slot>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Slot slot) {
+                return slot.footprint;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Slot oldValue,
+                    Slot newValue) {
+                if (newValue != null && newValue.entry == oldValue.entry) {
+                    // Only its footprint changed
+                    return;
+                }
+                if (evicted) {
+                    synchronized (ArchivePool.this) {
+                        mEvictions++;
+                    }
+                }
+                final Entry entry = oldValue.entry;
+                getHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        entry.close();
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Estimated memory of an open archive with the given number of entries,
+     * or of one not read yet if the count is -1.
+     */
+    static int footprintOf(int entryCount) {
+        return ARCHIVE_OVERHEAD + Math.max(0, entryCount) * ENTRY_OVERHEAD;
+    }
+
+    /**
+     * Sets the budget in bytes of the estimated memory of open archives.
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        mMaxSize = maxSize;
+        mTrimmedAt = 0;
+        mCache.resize(maxSize);
+    }
+
+    synchronized Entry get(String key) {
+        final Slot slot = mCache.get(key);
+        if (slot == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return slot.entry;
+    }
+
+    synchronized void put(String key, Entry entry, int footprint) {
+        restoreBudgetLocked();
+        // A single archive over budget still stays open while used
+        mCache.put(key, new Slot(entry, Math.min(footprint, mCache.maxSize())));
+        scheduleSweepLocked();
+    }
+
+    /**
+     * Updates the footprint of an archive once it is known, if the archive
+     * is still in the pool.
+     */
+    synchronized void update(String key, Entry entry, int footprint) {
+        final Slot slot = mCache.get(key);
+        if (slot != null && slot.entry == entry && slot.footprint != footprint) {
+            mCache.put(key, new Slot(entry, Math.min(footprint, mCache.maxSize())));
+        }
+    }
+
+    /**
+     * Removes an archive, unless the pool has another one under its key.
+     *
+     * @param expected archive to remove, or null for any.
+     */
+    synchronized void remove(String key, @Nullable Entry expected) {
+        final Slot slot = mCache.snapshot().get(key);
+        if (slot != null && (expected == null || slot.entry == expected)) {
+            mCache.remove(key);
+        }
+    }
+
+    /**
+     * Removes every archive whose key starts with the prefix.
+     */
+    synchronized void removeAll(String prefix) {
+        for (String key : mCache.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                mCache.remove(key);
+            }
+        }
+    }
+
+    public synchronized void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            mCache.evictAll();
+            shrinkLocked(mMaxSize / 4);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            shrinkLocked(mMaxSize / 2);
+        }
+    }
+
+    /**
+     * Counters of the pool since the process started, for debugging.
+     */
+    public synchronized String getStats() {
+        final long requests = mHits + mMisses;
+        return String.format(Locale.US,
+                "Open: %d, %d KB of %d KB (budget %d KB)\n"
+                        + "Hits: %d, misses: %d (%d%% hits)\n"
+                        + "Evictions: %d, idle closes: %d",
+                mCache.snapshot().size(), mCache.size() / 1024,
+                mCache.maxSize() / 1024, mMaxSize / 1024,
+                mHits, mMisses, requests > 0 ? mHits * 100 / requests : 0,
+                mEvictions, mIdleCloses);
+    }
+
+    @GuardedBy("this")
+    private void shrinkLocked(int maxSize) {
+        if (maxSize < mCache.maxSize()) {
+            mCache.resize(Math.max(1, maxSize));
+        }
+        mTrimmedAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Grows the budget back once memory pressure hasn't been reported for a
+     * while.
+     */
+    @GuardedBy("this")
+    private void restoreBudgetLocked() {
+        if (mTrimmedAt != 0
+                && SystemClock.elapsedRealtime() - mTrimmedAt >= IDLE_TIMEOUT_MS) {
+            mTrimmedAt = 0;
+            mCache.resize(mMaxSize);
+        }
+    }
+
+    @GuardedBy("this")
+    private void scheduleSweepLocked() {
+        if (!mSweepScheduled && mCache.size() > 0) {
+            mSweepScheduled = true;
+            getHandler().postDelayed(mSweep, IDLE_TIMEOUT_MS / 2);
+        }
+    }
+
+    private synchronized void sweep() {
+        mSweepScheduled = false;
+        final long now = SystemClock.elapsedRealtime();
+        for (Map.Entry<String, Slot> slot : mCache.snapshot().entrySet()) {
+            final Entry entry = slot.getValue().entry;
+            if (!entry.isInUse() && now - entry.getLastUsed() >= IDLE_TIMEOUT_MS) {
+                mCache.remove(slot.getKey());
+                mIdleCloses++;
+            }
+        }
+        restoreBudgetLocked();
+        scheduleSweepLocked();
+    }
+
+    private synchronized Handler getHandler() {
+        if (mHandler == null) {
+            final HandlerThread thread = new HandlerThread(TAG);
+            thread.start();
+            mHandler = new Handler(thread.getLooper());
+        }
+        return mHandler;
+    }
+
+    private static class Slot {
+        final Entry entry;
+        final int footprint;
+
+        Slot(Entry entry, int footprint) {
+            this.entry = entry;
+            this.footprint = footprint;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.archive;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Format specific part of {@link DocumentArchive}: lists an archive into an
+ * {@link ArchiveIndex}, and opens entries using what the index recorded.
+ */
+public abstract class ArchiveReader {
+
+    public static final int FORMAT_ZIP = 1;
+    public static final int FORMAT_TAR = 2;
+    public static final int FORMAT_TAR_GZIP = 3;
+    /** A gzip stream holding a single file rather than a tar. */
+    public static final int FORMAT_GZIP = 4;
+
+    private static final int TAR_MAGIC_OFFSET = 257;
+    private static final byte[] SEVEN_ZIP_SIGNATURE = { '7', 'z', (byte) 0xbc, (byte) 0xaf, 0x27, 0x1c };
+
+    /**
+     * Adds every entry of the archive to the builder and sets its format.
+     *
+     * @param name display name of the archive, used for formats which don't
+     *             name their contents.
+     */
+    public abstract void buildIndex(RangedSource source, ArchiveIndex.Builder builder,
+            String name) throws IOException;
+
+    /**
+     * Opens the uncompressed contents of the entry at {@code position} in the index.
+     */
+    public abstract InputStream openEntry(RangedSource source, ArchiveIndex index, int position)
+            throws IOException;
+
+    /**
+     * Finds where the bytes of an entry stored without compression lie in
+     * the archive, so they can be read in place.
+     *
+     * @return {start, length}, or null if the entry is compressed.
+     */
+    public abstract long[] getStoredRange(RangedSource source, ArchiveIndex index, int position)
+            throws IOException;
+
+    /**
+     * Whether entries can be opened one by one without reading the archive
+     * before them, and so may be extracted in parallel.
+     */
+    public boolean isRandomAccess() {
+        return true;
+    }
+
+    /**
+     * Opens the whole uncompressed stream which the data offsets of the index
+     * point into, for readers which aren't random access.
+     */
+    public InputStream openSequential(RangedSource source) throws IOException {
+        throw new UnsupportedOperationException("Sequential reading not supported");
+    }
+
+    /**
+     * Reader for a format returned by {@link #detect(RangedSource)} or
+     * {@link ArchiveIndex#getFormat()}.
+     */
+    public static ArchiveReader forFormat(int format) throws IOException {
+        switch (format) {
+            case FORMAT_ZIP:
+                return new ZipReader();
+            case FORMAT_TAR:
+                return new TarArchiveReader(false);
+            case FORMAT_TAR_GZIP:
+            case FORMAT_GZIP:
+                return new TarArchiveReader(true);
+            default:
+                throw new IOException("Unknown archive format " + format);
+        }
+    }
+
+    /**
+     * Tells the format from the first bytes of the archive. Gzip streams are
+     * reported as {@link #FORMAT_TAR_GZIP}; whether they hold a tar is only
+     * known once they are read.
+     */
+    public static int detect(RangedSource source) throws IOException {
+        final byte[] head = new byte[(int) Math.min(512, source.length())];
+        source.readFully(0, head, 0, head.length);
+
+        if (startsWith(head, 0, new byte[] { 'P', 'K' })) {
+            return FORMAT_ZIP;
+        }
+        if (startsWith(head, 0, new byte[] { 0x1f, (byte) 0x8b })) {
+            return FORMAT_TAR_GZIP;
+        }
+        if (startsWith(head, TAR_MAGIC_OFFSET, new byte[] { 'u', 's', 't', 'a', 'r' })
+                || TarArchiveReader.isHeader(head)) {
+            return FORMAT_TAR;
+        }
+        if (startsWith(head, 0, SEVEN_ZIP_SIGNATURE)) {
+            throw new IOException("7z archives are not supported");
+        }
+        // Self extracting and some empty archives have no leading signature
+        return FORMAT_ZIP;
+    }
+
+    private static boolean startsWith(byte[] data, int offset, byte[] prefix) {
+        if (data.length < offset + prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class ZipReader extends ArchiveReader {
+        @Override
+        public void buildIndex(RangedSource source, ArchiveIndex.Builder builder, String name)
+                throws IOException {
+            builder.setFormat(FORMAT_ZIP);
+            ZipCentralDirectory.read(source, builder);
+        }
+
+        @Override
+        public InputStream openEntry(RangedSource source, ArchiveIndex index, int position)
+                throws IOException {
+            final long offset = index.getDataOffset(position);
+            if (offset == ArchiveIndex.UNKNOWN) {
+                throw new FileNotFoundException();
+            }
+            return ZipCentralDirectory.openEntry(source, offset, index.getMethod(position),
+                    index.getCompressedSize(position), index.getSize(position));
+        }
+
+        @Override
+        public long[] getStoredRange(RangedSource source, ArchiveIndex index, int position)
+                throws IOException {
+            final long offset = index.getDataOffset(position);
+            if (offset == ArchiveIndex.UNKNOWN
+                    || index.getMethod(position) != ZipEntryPolicy.METHOD_STORED) {
+                return null;
+            }
+            return new long[] { ZipCentralDirectory.getDataStart(source, offset),
+                    index.getSize(position) };
+        }
+    }
+}
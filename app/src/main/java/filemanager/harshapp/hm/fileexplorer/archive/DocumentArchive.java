@@ -19,41 +19,41 @@ package filemanager.harshapp.hm.fileexplorer.archive;
 import android.content.Context;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
 import android.graphics.Point;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.CancellationSignal;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 
-import java.io.BufferedInputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
-import java.util.Stack;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import androidx.annotation.GuardedBy;
 import androidx.annotation.Nullable;
 import androidx.annotation.RestrictTo;
 import androidx.exifinterface.media.ExifInterface;
+import filemanager.harshapp.hm.fileexplorer.DocumentsApplication;
 import filemanager.harshapp.hm.fileexplorer.cursor.MatrixCursor;
 import filemanager.harshapp.hm.fileexplorer.libcore.io.IoUtils;
 import filemanager.harshapp.hm.fileexplorer.misc.CrashReportingManager;
+import filemanager.harshapp.hm.fileexplorer.misc.DiskThumbnailCache;
+import filemanager.harshapp.hm.fileexplorer.misc.ImageUtils;
 import filemanager.harshapp.hm.fileexplorer.misc.MimePredicate;
-import filemanager.harshapp.hm.fileexplorer.misc.ParcelFileDescriptorUtil;
 import filemanager.harshapp.hm.fileexplorer.misc.Preconditions;
 import filemanager.harshapp.hm.fileexplorer.misc.Utils;
 import filemanager.harshapp.hm.fileexplorer.model.DocumentsContract;
@@ -68,6 +68,10 @@ import static filemanager.harshapp.hm.fileexplorer.misc.MimeTypes.BASIC_MIME_TYP
  * must be a character which is not used in document ids generated by the
  * document provider.
  *
+ * <p>Browsing is served from an {@link ArchiveIndex}, which is kept across
+ * openings of the same archive; the archive itself is only read when a
+ * document within it is opened.
+ *
  * <p>This class is thread safe.
  *
  * @hide
@@ -89,81 +93,53 @@ public class DocumentArchive implements Closeable {
     private final String mDocumentId;
     private final char mIdDelimiter;
     private final Uri mNotificationUri;
-    private final ZipFile mZipFile;
     private final ExecutorService mExecutor;
-    private final Map<String, ZipEntry> mEntries;
-    private final Map<String, List<ZipEntry>> mTree;
+    private final ArchiveIndex mIndex;
+    private final ArchiveReader mReader;
+    private final String mIndexKey;
+
+    // Only one of these is set, the source is opened from it on first read
+    private final File mFile;
+    // Range of the file holding the archive, the whole file if the length is -1
+    private final long mFileStart;
+    private final long mFileLength;
+    @GuardedBy("this")
+    private ParcelFileDescriptor mDescriptor;
+    @GuardedBy("this")
+    private RangedSource mSource;
+    // Descriptors handed out which still read from the source
+    @GuardedBy("this")
+    private int mOpenDescriptors;
+    @GuardedBy("this")
+    private boolean mCloseRequested;
+    private volatile long mLastRead = SystemClock.elapsedRealtime();
+    private volatile int mEntryFlags;
 
     private DocumentArchive(
             Context context,
-            File file,
+            ArchiveIndex index,
+            @Nullable String indexKey,
+            @Nullable RangedSource source,
+            @Nullable File file,
+            long fileStart,
+            long fileLength,
+            @Nullable ParcelFileDescriptor descriptor,
             String documentId,
             char idDelimiter,
-            @Nullable Uri notificationUri)
-            throws IOException {
+            @Nullable Uri notificationUri) throws IOException {
         mContext = context;
         mDocumentId = documentId;
         mIdDelimiter = idDelimiter;
         mNotificationUri = notificationUri;
-        mZipFile = new ZipFile(file);
         mExecutor = Executors.newSingleThreadExecutor();
-
-        // Build the tree structure in memory.
-        mTree = new HashMap<String, List<ZipEntry>>();
-        mTree.put("/", new ArrayList<ZipEntry>());
-
-        mEntries = new HashMap<String, ZipEntry>();
-        ZipEntry entry;
-        final List<? extends ZipEntry> entries = Collections.list(mZipFile.entries());
-        final Stack<ZipEntry> stack = new Stack<>();
-        for (int i = entries.size() - 1; i >= 0; i--) {
-            entry = entries.get(i);
-            if (entry.isDirectory() != entry.getName().endsWith("/")) {
-                throw new IOException(
-                        "Directories must have a trailing slash, and files must not.");
-            }
-            if (mEntries.containsKey(entry.getName())) {
-                throw new IOException("Multiple entries with the same name are not supported.");
-            }
-            mEntries.put(entry.getName(), entry);
-            if (entry.isDirectory()) {
-                mTree.put(entry.getName(), new ArrayList<ZipEntry>());
-            }
-            stack.push(entry);
-        }
-
-        int delimiterIndex;
-        String parentPath;
-        ZipEntry parentEntry;
-        List<ZipEntry> parentList;
-
-        while (stack.size() > 0) {
-            entry = stack.pop();
-
-            delimiterIndex = entry.getName().lastIndexOf('/', entry.isDirectory()
-                    ? entry.getName().length() - 2 : entry.getName().length() - 1);
-            parentPath =
-                    delimiterIndex != -1 ? entry.getName().substring(0, delimiterIndex) + "/" : "/";
-            parentList = mTree.get(parentPath);
-
-            if (parentList == null) {
-                parentEntry = mEntries.get(parentPath);
-                if (parentEntry == null) {
-                    // The ZIP file doesn't contain all directories leading to the entry.
-                    // It's rare, but can happen in a valid ZIP archive. In such case create a
-                    // fake ZipEntry and add it on top of the stack to process it next.
-                    parentEntry = new ZipEntry(parentPath);
-                    parentEntry.setSize(0);
-                    parentEntry.setTime(entry.getTime());
-                    mEntries.put(parentPath, parentEntry);
-                    stack.push(parentEntry);
-                }
-                parentList = new ArrayList<ZipEntry>();
-                mTree.put(parentPath, parentList);
-            }
-
-            parentList.add(entry);
-        }
+        mIndex = index;
+        mReader = ArchiveReader.forFormat(index.getFormat());
+        mIndexKey = indexKey;
+        mSource = source;
+        mFile = file;
+        mFileStart = fileStart;
+        mFileLength = fileLength;
+        mDescriptor = descriptor;
     }
 
     /**
@@ -181,17 +157,51 @@ public class DocumentArchive implements Closeable {
             Context context, File file, String documentId, char idDelimiter,
             @Nullable Uri notificationUri)
             throws IOException {
-        return new DocumentArchive(context, file, documentId, idDelimiter, notificationUri);
+        final String key = ArchiveIndex.keyFor(file.getAbsolutePath(), file.length(),
+                file.lastModified());
+        return createForFileRange(context, file, 0, -1, key, file.getName(), documentId,
+                idDelimiter, notificationUri);
+    }
+
+    /**
+     * Creates a DocumentsArchive instance for an archive taking up part of a
+     * local file, or all of it if the length is -1.
+     */
+    private static DocumentArchive createForFileRange(
+            Context context, File file, long start, long length, @Nullable String key,
+            @Nullable String displayName, String documentId, char idDelimiter,
+            @Nullable Uri notificationUri)
+            throws IOException {
+        final ArchiveIndex index = key != null ? ArchiveIndex.open(context, key) : null;
+        if (index != null) {
+            return new DocumentArchive(context, index, key, null, file, start, length, null,
+                    documentId, idDelimiter, notificationUri);
+        }
+
+        final RangedSource source = openFileRange(file, start, length);
+        try {
+            return new DocumentArchive(context, buildIndex(context, source, key, displayName),
+                    key, source, file, start, length, null, documentId, idDelimiter,
+                    notificationUri);
+        } catch (IOException e) {
+            IoUtils.closeQuietly(source);
+            throw e;
+        }
+    }
+
+    private static RangedSource openFileRange(File file, long start, long length)
+            throws IOException {
+        final RangedSource source = RangedSource.forFile(file);
+        return length == -1 ? source : RangedSource.forRange(source, start, length);
     }
 
     /**
      * Creates a DocumentsArchive instance for opening, browsing and accessing
      * documents within the archive passed as a file descriptor.
      *
-     * <p>Note, that this method should be used only if the document does not exist
-     * on the local storage. A snapshot file will be created, which may be slower
-     * and consume significant resources, in contrast to using
-     * {@see createForLocalFile(Context, File, String, char, Uri}.
+     * <p>Seekable descriptors are read in place. For pipes a snapshot file will
+     * be created, which may be slower and consume significant resources, in
+     * contrast to using {@see createForLocalFile(Context, File, String, char, Uri}.
      *
      * @param context Context of the provider.
      * @param descriptor File descriptor for the archive's contents.
@@ -205,33 +215,125 @@ public class DocumentArchive implements Closeable {
             Context context, ParcelFileDescriptor descriptor, String documentId,
             char idDelimiter, @Nullable Uri notificationUri)
             throws IOException {
+        return createForParcelFileDescriptor(context, descriptor, documentId, idDelimiter,
+                notificationUri, null, null);
+    }
+
+    /**
+     * Same as {@link #createForParcelFileDescriptor(Context, ParcelFileDescriptor, String,
+     * char, Uri)}, with a key identifying this version of the archive, see
+     * {@link ArchiveIndex#keyFor(String, long, long)}. While its index is stored
+     * a pipe is only copied once a document within the archive is opened.
+     *
+     * @param displayName Name of the archive document, if known.
+     */
+    public static DocumentArchive createForParcelFileDescriptor(
+            Context context, ParcelFileDescriptor descriptor, String documentId,
+            char idDelimiter, @Nullable Uri notificationUri, @Nullable String indexKey,
+            @Nullable String displayName)
+            throws IOException {
+        final RangedSource seekable = RangedSource.forDescriptor(descriptor);
+        if (seekable != null) {
+            return createForRangedSource(context, seekable, documentId, idDelimiter,
+                    notificationUri, indexKey, displayName);
+        }
+
+        final ArchiveIndex index = indexKey != null ? ArchiveIndex.open(context, indexKey) : null;
+        if (index != null) {
+            return new DocumentArchive(context, index, indexKey, null, null, 0, -1, descriptor,
+                    documentId, idDelimiter, notificationUri);
+        }
+
+        RangedSource source = null;
+        try {
+            source = openSnapshot(context, descriptor);
+            return new DocumentArchive(context,
+                    buildIndex(context, source, indexKey, displayName), indexKey, source,
+                    null, 0, -1, null, documentId, idDelimiter, notificationUri);
+        } catch (Exception e){
+            IoUtils.closeQuietly(source);
+            CrashReportingManager.logException(e);
+            return null;
+        }
+    }
+
+    /**
+     * Creates a DocumentsArchive instance reading the archive through the given
+     * source, which is closed with the archive. For ZIP archives only the
+     * central directory is read to list it, and only an entry's own bytes to
+     * open it, which suits providers able to serve byte ranges of remote
+     * documents.
+     *
+     * @param indexKey Key identifying this version of the archive, or null if
+     *            its index shouldn't be stored.
+     * @param displayName Name of the archive document, if known.
+     */
+    public static DocumentArchive createForRangedSource(
+            Context context, RangedSource source, String documentId, char idDelimiter,
+            @Nullable Uri notificationUri, @Nullable String indexKey,
+            @Nullable String displayName)
+            throws IOException {
+        try {
+            ArchiveIndex index = indexKey != null ? ArchiveIndex.open(context, indexKey) : null;
+            if (index == null) {
+                index = buildIndex(context, source, indexKey, displayName);
+            }
+            return new DocumentArchive(context, index, indexKey, source, null, 0, -1, null,
+                    documentId, idDelimiter, notificationUri);
+        } catch (IOException e) {
+            IoUtils.closeQuietly(source);
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of documents within the archive, directories included.
+     */
+    public int getEntryCount() {
+        return mIndex.getCount();
+    }
+
+    /**
+     * Sets {@link Document#COLUMN_FLAGS} reported for every document within
+     * the archive in addition to its own.
+     */
+    public void setEntryFlags(int flags) {
+        mEntryFlags = flags;
+    }
+
+    private static RangedSource openSnapshot(Context context, ParcelFileDescriptor descriptor)
+            throws IOException {
+        return openSnapshot(context, new ParcelFileDescriptor.AutoCloseInputStream(descriptor));
+    }
+
+    /**
+     * Copies the stream, which is closed, into a file only readable through
+     * the returned source.
+     */
+    private static RangedSource openSnapshot(Context context, InputStream inputStream)
+            throws IOException {
         File snapshotFile = null;
         try {
-            // Create a copy of the archive, as ZipFile doesn't operate on streams.
-            // Moreover, ZipInputStream would be inefficient for large files on
-            // pipes.
+            // Pipes can't be read at random, so copy the archive first.
             snapshotFile = File.createTempFile("android.support.provider.snapshot{",
-                    "}.zip", context.getCacheDir());
+                    "}", context.getCacheDir());
 
+            final FileOutputStream outputStream =
+                    new ParcelFileDescriptor.AutoCloseOutputStream(
+                            ParcelFileDescriptor.open(
+                                    snapshotFile, ParcelFileDescriptor.MODE_WRITE_ONLY));
             try {
-                final FileOutputStream outputStream =
-                        new ParcelFileDescriptor.AutoCloseOutputStream(
-                                ParcelFileDescriptor.open(
-                                        snapshotFile, ParcelFileDescriptor.MODE_WRITE_ONLY));
-                final ParcelFileDescriptor.AutoCloseInputStream inputStream =
-                        new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
                 final byte[] buffer = new byte[32 * 1024];
                 int bytes;
                 while ((bytes = inputStream.read(buffer)) != -1) {
                     outputStream.write(buffer, 0, bytes);
                 }
                 outputStream.flush();
-                return new DocumentArchive(context, snapshotFile, documentId, idDelimiter,
-                        notificationUri);
-            } catch (Exception e){
-                CrashReportingManager.logException(e);
-                return null;
+            } finally {
+                IoUtils.closeQuietly(inputStream);
+                IoUtils.closeQuietly(outputStream);
             }
+            return RangedSource.forFile(snapshotFile);
         } finally {
             // On UNIX the file will be still available for processes which opened it, even
             // after deleting it. Remove it ASAP, as it won't be used by anyone else.
@@ -241,6 +343,113 @@ public class DocumentArchive implements Closeable {
         }
     }
 
+    private static ArchiveIndex buildIndex(Context context, RangedSource source,
+            @Nullable String key, @Nullable String name) throws IOException {
+        final ArchiveIndex.Builder builder = new ArchiveIndex.Builder();
+        ArchiveReader.forFormat(ArchiveReader.detect(source)).buildIndex(source, builder, name);
+        return builder.build(context, key);
+    }
+
+    private synchronized RangedSource getSource() throws IOException {
+        if (mCloseRequested) {
+            throw new IOException("Archive already closed");
+        }
+        if (mSource == null) {
+            if (mFile != null) {
+                mSource = openFileRange(mFile, mFileStart, mFileLength);
+            } else {
+                final ParcelFileDescriptor descriptor = mDescriptor;
+                mDescriptor = null;
+                if (descriptor == null) {
+                    throw new IOException("Archive already closed");
+                }
+                mSource = openSnapshot(mContext, descriptor);
+            }
+        }
+        return mSource;
+    }
+
+    /**
+     * Source for a descriptor, kept open until a release from
+     * {@link #newRelease()} runs.
+     */
+    private synchronized RangedSource acquireSource() throws IOException {
+        final RangedSource source = getSource();
+        mOpenDescriptors++;
+        mLastRead = SystemClock.elapsedRealtime();
+        return source;
+    }
+
+    private Runnable newRelease() {
+        final AtomicBoolean released = new AtomicBoolean();
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (released.compareAndSet(false, true)) {
+                    releaseSource();
+                }
+            }
+        };
+    }
+
+    private synchronized void releaseSource() {
+        mOpenDescriptors--;
+        mLastRead = SystemClock.elapsedRealtime();
+        if (mOpenDescriptors == 0 && mCloseRequested) {
+            closeSourceLocked();
+        }
+    }
+
+    /**
+     * @return the number of opened documents still reading from the archive.
+     */
+    public synchronized int getOpenDescriptorCount() {
+        return mOpenDescriptors;
+    }
+
+    /**
+     * @return {@link SystemClock#elapsedRealtime()} of the last read by an
+     * opened document.
+     */
+    public long getLastRead() {
+        return mLastRead;
+    }
+
+    @GuardedBy("this")
+    private void closeSourceLocked() {
+        IoUtils.closeQuietly(mSource);
+        mSource = null;
+        IoUtils.closeQuietly(mDescriptor);
+        mDescriptor = null;
+    }
+
+    /**
+     * Parses an ID of a document within this archive. The archive's own ID is
+     * its root even when the archive is itself within another archive, and so
+     * contains the delimiter.
+     */
+    private ParsedDocumentIdArchive parseId(String documentId) {
+        if (documentId.equals(mDocumentId)) {
+            return new ParsedDocumentIdArchive(mDocumentId, null);
+        }
+        return ParsedDocumentIdArchive.fromDocumentId(documentId, mIdDelimiter);
+    }
+
+    private int getEntryIndex(String path) throws FileNotFoundException {
+        final int index = mIndex.indexOf(path);
+        if (index == -1) {
+            throw new FileNotFoundException();
+        }
+        return index;
+    }
+
+    private InputStream getInputStream(int index) throws IOException {
+        if (mIndex.isDirectory(index)) {
+            throw new FileNotFoundException();
+        }
+        return mReader.openEntry(getSource(), mIndex, index);
+    }
+
     /**
      * Lists child documents of an archive or a directory within an
      * archive. Must be called only for archives with supported mime type,
@@ -249,8 +458,7 @@ public class DocumentArchive implements Closeable {
      */
     public Cursor queryChildDocuments(String documentId, @Nullable String[] projection,
             @Nullable String sortOrder) throws FileNotFoundException {
-        final ParsedDocumentIdArchive parsedParentId = ParsedDocumentIdArchive.fromDocumentId(
-                documentId, mIdDelimiter);
+        final ParsedDocumentIdArchive parsedParentId = parseId(documentId);
         Preconditions.checkArgumentEquals(mDocumentId, parsedParentId.mArchiveId,
                 "Mismatching document ID. Expected: %s, actual: %s.");
 
@@ -261,12 +469,13 @@ public class DocumentArchive implements Closeable {
             result.setNotificationUri(mContext.getContentResolver(), mNotificationUri);
         }
 
-        final List<ZipEntry> parentList = mTree.get(parentPath);
-        if (parentList == null) {
+        final int parent = getEntryIndex(parentPath);
+        if (!mIndex.isDirectory(parent)) {
             throw new FileNotFoundException();
         }
-        for (final ZipEntry entry : parentList) {
-            addCursorRow(result, entry);
+        final int count = mIndex.getChildCount(parent);
+        for (int i = 0; i < count; i++) {
+            addCursorRow(result, mIndex.getChild(parent, i));
         }
         return result;
     }
@@ -276,17 +485,12 @@ public class DocumentArchive implements Closeable {
      *
      */
     public String getDocumentType(String documentId) throws FileNotFoundException {
-        final ParsedDocumentIdArchive parsedId = ParsedDocumentIdArchive.fromDocumentId(
-                documentId, mIdDelimiter);
+        final ParsedDocumentIdArchive parsedId = parseId(documentId);
         Preconditions.checkArgumentEquals(mDocumentId, parsedId.mArchiveId,
                 "Mismatching document ID. Expected: %s, actual: %s.");
         Preconditions.checkArgumentNotNull(parsedId.mPath, "Not a document within an archive.");
 
-        final ZipEntry entry = mEntries.get(parsedId.mPath);
-        if (entry == null) {
-            throw new FileNotFoundException();
-        }
-        return getMimeTypeForEntry(entry);
+        return getMimeTypeForEntry(getEntryIndex(parsedId.mPath));
     }
 
     /**
@@ -295,17 +499,15 @@ public class DocumentArchive implements Closeable {
      *
      */
     public boolean isChildDocument(String parentDocumentId, String documentId) {
-        final ParsedDocumentIdArchive parsedParentId = ParsedDocumentIdArchive.fromDocumentId(
-                parentDocumentId, mIdDelimiter);
-        final ParsedDocumentIdArchive parsedId = ParsedDocumentIdArchive.fromDocumentId(
-                documentId, mIdDelimiter);
+        final ParsedDocumentIdArchive parsedParentId = parseId(parentDocumentId);
+        final ParsedDocumentIdArchive parsedId = parseId(documentId);
         Preconditions.checkArgumentEquals(mDocumentId, parsedParentId.mArchiveId,
                 "Mismatching document ID. Expected: %s, actual: %s.");
         Preconditions.checkArgumentNotNull(parsedId.mPath,
                 "Not a document within an archive.");
 
-        final ZipEntry entry = mEntries.get(parsedId.mPath);
-        if (entry == null) {
+        final int index = mIndex.indexOf(parsedId.mPath);
+        if (index == -1) {
             return false;
         }
 
@@ -315,17 +517,12 @@ public class DocumentArchive implements Closeable {
             return true;
         }
 
-        final ZipEntry parentEntry = mEntries.get(parsedParentId.mPath);
-        if (parentEntry == null || !parentEntry.isDirectory()) {
+        final int parent = mIndex.indexOf(parsedParentId.mPath);
+        if (parent == -1 || !mIndex.isDirectory(parent)) {
             return false;
         }
 
-        final String parentPath = entry.getName();
-
-        // Add a trailing slash even if it's not a directory, so it's easy to check if the
-        // entry is a descendant.
-        final String pathWithSlash = entry.isDirectory() ? entry.getName() : entry.getName() + "/";
-        return pathWithSlash.startsWith(parentPath) && !parentPath.equals(pathWithSlash);
+        return index != parent && mIndex.isDescendant(parent, index);
     }
 
     /**
@@ -334,23 +531,19 @@ public class DocumentArchive implements Closeable {
      */
     public Cursor queryDocument(String documentId, @Nullable String[] projection)
             throws FileNotFoundException {
-        final ParsedDocumentIdArchive parsedId = ParsedDocumentIdArchive.fromDocumentId(
-                documentId, mIdDelimiter);
+        final ParsedDocumentIdArchive parsedId = parseId(documentId);
         Preconditions.checkArgumentEquals(mDocumentId, parsedId.mArchiveId,
                 "Mismatching document ID. Expected: %s, actual: %s.");
         Preconditions.checkArgumentNotNull(parsedId.mPath, "Not a document within an archive.");
 
-        final ZipEntry entry = mEntries.get(parsedId.mPath);
-        if (entry == null) {
-            throw new FileNotFoundException();
-        }
+        final int index = getEntryIndex(parsedId.mPath);
 
         final MatrixCursor result = new MatrixCursor(
                 projection != null ? projection : DEFAULT_PROJECTION);
         if (mNotificationUri != null) {
             result.setNotificationUri(mContext.getContentResolver(), mNotificationUri);
         }
-        addCursorRow(result, entry);
+        addCursorRow(result, index);
         return result;
     }
 
@@ -363,70 +556,156 @@ public class DocumentArchive implements Closeable {
             throws FileNotFoundException {
         Preconditions.checkArgumentEquals("r", mode,
                 "Invalid mode. Only reading \"r\" supported, but got: \"%s\".");
-        final ParsedDocumentIdArchive parsedId = ParsedDocumentIdArchive.fromDocumentId(
-                documentId, mIdDelimiter);
+        final ParsedDocumentIdArchive parsedId = parseId(documentId);
         Preconditions.checkArgumentEquals(mDocumentId, parsedId.mArchiveId,
                 "Mismatching document ID. Expected: %s, actual: %s.");
         Preconditions.checkArgumentNotNull(parsedId.mPath, "Not a document within an archive.");
 
-        final ZipEntry entry = mEntries.get(parsedId.mPath);
-        if (entry == null) {
+        final int index = getEntryIndex(parsedId.mPath);
+        if (mIndex.isDirectory(index)) {
             throw new FileNotFoundException();
         }
 
-        InputStream inputStream = null;
+        Runnable release = null;
         try {
-            try {
-                inputStream = mZipFile.getInputStream(entry);
-            } catch (IOException e) {
-                IoUtils.closeQuietly(inputStream);
-                // Ideally we'd simply throw IOException to the caller, but for consistency
-                // with DocumentsProvider::openDocument, converting it to IllegalStateException.
-                throw new IllegalStateException("Failed to open the document.", e);
-            }
-            if(null == inputStream){
-                return null;
-            }
-            final boolean isWrite = (mode.indexOf('w') != -1);
-            if (isWrite) {
-                return null;//ParcelFileDescriptorUtil.pipeTo(new UsbFileOutputStream(file));
-            } else {
-                return ParcelFileDescriptorUtil.pipeFrom(new BufferedInputStream(inputStream));
+            final RangedSource source = new ReadTrackingSource(acquireSource());
+            release = newRelease();
+            if (Utils.hasOreo()) {
+                final long[] range = mReader.getStoredRange(source, mIndex, index);
+                if (range != null) {
+                    return ArchiveEntryDescriptors.openRange(mContext, source, range[0],
+                            range[1], release);
+                }
             }
+            return ArchiveEntryDescriptors.openPipe(mReader.openEntry(source, mIndex, index),
+                    release);
         } catch (Exception e) {
+            if (release != null) {
+                release.run();
+            }
             CrashReportingManager.logException(e);
             throw new FileNotFoundException("Failed to open document with id " + documentId +
                     " and mode " + mode);
         }
     }
 
+    /**
+     * Opens an archive within this archive for browsing. Archives stored
+     * without compression in a local file are read in place; others are
+     * inflated once into {@link NestedArchiveStore}, so opening them again
+     * needs neither inflating nor indexing. The returned archive is
+     * independent of this one and must be closed separately.
+     *
+     * @param documentId ID of the document within this archive, which becomes
+     *            the ID of the opened archive.
+     */
+    public DocumentArchive openNestedArchive(String documentId, @Nullable Uri notificationUri)
+            throws IOException {
+        final ParsedDocumentIdArchive parsedId = parseId(documentId);
+        Preconditions.checkArgumentEquals(mDocumentId, parsedId.mArchiveId,
+                "Mismatching document ID. Expected: %s, actual: %s.");
+        Preconditions.checkArgumentNotNull(parsedId.mPath, "Not a document within an archive.");
+
+        final int index = getEntryIndex(parsedId.mPath);
+        if (mIndex.isDirectory(index)) {
+            throw new FileNotFoundException();
+        }
+        final String name = new File(parsedId.mPath).getName();
+        final long size = mIndex.getSize(index);
+        final String key = mIndexKey != null ? ArchiveIndex.keyFor(mIndexKey + "!/"
+                + parsedId.mPath, size, mIndex.getTime(index)) : null;
+
+        final RangedSource source = getSource();
+        if (mFile != null) {
+            final long[] range = mReader.getStoredRange(source, mIndex, index);
+            if (range != null) {
+                return createForFileRange(mContext, mFile, mFileStart + range[0], range[1],
+                        key, name, documentId, mIdDelimiter, notificationUri);
+            }
+        }
+
+        if (key != null) {
+            File file = NestedArchiveStore.get(mContext, key);
+            if (file == null) {
+                final InputStream in = mReader.openEntry(source, mIndex, index);
+                try {
+                    file = NestedArchiveStore.put(mContext, key, in, size);
+                } finally {
+                    IoUtils.closeQuietly(in);
+                }
+            }
+            if (file != null) {
+                // Opened now, so the store dropping it later doesn't matter
+                return createForRangedSource(mContext, RangedSource.forFile(file), documentId,
+                        mIdDelimiter, notificationUri, key, name);
+            }
+        }
+
+        // Unknown or too large to keep, so a snapshot for as long as it is open
+        final RangedSource snapshot = openSnapshot(mContext,
+                mReader.openEntry(source, mIndex, index));
+        try {
+            return new DocumentArchive(mContext, buildIndex(mContext, snapshot, null, name),
+                    null, snapshot, null, 0, -1, null, documentId, mIdDelimiter,
+                    notificationUri);
+        } catch (IOException e) {
+            IoUtils.closeQuietly(snapshot);
+            throw e;
+        }
+    }
+
+    /**
+     * Extracts documents within the archive, or the whole archive if one of
+     * the IDs is the archive's own, into a directory.
+     *
+     * @see ArchiveExtractor#extract(File, int[], ArchiveExtractor.Listener, CancellationSignal)
+     */
+    public void extractDocuments(List<String> documentIds, File destDir,
+            @Nullable ArchiveExtractor.Listener listener, @Nullable CancellationSignal signal)
+            throws IOException {
+        final int[] positions = new int[documentIds.size()];
+        for (int i = 0; i < positions.length; i++) {
+            final ParsedDocumentIdArchive parsedId = parseId(documentIds.get(i));
+            Preconditions.checkArgumentEquals(mDocumentId, parsedId.mArchiveId,
+                    "Mismatching document ID. Expected: %s, actual: %s.");
+            positions[i] = parsedId.mPath != null
+                    ? getEntryIndex(parsedId.mPath) : ArchiveIndex.ROOT;
+        }
+        new ArchiveExtractor(getSource(), mIndex).extract(destDir, positions, listener, signal);
+    }
+
     /**
      * Opens a thumbnail of a file within an archive.
      *
+     * <p>Images within archives identified by a key are decoded once: their
+     * EXIF thumbnail, or else a downsampled decode, is kept in the disk
+     * thumbnail cache under the archive's key, the entry's CRC and size.
      */
     public AssetFileDescriptor openDocumentThumbnail(
             String documentId, Point sizeHint, final CancellationSignal signal)
             throws FileNotFoundException {
-        final ParsedDocumentIdArchive parsedId = ParsedDocumentIdArchive.fromDocumentId(documentId, mIdDelimiter);
+        final ParsedDocumentIdArchive parsedId = parseId(documentId);
 //        Preconditions.checkArgumentEquals(mDocumentId, parsedId.mArchiveId,
 //                "Mismatching document ID. Expected: %s, actual: %s.");
 //        Preconditions.checkArgumentNotNull(parsedId.mPath, "Not a document within an archive.");
 //        Preconditions.checkArgument(getDocumentType(documentId).startsWith("image/"),
 //                "Thumbnails only supported for image/* MIME type.");
 
-        final ZipEntry entry = mEntries.get(parsedId.mPath);
-        if (entry == null) {
-            throw new FileNotFoundException();
-        }
+        final int index = getEntryIndex(parsedId.mPath);
 
         if(!Utils.hasKitKat()){
             return new AssetFileDescriptor(openDocument(documentId, "r", signal),
-                    0, entry.getSize());
+                    0, mIndex.getSize(index));
+        }
+
+        final AssetFileDescriptor cached = openCachedThumbnail(index, sizeHint, signal);
+        if (cached != null) {
+            return cached;
         }
 
         InputStream inputStream = null;
         try {
-            inputStream = mZipFile.getInputStream(entry);
+            inputStream = getInputStream(index);
             final ExifInterface exif = new ExifInterface(inputStream);
             if (exif.hasThumbnail()) {
                 Bundle extras = null;
@@ -446,8 +725,8 @@ public class DocumentArchive implements Closeable {
                 }
                 final long[] thumb = exif.getThumbnailRange();
                 if (thumb != null) {
-                    return new AssetFileDescriptor(openDocument(documentId, "r", signal),
-                            thumb[0], thumb[1], extras);
+                    return openAssetRange(documentId, index, thumb[0], thumb[1], extras,
+                            signal);
                 }
             }
         } catch (IOException e) {
@@ -458,12 +737,151 @@ public class DocumentArchive implements Closeable {
             IoUtils.closeQuietly(inputStream);
         }
 
-        return new AssetFileDescriptor(
-                openDocument(documentId, "r", signal), 0, entry.getSize(), null);
+        return openAssetRange(documentId, index, 0, mIndex.getSize(index), null, signal);
+    }
+
+    /**
+     * Opens the cached thumbnail of an image, creating it first if needed.
+     *
+     * @return the thumbnail, or null if the entry isn't cached this way or
+     * its thumbnail couldn't be created.
+     */
+    private AssetFileDescriptor openCachedThumbnail(int index, Point sizeHint,
+            @Nullable CancellationSignal signal) {
+        final DiskThumbnailCache diskCache =
+                DocumentsApplication.getThumbnailCache(mContext).getDiskCache();
+        if (mIndexKey == null || diskCache == null
+                || !getMimeTypeForEntry(index).startsWith("image/")) {
+            return null;
+        }
+
+        // Tar entries have no CRC, their offset identifies them as well
+        final long crc = mIndex.getCrc(index);
+        final int bucket = DiskThumbnailCache.getSizeBucket(sizeHint);
+        final String key = mIndexKey + "|" + (crc != 0 ? crc : "@" + mIndex.getDataOffset(index))
+                + "|" + mIndex.getSize(index) + "|" + bucket;
+        try {
+            File file = diskCache.get(key);
+            if (file == null) {
+                if (signal != null) {
+                    signal.throwIfCanceled();
+                }
+                final Bitmap bitmap = createThumbnail(index, bucket);
+                if (bitmap == null) {
+                    return null;
+                }
+                file = diskCache.put(key, bitmap);
+                bitmap.recycle();
+                if (file == null) {
+                    return null;
+                }
+            }
+            return new AssetFileDescriptor(ParcelFileDescriptor.open(file,
+                    ParcelFileDescriptor.MODE_READ_ONLY), 0, file.length());
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to cache thumbnail of " + mIndex.getName(index), e);
+            return null;
+        }
+    }
+
+    /**
+     * Decodes the EXIF thumbnail of an image, or else the image itself
+     * downsampled to about the given size, upright.
+     */
+    private Bitmap createThumbnail(int index, int size) throws IOException {
+        int orientation = ExifInterface.ORIENTATION_UNDEFINED;
+        Bitmap bitmap = null;
+        InputStream in = getInputStream(index);
+        try {
+            final ExifInterface exif = new ExifInterface(in);
+            orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_UNDEFINED);
+            if (exif.hasThumbnail()) {
+                bitmap = exif.getThumbnailBitmap();
+            }
+        } catch (IOException e) {
+            // Not every image has EXIF, decode it instead
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+
+        if (bitmap == null) {
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            in = getInputStream(index);
+            try {
+                BitmapFactory.decodeStream(in, null, options);
+            } finally {
+                IoUtils.closeQuietly(in);
+            }
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = ImageUtils.findBestSampleSize(options.outWidth,
+                    options.outHeight, size, size);
+            in = getInputStream(index);
+            try {
+                bitmap = ImageUtils.decodeStream(in, null, options);
+            } finally {
+                IoUtils.closeQuietly(in);
+            }
+            if (bitmap == null) {
+                return null;
+            }
+        }
+
+        final int degrees;
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                degrees = 90;
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                degrees = 180;
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                degrees = 270;
+                break;
+            default:
+                return bitmap;
+        }
+        final Matrix matrix = new Matrix();
+        matrix.postRotate(degrees);
+        final Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(),
+                bitmap.getHeight(), matrix, true);
+        if (rotated != bitmap) {
+            bitmap.recycle();
+        }
+        return rotated;
+    }
+
+    /**
+     * Opens part of a document. Entries stored uncompressed in a local archive
+     * get a descriptor of the archive file itself, positioned at the entry.
+     */
+    private AssetFileDescriptor openAssetRange(String documentId, int index, long offset,
+            long length, @Nullable Bundle extras, @Nullable CancellationSignal signal)
+            throws FileNotFoundException {
+        if (mFile != null) {
+            try {
+                final long[] range = mReader.getStoredRange(getSource(), mIndex, index);
+                if (range != null) {
+                    return new AssetFileDescriptor(ParcelFileDescriptor.open(mFile,
+                            ParcelFileDescriptor.MODE_READ_ONLY), mFileStart + range[0] + offset,
+                            length, extras);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to open the entry in place", e);
+            }
+        }
+        return new AssetFileDescriptor(openDocument(documentId, "r", signal), offset, length,
+                extras);
     }
 
     /**
      * Schedules a gracefully close of the archive after any opened files are closed.
+     * The source stays open until the last descriptor from {@link #openDocument} is
+     * released.
      *
      * <p>This method does not block until shutdown. Once called, other methods should not be
      * called.
@@ -473,39 +891,50 @@ public class DocumentArchive implements Closeable {
         mExecutor.execute(new Runnable() {
             @Override
             public void run() {
-                IoUtils.closeQuietly(mZipFile);
+                synchronized (DocumentArchive.this) {
+                    mCloseRequested = true;
+                    if (mOpenDescriptors == 0) {
+                        closeSourceLocked();
+                    }
+                }
             }
         });
         mExecutor.shutdown();
     }
 
-    private void addCursorRow(MatrixCursor cursor, ZipEntry entry) {
+    private void addCursorRow(MatrixCursor cursor, int index) {
+        final String name = mIndex.getName(index);
         final MatrixCursor.RowBuilder row = cursor.newRow();
-        final ParsedDocumentIdArchive parsedId = new ParsedDocumentIdArchive(mDocumentId, entry.getName());
+        final ParsedDocumentIdArchive parsedId = new ParsedDocumentIdArchive(mDocumentId, name);
         row.add(Document.COLUMN_DOCUMENT_ID, parsedId.toDocumentId(mIdDelimiter));
 
-        final File file = new File(entry.getName());
+        final File file = new File(name);
         row.add(Document.COLUMN_DISPLAY_NAME, file.getName());
-        row.add(Document.COLUMN_SIZE, entry.getSize());
+        row.add(Document.COLUMN_SIZE, mIndex.getSize(index));
         row.add(Document.COLUMN_PATH, file.getAbsolutePath());
 
-        final String mimeType = getMimeTypeForEntry(entry);
+        final String mimeType = getMimeTypeForEntry(index);
         row.add(Document.COLUMN_MIME_TYPE, mimeType);
         int flags = 0;//mimeType.startsWith("image/") ? Document.FLAG_SUPPORTS_THUMBNAIL : 0;
         if(MimePredicate.mimeMatches(MimePredicate.VISUAL_MIMES, mimeType)){
             flags |= Document.FLAG_SUPPORTS_THUMBNAIL;
         }
+        if (DocumentArchiveHelper.isSupportedArchiveType(mimeType)) {
+            flags |= Document.FLAG_ARCHIVE;
+        }
+        flags |= mEntryFlags;
         row.add(Document.COLUMN_FLAGS, flags);
     }
 
-    private String getMimeTypeForEntry(ZipEntry entry) {
-        if (entry.isDirectory()) {
+    private String getMimeTypeForEntry(int index) {
+        if (mIndex.isDirectory(index)) {
             return Document.MIME_TYPE_DIR;
         }
 
-        final int lastDot = entry.getName().lastIndexOf('.');
+        final String name = mIndex.getName(index);
+        final int lastDot = name.lastIndexOf('.');
         if (lastDot >= 0) {
-            final String extension = entry.getName().substring(lastDot + 1).toLowerCase(Locale.US);
+            final String extension = name.substring(lastDot + 1).toLowerCase(Locale.US);
             final String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
             if (mimeType != null) {
                 return mimeType;
@@ -514,4 +943,32 @@ public class DocumentArchive implements Closeable {
 
         return BASIC_MIME_TYPE;
     }
+
+    /**
+     * Notes the time of every read of an opened document, so an archive
+     * being streamed from isn't taken for idle. Closing it leaves the
+     * archive's source open.
+     */
+    private class ReadTrackingSource extends RangedSource {
+        private final RangedSource mSource;
+
+        ReadTrackingSource(RangedSource source) {
+            mSource = source;
+        }
+
+        @Override
+        public long length() throws IOException {
+            return mSource.length();
+        }
+
+        @Override
+        public int read(long position, byte[] buffer, int offset, int count) throws IOException {
+            mLastRead = SystemClock.elapsedRealtime();
+            return mSource.read(position, buffer, offset, count);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
 }
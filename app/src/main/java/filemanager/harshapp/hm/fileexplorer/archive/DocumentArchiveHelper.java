@@ -24,13 +24,14 @@ import android.graphics.Point;
 import android.net.Uri;
 import android.os.CancellationSignal;
 import android.os.ParcelFileDescriptor;
-import android.util.Log;
-import android.util.LruCache;
+import android.os.SystemClock;
 
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -60,30 +61,21 @@ public class DocumentArchiveHelper implements Closeable {
     public static final String COLUMN_LOCAL_FILE_PATH = "local_file_path";
 
     private static final String TAG = "DocumentArchiveHelper";
-    private static final int OPENED_ARCHIVES_CACHE_SIZE = 4;
-    private static final String[] ZIP_MIME_TYPES = {
-            "application/zip", "application/x-zip", "application/x-zip-compressed"
+    private static final String[] ARCHIVE_MIME_TYPES = {
+            "application/zip", "application/x-zip", "application/x-zip-compressed",
+            "application/x-tar", "application/x-gtar", "application/x-gtar-compressed",
+            "application/x-compressed-tar", "application/gzip", "application/x-gzip"
     };
 
     private final DocumentsProvider mProvider;
     private final char mIdDelimiter;
+    private final int mEntryFlags;
 
-    // @GuardedBy("mArchives")
-    private final LruCache<String, Loader> mArchives =
-            new LruCache<String, Loader>(OPENED_ARCHIVES_CACHE_SIZE) {
-                @Override
-                public void entryRemoved(boolean evicted, String key,
-                        Loader oldValue, Loader newValue) {
-                    oldValue.getWriteLock().lock();
-                    try {
-                        oldValue.get().close();
-                    } catch (FileNotFoundException e) {
-                        Log.e(TAG, "Failed to close an archive as it no longer exists.");
-                    } finally {
-                        oldValue.getWriteLock().unlock();
-                    }
-                }
-            };
+    private static final AtomicInteger sHelperCount = new AtomicInteger();
+
+    // Opened archives of every helper, this one's under keys with its prefix
+    private final ArchivePool mPool = ArchivePool.getInstance();
+    private final String mPoolPrefix = sHelperCount.getAndIncrement() + "/";
 
     /**
      * Creates a helper for handling archived documents.
@@ -96,8 +88,17 @@ public class DocumentArchiveHelper implements Closeable {
      *            path, which is often \0.
      */
     public DocumentArchiveHelper(DocumentsProvider provider, char idDelimiter) {
+        this(provider, idDelimiter, 0);
+    }
+
+    /**
+     * @param entryFlags {@link Document#COLUMN_FLAGS} added to every document
+     *            within an archive.
+     */
+    public DocumentArchiveHelper(DocumentsProvider provider, char idDelimiter, int entryFlags) {
         mProvider = provider;
         mIdDelimiter = idDelimiter;
+        mEntryFlags = entryFlags;
     }
 
     /**
@@ -111,7 +112,7 @@ public class DocumentArchiveHelper implements Closeable {
             throws FileNotFoundException {
         Loader loader = null;
         try {
-            loader = obtainInstance(documentId);
+            loader = obtainInstance(getContainingArchiveId(documentId));
             return loader.get().queryChildDocuments(documentId, projection, sortOrder);
         } finally {
             releaseInstance(loader);
@@ -125,7 +126,7 @@ public class DocumentArchiveHelper implements Closeable {
     public String getDocumentType(String documentId) throws FileNotFoundException {
         Loader loader = null;
         try {
-            loader = obtainInstance(documentId);
+            loader = obtainInstance(getArchiveId(documentId));
             return loader.get().getDocumentType(documentId);
         } finally {
             releaseInstance(loader);
@@ -138,9 +139,15 @@ public class DocumentArchiveHelper implements Closeable {
      *
      */
     public boolean isChildDocument(String parentDocumentId, String documentId) {
+        final String archiveId = getArchiveId(documentId);
+        if (!archiveId.equals(parentDocumentId) && isArchivedDocument(archiveId)
+                && !archiveId.equals(getArchiveId(parentDocumentId))) {
+            // Within a nested archive, so a descendant if the archive is
+            return isChildDocument(parentDocumentId, archiveId);
+        }
         Loader loader = null;
         try {
-            loader = obtainInstance(documentId);
+            loader = obtainInstance(getArchiveId(documentId));
             return loader.get().isChildDocument(parentDocumentId, documentId);
         } catch (FileNotFoundException e) {
             throw new IllegalStateException(e);
@@ -157,7 +164,7 @@ public class DocumentArchiveHelper implements Closeable {
             throws FileNotFoundException {
         Loader loader = null;
         try {
-            loader = obtainInstance(documentId);
+            loader = obtainInstance(getArchiveId(documentId));
             return loader.get().queryDocument(documentId, projection);
         } finally {
             releaseInstance(loader);
@@ -173,7 +180,7 @@ public class DocumentArchiveHelper implements Closeable {
             throws FileNotFoundException {
         Loader loader = null;
         try {
-            loader = obtainInstance(documentId);
+            loader = obtainInstance(getArchiveId(documentId));
             return loader.get().openDocument(documentId, mode, signal);
         } finally {
             releaseInstance(loader);
@@ -189,13 +196,67 @@ public class DocumentArchiveHelper implements Closeable {
             throws FileNotFoundException {
         Loader loader = null;
         try {
-            loader = obtainInstance(documentId);
+            loader = obtainInstance(getArchiveId(documentId));
             return loader.get().openDocumentThumbnail(documentId, sizeHint, signal);
         } finally {
             releaseInstance(loader);
         }
     }
 
+    /**
+     * Extracts documents of one archive, or the archive itself, into a directory.
+     *
+     * @see DocumentArchive#extractDocuments(List, File, ArchiveExtractor.Listener,
+     *      CancellationSignal)
+     */
+    public void extractDocuments(List<String> documentIds, File destDir,
+            @Nullable ArchiveExtractor.Listener listener, @Nullable CancellationSignal signal)
+            throws IOException {
+        Loader loader = null;
+        try {
+            loader = obtainInstance(getArchiveId(documentIds.get(0)));
+            loader.get().extractDocuments(documentIds, destDir, listener, signal);
+        } finally {
+            releaseInstance(loader);
+        }
+    }
+
+    /**
+     * Returns the ID of the archive a document is within, which is itself
+     * within another archive for nested archives.
+     */
+    public String getArchiveId(String documentId) {
+        return ParsedDocumentIdArchive.fromDocumentId(documentId, mIdDelimiter).mArchiveId;
+    }
+
+    /**
+     * Returns the ID of the provider's own document holding a document within
+     * archives, however deeply they are nested.
+     */
+    public String getRootArchiveId(String documentId) {
+        final int delimiterPosition = documentId.indexOf(mIdDelimiter);
+        return delimiterPosition == -1 ? documentId : documentId.substring(0, delimiterPosition);
+    }
+
+    /**
+     * Returns the ID of the archive listing the children of a document: the
+     * document itself if it is an archive, otherwise the archive it is in.
+     */
+    private String getContainingArchiveId(String documentId) throws FileNotFoundException {
+        if (!isArchivedDocument(documentId)) {
+            return documentId;
+        }
+        final String archiveId = getArchiveId(documentId);
+        Loader loader = null;
+        try {
+            loader = obtainInstance(archiveId);
+            return isSupportedArchiveType(loader.get().getDocumentType(documentId))
+                    ? documentId : archiveId;
+        } finally {
+            releaseInstance(loader);
+        }
+    }
+
     /**
      * Returns true if the passed document ID is for a document within an archive.
      */
@@ -207,8 +268,8 @@ public class DocumentArchiveHelper implements Closeable {
      * Returns true if the passed mime type is supported by the helper.
      */
     public static boolean isSupportedArchiveType(String mimeType) {
-        for (final String zipMimeType : ZIP_MIME_TYPES) {
-            if (zipMimeType.equals(mimeType)) {
+        for (final String archiveMimeType : ARCHIVE_MIME_TYPES) {
+            if (archiveMimeType.equals(mimeType)) {
                 return true;
             }
         }
@@ -216,37 +277,50 @@ public class DocumentArchiveHelper implements Closeable {
     }
 
     /**
-     * Closes the helper and disposes all existing archives. It will block until all ongoing
-     * operations on each opened archive are finished.
+     * Closes the helper and disposes all existing archives. Each is closed
+     * once the operations ongoing on it are finished.
      */
     @Override
     public void close() {
-        synchronized (mArchives) {
-            mArchives.evictAll();
-        }
+        mPool.removeAll(mPoolPrefix);
     }
 
     /**
-     * Releases resources for an archive with the specified document ID. It will block until all
-     * operations on the archive are finished. If not opened, the method does nothing.
+     * Releases resources for an archive with the specified document ID, once the operations
+     * ongoing on it are finished. If not opened, the method does nothing.
      *
-     * <p>Calling this method is optional. The helper automatically closes the least recently used
-     * archives if too many archives are opened.
+     * <p>Calling this method is optional. Archives are closed automatically when they have been
+     * idle for a while, or when {@link ArchivePool} needs memory for others.
      *
      * @param documentId ID of the archive file.
      */
     public void closeArchive(String documentId) {
-        synchronized (mArchives) {
-            mArchives.remove(documentId);
+        synchronized (mPool) {
+            removeLocked(documentId, null);
         }
     }
 
-    private Loader obtainInstance(String documentId) throws FileNotFoundException {
+    /**
+     * Removes an archive along with the archives nested in it, unless the
+     * loader of the archive isn't the expected one.
+     */
+    private void removeLocked(String archiveId, @Nullable Loader expected) {
+        final String key = getPoolKey(archiveId);
+        mPool.remove(key, expected);
+        mPool.removeAll(key + mIdDelimiter);
+    }
+
+    private String getPoolKey(String archiveId) {
+        return mPoolPrefix + archiveId;
+    }
+
+    private Loader obtainInstance(String archiveId) throws FileNotFoundException {
         Loader loader;
-        synchronized (mArchives) {
-            loader = getInstanceUncheckedLocked(documentId);
+        synchronized (mPool) {
+            loader = getInstanceUncheckedLocked(archiveId);
             loader.getReadLock().lock();
         }
+        loader.mLastUsed = SystemClock.elapsedRealtime();
         return loader;
     }
 
@@ -256,16 +330,28 @@ public class DocumentArchiveHelper implements Closeable {
         }
     }
 
-    private Loader getInstanceUncheckedLocked(String documentId)
+    private Loader getInstanceUncheckedLocked(final String archiveId)
             throws FileNotFoundException {
         try {
-            final ParsedDocumentIdArchive id = ParsedDocumentIdArchive.fromDocumentId(documentId, mIdDelimiter);
-            if (mArchives.get(id.mArchiveId) != null) {
-                return mArchives.get(id.mArchiveId);
+            final String poolKey = getPoolKey(archiveId);
+            final Loader existing = (Loader) mPool.get(poolKey);
+            if (existing != null) {
+                return existing;
+            }
+
+            if (isArchivedDocument(archiveId)) {
+                final Loader parent = getInstanceUncheckedLocked(getArchiveId(archiveId));
+                final Loader loader = new Loader(this, archiveId, parent.mNotificationUri,
+                        mEntryFlags);
+                mPool.put(poolKey, loader, ArchivePool.footprintOf(-1));
+                return loader;
             }
 
+            final ParsedDocumentIdArchive id = new ParsedDocumentIdArchive(archiveId, null);
             final Cursor cursor = mProvider.queryDocument(id.mArchiveId, new String[]
-                    { Document.COLUMN_MIME_TYPE, COLUMN_LOCAL_FILE_PATH });
+                    { Document.COLUMN_MIME_TYPE, COLUMN_LOCAL_FILE_PATH,
+                            Document.COLUMN_SIZE, Document.COLUMN_LAST_MODIFIED,
+                            Document.COLUMN_DISPLAY_NAME });
             cursor.moveToFirst();
             final String mimeType = cursor.getString(cursor.getColumnIndex(
                     Document.COLUMN_MIME_TYPE));
@@ -275,29 +361,39 @@ public class DocumentArchiveHelper implements Closeable {
             final String localFilePath = columnIndex != -1 ? cursor.getString(columnIndex) : null;
             final File localFile = localFilePath != null ? new File(localFilePath) : null;
 
+            // Without both, a changed archive can't be told from the indexed one
+            String indexKey = null;
+            final int sizeIndex = cursor.getColumnIndex(Document.COLUMN_SIZE);
+            final int lastModifiedIndex = cursor.getColumnIndex(Document.COLUMN_LAST_MODIFIED);
+            if (sizeIndex != -1 && lastModifiedIndex != -1 && !cursor.isNull(sizeIndex)
+                    && !cursor.isNull(lastModifiedIndex)) {
+                indexKey = ArchiveIndex.keyFor(mProvider.getClass().getName() + "/"
+                        + id.mArchiveId, cursor.getLong(sizeIndex),
+                        cursor.getLong(lastModifiedIndex));
+            }
+
+            final int nameIndex = cursor.getColumnIndex(Document.COLUMN_DISPLAY_NAME);
+            final String displayName = nameIndex != -1 ? cursor.getString(nameIndex) : null;
+
             final Uri notificationUri = ((AbstractCursor)cursor).getNotificationUri();
-            final Loader loader = new Loader(mProvider, localFile, id, mIdDelimiter,
-                    notificationUri);
+            final Loader loader = new Loader(mProvider, mPool, poolKey, localFile, id,
+                    mIdDelimiter, notificationUri, indexKey, displayName, mEntryFlags);
 
-            // Remove the instance from mArchives collection once the archive file changes.
+            // Remove the instance from the pool once the archive file changes.
             if (notificationUri != null) {
-                final LruCache<String, Loader> finalArchives = mArchives;
                 mProvider.getContext().getContentResolver().registerContentObserver(notificationUri,
                         false,
                         new ContentObserver(null) {
                             @Override
                             public void onChange(boolean selfChange, Uri uri) {
-                                synchronized (mArchives) {
-                                    final Loader currentLoader = mArchives.get(id.mArchiveId);
-                                    if (currentLoader == loader) {
-                                        mArchives.remove(id.mArchiveId);
-                                    }
+                                synchronized (mPool) {
+                                    removeLocked(id.mArchiveId, loader);
                                 }
                             }
                         });
             }
 
-            mArchives.put(id.mArchiveId, loader);
+            mPool.put(poolKey, loader, ArchivePool.footprintOf(-1));
             return loader;
         } catch (IOException e) {
             // DocumentsProvider doesn't use IOException. For consistency convert it to
@@ -307,24 +403,56 @@ public class DocumentArchiveHelper implements Closeable {
     }
 
     /**
-     * Loads an instance of DocumentArchive lazily.
+     * Loads an instance of DocumentArchive lazily, from the provider or from
+     * the archive it is nested in.
      */
-    private static final class Loader {
+    private static final class Loader implements ArchivePool.Entry {
+        private final DocumentArchiveHelper mHelper;
         private final DocumentsProvider mProvider;
+        private final ArchivePool mPool;
+        private final String mPoolKey;
         private final File mLocalFile;
         private final ParsedDocumentIdArchive mId;
         private final char mIdDelimiter;
         private final Uri mNotificationUri;
+        private final String mIndexKey;
+        private final String mDisplayName;
+        private final int mEntryFlags;
         private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
-        private DocumentArchive mArchive = null;
-
-        Loader(DocumentsProvider provider, @Nullable File localFile, ParsedDocumentIdArchive id,
-                char idDelimiter, Uri notificationUri) {
+        // Read without the loader's lock by the pool, which get() calls into
+        private volatile DocumentArchive mArchive = null;
+        volatile long mLastUsed = SystemClock.elapsedRealtime();
+
+        Loader(DocumentsProvider provider, ArchivePool pool, String poolKey,
+                @Nullable File localFile, ParsedDocumentIdArchive id, char idDelimiter,
+                Uri notificationUri, @Nullable String indexKey, @Nullable String displayName,
+                int entryFlags) {
+            this.mHelper = null;
             this.mProvider = provider;
+            this.mPool = pool;
+            this.mPoolKey = poolKey;
             this.mLocalFile = localFile;
             this.mId = id;
             this.mIdDelimiter = idDelimiter;
             this.mNotificationUri = notificationUri;
+            this.mIndexKey = indexKey;
+            this.mDisplayName = displayName;
+            this.mEntryFlags = entryFlags;
+        }
+
+        Loader(DocumentArchiveHelper helper, String archiveId, Uri notificationUri,
+                int entryFlags) {
+            this.mHelper = helper;
+            this.mProvider = helper.mProvider;
+            this.mPool = helper.mPool;
+            this.mPoolKey = helper.getPoolKey(archiveId);
+            this.mLocalFile = null;
+            this.mId = new ParsedDocumentIdArchive(archiveId, null);
+            this.mIdDelimiter = helper.mIdDelimiter;
+            this.mNotificationUri = notificationUri;
+            this.mIndexKey = null;
+            this.mDisplayName = null;
+            this.mEntryFlags = entryFlags;
         }
 
         synchronized DocumentArchive get() throws FileNotFoundException {
@@ -333,7 +461,17 @@ public class DocumentArchiveHelper implements Closeable {
             }
 
             try {
-                if (mLocalFile != null) {
+                if (mHelper != null) {
+                    // The parent may have been closed since, so it is obtained again
+                    Loader parent = null;
+                    try {
+                        parent = mHelper.obtainInstance(mHelper.getArchiveId(mId.mArchiveId));
+                        mArchive = parent.get().openNestedArchive(mId.mArchiveId,
+                                mNotificationUri);
+                    } finally {
+                        mHelper.releaseInstance(parent);
+                    }
+                } else if (mLocalFile != null) {
                     mArchive = DocumentArchive.createForLocalFile(
                             mProvider.getContext(), mLocalFile, mId.mArchiveId, mIdDelimiter,
                             mNotificationUri);
@@ -341,21 +479,54 @@ public class DocumentArchiveHelper implements Closeable {
                     mArchive = DocumentArchive.createForParcelFileDescriptor(
                             mProvider.getContext(),
                             mProvider.openDocument(mId.mArchiveId, "r", null /* signal */),
-                            mId.mArchiveId, mIdDelimiter, mNotificationUri);
+                            mId.mArchiveId, mIdDelimiter, mNotificationUri, mIndexKey,
+                            mDisplayName);
                 }
             } catch (IOException e) {
                 throw new IllegalStateException(e);
             }
+            if (mArchive != null) {
+                mArchive.setEntryFlags(mEntryFlags);
+                mPool.update(mPoolKey, this, ArchivePool.footprintOf(mArchive.getEntryCount()));
+            }
 
             return mArchive;
         }
 
-        Lock getReadLock() {
-            return mLock.readLock();
+        @Override
+        public boolean isInUse() {
+            if (mLock.getReadLockCount() > 0) {
+                return true;
+            }
+            // Opened documents read the archive after the provider call returned
+            final DocumentArchive archive = mArchive;
+            return archive != null && archive.getOpenDescriptorCount() > 0;
+        }
+
+        @Override
+        public long getLastUsed() {
+            final DocumentArchive archive = mArchive;
+            return archive != null ? Math.max(mLastUsed, archive.getLastRead()) : mLastUsed;
         }
 
-        Lock getWriteLock() {
-            return mLock.writeLock();
+        @Override
+        public void close() {
+            // Waits for ongoing operations; archives never loaded, such as
+            // nested ones, aren't loaded just to be closed
+            mLock.writeLock().lock();
+            try {
+                synchronized (this) {
+                    if (mArchive != null) {
+                        mArchive.close();
+                    }
+                }
+            } finally {
+                mLock.writeLock().unlock();
+            }
+        }
+
+        Lock getReadLock() {
+            return mLock.readLock();
         }
     }
 }
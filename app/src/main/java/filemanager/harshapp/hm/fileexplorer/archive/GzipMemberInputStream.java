@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.archive;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Decompresses a gzip file read through a {@link RangedSource}, starting at
+ * any member boundary and continuing across the members that follow, as
+ * written by pigz, bgzip or by concatenating gzip files. While an index is
+ * built, member starts are recorded as seek points so entries can later be
+ * reached without inflating everything before them.
+ *
+ * <p>Points are only found between members: {@link Inflater} can't resume
+ * in the middle of one, so a single member gzip still inflates from its start.
+ */
+class GzipMemberInputStream extends InputStream {
+
+    /** Minimum uncompressed distance between recorded seek points. */
+    private static final long SEEK_POINT_SPACING = 1024 * 1024;
+
+    private static final int FLAG_HCRC = 2;
+    private static final int FLAG_EXTRA = 4;
+    private static final int FLAG_NAME = 8;
+    private static final int FLAG_COMMENT = 16;
+
+    private final RangedSource mSource;
+    private final long mLength;
+    private final ArchiveIndex.Builder mBuilder;
+    private final Inflater mInflater = new Inflater(true);
+    private final byte[] mInput = new byte[64 * 1024];
+    private byte[] mSkipBuffer;
+
+    /** Position in the source of the next byte not yet given to the inflater. */
+    private long mPosition;
+    private long mUncompressed;
+    private long mLastSeekPoint;
+    private boolean mEof;
+
+    /**
+     * @param compressedOffset start of a member.
+     * @param uncompressedOffset offset in the uncompressed stream it decodes to.
+     * @param builder where to record seek points, or null.
+     */
+    GzipMemberInputStream(RangedSource source, long compressedOffset, long uncompressedOffset,
+            @Nullable ArchiveIndex.Builder builder) throws IOException {
+        mSource = source;
+        mLength = source.length();
+        mBuilder = builder;
+        mUncompressed = uncompressedOffset;
+        mLastSeekPoint = uncompressedOffset;
+        startMember(compressedOffset);
+    }
+
+    /**
+     * @return bytes decompressed so far, counting from the start of the file.
+     */
+    long getUncompressedOffset() {
+        return mUncompressed;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] single = new byte[1];
+        return read(single, 0, 1) == 1 ? single[0] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        if (count == 0) {
+            return 0;
+        }
+        while (!mEof) {
+            if (mInflater.needsInput()) {
+                fill();
+            }
+            final int inflated;
+            try {
+                inflated = mInflater.inflate(buffer, offset, count);
+            } catch (DataFormatException e) {
+                throw new ZipException(e.getMessage());
+            }
+            mUncompressed += inflated;
+            if (mInflater.finished()) {
+                endMember();
+            }
+            if (inflated > 0) {
+                return inflated;
+            }
+            if (mInflater.needsDictionary()) {
+                throw new ZipException("Corrupt gzip stream");
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+        if (mSkipBuffer == null) {
+            mSkipBuffer = new byte[32 * 1024];
+        }
+        long skipped = 0;
+        while (skipped < byteCount) {
+            final int read = read(mSkipBuffer, 0,
+                    (int) Math.min(mSkipBuffer.length, byteCount - skipped));
+            if (read == -1) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public void close() {
+        mEof = true;
+        mInflater.end();
+    }
+
+    private void fill() throws IOException {
+        final int read = mSource.read(mPosition, mInput, 0,
+                (int) Math.min(mInput.length, mLength - mPosition));
+        if (read <= 0) {
+            throw new EOFException("Unexpected end of gzip stream");
+        }
+        mInflater.setInput(mInput, 0, read);
+        mPosition += read;
+    }
+
+    private void endMember() throws IOException {
+        // Skip the CRC32 and ISIZE trailer
+        final long next = mPosition - mInflater.getRemaining() + 8;
+        mInflater.reset();
+        if (next + 10 > mLength || !isMemberStart(next)) {
+            // Anything after the last member, such as tape padding, is ignored
+            mEof = true;
+            return;
+        }
+        startMember(next);
+    }
+
+    private boolean isMemberStart(long position) throws IOException {
+        final byte[] magic = new byte[2];
+        mSource.readFully(position, magic, 0, 2);
+        return magic[0] == 0x1f && magic[1] == (byte) 0x8b;
+    }
+
+    private void startMember(long position) throws IOException {
+        if (mBuilder != null && mUncompressed - mLastSeekPoint >= SEEK_POINT_SPACING) {
+            mBuilder.addSeekPoint(position, mUncompressed);
+            mLastSeekPoint = mUncompressed;
+        }
+
+        final byte[] header = new byte[10];
+        mSource.readFully(position, header, 0, header.length);
+        if (header[0] != 0x1f || header[1] != (byte) 0x8b || header[2] != 8) {
+            throw new ZipException("Not a gzip stream at " + position);
+        }
+        final int flags = header[3] & 0xff;
+        long offset = position + header.length;
+        if ((flags & FLAG_EXTRA) != 0) {
+            final byte[] length = new byte[2];
+            mSource.readFully(offset, length, 0, 2);
+            offset += 2 + ((length[0] & 0xff) | (length[1] & 0xff) << 8);
+        }
+        if ((flags & FLAG_NAME) != 0) {
+            offset = skipZeroTerminated(offset);
+        }
+        if ((flags & FLAG_COMMENT) != 0) {
+            offset = skipZeroTerminated(offset);
+        }
+        if ((flags & FLAG_HCRC) != 0) {
+            offset += 2;
+        }
+        mPosition = offset;
+    }
+
+    private long skipZeroTerminated(long offset) throws IOException {
+        final byte[] chunk = new byte[256];
+        while (true) {
+            final int read = mSource.read(offset, chunk, 0, chunk.length);
+            if (read <= 0) {
+                throw new EOFException("Unexpected end of gzip header");
+            }
+            for (int i = 0; i < read; i++) {
+                if (chunk[i] == 0) {
+                    return offset + i + 1;
+                }
+            }
+            offset += read;
+        }
+    }
+}
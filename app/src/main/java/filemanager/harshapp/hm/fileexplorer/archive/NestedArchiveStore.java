@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.archive;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import filemanager.harshapp.hm.fileexplorer.libcore.io.IoUtils;
+import filemanager.harshapp.hm.fileexplorer.misc.Utils;
+import filemanager.harshapp.hm.fileexplorer.transfer.BufferPool;
+
+/**
+ * Archives within archives which can't be read in place, inflated once and
+ * kept under the key of their {@link ArchiveIndex}, so going back into one
+ * doesn't inflate it again. The least recently used are dropped beyond
+ * {@link #MAX_SIZE}; one already opened stays readable until it is closed.
+ */
+final class NestedArchiveStore {
+    private static final String TAG = "NestedArchiveStore";
+
+    private static final String STORE_DIR = "nested_archives";
+    private static final String SUFFIX = ".archive";
+    private static final long MAX_SIZE = 256 * 1024 * 1024;
+
+    private NestedArchiveStore() {
+    }
+
+    /**
+     * @return the archive stored under the key, or {@code null} if there is
+     * none.
+     */
+    static File get(Context context, String key) {
+        final File file = getFile(context, key);
+        if (!file.exists()) {
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Stores {@code size} bytes of the stream, which is left open, under the
+     * key.
+     *
+     * @return the stored archive, or {@code null} if it is too large to keep.
+     */
+    static File put(Context context, String key, InputStream in, long size)
+            throws IOException {
+        if (size < 0 || size > MAX_SIZE) {
+            return null;
+        }
+        final File file = getFile(context, key);
+        final File dir = file.getParentFile();
+        dir.mkdirs();
+        trim(dir, size);
+
+        final File temp = File.createTempFile(file.getName(), ".tmp", dir);
+        final byte[] buffer = BufferPool.acquire();
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            long written = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                written += read;
+            }
+            if (written != size) {
+                throw new EOFException("Archive truncated");
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Failed to rename " + temp);
+            }
+            return file;
+        } finally {
+            BufferPool.release(buffer);
+            IoUtils.closeQuietly(out);
+            temp.delete();
+        }
+    }
+
+    /**
+     * Drops the least recently used archives until {@code needed} more bytes
+     * fit.
+     */
+    private static synchronized void trim(File dir, long needed) {
+        final File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        final long[] modified = new long[files.length];
+        final Integer[] order = new Integer[files.length];
+        long total = needed;
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+            total += files[i].length();
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Long.valueOf(modified[lhs]).compareTo(modified[rhs]);
+            }
+        });
+        for (int i = 0; i < order.length && total > MAX_SIZE; i++) {
+            final File file = files[order[i]];
+            final long length = file.length();
+            if (file.delete()) {
+                total -= length;
+                Log.d(TAG, "Dropped " + file);
+            }
+        }
+    }
+
+    private static File getFile(Context context, String key) {
+        final File dir = new File(context.getCacheDir(), STORE_DIR);
+        return new File(dir, Utils.sha1Hex(key) + SUFFIX);
+    }
+}
@@ -0,0 +1,654 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.archive;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import filemanager.harshapp.hm.fileexplorer.libcore.io.IoUtils;
+import filemanager.harshapp.hm.fileexplorer.misc.StandardCharsets;
+import filemanager.harshapp.hm.fileexplorer.misc.Utils;
+import filemanager.harshapp.hm.fileexplorer.transfer.BufferPool;
+
+/**
+ * Writes ZIP archives using every core. Files are cut into blocks which are
+ * deflated independently on a worker pool, each primed with the 32KB before
+ * it as a preset dictionary so the ratio stays close to a single stream. The
+ * compressed blocks are spliced into the archive in order and their CRCs
+ * combined, so every source byte is read only once.
+ *
+ * <p>Whether an entry is deflated at all is up to the {@link ZipEntryPolicy}.
+ * Deflated entries are written with data descriptors; stored entries, which
+ * readers require to carry their CRC up front, have it patched into the local
+ * header once written. Zip64 records are added when sizes, offsets or the
+ * entry count outgrow the classic format.
+ */
+public class ParallelZipWriter {
+    private static final String TAG = "ParallelZipWriter";
+
+    private static final int BLOCK_SIZE = 512 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private static final int LOCSIG = 0x04034b50;
+    private static final int EXTSIG = 0x08074b50;
+    private static final int CENSIG = 0x02014b50;
+    private static final int ENDSIG = 0x06054b50;
+    private static final int ZIP64_ENDSIG = 0x06064b50;
+    private static final int ZIP64_LOCSIG = 0x07064b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    private static final int FLAG_UTF8 = 1 << 11;
+    private static final int LOCAL_CRC_OFFSET = 14;
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    private final File mDest;
+    private final ZipEntryPolicy mPolicy;
+    private final ArrayList<Entry> mEntries = new ArrayList<>();
+
+    private FileChannel mChannel;
+
+    public ParallelZipWriter(File dest, ZipEntryPolicy policy) {
+        mDest = dest;
+        mPolicy = policy;
+    }
+
+    /**
+     * Queue a file to be stored under the given entry name.
+     */
+    public void add(String name, File file) {
+        mEntries.add(new Entry(name, file));
+    }
+
+    /**
+     * Write every queued entry. On failure the partial archive is deleted.
+     */
+    public void write() throws IOException {
+        final long start = SystemClock.elapsedRealtime();
+        final int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        // Splitting a stream needs SYNC_FLUSH, which older releases don't expose
+        final boolean canSplit = Utils.hasKitKat();
+        final int window = threads * 2;
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final ArrayDeque<Future<Block>> pending = new ArrayDeque<>();
+        CountingOutputStream out = null;
+        boolean success = false;
+        try {
+            final FileOutputStream fileOut = new FileOutputStream(mDest);
+            mChannel = fileOut.getChannel();
+            out = new CountingOutputStream(new BufferedOutputStream(fileOut, OUTPUT_BUFFER_SIZE));
+
+            for (Entry entry : mEntries) {
+                final long length = entry.file.length();
+                entry.plannedSize = length;
+                if (!canSplit && length > BLOCK_SIZE) {
+                    while (!pending.isEmpty()) {
+                        writeBlock(out, pending.poll().get());
+                    }
+                    writeInline(out, entry);
+                    continue;
+                }
+
+                final long blocks = Math.max(1, (length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+                for (long i = 0; i < blocks; i++) {
+                    final long offset = i * BLOCK_SIZE;
+                    final int size = (int) Math.min(BLOCK_SIZE, length - offset);
+                    pending.add(executor.submit(new DeflateTask(entry, offset, size,
+                            i == 0, i == blocks - 1, mPolicy)));
+                    if (pending.size() >= window) {
+                        writeBlock(out, pending.poll().get());
+                    }
+                }
+            }
+            while (!pending.isEmpty()) {
+                writeBlock(out, pending.poll().get());
+            }
+
+            writeCentralDirectory(out);
+            out.flush();
+            success = true;
+
+            int stored = 0;
+            for (Entry entry : mEntries) {
+                if (entry.method == ZipEntryPolicy.METHOD_STORED) {
+                    stored++;
+                }
+            }
+            Log.d(TAG, "Wrote " + mEntries.size() + " entries (" + stored + " stored), "
+                    + out.getCount() + " bytes in " + (SystemClock.elapsedRealtime() - start)
+                    + "ms on " + threads + " threads");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted writing " + mDest);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to compress into " + mDest, cause);
+        } finally {
+            executor.shutdownNow();
+            IoUtils.closeQuietly(out);
+            mChannel = null;
+            if (!success) {
+                mDest.delete();
+            }
+        }
+    }
+
+    private void writeBlock(CountingOutputStream out, Block block) throws IOException {
+        final Entry entry = block.entry;
+        if (block.first) {
+            entry.offset = out.getCount();
+            writeLocalHeader(out, entry);
+            entry.crc = block.crc;
+        } else {
+            entry.crc = crc32Combine(entry.crc, block.crc, block.rawLength);
+        }
+        out.write(block.data, 0, block.length);
+        entry.compressedSize += block.length;
+        entry.size += block.rawLength;
+        if (block.last) {
+            finishEntry(out, entry);
+        }
+    }
+
+    /**
+     * Write a whole entry on the calling thread, for large files that can't
+     * be split.
+     */
+    private void writeInline(CountingOutputStream out, Entry entry) throws IOException {
+        final boolean deflate = entry.getMethod(mPolicy) == ZipEntryPolicy.METHOD_DEFLATED;
+        entry.offset = out.getCount();
+        writeLocalHeader(out, entry);
+
+        final Deflater deflater = deflate ? new Deflater(mPolicy.getLevel(), true) : null;
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = BufferPool.acquire();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(entry.file);
+            final OutputStream dataOut = deflate
+                    ? new DeflaterOutputStream(out, deflater, OUTPUT_BUFFER_SIZE) : out;
+            final long dataStart = out.getCount();
+            int read;
+            while (entry.size < entry.plannedSize && (read = in.read(buffer, 0,
+                    (int) Math.min(buffer.length, entry.plannedSize - entry.size))) != -1) {
+                crc.update(buffer, 0, read);
+                dataOut.write(buffer, 0, read);
+                entry.size += read;
+            }
+            if (deflate) {
+                ((DeflaterOutputStream) dataOut).finish();
+            }
+            entry.compressedSize = out.getCount() - dataStart;
+            entry.crc = crc.getValue();
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+            IoUtils.closeQuietly(in);
+            BufferPool.release(buffer);
+        }
+        finishEntry(out, entry);
+    }
+
+    private static void writeLocalHeader(CountingOutputStream out, Entry entry) throws IOException {
+        final boolean stored = entry.method == ZipEntryPolicy.METHOD_STORED;
+        entry.localZip64 = stored && entry.plannedSize >= ZIP64_MAGIC;
+
+        out.writeInt(LOCSIG);
+        out.writeShort(entry.localZip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+        out.writeShort(entry.getFlags());
+        out.writeShort(entry.method);
+        out.writeInt(entry.dosTime);
+        // Deflated entries carry CRC and sizes after the data, stored ones
+        // have them patched in by finishEntry()
+        out.writeInt(0);
+        if (!stored) {
+            out.writeInt(0);
+            out.writeInt(0);
+        } else if (entry.localZip64) {
+            out.writeInt(ZIP64_MAGIC);
+            out.writeInt(ZIP64_MAGIC);
+        } else {
+            out.writeInt(entry.plannedSize);
+            out.writeInt(entry.plannedSize);
+        }
+        out.writeShort(entry.name.length);
+        out.writeShort(entry.localZip64 ? 20 : 0);
+        out.write(entry.name);
+        if (entry.localZip64) {
+            out.writeShort(ZIP64_EXTRA_ID);
+            out.writeShort(16);
+            out.writeLong(entry.plannedSize);
+            out.writeLong(entry.plannedSize);
+        }
+    }
+
+    private void finishEntry(CountingOutputStream out, Entry entry) throws IOException {
+        if (entry.method == ZipEntryPolicy.METHOD_DEFLATED) {
+            writeDataDescriptor(out, entry);
+            return;
+        }
+
+        // Patch the local header, the source may have shrunk while reading
+        out.flush();
+        final ByteBuffer patch = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        patch.putInt((int) entry.crc);
+        if (entry.localZip64) {
+            patch.flip().limit(4);
+            writeFully(patch, entry.offset + LOCAL_CRC_OFFSET);
+            final ByteBuffer sizes = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            sizes.putLong(entry.size).putLong(entry.compressedSize).flip();
+            writeFully(sizes, entry.offset + LOCAL_HEADER_SIZE + entry.name.length + 4);
+        } else {
+            patch.putInt((int) entry.compressedSize).putInt((int) entry.size).flip();
+            writeFully(patch, entry.offset + LOCAL_CRC_OFFSET);
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+    }
+
+    private static void writeDataDescriptor(CountingOutputStream out, Entry entry) throws IOException {
+        out.writeInt(EXTSIG);
+        out.writeInt(entry.crc);
+        if (entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC) {
+            out.writeLong(entry.compressedSize);
+            out.writeLong(entry.size);
+        } else {
+            out.writeInt(entry.compressedSize);
+            out.writeInt(entry.size);
+        }
+    }
+
+    private void writeCentralDirectory(CountingOutputStream out) throws IOException {
+        final long cenOffset = out.getCount();
+        for (Entry entry : mEntries) {
+            final boolean zip64Size = entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+            final boolean zip64Offset = entry.offset >= ZIP64_MAGIC;
+            int extraLength = (zip64Size ? 16 : 0) + (zip64Offset ? 8 : 0);
+            if (extraLength > 0) {
+                extraLength += 4;
+            }
+            final int version = extraLength > 0 ? VERSION_ZIP64 : VERSION_DEFAULT;
+
+            out.writeInt(CENSIG);
+            out.writeShort(version);
+            out.writeShort(version);
+            out.writeShort(entry.getFlags());
+            out.writeShort(entry.method);
+            out.writeInt(entry.dosTime);
+            out.writeInt(entry.crc);
+            out.writeInt(zip64Size ? ZIP64_MAGIC : entry.compressedSize);
+            out.writeInt(zip64Size ? ZIP64_MAGIC : entry.size);
+            out.writeShort(entry.name.length);
+            out.writeShort(extraLength);
+            out.writeShort(0); // comment
+            out.writeShort(0); // disk number
+            out.writeShort(0); // internal attributes
+            out.writeInt(0);   // external attributes
+            out.writeInt(zip64Offset ? ZIP64_MAGIC : entry.offset);
+            out.write(entry.name);
+            if (extraLength > 0) {
+                out.writeShort(ZIP64_EXTRA_ID);
+                out.writeShort(extraLength - 4);
+                if (zip64Size) {
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.compressedSize);
+                }
+                if (zip64Offset) {
+                    out.writeLong(entry.offset);
+                }
+            }
+        }
+        final long cenLength = out.getCount() - cenOffset;
+        final int count = mEntries.size();
+
+        if (count >= ZIP64_MAGIC_COUNT || cenOffset >= ZIP64_MAGIC || cenLength >= ZIP64_MAGIC) {
+            final long zip64EndOffset = out.getCount();
+            out.writeInt(ZIP64_ENDSIG);
+            out.writeLong(44);
+            out.writeShort(VERSION_ZIP64);
+            out.writeShort(VERSION_ZIP64);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeLong(count);
+            out.writeLong(count);
+            out.writeLong(cenLength);
+            out.writeLong(cenOffset);
+
+            out.writeInt(ZIP64_LOCSIG);
+            out.writeInt(0);
+            out.writeLong(zip64EndOffset);
+            out.writeInt(1);
+        }
+
+        out.writeInt(ENDSIG);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(Math.min(count, ZIP64_MAGIC_COUNT));
+        out.writeShort(Math.min(count, ZIP64_MAGIC_COUNT));
+        out.writeInt(Math.min(cenLength, ZIP64_MAGIC));
+        out.writeInt(Math.min(cenOffset, ZIP64_MAGIC));
+        out.writeShort(0);
+    }
+
+    private static int toDosTime(long time) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        final int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    /**
+     * CRC of two concatenated buffers from the CRC of each, as in zlib's
+     * crc32_combine().
+     */
+    private static long crc32Combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        final long[] even = new long[32];
+        final long[] odd = new long[32];
+
+        // Operator for one zero bit
+        odd[0] = 0xedb88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // Two and then four zero bits
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+
+        // Apply length2 zero bytes to crc1
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] matrix, long vector) {
+        long sum = 0;
+        int i = 0;
+        while (vector != 0) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+            vector >>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+        }
+    }
+
+    private static class Entry {
+        final byte[] name;
+        final File file;
+        final int dosTime;
+        long plannedSize;
+        long offset;
+        long crc;
+        long size;
+        long compressedSize;
+        boolean localZip64;
+        volatile int method = -1;
+
+        Entry(String name, File file) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.file = file;
+            this.dosTime = toDosTime(file.lastModified());
+        }
+
+        /**
+         * Decided once, by whichever block of the entry gets to it first.
+         */
+        synchronized int getMethod(ZipEntryPolicy policy) {
+            if (method == -1) {
+                method = policy.getMethod(file);
+            }
+            return method;
+        }
+
+        int getFlags() {
+            return method == ZipEntryPolicy.METHOD_STORED
+                    ? FLAG_UTF8 : FLAG_DATA_DESCRIPTOR | FLAG_UTF8;
+        }
+    }
+
+    private static class Block {
+        Entry entry;
+        boolean first;
+        boolean last;
+        byte[] data;
+        int length;
+        int rawLength;
+        long crc;
+    }
+
+    /**
+     * Deflates one block of a file into a scratch buffer. Blocks other than
+     * the last end with a sync flush, so they can be concatenated into one
+     * valid stream. Blocks of stored entries are only read and checksummed.
+     */
+    private static class DeflateTask implements Callable<Block> {
+        private final Entry mEntry;
+        private final long mOffset;
+        private final int mLength;
+        private final boolean mFirst;
+        private final boolean mLast;
+        private final ZipEntryPolicy mPolicy;
+
+        DeflateTask(Entry entry, long offset, int length, boolean first, boolean last,
+                    ZipEntryPolicy policy) {
+            mEntry = entry;
+            mOffset = offset;
+            mLength = length;
+            mFirst = first;
+            mLast = last;
+            mPolicy = policy;
+        }
+
+        @Override
+        public Block call() throws IOException {
+            final boolean deflate =
+                    mEntry.getMethod(mPolicy) == ZipEntryPolicy.METHOD_DEFLATED;
+            final int dictionaryLength = deflate ? (int) Math.min(DICTIONARY_SIZE, mOffset) : 0;
+            final byte[] input = new byte[dictionaryLength + mLength];
+            int read = 0;
+            RandomAccessFile file = null;
+            try {
+                file = new RandomAccessFile(mEntry.file, "r");
+                file.seek(mOffset - dictionaryLength);
+                int count;
+                while (read < input.length
+                        && (count = file.read(input, read, input.length - read)) != -1) {
+                    read += count;
+                }
+            } finally {
+                IoUtils.closeQuietly(file);
+            }
+            final int rawLength = Math.max(0, read - dictionaryLength);
+
+            final Block block = new Block();
+            block.entry = mEntry;
+            block.first = mFirst;
+            block.last = mLast;
+            block.rawLength = rawLength;
+
+            final CRC32 crc = new CRC32();
+            crc.update(input, dictionaryLength, rawLength);
+            block.crc = crc.getValue();
+
+            if (!deflate) {
+                block.data = input;
+                block.length = rawLength;
+                return block;
+            }
+
+            final Deflater deflater = new Deflater(mPolicy.getLevel(), true);
+            try {
+                if (dictionaryLength > 0) {
+                    deflater.setDictionary(input, 0, dictionaryLength);
+                }
+                deflater.setInput(input, dictionaryLength, rawLength);
+                byte[] output = new byte[rawLength / 2 + 64];
+                int length = 0;
+                if (mLast) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        if (length == output.length) {
+                            output = grow(output);
+                        }
+                        length += deflater.deflate(output, length, output.length - length);
+                    }
+                } else {
+                    do {
+                        if (length == output.length) {
+                            output = grow(output);
+                        }
+                        length += syncFlush(deflater, output, length);
+                    } while (length == output.length);
+                }
+                block.data = output;
+                block.length = length;
+            } finally {
+                deflater.end();
+            }
+            return block;
+        }
+
+        @TargetApi(Build.VERSION_CODES.KITKAT)
+        private static int syncFlush(Deflater deflater, byte[] output, int offset) {
+            return deflater.deflate(output, offset, output.length - offset, Deflater.SYNC_FLUSH);
+        }
+
+        private static byte[] grow(byte[] buffer) {
+            final byte[] grown = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, grown, 0, buffer.length);
+            return grown;
+        }
+    }
+
+    /**
+     * Tracks the archive offset and writes little endian fields.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCount += len;
+        }
+
+        void writeShort(int v) throws IOException {
+            write(v & 0xff);
+            write((v >>> 8) & 0xff);
+        }
+
+        void writeInt(long v) throws IOException {
+            writeShort((int) (v & 0xffff));
+            writeShort((int) ((v >>> 16) & 0xffff));
+        }
+
+        void writeLong(long v) throws IOException {
+            writeInt(v & 0xffffffffL);
+            writeInt(v >>> 32);
+        }
+    }
+}
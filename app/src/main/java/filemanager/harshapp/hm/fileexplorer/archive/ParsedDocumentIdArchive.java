@@ -17,6 +17,9 @@
 package filemanager.harshapp.hm.fileexplorer.archive;
 
 /**
+ * ID of a document within an archive: the archive's ID and the document's
+ * path in it. An archive within an archive has the ID of that document, so
+ * the path follows the last delimiter.
  */
 
 public class ParsedDocumentIdArchive {
@@ -29,7 +32,7 @@ public class ParsedDocumentIdArchive {
     }
 
     static public ParsedDocumentIdArchive fromDocumentId(String documentId, char idDelimiter) {
-        final int delimiterPosition = documentId.indexOf(idDelimiter);
+        final int delimiterPosition = documentId.lastIndexOf(idDelimiter);
         if (delimiterPosition == -1) {
             return new ParsedDocumentIdArchive(documentId, null);
         } else {
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.archive;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import filemanager.harshapp.hm.fileexplorer.libcore.io.IoUtils;
+
+/**
+ * Random access to the bytes of an archive. Reads name their position, so
+ * one source can be read from several threads at once. Local files and
+ * seekable file descriptors are read in place; a remote provider able to
+ * serve byte ranges can subclass this to avoid downloading whole archives.
+ */
+public abstract class RangedSource implements Closeable {
+
+    /**
+     * @return total length in bytes.
+     */
+    public abstract long length() throws IOException;
+
+    /**
+     * Reads up to {@code count} bytes at {@code position}.
+     *
+     * @return number of bytes read, or -1 at the end of the source.
+     */
+    public abstract int read(long position, byte[] buffer, int offset, int count)
+            throws IOException;
+
+    public void readFully(long position, byte[] buffer, int offset, int count)
+            throws IOException {
+        while (count > 0) {
+            final int read = read(position, buffer, offset, count);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+            offset += read;
+            count -= read;
+        }
+    }
+
+    /**
+     * Stream over {@code length} bytes starting at {@code position}.
+     */
+    public InputStream openRange(long position, long length) {
+        return new RangeInputStream(this, position, length);
+    }
+
+    public static RangedSource forFile(File file) throws IOException {
+        return new ChannelSource(new FileInputStream(file), null);
+    }
+
+    /**
+     * @return a source reading the descriptor in place, or {@code null} if it
+     * is a pipe or socket. The descriptor is closed with the source.
+     */
+    public static RangedSource forDescriptor(ParcelFileDescriptor descriptor) {
+        if (descriptor.getStatSize() < 0) {
+            return null;
+        }
+        return new ChannelSource(new FileInputStream(descriptor.getFileDescriptor()),
+                descriptor);
+    }
+
+    /**
+     * @return a source reading {@code length} bytes of another one from
+     * {@code start}, such as an archive stored within an archive. The other
+     * source is closed with it.
+     */
+    public static RangedSource forRange(RangedSource source, long start, long length) {
+        return new SliceSource(source, start, length);
+    }
+
+    private static class SliceSource extends RangedSource {
+        private final RangedSource mSource;
+        private final long mStart;
+        private final long mLength;
+
+        SliceSource(RangedSource source, long start, long length) {
+            mSource = source;
+            mStart = start;
+            mLength = length;
+        }
+
+        @Override
+        public long length() {
+            return mLength;
+        }
+
+        @Override
+        public int read(long position, byte[] buffer, int offset, int count) throws IOException {
+            if (position >= mLength) {
+                return -1;
+            }
+            return mSource.read(mStart + position, buffer, offset,
+                    (int) Math.min(count, mLength - position));
+        }
+
+        @Override
+        public void close() {
+            IoUtils.closeQuietly(mSource);
+        }
+    }
+
+    private static class ChannelSource extends RangedSource {
+        private final FileInputStream mStream;
+        private final FileChannel mChannel;
+        private final ParcelFileDescriptor mDescriptor;
+
+        ChannelSource(FileInputStream stream, ParcelFileDescriptor descriptor) {
+            mStream = stream;
+            mChannel = stream.getChannel();
+            mDescriptor = descriptor;
+        }
+
+        @Override
+        public long length() throws IOException {
+            return mChannel.size();
+        }
+
+        @Override
+        public int read(long position, byte[] buffer, int offset, int count) throws IOException {
+            return mChannel.read(ByteBuffer.wrap(buffer, offset, count), position);
+        }
+
+        @Override
+        public void close() {
+            IoUtils.closeQuietly(mStream);
+            IoUtils.closeQuietly(mDescriptor);
+        }
+    }
+
+    private static class RangeInputStream extends InputStream {
+        private final RangedSource mSource;
+        private long mPosition;
+        private long mRemaining;
+
+        RangeInputStream(RangedSource source, long position, long length) {
+            mSource = source;
+            mPosition = position;
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return read(single, 0, 1) == 1 ? single[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            final int read = mSource.read(mPosition, buffer, offset,
+                    (int) Math.min(count, mRemaining));
+            if (read < 0) {
+                throw new EOFException("Archive truncated");
+            }
+            mPosition += read;
+            mRemaining -= read;
+            return read;
+        }
+
+        @Override
+        public long skip(long byteCount) {
+            final long skipped = Math.max(0, Math.min(byteCount, mRemaining));
+            mPosition += skipped;
+            mRemaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, mRemaining);
+        }
+    }
+}
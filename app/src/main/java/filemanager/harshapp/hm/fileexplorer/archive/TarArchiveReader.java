@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.archive;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+import filemanager.harshapp.hm.fileexplorer.libcore.io.IoUtils;
+import filemanager.harshapp.hm.fileexplorer.libcore.io.Streams;
+import filemanager.harshapp.hm.fileexplorer.misc.StandardCharsets;
+
+/**
+ * Reads tar archives, plain or gzipped, in one streaming pass. Entries are
+ * recorded with the offset of their data in the uncompressed tar. Plain tars
+ * are then read in place; for gzipped ones decompression restarts from the
+ * closest seek point found by {@link GzipMemberInputStream}.
+ *
+ * <p>Understands ustar, GNU long names and pax path and size records. Links,
+ * devices and sparse files are left out. A gzip file that doesn't hold a tar
+ * is shown as the single file it compresses.
+ */
+class TarArchiveReader extends ArchiveReader {
+
+    private static final int BLOCK_SIZE = 512;
+
+    private static final int NAME_OFFSET = 0;
+    private static final int NAME_LENGTH = 100;
+    private static final int SIZE_OFFSET = 124;
+    private static final int SIZE_LENGTH = 12;
+    private static final int MTIME_OFFSET = 136;
+    private static final int MTIME_LENGTH = 12;
+    private static final int CHECKSUM_OFFSET = 148;
+    private static final int CHECKSUM_LENGTH = 8;
+    private static final int TYPE_OFFSET = 156;
+    private static final int MAGIC_OFFSET = 257;
+    private static final int PREFIX_OFFSET = 345;
+    private static final int PREFIX_LENGTH = 155;
+
+    private static final byte TYPE_FILE = '0';
+    private static final byte TYPE_FILE_OLD = 0;
+    private static final byte TYPE_CONTIGUOUS = '7';
+    private static final byte TYPE_DIRECTORY = '5';
+    private static final byte TYPE_GNU_LONG_NAME = 'L';
+    private static final byte TYPE_PAX_HEADER = 'x';
+
+    private final boolean mGzipped;
+
+    TarArchiveReader(boolean gzipped) {
+        mGzipped = gzipped;
+    }
+
+    /**
+     * Whether the block is a tar header with a valid checksum.
+     */
+    static boolean isHeader(byte[] block) {
+        if (block.length < BLOCK_SIZE) {
+            return false;
+        }
+        final long stored = parseNumber(block, CHECKSUM_OFFSET, CHECKSUM_LENGTH);
+        if (stored <= 0) {
+            return false;
+        }
+        long sum = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            final boolean inChecksum = i >= CHECKSUM_OFFSET
+                    && i < CHECKSUM_OFFSET + CHECKSUM_LENGTH;
+            sum += inChecksum ? ' ' : block[i] & 0xff;
+        }
+        return sum == stored;
+    }
+
+    @Override
+    public void buildIndex(RangedSource source, ArchiveIndex.Builder builder, String name)
+            throws IOException {
+        final InputStream in = mGzipped
+                ? new GzipMemberInputStream(source, 0, 0, builder)
+                : source.openRange(0, source.length());
+        try {
+            final byte[] block = new byte[BLOCK_SIZE];
+            final int firstRead = readBlock(in, block);
+            if (mGzipped && (firstRead < BLOCK_SIZE || !isHeader(block))) {
+                builder.setFormat(FORMAT_GZIP);
+                final long size = firstRead + in.skip(Long.MAX_VALUE);
+                builder.add(getUncompressedName(name), false, size, source.length(), 0, 0,
+                        ZipEntryPolicy.METHOD_STORED, 0);
+                return;
+            }
+            builder.setFormat(mGzipped ? FORMAT_TAR_GZIP : FORMAT_TAR);
+            if (firstRead < BLOCK_SIZE) {
+                throw new EOFException("Not a tar archive");
+            }
+
+            long position = 0;
+            String longName = null;
+            long paxSize = -1;
+            while (true) {
+                if (isZeroBlock(block)) {
+                    break;
+                }
+                if (!isHeader(block)) {
+                    throw new IOException("Corrupt tar header at " + position);
+                }
+                position += BLOCK_SIZE;
+
+                final byte type = block[TYPE_OFFSET];
+                final long size = paxSize >= 0 ? paxSize
+                        : parseNumber(block, SIZE_OFFSET, SIZE_LENGTH);
+                final long padded = (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+
+                if (type == TYPE_GNU_LONG_NAME || type == TYPE_PAX_HEADER) {
+                    final byte[] data = new byte[(int) size];
+                    Streams.readFully(in, data, 0, data.length);
+                    skipFully(in, padded - size);
+                    position += padded;
+                    if (type == TYPE_GNU_LONG_NAME) {
+                        longName = parseString(data, 0, data.length);
+                    } else {
+                        final String[] pax = parsePax(data);
+                        if (pax[0] != null) {
+                            longName = pax[0];
+                        }
+                        if (pax[1] != null) {
+                            paxSize = Long.parseLong(pax[1]);
+                        }
+                    }
+                } else {
+                    String entryName = longName != null ? longName : getName(block);
+                    final boolean directory = type == TYPE_DIRECTORY || entryName.endsWith("/");
+                    entryName = normalize(entryName, directory);
+                    final boolean file = type == TYPE_FILE || type == TYPE_FILE_OLD
+                            || type == TYPE_CONTIGUOUS;
+                    if (entryName != null && (directory || file) && !builder.contains(entryName)) {
+                        builder.add(entryName, directory, directory ? 0 : size,
+                                directory ? 0 : size,
+                                parseNumber(block, MTIME_OFFSET, MTIME_LENGTH) * 1000, 0,
+                                ZipEntryPolicy.METHOD_STORED, position);
+                    }
+                    skipFully(in, padded);
+                    position += padded;
+                    longName = null;
+                    paxSize = -1;
+                }
+
+                if (readBlock(in, block) < BLOCK_SIZE) {
+                    // Missing end of archive blocks are common and harmless
+                    break;
+                }
+            }
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    @Override
+    public InputStream openEntry(RangedSource source, ArchiveIndex index, int position)
+            throws IOException {
+        final long offset = index.getDataOffset(position);
+        final long size = index.getSize(position);
+        if (!mGzipped) {
+            return source.openRange(offset, size);
+        }
+
+        final long[] point = index.findSeekPoint(offset);
+        final InputStream in = new GzipMemberInputStream(source, point[0], point[1], null);
+        try {
+            skipFully(in, offset - point[1]);
+        } catch (IOException e) {
+            IoUtils.closeQuietly(in);
+            throw e;
+        }
+        return new LimitedInputStream(in, size);
+    }
+
+    @Override
+    public long[] getStoredRange(RangedSource source, ArchiveIndex index, int position) {
+        if (mGzipped) {
+            return null;
+        }
+        return new long[] { index.getDataOffset(position), index.getSize(position) };
+    }
+
+    @Override
+    public boolean isRandomAccess() {
+        return !mGzipped;
+    }
+
+    @Override
+    public InputStream openSequential(RangedSource source) throws IOException {
+        return mGzipped ? new GzipMemberInputStream(source, 0, 0, null)
+                : source.openRange(0, source.length());
+    }
+
+    private static String getUncompressedName(String name) {
+        if (name == null) {
+            return "data";
+        }
+        final String lower = name.toLowerCase(Locale.US);
+        if (lower.endsWith(".gz") && name.length() > 3) {
+            return name.substring(0, name.length() - 3);
+        }
+        return name;
+    }
+
+    private static String getName(byte[] block) {
+        final String name = parseString(block, NAME_OFFSET, NAME_LENGTH);
+        final boolean ustar = block[MAGIC_OFFSET] == 'u' && block[MAGIC_OFFSET + 1] == 's'
+                && block[MAGIC_OFFSET + 2] == 't' && block[MAGIC_OFFSET + 3] == 'a'
+                && block[MAGIC_OFFSET + 4] == 'r';
+        if (ustar) {
+            final String prefix = parseString(block, PREFIX_OFFSET, PREFIX_LENGTH);
+            if (prefix.length() > 0) {
+                return prefix + "/" + name;
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Strips leading "/" and "./" and gives directories a trailing slash.
+     *
+     * @return the name, or {@code null} if nothing is left of it.
+     */
+    private static String normalize(String name, boolean directory) {
+        while (true) {
+            if (name.startsWith("/")) {
+                name = name.substring(1);
+            } else if (name.startsWith("./")) {
+                name = name.substring(2);
+            } else {
+                break;
+            }
+        }
+        while (name.endsWith("/")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        if (name.length() == 0 || name.equals(".")) {
+            return null;
+        }
+        return directory ? name + "/" : name;
+    }
+
+    /**
+     * @return {path, size} from pax records, either may be null.
+     */
+    private static String[] parsePax(byte[] data) {
+        final String[] result = new String[2];
+        int offset = 0;
+        while (offset < data.length) {
+            int space = offset;
+            while (space < data.length && data[space] != ' ') {
+                space++;
+            }
+            final int length;
+            try {
+                length = Integer.parseInt(new String(data, offset, space - offset,
+                        StandardCharsets.UTF_8));
+            } catch (NumberFormatException e) {
+                break;
+            }
+            if (length <= 0 || offset + length > data.length) {
+                break;
+            }
+            // "<length> <key>=<value>\n"
+            final String record = new String(data, space + 1, offset + length - space - 2,
+                    StandardCharsets.UTF_8);
+            final int equals = record.indexOf('=');
+            if (equals > 0) {
+                final String key = record.substring(0, equals);
+                if ("path".equals(key)) {
+                    result[0] = record.substring(equals + 1);
+                } else if ("size".equals(key)) {
+                    result[1] = record.substring(equals + 1);
+                }
+            }
+            offset += length;
+        }
+        return result;
+    }
+
+    private static String parseString(byte[] data, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && data[end] != 0) {
+            end++;
+        }
+        return new String(data, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses an octal field, or a base-256 one as GNU tar writes for large values.
+     */
+    private static long parseNumber(byte[] data, int offset, int length) {
+        if ((data[offset] & 0x80) != 0) {
+            long value = data[offset] & 0x7f;
+            for (int i = 1; i < length; i++) {
+                value = (value << 8) | (data[offset + i] & 0xff);
+            }
+            return value;
+        }
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            final byte b = data[i];
+            if (b == 0) {
+                break;
+            }
+            if (b == ' ') {
+                if (value != 0) {
+                    break;
+                }
+                continue;
+            }
+            if (b < '0' || b > '7') {
+                return -1;
+            }
+            value = (value << 3) + (b - '0');
+        }
+        return value;
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readBlock(InputStream in, byte[] block) throws IOException {
+        int total = 0;
+        while (total < block.length) {
+            final int read = in.read(block, total, block.length - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static void skipFully(InputStream in, long byteCount) throws IOException {
+        long remaining = byteCount;
+        while (remaining > 0) {
+            final long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                throw new EOFException("Unexpected end of tar archive");
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private static class LimitedInputStream extends FilterInputStream {
+        private long mRemaining;
+
+        LimitedInputStream(InputStream in, long length) {
+            super(in);
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return read(single, 0, 1) == 1 ? single[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            final int read = in.read(buffer, offset, (int) Math.min(count, mRemaining));
+            if (read > 0) {
+                mRemaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            final long skipped = in.skip(Math.min(byteCount, mRemaining));
+            mRemaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), mRemaining);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.archive;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import filemanager.harshapp.hm.fileexplorer.libcore.io.IoUtils;
+import filemanager.harshapp.hm.fileexplorer.libcore.io.Streams;
+import filemanager.harshapp.hm.fileexplorer.misc.StandardCharsets;
+
+/**
+ * Reads ZIP archives through a {@link RangedSource}. Listing reads the end of
+ * central directory record and the central directory, nothing else; opening
+ * an entry reads its local header and then only its own data.
+ */
+public class ZipCentralDirectory {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int CEN_SIGNATURE = 0x02014b50;
+    private static final int CEN_SIZE = 46;
+    private static final int LOC_SIGNATURE = 0x04034b50;
+    private static final int LOC_SIZE = 30;
+
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+    private static final int FLAG_ENCRYPTED = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Adds every entry of the central directory to the builder, with the
+     * offset of its local header.
+     */
+    public static void read(RangedSource source, ArchiveIndex.Builder builder)
+            throws IOException {
+        final long length = source.length();
+        final int tailSize = (int) Math.min(length, EOCD_SIZE + MAX_COMMENT_SIZE);
+        if (tailSize < EOCD_SIZE) {
+            throw new ZipException("File too short to be a zip file: " + length);
+        }
+        final byte[] tail = new byte[tailSize];
+        final long tailStart = length - tailSize;
+        source.readFully(tailStart, tail, 0, tailSize);
+
+        int eocd = -1;
+        for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+            if (readInt(tail, i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd == -1) {
+            throw new ZipException("End of central directory not found");
+        }
+
+        long entryCount = readShort(tail, eocd + 10);
+        long cdSize = readUnsignedInt(tail, eocd + 12);
+        long cdOffset = readUnsignedInt(tail, eocd + 16);
+
+        final long locatorStart = tailStart + eocd - ZIP64_LOCATOR_SIZE;
+        if (locatorStart >= 0) {
+            final byte[] locator = new byte[ZIP64_LOCATOR_SIZE];
+            source.readFully(locatorStart, locator, 0, ZIP64_LOCATOR_SIZE);
+            if (readInt(locator, 0) == ZIP64_LOCATOR_SIGNATURE) {
+                final byte[] eocd64 = new byte[ZIP64_EOCD_SIZE];
+                source.readFully(readLong(locator, 8), eocd64, 0, ZIP64_EOCD_SIZE);
+                if (readInt(eocd64, 0) != ZIP64_EOCD_SIGNATURE) {
+                    throw new ZipException("Zip64 end of central directory not found");
+                }
+                entryCount = readLong(eocd64, 32);
+                cdSize = readLong(eocd64, 40);
+                cdOffset = readLong(eocd64, 48);
+            }
+        }
+        if (cdOffset + cdSize > length) {
+            throw new ZipException("Central directory out of bounds");
+        }
+
+        final InputStream in = new BufferedInputStream(
+                source.openRange(cdOffset, cdSize), BUFFER_SIZE);
+        try {
+            final byte[] header = new byte[CEN_SIZE];
+            final Calendar calendar = new GregorianCalendar();
+            for (long i = 0; i < entryCount; i++) {
+                Streams.readFully(in, header, 0, CEN_SIZE);
+                if (readInt(header, 0) != CEN_SIGNATURE) {
+                    throw new ZipException("Central directory entry " + i + " not found");
+                }
+                final int method = readShort(header, 10);
+                final long time = dosToJavaTime(calendar, readShort(header, 14),
+                        readShort(header, 12));
+                final long crc = readUnsignedInt(header, 16);
+                long compressedSize = readUnsignedInt(header, 20);
+                long size = readUnsignedInt(header, 24);
+                final int nameLength = readShort(header, 28);
+                final int extraLength = readShort(header, 30);
+                final int commentLength = readShort(header, 32);
+                long offset = readUnsignedInt(header, 42);
+
+                final byte[] nameBytes = new byte[nameLength];
+                Streams.readFully(in, nameBytes, 0, nameLength);
+                final byte[] extra = new byte[extraLength];
+                Streams.readFully(in, extra, 0, extraLength);
+                skipFully(in, commentLength);
+
+                // Zip64 values appear only for fields that overflowed, in this order
+                for (int e = 0; e + 4 <= extraLength; ) {
+                    final int id = readShort(extra, e);
+                    final int dataLength = readShort(extra, e + 2);
+                    int field = e + 4;
+                    if (id == ZIP64_EXTRA_ID) {
+                        if (size == ZIP64_MAGIC && field + 8 <= extraLength) {
+                            size = readLong(extra, field);
+                            field += 8;
+                        }
+                        if (compressedSize == ZIP64_MAGIC && field + 8 <= extraLength) {
+                            compressedSize = readLong(extra, field);
+                            field += 8;
+                        }
+                        if (offset == ZIP64_MAGIC && field + 8 <= extraLength) {
+                            offset = readLong(extra, field);
+                        }
+                        break;
+                    }
+                    e += 4 + dataLength;
+                }
+
+                final String name = new String(nameBytes, StandardCharsets.UTF_8);
+                builder.add(name, name.endsWith("/"), size, compressedSize, time, crc,
+                        method, offset);
+            }
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Opens the uncompressed contents of an entry.
+     *
+     * @param offset offset of the entry's local header.
+     */
+    public static InputStream openEntry(RangedSource source, long offset, int method,
+            long compressedSize, long size) throws IOException {
+        final long dataStart = getDataStart(source, offset);
+        switch (method) {
+            case ZipEntryPolicy.METHOD_STORED:
+                return source.openRange(dataStart, size);
+            case ZipEntryPolicy.METHOD_DEFLATED:
+                return new EntryInflaterInputStream(
+                        source.openRange(dataStart, compressedSize));
+            default:
+                throw new ZipException("Unsupported compression method " + method);
+        }
+    }
+
+    /**
+     * Reads the local header of an entry to find where its data starts.
+     *
+     * @param offset offset of the entry's local header.
+     */
+    public static long getDataStart(RangedSource source, long offset) throws IOException {
+        final byte[] header = new byte[LOC_SIZE];
+        source.readFully(offset, header, 0, LOC_SIZE);
+        if (readInt(header, 0) != LOC_SIGNATURE) {
+            throw new ZipException("Local file header not found at " + offset);
+        }
+        if ((readShort(header, 6) & FLAG_ENCRYPTED) != 0) {
+            throw new ZipException("Encrypted entries are not supported");
+        }
+        return offset + LOC_SIZE + readShort(header, 26) + readShort(header, 28);
+    }
+
+    private static long dosToJavaTime(Calendar calendar, int date, int time) {
+        calendar.clear();
+        calendar.set(1980 + ((date >> 9) & 0x7f), ((date >> 5) & 0xf) - 1, date & 0x1f,
+                (time >> 11) & 0x1f, (time >> 5) & 0x3f, (time & 0x1f) << 1);
+        return calendar.getTimeInMillis();
+    }
+
+    private static void skipFully(InputStream in, long byteCount) throws IOException {
+        long remaining = byteCount;
+        while (remaining > 0) {
+            final long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private static int readShort(byte[] b, int offset) {
+        return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8;
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return readShort(b, offset) | readShort(b, offset + 2) << 16;
+    }
+
+    private static long readUnsignedInt(byte[] b, int offset) {
+        return readInt(b, offset) & 0xffffffffL;
+    }
+
+    private static long readLong(byte[] b, int offset) {
+        return readUnsignedInt(b, offset) | (long) readInt(b, offset + 4) << 32;
+    }
+
+    /**
+     * Inflates raw deflate data, ending its inflater when closed.
+     */
+    private static class EntryInflaterInputStream extends InflaterInputStream {
+        private boolean mEof;
+
+        EntryInflaterInputStream(InputStream in) {
+            super(in, new Inflater(true), 32 * 1024);
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                if (mEof) {
+                    throw new EOFException("Unexpected end of ZLIB input stream");
+                }
+                // The inflater may want one byte past the data to finish
+                mEof = true;
+                buf[0] = 0;
+                len = 1;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+}
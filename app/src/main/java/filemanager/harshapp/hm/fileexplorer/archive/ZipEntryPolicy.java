@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.archive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+
+import filemanager.harshapp.hm.fileexplorer.libcore.io.IoUtils;
+import filemanager.harshapp.hm.fileexplorer.libcore.io.Streams;
+import filemanager.harshapp.hm.fileexplorer.misc.FileUtils;
+import filemanager.harshapp.hm.fileexplorer.misc.MimePredicate;
+import filemanager.harshapp.hm.fileexplorer.model.DocumentsContract;
+
+/**
+ * Decides how each ZIP entry is written. Files of an already compressed type
+ * are stored as is; for the rest the first {@link #TRIAL_SIZE} bytes are
+ * deflated, and the file is stored if that doesn't save enough to be worth
+ * the CPU.
+ */
+public class ZipEntryPolicy {
+
+    public static final int METHOD_STORED = 0;
+    public static final int METHOD_DEFLATED = 8;
+
+    private static final int TRIAL_SIZE = 64 * 1024;
+
+    private final int mLevel;
+    private final int mMinSavingPercent;
+
+    private ZipEntryPolicy(int level, int minSavingPercent) {
+        mLevel = level;
+        mMinSavingPercent = minSavingPercent;
+    }
+
+    /**
+     * @param preset one of {@link DocumentsContract#COMPRESSION_FASTEST},
+     *               {@link DocumentsContract#COMPRESSION_BALANCED} or
+     *               {@link DocumentsContract#COMPRESSION_SMALLEST}.
+     */
+    public static ZipEntryPolicy forPreset(int preset) {
+        switch (preset) {
+            case DocumentsContract.COMPRESSION_FASTEST:
+                return new ZipEntryPolicy(Deflater.BEST_SPEED, 10);
+            case DocumentsContract.COMPRESSION_SMALLEST:
+                return new ZipEntryPolicy(Deflater.BEST_COMPRESSION, 1);
+            case DocumentsContract.COMPRESSION_BALANCED:
+            default:
+                return new ZipEntryPolicy(Deflater.DEFAULT_COMPRESSION, 5);
+        }
+    }
+
+    /**
+     * {@link Deflater} level for entries that are deflated.
+     */
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * @return {@link #METHOD_STORED} or {@link #METHOD_DEFLATED}.
+     */
+    public int getMethod(File file) {
+        if (MimePredicate.mimeMatches(MimePredicate.INCOMPRESSIBLE_MIMES,
+                FileUtils.getTypeForName(file.getName()))) {
+            return METHOD_STORED;
+        }
+
+        final byte[] sample = new byte[(int) Math.min(TRIAL_SIZE, file.length())];
+        if (sample.length == 0) {
+            return METHOD_DEFLATED;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            Streams.readFully(in, sample, 0, sample.length);
+        } catch (IOException e) {
+            // Let the writer report it
+            return METHOD_DEFLATED;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+
+        final Deflater deflater = new Deflater(mLevel, true);
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            final byte[] output = new byte[sample.length];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(output);
+            }
+            final long saved = sample.length - compressed;
+            return saved * 100 >= (long) sample.length * mMinSavingPercent
+                    ? METHOD_DEFLATED : METHOD_STORED;
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -40,6 +40,8 @@ public class DocumentsAdapter extends RecyclerView.Adapter<BaseHolder> {
 
     private ArrayList<Footer> mFooters = new ArrayList<>();
     private Footer mHeader;
+    private int mFirstVisible = RecyclerView.NO_POSITION;
+    private int mLastVisible = RecyclerView.NO_POSITION;
     private final Environment mEnv;
     private final OnItemClickListener mOnItemClickListener;
 
@@ -78,6 +80,9 @@ public class DocumentsAdapter extends RecyclerView.Adapter<BaseHolder> {
 
         mHeader = new AvMessageFooter(mEnv, ITEM_TYPE_HEADER, R.drawable.ic_doc_folder,
                 getTitle());
+        // Prefetch again for the new rows once laid out
+        mFirstVisible = RecyclerView.NO_POSITION;
+        mLastVisible = RecyclerView.NO_POSITION;
         mEnv.setEmptyState();
 
         notifyDataSetChanged();
@@ -181,6 +186,32 @@ public class DocumentsAdapter extends RecyclerView.Adapter<BaseHolder> {
         }
     }
 
+    /**
+     * Called as the list scrolls. Thumbnails are loaded nearest the visible rows first, and
+     * those of a screen of rows on either side are loaded ahead of being shown.
+     */
+    public void onVisibleRangeChanged(int first, int last) {
+        if (first == mFirstVisible && last == mLastVisible) {
+            return;
+        }
+        mFirstVisible = first;
+        mLastVisible = last;
+        final IconHelper iconHelper = mEnv.getIconHelper();
+        iconHelper.setVisibleRange(first, last);
+        final int prefetchCount = last - first + 1;
+        for (int i = 1; i <= prefetchCount; i++) {
+            prefetch(iconHelper, last + i);
+            prefetch(iconHelper, first - i);
+        }
+    }
+
+    private void prefetch(IconHelper iconHelper, int position) {
+        final int cursorPosition = position - offsetPosition;
+        if (cursorPosition >= 0 && cursorPosition < mCursorCount) {
+            iconHelper.prefetch(DocumentInfo.fromDirectoryCursor(getItem(position)), position);
+        }
+    }
+
     public boolean isEmpty() {
         return getItemCount() == 0;
     }
@@ -73,7 +73,7 @@ public class ListDocumentHolder extends DocumentHolder {
         iconThumb.animate().cancel();
         iconThumb.setAlpha(0f);
 
-        mIconHelper.load(mDoc, iconThumb, iconMime, iconMimeBackground);
+        mIconHelper.load(mDoc, position, iconThumb, iconMime, iconMimeBackground);
 
         boolean hasLine1 = false;
         boolean hasLine2 = false;
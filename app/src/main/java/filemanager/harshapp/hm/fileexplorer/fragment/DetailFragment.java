@@ -22,7 +22,6 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Point;
-import android.graphics.drawable.BitmapDrawable;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.OperationCanceledException;
@@ -44,6 +43,7 @@ import filemanager.harshapp.hm.fileexplorer.DocumentsActivity;
 import filemanager.harshapp.hm.fileexplorer.DocumentsApplication;
 import filemanager.harshapp.hm.fileexplorer.R;
 import filemanager.harshapp.hm.fileexplorer.common.DialogFragment;
+import filemanager.harshapp.hm.fileexplorer.misc.ApkInfoCache;
 import filemanager.harshapp.hm.fileexplorer.misc.AsyncTask;
 import filemanager.harshapp.hm.fileexplorer.misc.ContentProviderClientCompat;
 import filemanager.harshapp.hm.fileexplorer.misc.CrashReportingManager;
@@ -78,6 +78,10 @@ public class DetailFragment extends DialogFragment {
 	private ImageView iconThumb;
 	private FrameLayout icon;
 	private View contents_layout;
+	private TextView packageName;
+	private TextView version;
+	private View package_layout;
+	private View version_layout;
     private CircleImage iconMimeBackground;
     private View path_layout;
 
@@ -133,8 +137,12 @@ public class DetailFragment extends DialogFragment {
 		contents = (TextView) view.findViewById(R.id.contents);
 		modified = (TextView) view.findViewById(R.id.modified);
 		path = (TextView) view.findViewById(R.id.path);
+		packageName = (TextView) view.findViewById(R.id.package_name);
+		version = (TextView) view.findViewById(R.id.version);
 		
 		contents_layout = view.findViewById(R.id.contents_layout);
+		package_layout = view.findViewById(R.id.package_layout);
+		version_layout = view.findViewById(R.id.version_layout);
 		path_layout = view.findViewById(R.id.path_layout);
 
 		iconMime = (ImageView) view.findViewById(R.id.icon_mime);
@@ -187,6 +195,7 @@ public class DetailFragment extends DialogFragment {
 	private class DetailTask extends AsyncTask<Void, Void, Void> {
 
 		private Bitmap result;
+		private ApkInfoCache.Info apkInfo;
 		String sizeString = "";
 		String filePath = "";
 		
@@ -205,7 +214,9 @@ public class DetailFragment extends DialogFragment {
 				try {
 
 					if (doc.mimeType.equals(Document.MIME_TYPE_APK) && !TextUtils.isEmpty(filePath)) {
-						result = ((BitmapDrawable) IconUtils.loadPackagePathIcon(context, filePath, Document.MIME_TYPE_APK)).getBitmap();
+						final ApkInfoCache apkInfoCache = ApkInfoCache.getInstance(context);
+						apkInfo = apkInfoCache.getInfo(filePath);
+						result = apkInfoCache.getIcon(filePath);
 					} else {
 						client = DocumentsApplication.acquireUnstableProviderOrThrow(resolver, uri.getAuthority());
 						result = DocumentsContract.getDocumentThumbnail(resolver, uri, mThumbSize, null);
@@ -238,6 +249,16 @@ public class DetailFragment extends DialogFragment {
                 size.setText(sizeString);
             }
 
+			if(null != apkInfo && apkInfo.isValid()){
+				packageName.setText(TextUtils.isEmpty(apkInfo.label) ? apkInfo.packageName
+						: apkInfo.label + "\n" + apkInfo.packageName);
+				package_layout.setVisibility(View.VISIBLE);
+				if(!TextUtils.isEmpty(apkInfo.versionName)){
+					version.setText(apkInfo.versionName + " (" + apkInfo.versionCode + ")");
+					version_layout.setVisibility(View.VISIBLE);
+				}
+			}
+
 			if(null != result){
                 ImageView.ScaleType scaleType = doc.mimeType.equals(Document.MIME_TYPE_APK) ? ImageView.ScaleType.FIT_CENTER : ImageView.ScaleType.CENTER_CROP;
 				iconThumb.setScaleType(scaleType);
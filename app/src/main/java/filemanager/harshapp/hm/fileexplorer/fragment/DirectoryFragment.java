@@ -18,6 +18,7 @@
 package filemanager.harshapp.hm.fileexplorer.fragment;
 
 import android.app.Dialog;
+import android.app.ProgressDialog;
 import android.content.ContentProviderClient;
 import android.content.ContentResolver;
 import android.content.ContentValues;
@@ -29,7 +30,9 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Parcelable;
+import android.os.ResultReceiver;
 import android.provider.Settings;
 import android.util.Log;
 import android.util.SparseArray;
@@ -48,6 +51,7 @@ import android.widget.TextView;
 import com.google.android.material.snackbar.Snackbar;
 
 import java.util.ArrayList;
+import java.util.UUID;
 
 import androidx.appcompat.view.ActionMode;
 import androidx.fragment.app.Fragment;
@@ -56,6 +60,7 @@ import androidx.fragment.app.FragmentTransaction;
 import androidx.loader.app.LoaderManager;
 import androidx.loader.app.LoaderManager.LoaderCallbacks;
 import androidx.loader.content.Loader;
+import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import filemanager.harshapp.hm.fileexplorer.BaseActivity;
 import filemanager.harshapp.hm.fileexplorer.BaseActivity.State;
@@ -81,6 +86,7 @@ import filemanager.harshapp.hm.fileexplorer.misc.MimePredicate;
 import filemanager.harshapp.hm.fileexplorer.misc.MimeTypes;
 import filemanager.harshapp.hm.fileexplorer.misc.RootsCache;
 import filemanager.harshapp.hm.fileexplorer.misc.SAFManager;
+import filemanager.harshapp.hm.fileexplorer.misc.ThumbnailPregenerator;
 import filemanager.harshapp.hm.fileexplorer.misc.Utils;
 import filemanager.harshapp.hm.fileexplorer.model.DirectoryResult;
 import filemanager.harshapp.hm.fileexplorer.model.DocumentInfo;
@@ -239,6 +245,7 @@ public class DirectoryFragment extends RecyclerFragment implements MenuItem.OnMe
 		mProgressBar = (MaterialProgressBar) view.findViewById(R.id.progressBar);
 		mEmptyView = (CompatTextView)view.findViewById(android.R.id.empty);
 		getListView().setRecyclerListener(mRecycleListener);
+		getListView().addOnScrollListener(mScrollListener);
 	}
 
 	@Override
@@ -351,6 +358,11 @@ public class DirectoryFragment extends RecyclerFragment implements MenuItem.OnMe
 
 				updateDisplayState();
 
+				// Its thumbnails are then stored ahead of the next visit, while the device is idle
+				if (mType == TYPE_NORMAL && doc != null && state.derivedMode == MODE_GRID) {
+					ThumbnailPregenerator.noteVisited(context, doc);
+				}
+
 				// When launched into empty recents, show drawer
 				if (mType == TYPE_RECENT_OPEN && mAdapter.isEmpty() && !state.stackTouched) {
 					((BaseActivity) context).setRootsDrawerOpen(true);
@@ -730,11 +742,30 @@ public class DirectoryFragment extends RecyclerFragment implements MenuItem.OnMe
 
 		@Override
 		public void onViewRecycled(RecyclerView.ViewHolder holder) {
-			cancelThumbnailTask(holder.itemView);
+			final ImageView iconThumb = (ImageView) holder.itemView.findViewById(R.id.icon_thumb);
+			if (iconThumb != null) {
+				mIconHelper.releaseImage(iconThumb);
+			}
 			cancelFolderSizeTask(holder.itemView);
 		}
 	};
 
+	private RecyclerView.OnScrollListener mScrollListener = new RecyclerView.OnScrollListener() {
+
+		@Override
+		public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+			final RecyclerView.LayoutManager layoutManager = recyclerView.getLayoutManager();
+			if (layoutManager instanceof LinearLayoutManager) {
+				final LinearLayoutManager manager = (LinearLayoutManager) layoutManager;
+				final int first = manager.findFirstVisibleItemPosition();
+				final int last = manager.findLastVisibleItemPosition();
+				if (first != RecyclerView.NO_POSITION) {
+					mAdapter.onVisibleRangeChanged(first, last);
+				}
+			}
+		}
+	};
+
 	private void cancelThumbnailTask(View view) {
 		final ImageView iconThumb = (ImageView) view.findViewById(R.id.icon_thumb);
 		if (iconThumb != null) {
@@ -884,6 +915,9 @@ public class DirectoryFragment extends RecyclerFragment implements MenuItem.OnMe
 		private Dialog progressDialog;
 		private ArrayList<DocumentInfo> docs;
 		private int id;
+		private ResultReceiver progressReceiver;
+		private String cancelToken;
+		private volatile boolean canceled;
 
 		public OperationTask(ArrayList<DocumentInfo> docs, int id) {
 			this.docs = docs;
@@ -918,6 +952,40 @@ public class DirectoryFragment extends RecyclerFragment implements MenuItem.OnMe
 				break;
 			}
 			progressDialog = builder.create();
+			if (id == R.id.menu_uncompress) {
+				setupUncompressProgress();
+			}
+		}
+
+		private void setupUncompressProgress() {
+			if (!(progressDialog instanceof ProgressDialog)) {
+				return;
+			}
+			final ProgressDialog dialog = (ProgressDialog) progressDialog;
+			cancelToken = UUID.randomUUID().toString();
+			progressReceiver = new ResultReceiver(new Handler(Looper.getMainLooper())) {
+				@Override
+				protected void onReceiveResult(int resultCode, Bundle data) {
+					final long total = data.getLong(DocumentsContract.EXTRA_BYTES_TOTAL);
+					if (resultCode != DocumentsContract.PROGRESS_UPDATE || total <= 0
+							|| !Utils.isActivityAlive(getActivity())) {
+						return;
+					}
+					final int percent = (int) (data.getLong(DocumentsContract.EXTRA_BYTES_DONE) * 100 / total);
+					dialog.setMessage(getString(R.string.uncompress_progress, percent));
+				}
+			};
+			dialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(android.R.string.cancel),
+					new DialogInterface.OnClickListener() {
+						@Override
+						public void onClick(DialogInterface dialogInterface, int which) {
+							canceled = true;
+							final ContentResolver resolver = dialog.getContext().getContentResolver();
+							for (DocumentInfo doc : docs) {
+								DocumentsContract.cancelOperation(resolver, doc.derivedUri, cancelToken);
+							}
+						}
+					});
 		}
 
 		@Override
@@ -944,7 +1012,7 @@ public class DirectoryFragment extends RecyclerFragment implements MenuItem.OnMe
 				break;
 
             case R.id.menu_uncompress:
-                result = onUncompressDocuments(docs);
+                result = onUncompressDocuments(docs, progressReceiver, cancelToken);
 				params2 = new Bundle();
 				AnalyticsManager.logEvent("uncompress", params2);
                 break;
@@ -966,7 +1034,7 @@ public class DirectoryFragment extends RecyclerFragment implements MenuItem.OnMe
                 return;
             }
 			progressDialog.dismiss();
-			if (result) {
+			if (result && !canceled) {
 				switch (id) {
 				case R.id.menu_delete:
                     if(!((BaseActivity) getActivity()).isSAFIssue(docs.get(0).documentId)) {
@@ -1070,7 +1138,8 @@ public class DirectoryFragment extends RecyclerFragment implements MenuItem.OnMe
             for (DocumentInfo doc : docs){
                 documentIds.add(DocumentsContract.getDocumentId(doc.derivedUri));
             }
-            hadTrouble = ! DocumentsContract.compressDocument(resolver, doc.derivedUri, documentIds);
+            hadTrouble = ! DocumentsContract.compressDocument(resolver, doc.derivedUri, documentIds,
+                    SettingsActivity.getArchiveCompression(context));
         } catch (Exception e) {
             Log.w(TAG, "Failed to Compress " + doc);
 			CrashReportingManager.logException(e);
@@ -1081,19 +1150,29 @@ public class DirectoryFragment extends RecyclerFragment implements MenuItem.OnMe
     }
 
     public boolean onUncompressDocuments(ArrayList<DocumentInfo> docs) {
+        return onUncompressDocuments(docs, null, null);
+    }
+
+    /**
+     * @param progress receives the progress of each document in turn, or null.
+     * @param cancelToken token the operations can be canceled with, or null.
+     */
+    public boolean onUncompressDocuments(ArrayList<DocumentInfo> docs, ResultReceiver progress,
+                                         String cancelToken) {
         final Context context = getActivity();
         final ContentResolver resolver = context.getContentResolver();
 
         boolean hadTrouble = false;
         for (DocumentInfo doc : docs) {
-            if (!doc.isArchiveSupported()) {
+            if (!doc.isArchiveSupported() && !doc.isExtractSupported()) {
                 Log.w(TAG, "Skipping " + doc);
                 hadTrouble = true;
                 continue;
             }
 
             try {
-                hadTrouble = ! DocumentsContract.uncompressDocument(resolver, doc.derivedUri);
+                hadTrouble = ! DocumentsContract.uncompressDocument(resolver, doc.derivedUri,
+                        progress, cancelToken);
             } catch (Exception e) {
                 Log.w(TAG, "Failed to Uncompress " + doc);
 				CrashReportingManager.logException(e);
@@ -1190,7 +1269,8 @@ public class DirectoryFragment extends RecyclerFragment implements MenuItem.OnMe
 				if(null != compress)
 					compress.setVisible(manageMode && doc.isArchiveSupported() && !isCompressed && !isOperationSupported);
 				if(null != uncompress)
-					uncompress.setVisible(manageMode && doc.isArchiveSupported() && isCompressed && !isOperationSupported);
+					uncompress.setVisible(manageMode && ((doc.isArchiveSupported() && isCompressed)
+							|| doc.isExtractSupported()) && !isOperationSupported);
 				if(null != bookmark) {
 					bookmark.setVisible(manageMode && doc.isBookmarkSupported() && Utils.isDir(doc.mimeType) && !isOperationSupported);
 				}
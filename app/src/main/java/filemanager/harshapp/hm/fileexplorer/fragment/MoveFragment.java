@@ -18,6 +18,7 @@
 package filemanager.harshapp.hm.fileexplorer.fragment;
 
 import android.os.Bundle;
+import android.text.format.DateUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -144,6 +145,24 @@ public class MoveFragment extends BaseFragment implements OnClickListener{
 		mProgress.setVisibility(pending ? View.VISIBLE : View.GONE);
 	}
 
+	/**
+	 * Show transfer progress in place of the paste summary.
+	 *
+	 * @param totals files and bytes of the whole transfer.
+	 * @param etaSeconds estimated seconds left, or -1 if not known yet.
+	 */
+	public void setProgress(String totals, int percent, long etaSeconds) {
+		if (mMoveInfo == null) {
+			return;
+		}
+		if (etaSeconds < 0) {
+			mMoveInfo.setText(getString(R.string.transfer_progress, totals, percent));
+		} else {
+			mMoveInfo.setText(getString(R.string.transfer_progress_eta, totals, percent,
+					DateUtils.formatElapsedTime(etaSeconds)));
+		}
+	}
+
 	@Override
 	public void onClick(View v) {
 		final DocumentsActivity activity = DocumentsActivity.get(MoveFragment.this);
@@ -156,6 +175,7 @@ public class MoveFragment extends BaseFragment implements OnClickListener{
 			break;
 
 		case android.R.id.button2:
+			activity.onMoveCancelled();
 			getActivity().getSupportFragmentManager().beginTransaction().remove(this).commit();
 			break;
 		}
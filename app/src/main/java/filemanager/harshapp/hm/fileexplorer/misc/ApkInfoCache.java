@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.misc;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import androidx.core.util.Pair;
+import filemanager.harshapp.hm.fileexplorer.libcore.io.IoUtils;
+
+/**
+ * Icons, labels, package names and versions of APK files, kept across runs
+ * so that each APK is parsed by {@link PackageManager#getPackageArchiveInfo}
+ * once per modification rather than every time its row is bound. Entries are
+ * keyed by path, size and modification time, so a changed APK is parsed
+ * again.
+ *
+ * <p>Icons are kept in a {@link DiskThumbnailCache} of their own, the rest
+ * in an index file appended to as APKs are parsed and rewritten once mostly
+ * made of replaced records. APKs which can't be parsed are recorded too, so
+ * they aren't parsed again either.
+ */
+public final class ApkInfoCache {
+    private static final String TAG = "ApkInfoCache";
+
+    private static final String DIR = "apk_info";
+    private static final String ICONS_DIR = "icons";
+    private static final String INDEX = "index";
+    private static final String INDEX_HEADER = "ApkInfoCache 1";
+    private static final String SEPARATOR = "\t";
+    private static final long ICONS_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_ENTRIES = 2000;
+
+    /**
+     * What an APK file holds, or that it can't be parsed.
+     */
+    public static final class Info {
+        final long length;
+        final long lastModified;
+        @Nullable
+        public final String packageName;
+        @Nullable
+        public final String label;
+        @Nullable
+        public final String versionName;
+        public final int versionCode;
+
+        Info(long length, long lastModified, @Nullable String packageName,
+                @Nullable String label, @Nullable String versionName, int versionCode) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.packageName = packageName;
+            this.label = label;
+            this.versionName = versionName;
+            this.versionCode = versionCode;
+        }
+
+        /**
+         * @return whether the APK could be parsed.
+         */
+        public boolean isValid() {
+            return packageName != null;
+        }
+    }
+
+    private static ApkInfoCache sInstance;
+
+    private final Context mContext;
+    private final File mIndexFile;
+    private final DiskThumbnailCache mIcons;
+
+    // By path, least recently parsed first
+    @GuardedBy("this")
+    private LinkedHashMap<String, Info> mEntries;
+    @GuardedBy("this")
+    private Writer mIndex;
+    @GuardedBy("this")
+    private int mIndexRecords;
+    @GuardedBy("this")
+    private long mHits;
+    @GuardedBy("this")
+    private long mParses;
+
+    public static synchronized ApkInfoCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ApkInfoCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ApkInfoCache(Context context) {
+        mContext = context;
+        final File dir = new File(context.getCacheDir(), DIR);
+        mIndexFile = new File(dir, INDEX);
+        mIcons = new DiskThumbnailCache(new File(dir, ICONS_DIR), ICONS_SIZE);
+    }
+
+    /**
+     * @return what the APK holds, parsing it unless known already, or
+     * {@code null} if there is no such file.
+     */
+    @Nullable
+    public Info getInfo(String path) {
+        final File file = new File(path);
+        final long lastModified = file.lastModified();
+        if (lastModified == 0) {
+            return null;
+        }
+        final Info info = peek(path, file.length(), lastModified);
+        if (info != null) {
+            return info;
+        }
+        return parse(file, file.length(), lastModified).first;
+    }
+
+    /**
+     * @return the icon of the APK, parsing it unless known already, or
+     * {@code null} if it can't be parsed. Every call returns a new bitmap.
+     */
+    @Nullable
+    public Bitmap getIcon(String path) {
+        final File file = new File(path);
+        final long lastModified = file.lastModified();
+        if (lastModified == 0) {
+            return null;
+        }
+        final long length = file.length();
+        final Info info = peek(path, length, lastModified);
+        if (info != null) {
+            if (!info.isValid()) {
+                return null;
+            }
+            final Bitmap icon = mIcons.getBitmap(getIconKey(path, length, lastModified));
+            if (icon != null) {
+                return icon;
+            }
+            // The icon was dropped from disk, so the APK is parsed again
+        }
+        return parse(file, length, lastModified).second;
+    }
+
+    /**
+     * Counters of the cache since the process started, for debugging.
+     */
+    public synchronized String getStats() {
+        return String.format(Locale.US,
+                "APKs: %d, hits: %d, parses: %d\n%s",
+                mEntries != null ? mEntries.size() : 0, mHits, mParses, mIcons.getStats());
+    }
+
+    @Nullable
+    private synchronized Info peek(String path, long length, long lastModified) {
+        ensureLoadedLocked();
+        final Info info = mEntries.get(path);
+        if (info != null && info.length == length && info.lastModified == lastModified) {
+            mHits++;
+            return info;
+        }
+        return null;
+    }
+
+    private Pair<Info, Bitmap> parse(File file, long length, long lastModified) {
+        final String path = file.getPath();
+        final PackageManager pm = mContext.getPackageManager();
+        Info info = new Info(length, lastModified, null, null, null, 0);
+        Bitmap icon = null;
+        try {
+            final PackageInfo packageInfo = pm.getPackageArchiveInfo(path, 0);
+            if (packageInfo != null && packageInfo.applicationInfo != null) {
+                final ApplicationInfo appInfo = packageInfo.applicationInfo;
+                // Resources of the archive are only found through these
+                appInfo.sourceDir = appInfo.publicSourceDir = path;
+                final CharSequence label = appInfo.loadLabel(pm);
+                info = new Info(length, lastModified, packageInfo.packageName,
+                        label != null ? label.toString() : null, packageInfo.versionName,
+                        packageInfo.versionCode);
+                icon = toBitmap(appInfo.loadIcon(pm));
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to parse " + path + ": " + e);
+        }
+        if (icon != null) {
+            mIcons.putAsync(getIconKey(path, length, lastModified), icon);
+        }
+        synchronized (this) {
+            mParses++;
+            putLocked(path, info);
+        }
+        return Pair.create(info, icon);
+    }
+
+    @Nullable
+    private static Bitmap toBitmap(@Nullable Drawable drawable) {
+        if (drawable instanceof BitmapDrawable) {
+            return ((BitmapDrawable) drawable).getBitmap();
+        } else if (drawable != null
+                && drawable.getIntrinsicWidth() > 0 && drawable.getIntrinsicHeight() > 0) {
+            // Adaptive and vector icons
+            return IconUtils.drawableToBitmap(drawable);
+        }
+        return null;
+    }
+
+    private static String getIconKey(String path, long length, long lastModified) {
+        return path + "|" + length + "|" + lastModified;
+    }
+
+    @GuardedBy("this")
+    private void putLocked(String path, Info info) {
+        ensureLoadedLocked();
+        mEntries.remove(path);
+        mEntries.put(path, info);
+        final Iterator<String> it = mEntries.keySet().iterator();
+        while (mEntries.size() > MAX_ENTRIES && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+        if (mIndexRecords > 2 * mEntries.size() + 100) {
+            rewriteIndexLocked();
+        } else {
+            appendLocked(path, info);
+        }
+    }
+
+    @GuardedBy("this")
+    private void ensureLoadedLocked() {
+        if (mEntries != null) {
+            return;
+        }
+        mEntries = new LinkedHashMap<>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(mIndexFile), StandardCharsets.UTF_8));
+            if (!INDEX_HEADER.equals(reader.readLine())) {
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                mIndexRecords++;
+                final String[] fields = line.split(SEPARATOR, -1);
+                if (fields.length != 7) {
+                    continue;
+                }
+                try {
+                    final String path = fields[0];
+                    mEntries.remove(path);
+                    mEntries.put(path, new Info(Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]), emptyToNull(fields[3]),
+                            emptyToNull(fields[4]), emptyToNull(fields[5]),
+                            Integer.parseInt(fields[6])));
+                } catch (NumberFormatException e) {
+                    // A record cut short by the process dying
+                }
+            }
+        } catch (IOException e) {
+            // Nothing kept yet
+        } finally {
+            IoUtils.closeQuietly(reader);
+        }
+    }
+
+    @GuardedBy("this")
+    private void appendLocked(String path, Info info) {
+        try {
+            if (mIndex == null) {
+                if (!mIndexFile.exists()) {
+                    rewriteIndexLocked();
+                    return;
+                }
+                mIndex = new OutputStreamWriter(
+                        new FileOutputStream(mIndexFile, true), StandardCharsets.UTF_8);
+            }
+            mIndex.write(toRecord(path, info));
+            mIndex.flush();
+            mIndexRecords++;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write index", e);
+            IoUtils.closeQuietly(mIndex);
+            mIndex = null;
+        }
+    }
+
+    @GuardedBy("this")
+    private void rewriteIndexLocked() {
+        IoUtils.closeQuietly(mIndex);
+        mIndex = null;
+        final File dir = mIndexFile.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Failed to create " + dir);
+            return;
+        }
+        final File temp = new File(dir, INDEX + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8);
+            writer.write(INDEX_HEADER + "\n");
+            for (Map.Entry<String, Info> entry : mEntries.entrySet()) {
+                writer.write(toRecord(entry.getKey(), entry.getValue()));
+            }
+            writer.close();
+            writer = null;
+            if (!temp.renameTo(mIndexFile)) {
+                throw new IOException("Failed to rename " + temp);
+            }
+            mIndexRecords = mEntries.size();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write index", e);
+            IoUtils.closeQuietly(writer);
+            temp.delete();
+        }
+    }
+
+    private static String toRecord(String path, Info info) {
+        return clean(path) + SEPARATOR + info.length + SEPARATOR + info.lastModified
+                + SEPARATOR + clean(info.packageName) + SEPARATOR + clean(info.label)
+                + SEPARATOR + clean(info.versionName) + SEPARATOR + info.versionCode + "\n";
+    }
+
+    private static String clean(@Nullable String value) {
+        return value == null ? "" : value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    @Nullable
+    private static String emptyToNull(String value) {
+        return TextUtils.isEmpty(value) ? null : value;
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.misc;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.widget.ImageView;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+
+/**
+ * Bitmaps dropped by {@link ThumbnailCache}, whose memory thumbnail decoders
+ * reuse through {@link BitmapFactory.Options#inBitmap} instead of allocating
+ * new bitmaps while a grid scrolls. Bitmaps are grouped by allocation size, so
+ * decodes of the same cell size find one that fits.
+ *
+ * <p>A bitmap is only reused once nothing may draw it anymore: bitmaps shown
+ * by an {@link ImageView} are reported through {@link #markShown}, and those
+ * on their way to one, or being written to disk, are {@link #pin pinned}.
+ * Views dropped without being reported again release their bitmap once they
+ * are garbage collected.
+ */
+public final class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    // Bitmaps larger than needed by more than this are left for smaller ones
+    private static final int MAX_OVERSIZE = 2;
+
+    /**
+     * Decodes a bitmap from a source read again on every call.
+     */
+    public interface Decoder {
+        Bitmap decode(BitmapFactory.Options opts) throws IOException;
+    }
+
+    private static BitmapPool sInstance;
+
+    @GuardedBy("this")
+    private final TreeMap<Integer, LinkedList<Bitmap>> mBuckets = new TreeMap<>();
+    // Pooled bitmaps, least recently added first
+    @GuardedBy("this")
+    private final LinkedList<Bitmap> mOrder = new LinkedList<>();
+    @GuardedBy("this")
+    private final WeakHashMap<Bitmap, Integer> mPins = new WeakHashMap<>();
+    @GuardedBy("this")
+    private final WeakHashMap<ImageView, ShownRef> mShown = new WeakHashMap<>();
+    // Keeps the references reachable until their views are collected
+    @GuardedBy("this")
+    private final HashSet<ShownRef> mShownRefs = new HashSet<>();
+    private final ReferenceQueue<ImageView> mCollectedViews = new ReferenceQueue<>();
+
+    @GuardedBy("this")
+    private int mMaxSize;
+    @GuardedBy("this")
+    private int mSize;
+    @GuardedBy("this")
+    private long mStartTime;
+    @GuardedBy("this")
+    private long mDecodes;
+    @GuardedBy("this")
+    private long mReuses;
+    @GuardedBy("this")
+    private long mAllocatedBytes;
+
+    /**
+     * The pool of the process, holding up to a thirty-second of the heap.
+     */
+    public static synchronized BitmapPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new BitmapPool(
+                    (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 32));
+        }
+        return sInstance;
+    }
+
+    private BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Offers a bitmap nothing holds anymore but views and pins, which are
+     * waited for. Bitmaps which can't be decoded into are ignored.
+     */
+    public synchronized void put(@Nullable Bitmap bitmap) {
+        if (!Utils.hasKitKat() || bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        final int size = bitmap.getAllocationByteCount();
+        if (size > mMaxSize / 4) {
+            return;
+        }
+        LinkedList<Bitmap> bucket = mBuckets.get(size);
+        if (bucket == null) {
+            bucket = new LinkedList<>();
+            mBuckets.put(size, bucket);
+        } else if (bucket.contains(bitmap)) {
+            return;
+        }
+        bucket.add(bitmap);
+        mOrder.add(bitmap);
+        mSize += size;
+        trimToSizeLocked(mMaxSize);
+    }
+
+    /**
+     * Decodes a bitmap into a pooled one if one fits, or else into a new one
+     * which can be pooled later.
+     *
+     * @param opts options with the bounds of the bitmap decoded into, if
+     * known, as only then is a pooled bitmap used.
+     * @param decoder decodes with the options, from the start of the source
+     * every time it is called.
+     */
+    public Bitmap decode(BitmapFactory.Options opts, Decoder decoder) throws IOException {
+        prepareDecode(opts);
+        Bitmap bitmap = null;
+        try {
+            bitmap = decoder.decode(opts);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap didn't fit after all
+            if (opts.inBitmap == null) {
+                throw e;
+            }
+        }
+        if (bitmap == null && opts.inBitmap != null) {
+            opts.inBitmap = null;
+            bitmap = decoder.decode(opts);
+        }
+        onDecoded(opts, bitmap);
+        opts.inBitmap = null;
+        return bitmap;
+    }
+
+    private void prepareDecode(BitmapFactory.Options opts) {
+        if (!Utils.hasKitKat()) {
+            return;
+        }
+        opts.inMutable = true;
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+            return;
+        }
+        final int sampleSize = Math.max(1, opts.inSampleSize);
+        // Rounded up, as some decoders do
+        final int width = (opts.outWidth + sampleSize - 1) / sampleSize;
+        final int height = (opts.outHeight + sampleSize - 1) / sampleSize;
+        final Bitmap.Config config = opts.inPreferredConfig != null
+                ? opts.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        opts.inBitmap = get(width * height * getBytesPerPixel(config));
+    }
+
+    private synchronized void onDecoded(BitmapFactory.Options opts, @Nullable Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        if (mStartTime == 0) {
+            mStartTime = SystemClock.elapsedRealtime();
+        }
+        mDecodes++;
+        if (bitmap == opts.inBitmap) {
+            mReuses++;
+        } else if (Utils.hasKitKat()) {
+            mAllocatedBytes += bitmap.getAllocationByteCount();
+        } else {
+            mAllocatedBytes += bitmap.getByteCount();
+        }
+    }
+
+    /**
+     * Records the bitmap a view now shows, which isn't reused while it is.
+     */
+    public synchronized void markShown(ImageView view, @Nullable Bitmap bitmap) {
+        expungeCollectedLocked();
+        final ShownRef old = mShown.get(view);
+        if (old != null && old.bitmap == bitmap) {
+            return;
+        }
+        if (old != null) {
+            old.clear();
+            mShownRefs.remove(old);
+            unpinLocked(old.bitmap);
+        }
+        if (bitmap != null) {
+            final ShownRef ref = new ShownRef(view, bitmap, mCollectedViews);
+            mShown.put(view, ref);
+            mShownRefs.add(ref);
+            pinLocked(bitmap);
+        } else {
+            mShown.remove(view);
+        }
+    }
+
+    /**
+     * Keeps a bitmap from being reused until {@link #unpin} is called as many
+     * times.
+     */
+    public synchronized void pin(Bitmap bitmap) {
+        pinLocked(bitmap);
+    }
+
+    public synchronized void unpin(Bitmap bitmap) {
+        unpinLocked(bitmap);
+    }
+
+    public synchronized void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            trimToSizeLocked(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            trimToSizeLocked(mSize / 2);
+        }
+    }
+
+    /**
+     * Counters of the pool since the process started, for debugging.
+     */
+    public synchronized String getStats() {
+        final long elapsed = mStartTime != 0 ? SystemClock.elapsedRealtime() - mStartTime : 0;
+        return String.format(Locale.US,
+                "Pooled: %d, %d KB of %d KB\n"
+                        + "Decodes: %d, reused: %d (%d%%)\n"
+                        + "Allocated: %d KB (%d KB/s)",
+                mOrder.size(), mSize / 1024, mMaxSize / 1024,
+                mDecodes, mReuses, mDecodes > 0 ? mReuses * 100 / mDecodes : 0,
+                mAllocatedBytes / 1024, elapsed > 0 ? mAllocatedBytes / elapsed * 1000 / 1024 : 0);
+    }
+
+    /**
+     * Removes a pooled bitmap of at least the given size, not much larger,
+     * which nothing uses.
+     */
+    private synchronized Bitmap get(int byteCount) {
+        expungeCollectedLocked();
+        for (Map.Entry<Integer, LinkedList<Bitmap>> entry
+                : mBuckets.tailMap(byteCount, true).entrySet()) {
+            if (entry.getKey() > byteCount * MAX_OVERSIZE) {
+                break;
+            }
+            final Iterator<Bitmap> it = entry.getValue().iterator();
+            while (it.hasNext()) {
+                final Bitmap bitmap = it.next();
+                if (mPins.containsKey(bitmap)) {
+                    continue;
+                }
+                it.remove();
+                mOrder.remove(bitmap);
+                mSize -= entry.getKey();
+                if (entry.getValue().isEmpty()) {
+                    mBuckets.remove(entry.getKey());
+                }
+                if (bitmap.isRecycled()) {
+                    return null;
+                }
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drops the least recently pooled bitmaps, leaving them to the garbage
+     * collector rather than recycling them, as views may still draw them.
+     */
+    @GuardedBy("this")
+    private void trimToSizeLocked(int maxSize) {
+        while (mSize > maxSize && !mOrder.isEmpty()) {
+            final Bitmap bitmap = mOrder.removeFirst();
+            final int size = bitmap.getAllocationByteCount();
+            final LinkedList<Bitmap> bucket = mBuckets.get(size);
+            if (bucket != null) {
+                bucket.remove(bitmap);
+                if (bucket.isEmpty()) {
+                    mBuckets.remove(size);
+                }
+            }
+            mSize -= size;
+        }
+    }
+
+    /**
+     * Releases the bitmaps of views collected without being reported.
+     */
+    @GuardedBy("this")
+    private void expungeCollectedLocked() {
+        Reference<? extends ImageView> ref;
+        while ((ref = mCollectedViews.poll()) != null) {
+            if (mShownRefs.remove(ref)) {
+                unpinLocked(((ShownRef) ref).bitmap);
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private void pinLocked(Bitmap bitmap) {
+        final Integer count = mPins.get(bitmap);
+        mPins.put(bitmap, count != null ? count + 1 : 1);
+    }
+
+    @GuardedBy("this")
+    private void unpinLocked(Bitmap bitmap) {
+        final Integer count = mPins.get(bitmap);
+        if (count == null || count <= 1) {
+            mPins.remove(bitmap);
+        } else {
+            mPins.put(bitmap, count - 1);
+        }
+    }
+
+    private static class ShownRef extends WeakReference<ImageView> {
+        final Bitmap bitmap;
+
+        ShownRef(ImageView view, Bitmap bitmap, ReferenceQueue<ImageView> queue) {
+            super(view, queue);
+            this.bitmap = bitmap;
+        }
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
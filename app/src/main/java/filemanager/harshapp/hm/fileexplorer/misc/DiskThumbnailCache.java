@@ -0,0 +1,519 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.misc;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Point;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import filemanager.harshapp.hm.fileexplorer.libcore.io.IoUtils;
+
+/**
+ * Thumbnails kept on disk across runs, one compressed file per key, beneath
+ * the thumbnails {@link ThumbnailCache} keeps in memory. Callers choose keys
+ * which change whenever the source changes, so entries never need to be
+ * invalidated; the least recently used ones are dropped once the cache grows
+ * beyond its size.
+ *
+ * <p>The order of use is kept in a journal appended to on every change and
+ * read once per process, so finding what to drop needs neither a listing of
+ * the directory nor a write to the thumbnails themselves. A journal lost or
+ * damaged is rebuilt from the files.
+ */
+public class DiskThumbnailCache {
+    private static final String TAG = "DiskThumbnailCache";
+
+    private static final String SUFFIX = ".thumb";
+    private static final String JOURNAL = "journal";
+    private static final String JOURNAL_HEADER = "DiskThumbnailCache 1";
+    private static final String PUT = "P";
+    private static final String READ = "R";
+    private static final String DELETE = "D";
+    private static final int JPEG_QUALITY = 90;
+    private static final int MIN_THUMBNAIL_SIZE = 64;
+
+    private final File mDir;
+    private final long mMaxSize;
+
+    // Sizes of the thumbnails by file name, least recently used first
+    @GuardedBy("this")
+    private LinkedHashMap<String, Long> mEntries;
+    @GuardedBy("this")
+    private long mSize;
+    @GuardedBy("this")
+    private Writer mJournal;
+    @GuardedBy("this")
+    private int mJournalRecords;
+    @GuardedBy("this")
+    private final Set<String> mPending = new HashSet<>();
+    @GuardedBy("this")
+    private long mHits;
+    @GuardedBy("this")
+    private long mMisses;
+    @GuardedBy("this")
+    private long mWrites;
+    @GuardedBy("this")
+    private long mEvictions;
+
+    private Handler mHandler;
+
+    /**
+     * @param dir directory holding only this cache.
+     * @param maxSize size in bytes the cache is trimmed to.
+     */
+    public DiskThumbnailCache(File dir, long maxSize) {
+        mDir = dir;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Key of the thumbnail of a document at about the given size. Close sizes
+     * share a key, see {@link #getSizeBucket(Point)}.
+     */
+    public static String keyFor(Uri uri, Point size, long lastModified) {
+        return uri + "|" + getSizeBucket(size) + "|" + lastModified;
+    }
+
+    /**
+     * Rounds the larger side of a size up to a power of two, so close sizes
+     * share one cached thumbnail.
+     */
+    public static int getSizeBucket(Point size) {
+        final int side = Math.max(MIN_THUMBNAIL_SIZE, Math.max(size.x, size.y));
+        final int bucket = Integer.highestOneBit(side);
+        return bucket == side ? bucket : bucket << 1;
+    }
+
+    /**
+     * @return the file of the thumbnail stored under the key, or {@code null}
+     * if there is none.
+     */
+    @Nullable
+    public synchronized File get(String key) {
+        ensureLoadedLocked();
+        final String name = getFileName(key);
+        if (mEntries.get(name) == null) {
+            mMisses++;
+            return null;
+        }
+        final File file = new File(mDir, name);
+        if (!file.exists()) {
+            // Deleted behind our back, by the system clearing the cache
+            removeLocked(name);
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        appendLocked(READ, name, false);
+        return file;
+    }
+
+    /**
+     * Decodes the thumbnail stored under the key.
+     *
+     * @return the thumbnail, or {@code null} if there is none.
+     */
+    @Nullable
+    public Bitmap getBitmap(String key) {
+        return getBitmap(key, false);
+    }
+
+    /**
+     * Decodes the thumbnail stored under the key, into RGB_565 if it was stored
+     * opaque and compact thumbnails are preferred.
+     *
+     * @return the thumbnail, or {@code null} if there is none.
+     */
+    @Nullable
+    public Bitmap getBitmap(String key, boolean compact) {
+        final File file = get(key);
+        if (file == null) {
+            return null;
+        }
+        final BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), opts);
+        opts.inJustDecodeBounds = false;
+        opts.inPreferredConfig = ImageUtils.getThumbnailConfig(opts.outMimeType, compact);
+        final Bitmap bitmap = ImageUtils.decodeFile(file.getPath(), opts);
+        if (bitmap == null) {
+            Log.w(TAG, "Dropping unreadable thumbnail " + file);
+            synchronized (this) {
+                removeLocked(file.getName());
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Stores a thumbnail under the key, as JPEG unless it has transparency.
+     *
+     * @return the file now holding the thumbnail, or {@code null} if it
+     * couldn't be written.
+     */
+    @Nullable
+    public File put(String key, Bitmap bitmap) {
+        final String name = getFileName(key);
+        final File file = new File(mDir, name);
+        File temp = null;
+        FileOutputStream out = null;
+        try {
+            mDir.mkdirs();
+            temp = File.createTempFile(name, ".tmp", mDir);
+            out = new FileOutputStream(temp);
+            final boolean compressed = bitmap.hasAlpha()
+                    ? bitmap.compress(Bitmap.CompressFormat.PNG, 100, out)
+                    : bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            out.close();
+            out = null;
+            if (!compressed) {
+                throw new IOException("Failed to compress thumbnail");
+            }
+            synchronized (this) {
+                ensureLoadedLocked();
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Failed to rename " + temp);
+                }
+                temp = null;
+                final Long oldLength = mEntries.put(name, file.length());
+                mSize += file.length() - (oldLength != null ? oldLength : 0);
+                mWrites++;
+                appendLocked(PUT, name + " " + file.length(), true);
+                if (mSize > mMaxSize) {
+                    trimLocked();
+                }
+            }
+            return file;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to store thumbnail " + file, e);
+            return null;
+        } finally {
+            IoUtils.closeQuietly(out);
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Stores a thumbnail under the key in the background, unless one is
+     * already stored or being stored. The bitmap must not be recycled
+     * afterwards; it isn't reused by {@link BitmapPool} until stored.
+     */
+    public void putAsync(final String key, final Bitmap bitmap) {
+        final String name = getFileName(key);
+        synchronized (this) {
+            if (!mPending.add(name)) {
+                return;
+            }
+        }
+        BitmapPool.getInstance().pin(bitmap);
+        getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final boolean stored;
+                    synchronized (DiskThumbnailCache.this) {
+                        ensureLoadedLocked();
+                        stored = mEntries.containsKey(name);
+                    }
+                    if (!stored) {
+                        put(key, bitmap);
+                    }
+                } finally {
+                    BitmapPool.getInstance().unpin(bitmap);
+                    synchronized (DiskThumbnailCache.this) {
+                        mPending.remove(name);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return whether a thumbnail is stored under the key, without counting
+     * as a use of it.
+     */
+    public synchronized boolean contains(String key) {
+        ensureLoadedLocked();
+        return mEntries.containsKey(getFileName(key));
+    }
+
+    /**
+     * @return size in bytes the cache is trimmed to.
+     */
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Removes every thumbnail.
+     */
+    public synchronized void clear() {
+        IoUtils.closeQuietly(mJournal);
+        mJournal = null;
+        final File[] files = listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        new File(mDir, JOURNAL).delete();
+        mEntries = new LinkedHashMap<>(0, 0.75f, true);
+        mSize = 0;
+        rewriteJournalLocked();
+    }
+
+    /**
+     * Counters of the cache since the process started, for debugging.
+     */
+    public synchronized String getStats() {
+        ensureLoadedLocked();
+        final long requests = mHits + mMisses;
+        return String.format(Locale.US,
+                "Stored: %d, %d KB of %d KB\n"
+                        + "Hits: %d, misses: %d (%d%% hits)\n"
+                        + "Writes: %d, evictions: %d",
+                mEntries.size(), mSize / 1024, mMaxSize / 1024,
+                mHits, mMisses, requests > 0 ? mHits * 100 / requests : 0,
+                mWrites, mEvictions);
+    }
+
+    /**
+     * Drops the least recently used thumbnails until the cache fits in
+     * three quarters of its size, so it isn't trimmed again on every put.
+     */
+    @GuardedBy("this")
+    private void trimLocked() {
+        final long target = mMaxSize / 4 * 3;
+        final Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (mSize > target && it.hasNext()) {
+            final Map.Entry<String, Long> entry = it.next();
+            new File(mDir, entry.getKey()).delete();
+            mSize -= entry.getValue();
+            mEvictions++;
+            appendLocked(DELETE, entry.getKey(), false);
+            it.remove();
+        }
+        flushLocked();
+    }
+
+    @GuardedBy("this")
+    private void removeLocked(String name) {
+        final Long length = mEntries.remove(name);
+        if (length != null) {
+            new File(mDir, name).delete();
+            mSize -= length;
+            appendLocked(DELETE, name, true);
+        }
+    }
+
+    /**
+     * Reads the journal, or rebuilds it from the files if it can't be read.
+     */
+    @GuardedBy("this")
+    private void ensureLoadedLocked() {
+        if (mEntries != null) {
+            return;
+        }
+        mEntries = new LinkedHashMap<>(0, 0.75f, true);
+        mSize = 0;
+        if (!readJournalLocked()) {
+            mEntries.clear();
+            rebuildFromFilesLocked();
+        }
+        for (Long length : mEntries.values()) {
+            mSize += length;
+        }
+        rewriteJournalLocked();
+    }
+
+    @GuardedBy("this")
+    private boolean readJournalLocked() {
+        final File journal = new File(mDir, JOURNAL);
+        if (!journal.exists()) {
+            return false;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(journal), StandardCharsets.UTF_8));
+            if (!JOURNAL_HEADER.equals(reader.readLine())) {
+                return false;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] parts = line.split(" ");
+                if (PUT.equals(parts[0]) && parts.length == 3) {
+                    mEntries.put(parts[1], Long.parseLong(parts[2]));
+                } else if (READ.equals(parts[0]) && parts.length == 2) {
+                    mEntries.get(parts[1]);
+                } else if (DELETE.equals(parts[0]) && parts.length == 2) {
+                    mEntries.remove(parts[1]);
+                }
+                // Anything else is a record cut short by the process dying
+            }
+            return true;
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Failed to read journal, rebuilding it", e);
+            return false;
+        } finally {
+            IoUtils.closeQuietly(reader);
+        }
+    }
+
+    @GuardedBy("this")
+    private void rebuildFromFilesLocked() {
+        final File[] files = listFiles();
+        if (files == null) {
+            return;
+        }
+        final long[] modified = new long[files.length];
+        final Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Long.valueOf(modified[lhs]).compareTo(modified[rhs]);
+            }
+        });
+        for (Integer i : order) {
+            mEntries.put(files[i].getName(), files[i].length());
+        }
+    }
+
+    /**
+     * Replaces the journal with one record per thumbnail, so it doesn't grow
+     * with every read.
+     */
+    @GuardedBy("this")
+    private void rewriteJournalLocked() {
+        IoUtils.closeQuietly(mJournal);
+        mJournal = null;
+        mJournalRecords = 0;
+        final File journal = new File(mDir, JOURNAL);
+        Writer writer = null;
+        try {
+            mDir.mkdirs();
+            final File temp = new File(mDir, JOURNAL + ".tmp");
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(temp), StandardCharsets.UTF_8));
+            writer.write(JOURNAL_HEADER + "\n");
+            for (Map.Entry<String, Long> entry : mEntries.entrySet()) {
+                writer.write(PUT + " " + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+            writer.close();
+            writer = null;
+            if (!temp.renameTo(journal)) {
+                throw new IOException("Failed to rename " + temp);
+            }
+            mJournal = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(journal, true), StandardCharsets.UTF_8));
+            mJournalRecords = mEntries.size();
+        } catch (IOException e) {
+            // The cache still works, only its order is lost on the next run
+            Log.w(TAG, "Failed to write journal", e);
+            IoUtils.closeQuietly(writer);
+        }
+    }
+
+    @GuardedBy("this")
+    private void appendLocked(String op, String record, boolean flush) {
+        if (mJournalRecords > 2 * mEntries.size() + 1000) {
+            rewriteJournalLocked();
+            return;
+        }
+        if (mJournal == null) {
+            return;
+        }
+        try {
+            mJournal.write(op + " " + record + "\n");
+            mJournalRecords++;
+            if (flush) {
+                // Reads only reorder entries, those may wait for the next change
+                mJournal.flush();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to append to journal", e);
+            IoUtils.closeQuietly(mJournal);
+            mJournal = null;
+        }
+    }
+
+    @GuardedBy("this")
+    private void flushLocked() {
+        if (mJournal != null) {
+            try {
+                mJournal.flush();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to flush journal", e);
+            }
+        }
+    }
+
+    private synchronized Handler getHandler() {
+        if (mHandler == null) {
+            final HandlerThread thread = new HandlerThread(TAG,
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mHandler = new Handler(thread.getLooper());
+        }
+        return mHandler;
+    }
+
+    private File[] listFiles() {
+        return mDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(SUFFIX);
+            }
+        });
+    }
+
+    private static String getFileName(String key) {
+        return Utils.sha1Hex(key) + SUFFIX;
+    }
+}
@@ -7,16 +7,14 @@ import android.content.res.Resources;
 import android.database.Cursor;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
+import android.os.CancellationSignal;
 import android.provider.MediaStore;
 import android.support.provider.DocumentFile;
 import android.text.TextUtils;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
@@ -30,15 +28,25 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import filemanager.harshapp.hm.fileexplorer.R;
+import filemanager.harshapp.hm.fileexplorer.archive.ArchiveExtractor;
+import filemanager.harshapp.hm.fileexplorer.archive.ArchiveIndex;
+import filemanager.harshapp.hm.fileexplorer.archive.ArchiveReader;
+import filemanager.harshapp.hm.fileexplorer.archive.ParallelZipWriter;
+import filemanager.harshapp.hm.fileexplorer.archive.RangedSource;
+import filemanager.harshapp.hm.fileexplorer.archive.ZipEntryPolicy;
 import filemanager.harshapp.hm.fileexplorer.libcore.io.IoUtils;
 import filemanager.harshapp.hm.fileexplorer.model.DocumentInfo;
+import filemanager.harshapp.hm.fileexplorer.model.DocumentsContract;
 import filemanager.harshapp.hm.fileexplorer.model.DocumentsContract.Document;
+import filemanager.harshapp.hm.fileexplorer.transfer.ConflictResolver;
+import filemanager.harshapp.hm.fileexplorer.transfer.CopyEndpoint;
+import filemanager.harshapp.hm.fileexplorer.transfer.CopyEngine;
+import filemanager.harshapp.hm.fileexplorer.transfer.ResumableCopier;
+import filemanager.harshapp.hm.fileexplorer.transfer.VerifiedCopier;
 
 import static filemanager.harshapp.hm.fileexplorer.misc.MimeTypes.BASIC_MIME_TYPE;
 import static filemanager.harshapp.hm.fileexplorer.provider.StorageProvider.FILE_URI;
@@ -46,7 +54,6 @@ import static filemanager.harshapp.hm.fileexplorer.provider.StorageProvider.FILE
 public class FileUtils {
 
     private static final String TAG = "FileUtils";
-    private static final int BUFFER = 2048;
 
     /** Regular expression for safe filenames: no spaces or metacharacters */
     private static final Pattern SAFE_FILENAME_PATTERN = Pattern.compile("[\\w%+,./=_-]+");
@@ -269,19 +276,36 @@ public class FileUtils {
     }
 
     public static boolean moveDocument(File fileFrom, File fileTo, String name) {
+        return moveDocument(fileFrom, fileTo, name, null);
+    }
+
+    public static boolean moveDocument(File fileFrom, File fileTo, String name, VerifiedCopier verifier) {
+        return moveDocument(fileFrom, fileTo, name, verifier,
+                new ConflictResolver(ConflictResolver.POLICY_KEEP_BOTH), null);
+    }
+
+    /**
+     * @param verifier when not {@code null}, files are copied through it and
+     *                 checked against their source once written.
+     * @param resolver picks destination names for the whole job.
+     * @param listener told about bytes as they are written, or {@code null}.
+     */
+    public static boolean moveDocument(File fileFrom, File fileTo, String name,
+                                       VerifiedCopier verifier, ConflictResolver resolver,
+                                       CopyEngine.Listener listener) {
 
         if (fileTo.isDirectory() && fileTo.canWrite()) {
             if (fileFrom.isFile()) {
-                return copyDocument(fileFrom, fileTo, name);
+                return copyDocument(fileFrom, fileTo, name, verifier, resolver, listener);
             } else if (fileFrom.isDirectory()) {
                 File[] filesInDir = fileFrom.listFiles();
-                File filesToDir = new File(fileTo, fileFrom.getName());
-                if (!filesToDir.mkdirs()) {
+                File filesToDir = resolver.openDirectory(fileTo, fileFrom);
+                if (null == filesToDir) {
                     return false;
                 }
 
                 for (int i = 0; i < filesInDir.length; i++) {
-                    moveDocument(filesInDir[i], filesToDir, null);
+                    moveDocument(filesInDir[i], filesToDir, null, verifier, resolver, listener);
                 }
                 return true;
             }
@@ -292,63 +316,51 @@ public class FileUtils {
     }
 
     public static boolean copyDocument(File file, File dest, String name) {
+        return copyDocument(file, dest, name, null,
+                new ConflictResolver(ConflictResolver.POLICY_KEEP_BOTH), null);
+    }
+
+    public static boolean copyDocument(File file, File dest, String name,
+                                       VerifiedCopier verifier, ConflictResolver resolver,
+                                       CopyEngine.Listener listener) {
         if (!file.exists() || file.isDirectory()) {
             Log.v(TAG, "copyDocument: file not exist or is directory, " + file);
             return false;
         }
-        BufferedOutputStream bos = null;
-        BufferedInputStream bis = null;
-        byte[] data = new byte[BUFFER];
-        int read = 0;
-        FileInputStream fi = null;
-        FileOutputStream fo = null;
         try {
-            fi = new FileInputStream(file);
             if (!dest.exists()) {
                 if (!dest.mkdirs())
                     return false;
             }
 
-            File destFile = new File(dest, !TextUtils.isEmpty(name)
+            String destName = resolver.resolve(dest, !TextUtils.isEmpty(name)
                     ? name + "." + getExtFromFilename(file.getName())
-                    : file.getName());
-
-            int n = 0;
-            while (destFile.exists() && n++ < 32) {
-                String destName =
-                        (!TextUtils.isEmpty(name)
-                                ? name : getNameFromFilename(file.getName())) + " (" + n + ")" + "."
-                                + getExtFromFilename(file.getName());
-                destFile = new File(dest, destName);
+                    : file.getName(), file);
+            if (null == destName) {
+                // Skipped by policy
+                return true;
             }
-
-            if (!destFile.createNewFile())
+            File destFile = new File(dest, destName);
+            if (destFile.getCanonicalPath().equals(file.getCanonicalPath())) {
+                Log.w(TAG, "copyDocument: refusing to copy onto the source, " + file);
                 return false;
-            bos = new BufferedOutputStream(new FileOutputStream(destFile));
-            bis = new BufferedInputStream(new FileInputStream(file));
-            while ((read = bis.read(data, 0, BUFFER)) != -1)
-                bos.write(data, 0, read);
+            }
 
+            if (null == verifier && ResumableCopier.isResumable(file.length())) {
+                ResumableCopier.copy(file, destFile, listener);
+                return true;
+            }
+            if (null != verifier) {
+                verifier.copy(CopyEndpoint.forFile(file), CopyEndpoint.forFile(destFile), listener);
+                return true;
+            }
+            CopyEngine.copy(file, destFile, listener);
             return true;
         } catch (FileNotFoundException e) {
             Log.e(TAG, "copyDocument: file not found, " + file);
             e.printStackTrace();
         } catch (IOException e) {
             Log.e(TAG, "copyDocument: " + e.toString());
-        } finally {
-            try {
-                //FIXME
-                //flush and close
-                bos.flush();
-                bis.close();
-                bos.close();
-                if (fi != null)
-                    fi.close();
-                if (fo != null)
-                    fo.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
         }
 
         return false;
@@ -381,76 +393,69 @@ public class FileUtils {
     }
 
     public static boolean compressFile(File parent, List<File> files) {
-        boolean success = false;
-        try {
-            File dest = new File(parent, FileUtils.getNameFromFilename(files.get(0).getName()) + ".zip");
-            ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(dest));
-            compressFile("", zout, files.toArray(new File[files.size()]));
-            zout.close();
-            success = true;
-        } catch (Exception e) {
+        return compressFile(parent, files, DocumentsContract.COMPRESSION_BALANCED);
+    }
 
+    /**
+     * @param compression one of the {@code DocumentsContract.COMPRESSION_*} presets.
+     */
+    public static boolean compressFile(File parent, List<File> files, int compression) {
+        File dest = new File(parent, FileUtils.getNameFromFilename(files.get(0).getName()) + ".zip");
+        ParallelZipWriter writer = new ParallelZipWriter(dest, ZipEntryPolicy.forPreset(compression));
+        for (File file : files) {
+            addToArchive(writer, "", file);
         }
-        return success;
+        try {
+            writer.write();
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "compressFile: " + e.toString());
+            CrashReportingManager.logException(e);
+        }
+        return false;
     }
 
-    private static void compressFile(String currentDir, ZipOutputStream zout, File[] files) throws Exception {
-        byte[] buffer = new byte[1024];
-        for (File fi : files) {
-            if (fi.isDirectory()) {
-                compressFile(currentDir + "/" + fi.getName(), zout, fi.listFiles());
-                continue;
-            }
-            ZipEntry ze = new ZipEntry(currentDir + "/" + fi.getName());
-            FileInputStream fin = new FileInputStream(fi.getPath());
-            zout.putNextEntry(ze);
-            int length;
-            while ((length = fin.read(buffer)) > 0) {
-                zout.write(buffer, 0, length);
+    private static void addToArchive(ParallelZipWriter writer, String currentDir, File file) {
+        if (file.isDirectory()) {
+            for (File child : listFilesOrEmpty(file)) {
+                addToArchive(writer, currentDir + file.getName() + "/", child);
             }
-            zout.closeEntry();
-            fin.close();
+            return;
         }
+        writer.add(currentDir + file.getName(), file);
     }
 
     public static boolean uncompress(File zipFile) {
-        boolean success = false;
         try {
-            FileInputStream fis = new FileInputStream(zipFile);
-            ZipInputStream zis = new ZipInputStream(new BufferedInputStream(fis));
-            ZipEntry entry;
-            File destFolder = new File(zipFile.getParent(), FileUtils.getNameFromFilename(zipFile.getName()));
-            destFolder.mkdirs();
-            while ((entry = zis.getNextEntry()) != null) {
-                File dest = new File(destFolder, entry.getName());
-                dest.getParentFile().mkdirs();
-
-                if(entry.isDirectory()) {
-                    if (!dest.exists()) {
-                        dest.mkdirs();
-                    }
-                } else {
-                    int size;
-                    byte[] buffer = new byte[2048];
-                    FileOutputStream fos = new FileOutputStream(dest);
-                    BufferedOutputStream bos = new BufferedOutputStream(fos, buffer.length);
-                    while ((size = zis.read(buffer, 0, buffer.length)) != -1) {
-                        bos.write(buffer, 0, size);
-                    }
-                    bos.flush();
-                    bos.close();
-                    IoUtils.flushQuietly(bos);
-                    IoUtils.closeQuietly(bos);
-                }
-                zis.closeEntry();
-            }
-            IoUtils.closeQuietly(zis);
-            IoUtils.closeQuietly(fis);
-            success = true;
+            uncompress(zipFile, null, null);
+            return true;
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.e(TAG, "uncompress: " + e.toString());
+            CrashReportingManager.logException(e);
         }
-        return success;
+        return false;
+    }
+
+    /**
+     * Extracts an archive next to itself, into a directory named after it.
+     *
+     * @throws android.os.OperationCanceledException if the signal is canceled.
+     */
+    public static File uncompress(File archive, @Nullable ArchiveExtractor.Listener listener,
+                                  @Nullable CancellationSignal signal) throws IOException {
+        final File destFolder = new File(archive.getParentFile(),
+                ArchiveExtractor.getDestinationName(archive.getName()));
+        final RangedSource source = RangedSource.forFile(archive);
+        try {
+            final ArchiveIndex.Builder builder = new ArchiveIndex.Builder();
+            ArchiveReader.forFormat(ArchiveReader.detect(source))
+                    .buildIndex(source, builder, archive.getName());
+            new ArchiveExtractor(source, builder.build(null, null))
+                    .extract(destFolder, null, listener, signal);
+        } finally {
+            IoUtils.closeQuietly(source);
+        }
+        return destFolder;
     }
 
     public static String getExtFromFilename(String filename) {
@@ -784,10 +789,14 @@ public class FileUtils {
     }
 
     public static boolean copy(InputStream inputStream, OutputStream outputStream){
+        return copy(inputStream, outputStream, null);
+    }
+
+    public static boolean copy(InputStream inputStream, OutputStream outputStream,
+                               CopyEngine.Listener listener){
         boolean successful = false;
         try {
-            IoUtils.copy(inputStream, outputStream);
-            outputStream.flush();
+            CopyEngine.copy(inputStream, outputStream, listener);
             successful = true;
         } catch (IOException e) {
             Log.e("TransferThread", "writing failed");
@@ -801,19 +810,37 @@ public class FileUtils {
     }
 
     public static boolean moveDocument(Context context, DocumentFile fileFrom, DocumentFile fileTo) {
+        return moveDocument(context, fileFrom, fileTo, null);
+    }
+
+    public static boolean moveDocument(Context context, DocumentFile fileFrom, DocumentFile fileTo,
+                                       VerifiedCopier verifier) {
+        return moveDocument(context, fileFrom, fileTo, verifier,
+                new ConflictResolver(ConflictResolver.POLICY_KEEP_BOTH), null);
+    }
+
+    /**
+     * @param verifier when not {@code null}, files are copied through it and
+     *                 checked against their source once written.
+     * @param resolver picks destination names for the whole job.
+     * @param listener told about bytes as they are written, or {@code null}.
+     */
+    public static boolean moveDocument(Context context, DocumentFile fileFrom, DocumentFile fileTo,
+                                       VerifiedCopier verifier, ConflictResolver resolver,
+                                       CopyEngine.Listener listener) {
 
         if (fileTo.isDirectory() /*&& fileTo.canWrite()*/) {
             if (fileFrom.isFile()) {
-                return copyDocument(context, fileFrom, fileTo);
+                return copyDocument(context, fileFrom, fileTo, verifier, resolver, listener);
             } else if (fileFrom.isDirectory()) {
                 DocumentFile[] filesInDir = fileFrom.listFiles();
-                DocumentFile filesToDir = fileTo.createDirectory(fileFrom.getName());
-                if (!filesToDir.exists()) {
+                DocumentFile filesToDir = resolver.openDirectory(fileTo, fileFrom);
+                if (null == filesToDir) {
                     return false;
                 }
 
                 for (int i = 0; i < filesInDir.length; i++) {
-                    moveDocument(context, filesInDir[i], filesToDir);
+                    moveDocument(context, filesInDir[i], filesToDir, verifier, resolver, listener);
                 }
                 return true;
             }
@@ -822,14 +849,17 @@ public class FileUtils {
     }
 
     public static boolean copyDocument(Context context, DocumentFile file, DocumentFile dest) {
+        return copyDocument(context, file, dest, null,
+                new ConflictResolver(ConflictResolver.POLICY_KEEP_BOTH), null);
+    }
+
+    public static boolean copyDocument(Context context, DocumentFile file, DocumentFile dest,
+                                       VerifiedCopier verifier, ConflictResolver resolver,
+                                       CopyEngine.Listener listener) {
         if (!file.exists() || file.isDirectory()) {
             Log.v(TAG, "copyDocument: file not exist or is directory, " + file);
             return false;
         }
-        BufferedOutputStream bos = null;
-        BufferedInputStream bis = null;
-        byte[] data = new byte[BUFFER];
-        int read = 0;
         try {
             if (!dest.exists()) {
                 dest = dest.getParentFile().createDirectory(dest.getName());
@@ -838,36 +868,50 @@ public class FileUtils {
                 }
             }
 
-            String mimeType = getTypeForFile(file);
-            String displayName = FileUtils.getNameFromFilename(file.getName());
-            DocumentFile destFile = dest.createFile(mimeType, displayName);
+            final String destName = resolver.resolve(dest, file.getName(), file);
+            if (null == destName) {
+                // Skipped by policy
+                return true;
+            }
+            DocumentFile destFile = resolver.findExisting(dest, destName);
+            if (null != destFile && destFile.getUri().equals(file.getUri())) {
+                Log.w(TAG, "copyDocument: refusing to copy onto the source, " + file);
+                return false;
+            }
 
-            int n = 0;
-            while (destFile == null && n++ < 32){
-                String destName = displayName + " (" + n + ")";
-                destFile = dest.createFile(mimeType, destName);
+            if (null == verifier && null == destFile && ResumableCopier.isResumable(file.length())) {
+                final DocumentFile copied = ResumableCopier.copy(context, file, dest, destName,
+                        listener);
+                if (null != copied) {
+                    resolver.onCreated(dest, copied);
+                    return true;
+                }
             }
 
-            if(destFile == null){
-                return false;
+            if (null == destFile) {
+                // Providers add the extension back from the MIME type
+                final String displayName = destName.lastIndexOf('.') > 0
+                        ? getNameFromFilename(destName) : destName;
+                destFile = dest.createFile(getTypeForFile(file), displayName);
+                if (null == destFile) {
+                    return false;
+                }
+                resolver.onCreated(dest, destFile);
             }
 
-            bos = new BufferedOutputStream(getOutputStream(context, destFile));
-            bis = new BufferedInputStream(getInputStream(context, file));
-            while ((read = bis.read(data, 0, BUFFER)) != -1) {
-                bos.write(data, 0, read);
+            if (null != verifier) {
+                verifier.copy(CopyEndpoint.forDocument(context, file),
+                        CopyEndpoint.forDocument(context, destFile), listener);
+                return true;
             }
+
+            CopyEngine.copy(context, file, destFile, listener);
             return true;
         } catch (FileNotFoundException e) {
             Log.e(TAG, "copyDocument: file not found, " + file);
             e.printStackTrace();
         } catch (IOException e) {
             Log.e(TAG, "copyDocument: " + e.toString());
-        } finally {
-            //flush and close
-            IoUtils.flushQuietly(bos);
-            IoUtils.closeQuietly(bos);
-            IoUtils.closeQuietly(bis);
         }
 
         return false;
@@ -875,7 +919,8 @@ public class FileUtils {
 
 
     public static OutputStream getOutputStream(Context context, DocumentFile documentFile) throws FileNotFoundException {
-        return context.getContentResolver().openOutputStream(documentFile.getUri());
+        // Truncated, as an existing document may be overwritten with a shorter one
+        return context.getContentResolver().openOutputStream(documentFile.getUri(), "wt");
     }
 
     public static InputStream getInputStream(Context context, DocumentFile documentFile) throws FileNotFoundException {
@@ -48,6 +48,7 @@ public class IconHelper {
 
     private final Context mContext;
     private final ThumbnailCache mThumbnailCache;
+    private final ThumbnailScheduler.Viewport mViewport = new ThumbnailScheduler.Viewport();
 
     // The display mode (MODE_GRID, MODE_LIST, etc).
     private int mMode;
@@ -109,11 +110,35 @@ public class IconHelper {
     public void stopLoading(ImageView icon) {
         final ThumbnailLoader oldTask = (ThumbnailLoader) icon.getTag();
         if (oldTask != null) {
-            oldTask.preempt();
-            icon.setTag(null);
+            // Cancelled once no other view waits for it
+            oldTask.removeWaiter(icon);
         }
     }
 
+    /**
+     * Stops loading into a view that is going away and lets the thumbnail it
+     * showed be reused.
+     */
+    public void releaseImage(ImageView icon) {
+        stopLoading(icon);
+        hideImageView(icon);
+    }
+
+    /**
+     * Sets the rows of the list currently visible. Thumbnails of the rows nearest them are
+     * loaded first, and those of rows scrolled far away are no longer loaded.
+     */
+    public void setVisibleRange(int first, int last) {
+        mViewport.setRange(first, last);
+    }
+
+    /**
+     * @return number of rows visible, or 0 if not known yet.
+     */
+    public int getVisibleCount() {
+        return mViewport.getVisibleCount();
+    }
+
     /**
      * Load thumbnails for a directory list item.
      *
@@ -128,8 +153,51 @@ public class IconHelper {
             ImageView iconThumb,
             ImageView iconMime,
             @Nullable View subIconMime) {
+        load(doc, -1, iconThumb, iconMime, subIconMime);
+    }
+
+    /**
+     * Load thumbnails for a directory list item at the given row of the list.
+     */
+    public void load(
+            DocumentInfo doc,
+            int position,
+            ImageView iconThumb,
+            ImageView iconMime,
+            @Nullable View subIconMime) {
         load(doc.derivedUri, doc.path, doc.mimeType, doc.flags, doc.icon, doc.lastModified,
-                iconThumb, iconMime, subIconMime);
+                position, iconThumb, iconMime, subIconMime);
+    }
+
+    /**
+     * Loads the thumbnail of a row not shown yet into the cache, so it is there when the row
+     * is scrolled to.
+     */
+    public void prefetch(DocumentInfo doc, int position) {
+        final Uri uri = doc.derivedUri;
+        if (!shouldShowThumbnail(doc.flags, doc.mimeType)) {
+            return;
+        }
+        final ThumbnailCache.Result result = mThumbnailCache.getThumbnail(uri, mCurrentSize);
+        try {
+            if (result.isExactHit() && doc.lastModified <= result.getLastModified()) {
+                return;
+            }
+        } finally {
+            result.recycle();
+        }
+        if (ThumbnailLoader.findLoading(uri, mCurrentSize) != null) {
+            return;
+        }
+
+        final ThumbnailLoader task = new ThumbnailLoader(mContext, uri, mCurrentSize,
+                doc.lastModified, doc.path, doc.mimeType, new Consumer<Bitmap>() {
+                    @Override
+                    public void accept(Bitmap bitmap) {
+                        // Only cached, for when the row is shown
+                    }
+                }, isCompact());
+        ThumbnailScheduler.forAuthority(uri.getAuthority()).execute(task, mViewport, position);
     }
 
     public void load(
@@ -155,18 +223,21 @@ public class IconHelper {
      */
     public void load(Uri uri, String docPath, String mimeType, int docFlags, int docIcon, long docLastModified,
             ImageView iconThumb, ImageView iconMime, @Nullable View subIconMime) {
+        load(uri, docPath, mimeType, docFlags, docIcon, docLastModified, -1,
+                iconThumb, iconMime, subIconMime);
+    }
+
+    private void load(Uri uri, String docPath, String mimeType, int docFlags, int docIcon,
+            long docLastModified, int position, ImageView iconThumb, ImageView iconMime,
+            @Nullable View subIconMime) {
         boolean loadedThumbnail = false;
 
         final String docAuthority = uri.getAuthority();
 
-        final boolean supportsThumbnail = (docFlags & DocumentsContract.Document.FLAG_SUPPORTS_THUMBNAIL) != 0;
-        final boolean allowThumbnail = (mMode == MODE_GRID)
-                || MimePredicate.mimeMatches(MimePredicate.VISUAL_MIMES, mimeType);
-        final boolean showThumbnail = supportsThumbnail && allowThumbnail && mThumbnailsEnabled;
-        if (showThumbnail) {
+        if (shouldShowThumbnail(docFlags, mimeType)) {
             loadedThumbnail =
                 loadThumbnail(uri, docAuthority, docLastModified, docPath,
-                        mimeType, iconThumb, iconMime, subIconMime);
+                        mimeType, position, iconThumb, iconMime, subIconMime);
         }
 
         final String docId = DocumentsContract.getDocumentId(uri);
@@ -190,45 +261,85 @@ public class IconHelper {
         }
     }
 
+    /**
+     * Whether opaque thumbnails are decoded into RGB_565. Grids show many large thumbnails at
+     * once, so halving their memory doubles how many stay cached, while list thumbnails are
+     * icon sized and keep their full color depth.
+     */
+    private boolean isCompact() {
+        return mMode == MODE_GRID;
+    }
+
+    private boolean shouldShowThumbnail(int docFlags, String mimeType) {
+        final boolean supportsThumbnail = (docFlags & DocumentsContract.Document.FLAG_SUPPORTS_THUMBNAIL) != 0;
+        final boolean allowThumbnail = (mMode == MODE_GRID)
+                || MimePredicate.mimeMatches(MimePredicate.VISUAL_MIMES, mimeType);
+        return supportsThumbnail && allowThumbnail && mThumbnailsEnabled;
+    }
+
     private boolean loadThumbnail(Uri uri, String docAuthority, long docLastModified, final String docPath,
-                                  final String mimeType, final ImageView iconThumb,
+                                  final String mimeType, int position, final ImageView iconThumb,
                                   final ImageView iconMime, final View subIconMime) {
         final ThumbnailCache.Result result = mThumbnailCache.getThumbnail(uri, mCurrentSize);
 
         try {
-            final Bitmap cachedThumbnail = result.getThumbnail();
-            if(result.isExactHit()){
+            // A thumbnail of another size, or else a tiny preview scaled up, is shown until
+            // the thumbnail itself is loaded
+            Bitmap cachedThumbnail = result.getThumbnail();
+            if (cachedThumbnail == null) {
+                cachedThumbnail = PreviewCache.getInstance().get(uri, docLastModified);
+            }
+            if (cachedThumbnail != null) {
                 setImage(iconThumb, cachedThumbnail, mimeType, docPath);
                 subIconMime.setVisibility(View.INVISIBLE);
             }
 
             boolean stale = (docLastModified > result.getLastModified());
             if (!result.isExactHit() || stale) {
-                final BiConsumer<View, View> animator =
-                        (cachedThumbnail == null ? ThumbnailLoader.ANIM_FADE_IN :
-                                ThumbnailLoader.ANIM_NO_OP);
+                // Faded in once, whether a preview or the thumbnail is shown first
+                final boolean[] shown = { cachedThumbnail != null };
 
-                Consumer<Bitmap> callback = new Consumer<Bitmap>() {
+                final Consumer<Bitmap> callback = new Consumer<Bitmap>() {
                     @Override
                     public void accept(Bitmap bitmap) {
                         if (bitmap != null) {
                             setImage(iconThumb, bitmap, mimeType, docPath);
                             subIconMime.setVisibility(View.INVISIBLE);
-                            animator.accept(iconMime, iconThumb);
-                        } else {
+                            if (!shown[0]) {
+                                shown[0] = true;
+                                ThumbnailLoader.ANIM_FADE_IN.accept(iconMime, iconThumb);
+                            }
+                        } else if (!shown[0]) {
                             subIconMime.setVisibility(View.VISIBLE);
                         }
                     }
                 };
+                // Not wanted once something is shown, so no preview is read for it
+                final Consumer<Bitmap> preview = shown[0] ? null : new Consumer<Bitmap>() {
+                    @Override
+                    public void accept(Bitmap bitmap) {
+                        if (!shown[0]) {
+                            callback.accept(bitmap);
+                        }
+                    }
+                };
 
-                final ThumbnailLoader task = new ThumbnailLoader(uri, iconThumb,
-                    mCurrentSize, docLastModified, docPath, mimeType,
-                        callback, true);
-
-                ProviderExecutor.forAuthority(docAuthority).execute(task);
+                // The same thumbnail may be loading already, for a prefetch or another list
+                final ThumbnailLoader loading = ThumbnailLoader.findLoading(uri, mCurrentSize);
+                if (loading != null) {
+                    loading.addWaiter(iconThumb, callback, preview);
+                } else {
+                    final ThumbnailLoader task = new ThumbnailLoader(uri, iconThumb,
+                        mCurrentSize, docLastModified, docPath, mimeType,
+                            callback, true, isCompact());
+                    task.addWaiter(iconThumb, callback, preview);
+
+                    ThumbnailScheduler.forAuthority(docAuthority).execute(task, mViewport,
+                            position);
+                }
             }
 
-            return result.isHit();
+            return cachedThumbnail != null;
         } finally {
             result.recycle();
         }
@@ -263,12 +374,17 @@ public class IconHelper {
                     }
                 };
 
-                final ThumbnailLoader task = new ThumbnailLoader(uri, iconThumb,
-                        mCurrentSize, 0, "", mimeType,
-                        callback, true);
-
-                String docAuthority = "ImageLoading";
-                ProviderExecutor.forAuthority(docAuthority).execute(task);
+                final ThumbnailLoader loading = ThumbnailLoader.findLoading(uri, mCurrentSize);
+                if (loading != null) {
+                    loading.addWaiter(iconThumb, callback);
+                } else {
+                    final ThumbnailLoader task = new ThumbnailLoader(uri, iconThumb,
+                            mCurrentSize, 0, "", mimeType,
+                            callback, true, isCompact());
+
+                    String docAuthority = "ImageLoading";
+                    ThumbnailScheduler.forAuthority(docAuthority).execute(task, null, -1);
+                }
             }
 
             return result.isHit();
@@ -284,6 +400,7 @@ public class IconHelper {
 
     private void hideImageView(ImageView view) {
         view.setImageDrawable(null);
+        BitmapPool.getInstance().markShown(view, null);
         view.setAlpha(0f);
     }
 
@@ -317,6 +434,7 @@ public class IconHelper {
 
     private void setImage(ImageView imageView, Bitmap bitmap, String docMimeType, String docPath){
         imageView.setImageBitmap(bitmap);
+        BitmapPool.getInstance().markShown(imageView, bitmap);
         imageView.setScaleType(getIconScaleType(docMimeType, docPath));
     }
 
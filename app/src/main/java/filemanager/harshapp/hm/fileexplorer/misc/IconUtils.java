@@ -18,7 +18,6 @@ package filemanager.harshapp.hm.fileexplorer.misc;
 
 import android.annotation.TargetApi;
 import android.content.Context;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.content.res.Resources;
@@ -241,25 +240,13 @@ public class IconUtils {
     public static Drawable loadPackagePathIcon(Context context, String path, String mimeType){
     	int icon =  sMimeIcons.get(mimeType);
         if (path != null) {
-            final PackageManager pm = context.getPackageManager();
-			try {
-				final PackageInfo packageInfo = pm.getPackageArchiveInfo(path, PackageManager.GET_ACTIVITIES);
-				if (packageInfo != null) {
-					packageInfo.applicationInfo.sourceDir = packageInfo.applicationInfo.publicSourceDir = path;
-					// know issue with nine patch image instead of drawable
-                    if(Utils.hasOreo()){
-                        return new BitmapDrawable(context.getResources(), getAppIcon(pm, packageInfo.packageName));
-                    } else {
-                        return pm.getApplicationIcon(packageInfo.applicationInfo);
-                    }
-				}
-			} catch (Exception e) {
-				return ContextCompat.getDrawable(context, icon);
-			}
-        } else {
-            return ContextCompat.getDrawable(context, icon);
+            // Parsed once per version of the APK
+            final Bitmap bitmap = ApkInfoCache.getInstance(context).getIcon(path);
+            if (bitmap != null) {
+                return new BitmapDrawable(context.getResources(), bitmap);
+            }
         }
-        return null;
+        return ContextCompat.getDrawable(context, icon);
     }
 
     @RequiresApi(api = Build.VERSION_CODES.O)
@@ -280,7 +267,7 @@ public class IconUtils {
         return null;
     }
 
-    private static Bitmap drawableToBitmap(Drawable drawable) {
+    static Bitmap drawableToBitmap(Drawable drawable) {
         Bitmap bitmap = Bitmap.createBitmap(drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight(), Bitmap.Config.ARGB_8888);
         Canvas canvas = new Canvas(bitmap);
         drawable.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
@@ -3,12 +3,12 @@ package filemanager.harshapp.hm.fileexplorer.misc;
 import android.content.ContentResolver;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.Point;
 import android.graphics.Rect;
-import android.media.ThumbnailUtils;
 import android.net.Uri;
-import android.provider.MediaStore;
 import android.util.Base64;
 import android.util.Log;
 import android.webkit.URLUtil;
@@ -22,6 +22,7 @@ import java.io.InputStream;
 import java.net.URL;
 import java.util.regex.Pattern;
 
+import androidx.annotation.Nullable;
 import androidx.exifinterface.media.ExifInterface;
 
 
@@ -53,13 +54,40 @@ public class ImageUtils {
         return (int) n;
     }
 
+    /**
+     * Picks the config to decode a thumbnail into. Sources which can't be transparent, JPEG
+     * photos and video frames, are decoded into RGB_565 when compact thumbnails are preferred,
+     * at half the memory of ARGB_8888.
+     *
+     * @param mimeType type of the source, as found by a bounds pass, or null if unknown.
+     * @param compact whether memory is preferred over color depth.
+     */
+    public static Bitmap.Config getThumbnailConfig(@Nullable String mimeType, boolean compact) {
+        return compact && isOpaqueMimeType(mimeType)
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    private static boolean isOpaqueMimeType(@Nullable String mimeType) {
+        return mimeType != null
+                && ("image/jpeg".equals(mimeType) || mimeType.startsWith("video/"));
+    }
+
     public static Bitmap getThumbnail(String path, String mimeType, int mMaxWidth, int mMaxHeight) {
+        return getThumbnail(path, mimeType, mMaxWidth, mMaxHeight, false);
+    }
+
+    /**
+     * @param compact whether opaque thumbnails are decoded into RGB_565, see
+     * {@link #getThumbnailConfig}.
+     */
+    public static Bitmap getThumbnail(String path, String mimeType, int mMaxWidth, int mMaxHeight,
+                                      boolean compact) {
         try {
             final String typeOnly = mimeType.split("/")[0];
             if ("image".equals(typeOnly)) {
-                return getImageThumbnail(path, mMaxWidth, mMaxHeight);
+                return getImageThumbnail(path, mMaxWidth, mMaxHeight, compact);
             } else if ("video".equals(typeOnly)) {
-                return getVideoThumbnail(path, mMaxWidth, mMaxHeight);
+                return getVideoThumbnail(path, mMaxWidth, mMaxHeight, compact);
             } else {
                 return null;
             }
@@ -69,15 +97,24 @@ public class ImageUtils {
     }
 
     public static Bitmap getThumbnail(ContentResolver resolver, Uri imageUri, int mMaxWidth, int mMaxHeight) {
+        return getThumbnail(resolver, imageUri, mMaxWidth, mMaxHeight, false);
+    }
+
+    public static Bitmap getThumbnail(ContentResolver resolver, Uri imageUri, int mMaxWidth,
+                                      int mMaxHeight, boolean compact) {
         try {
-            return getContentThumbnail(resolver, imageUri, mMaxWidth, mMaxHeight);
+            return getContentThumbnail(resolver, imageUri, mMaxWidth, mMaxHeight, compact);
         } catch (OutOfMemoryError e) {
             return null;
         }
     }
 
     public static Bitmap getImageThumbnail(String path, int mMaxWidth, int mMaxHeight){
-        Bitmap.Config mDecodeConfig = Bitmap.Config.RGB_565;
+        return getImageThumbnail(path, mMaxWidth, mMaxHeight, false);
+    }
+
+    public static Bitmap getImageThumbnail(String path, int mMaxWidth, int mMaxHeight,
+                                           boolean compact){
         ImageView.ScaleType mScaleType = ImageView.ScaleType.CENTER_CROP;
 
         File bitmapFile = new File(path);
@@ -90,14 +127,15 @@ public class ImageUtils {
         BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
         decodeOptions.inInputShareable = true;
         decodeOptions.inPurgeable = true;
-        decodeOptions.inPreferredConfig = mDecodeConfig;
+        // The bounds pass tells the type, so whether the image can be transparent
+        decodeOptions.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(bitmapFile.getAbsolutePath(), decodeOptions);
+        decodeOptions.inJustDecodeBounds = false;
+        decodeOptions.inPreferredConfig = getThumbnailConfig(decodeOptions.outMimeType, compact);
         if (mMaxWidth == 0 && mMaxHeight == 0) {
 
             bitmap = BitmapFactory.decodeFile(bitmapFile.getAbsolutePath(), decodeOptions);
         } else {
-            // If we have to resize this image, first get the natural bounds.
-            decodeOptions.inJustDecodeBounds = true;
-            BitmapFactory.decodeFile(bitmapFile.getAbsolutePath(), decodeOptions);
             int actualWidth = decodeOptions.outWidth;
             int actualHeight = decodeOptions.outHeight;
 
@@ -108,15 +146,14 @@ public class ImageUtils {
                     actualHeight, actualWidth, mScaleType);
 
             // Decode to the nearest power of two scaling factor.
-            decodeOptions.inJustDecodeBounds = false;
             decodeOptions.inSampleSize = ImageUtils.findBestSampleSize(actualWidth, actualHeight, desiredWidth, desiredHeight);
-            Bitmap tempBitmap = BitmapFactory.decodeFile(bitmapFile.getAbsolutePath(), decodeOptions);
+            Bitmap tempBitmap = decodeFile(bitmapFile.getAbsolutePath(), decodeOptions);
             // If necessary, scale down to the maximal acceptable size.
             if (tempBitmap != null
                     && (tempBitmap.getWidth() > desiredWidth || tempBitmap.getHeight() > desiredHeight)) {
                 bitmap = Bitmap.createScaledBitmap(tempBitmap, desiredWidth,
                         desiredHeight, true);
-                tempBitmap.recycle();
+                BitmapPool.getInstance().put(tempBitmap);
             } else {
                 bitmap = tempBitmap;
             }
@@ -126,55 +163,119 @@ public class ImageUtils {
     }
 
     public static Bitmap getVideoThumbnail(String path, int mMaxWidth, int mMaxHeight){
-        Bitmap.Config mDecodeConfig = Bitmap.Config.RGB_565;
+        return getVideoThumbnail(path, mMaxWidth, mMaxHeight, false);
+    }
+
+    public static Bitmap getVideoThumbnail(String path, int mMaxWidth, int mMaxHeight,
+                                           boolean compact){
         ImageView.ScaleType mScaleType = ImageView.ScaleType.CENTER_CROP;
 
         File bitmapFile = new File(path);
-        Bitmap bitmap = null;
 
         if (!bitmapFile.exists() || !bitmapFile.isFile()) {
-            return bitmap;
+            return null;
         }
 
-        BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
-        decodeOptions.inInputShareable = true;
-        decodeOptions.inPurgeable = true;
-        decodeOptions.inPreferredConfig = mDecodeConfig;
-        if (mMaxWidth == 0 && mMaxHeight == 0) {
-
-            bitmap = getVideoFrame(bitmapFile.getAbsolutePath());
-        } else {
-            // If we have to resize this image, first get the natural bounds.
-            decodeOptions.inJustDecodeBounds = true;
-            //BitmapFactory.decodeFile(bitmapFile.getAbsolutePath(), decodeOptions);
-            int actualWidth = decodeOptions.outWidth;
-            int actualHeight = decodeOptions.outHeight;
-
-            // Then compute the dimensions we would ideally like to decode to.
-            int desiredWidth = getResizedDimension(mMaxWidth, mMaxHeight,
-                    actualWidth, actualHeight, mScaleType);
-            int desiredHeight = getResizedDimension(mMaxHeight, mMaxWidth,
-                    actualHeight, actualWidth, mScaleType);
+        // Frames are extracted in ARGB_8888 whatever the config preferred
+        final Bitmap frame = VideoThumbnailExtractor.getInstance().extract(
+                bitmapFile.getAbsolutePath(), mMaxWidth, mMaxHeight);
+        if (frame == null) {
+            return null;
+        }
+        final Bitmap.Config config = getThumbnailConfig("video/*", compact);
+        int desiredWidth = frame.getWidth();
+        int desiredHeight = frame.getHeight();
+        if (mMaxWidth != 0 || mMaxHeight != 0) {
+            // Then compute the dimensions we would ideally like to scale to.
+            desiredWidth = Math.min(frame.getWidth(), getResizedDimension(mMaxWidth, mMaxHeight,
+                    frame.getWidth(), frame.getHeight(), mScaleType));
+            desiredHeight = Math.min(frame.getHeight(), getResizedDimension(mMaxHeight, mMaxWidth,
+                    frame.getHeight(), frame.getWidth(), mScaleType));
+        }
+        final Bitmap bitmap = scaleBitmap(frame, desiredWidth, desiredHeight, config);
+        if (bitmap != frame) {
+            frame.recycle();
+        }
+        return bitmap;
+    }
 
-            // Decode to the nearest power of two scaling factor.
-            decodeOptions.inJustDecodeBounds = false;
-            decodeOptions.inSampleSize = ImageUtils.findBestSampleSize(actualWidth, actualHeight, desiredWidth, desiredHeight);
-            Bitmap tempBitmap = getVideoFrame(bitmapFile.getAbsolutePath());
-            // If necessary, scale down to the maximal acceptable size.
-            if (tempBitmap != null
-                    && (tempBitmap.getWidth() > desiredWidth || tempBitmap.getHeight() > desiredHeight)) {
-                bitmap = Bitmap.createScaledBitmap(tempBitmap, desiredWidth,
-                        desiredHeight, true);
-                tempBitmap.recycle();
-            } else {
-                bitmap = tempBitmap;
+    /**
+     * Scales a bitmap to the given size and config, returning it as is if it has both already.
+     */
+    private static Bitmap scaleBitmap(Bitmap source, int width, int height, Bitmap.Config config) {
+        if (source.getConfig() == config) {
+            if (source.getWidth() == width && source.getHeight() == height) {
+                return source;
             }
+            return Bitmap.createScaledBitmap(source, width, height, true);
         }
+        final Bitmap bitmap = Bitmap.createBitmap(width, height, config);
+        final Canvas canvas = new Canvas(bitmap);
+        canvas.drawBitmap(source, null, new Rect(0, 0, width, height),
+                new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG));
+        canvas.setBitmap(null);
         return bitmap;
     }
 
-    private static Bitmap getVideoFrame(String path) {
-        return ThumbnailUtils.createVideoThumbnail(path, MediaStore.Images.Thumbnails.MINI_KIND);
+    /**
+     * Decodes the thumbnail a camera embeds in the EXIF data of a JPEG, about
+     * 160 pixels wide, turned upright.
+     *
+     * @return the thumbnail, or {@code null} if there is none.
+     */
+    @Nullable
+    public static Bitmap getExifThumbnail(String path) {
+        try {
+            final ExifInterface exif = new ExifInterface(path);
+            final byte[] thumbnail = exif.getThumbnail();
+            if (thumbnail == null) {
+                return null;
+            }
+            final BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inPreferredConfig = Bitmap.Config.RGB_565;
+            final Bitmap bitmap = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length,
+                    opts);
+            final int degrees;
+            switch (exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, -1)) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    degrees = 90;
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    degrees = 180;
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    degrees = 270;
+                    break;
+                default:
+                    degrees = 0;
+            }
+            if (bitmap == null || degrees == 0) {
+                return bitmap;
+            }
+            final Matrix matrix = new Matrix();
+            matrix.setRotate(degrees);
+            return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(),
+                    matrix, true);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decodes a file into a pooled bitmap when one fits, see {@link BitmapPool}.
+     */
+    public static Bitmap decodeFile(final String path, BitmapFactory.Options decodeOptions) {
+        try {
+            return BitmapPool.getInstance().decode(decodeOptions, new BitmapPool.Decoder() {
+                @Override
+                public Bitmap decode(BitmapFactory.Options opts) {
+                    return BitmapFactory.decodeFile(path, opts);
+                }
+            });
+        } catch (IOException e) {
+            // Not thrown, decodeFile() returns null instead
+            return null;
+        }
     }
 
     /**
@@ -182,9 +283,9 @@ public class ImageUtils {
      *
      * This version is for reading a Bitmap from resource
      */
-    private static Bitmap getContentThumbnail(ContentResolver resolver, Uri imageUri, int mMaxWidth, int mMaxHeight) {
+    private static Bitmap getContentThumbnail(final ContentResolver resolver, final Uri imageUri, int mMaxWidth, int mMaxHeight,
+                                              boolean compact) {
 
-        Bitmap.Config mDecodeConfig = Bitmap.Config.RGB_565;
         ImageView.ScaleType mScaleType = ImageView.ScaleType.CENTER_CROP;
 
         Bitmap bitmap = null;
@@ -192,14 +293,15 @@ public class ImageUtils {
         BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
         decodeOptions.inInputShareable = true;
         decodeOptions.inPurgeable = true;
-        decodeOptions.inPreferredConfig = mDecodeConfig;
+        // The bounds pass tells the type, so whether the image can be transparent
+        decodeOptions.inJustDecodeBounds = true;
+        ImageUtils.decodeStream(resolver, imageUri, decodeOptions);
+        decodeOptions.inJustDecodeBounds = false;
+        decodeOptions.inPreferredConfig = getThumbnailConfig(decodeOptions.outMimeType, compact);
 
         if (mMaxWidth == 0 && mMaxHeight == 0) {
             bitmap = ImageUtils.decodeStream(resolver, imageUri, decodeOptions);
         } else {
-            // If we have to resize this image, first get the natural bounds.
-            decodeOptions.inJustDecodeBounds = true;
-            ImageUtils.decodeStream(resolver, imageUri, decodeOptions);
             int actualWidth = decodeOptions.outWidth;
             int actualHeight = decodeOptions.outHeight;
 
@@ -210,14 +312,23 @@ public class ImageUtils {
                     actualHeight, actualWidth, mScaleType);
 
             // Decode to the nearest power of two scaling factor.
-            decodeOptions.inJustDecodeBounds = false;
-
             decodeOptions.inSampleSize = ImageUtils.findBestSampleSize(actualWidth, actualHeight, desiredWidth, desiredHeight);
-            Bitmap tempBitmap = ImageUtils.decodeStream(resolver, imageUri, decodeOptions);
+            Bitmap tempBitmap = null;
+            try {
+                tempBitmap = BitmapPool.getInstance().decode(decodeOptions,
+                        new BitmapPool.Decoder() {
+                            @Override
+                            public Bitmap decode(BitmapFactory.Options opts) {
+                                return ImageUtils.decodeStream(resolver, imageUri, opts);
+                            }
+                        });
+            } catch (IOException e) {
+                // Not thrown, decodeStream() returns null instead
+            }
             // If necessary, scale down to the maximal acceptable size.
             if (tempBitmap != null && (tempBitmap.getWidth() > desiredWidth || tempBitmap.getHeight() > desiredHeight)) {
                 bitmap = Bitmap.createScaledBitmap(tempBitmap, desiredWidth, desiredHeight, true);
-                tempBitmap.recycle();
+                BitmapPool.getInstance().put(tempBitmap);
             } else {
                 bitmap = tempBitmap;
             }
@@ -403,8 +514,12 @@ public class ImageUtils {
             if (originalBitmap != null && orientation != 0) {
                 final Matrix matrix = new Matrix();
                 matrix.postRotate(orientation);
-                return Bitmap.createBitmap(originalBitmap, 0, 0, originalBitmap.getWidth(),
-                        originalBitmap.getHeight(), matrix, true);
+                final Bitmap rotatedBitmap = Bitmap.createBitmap(originalBitmap, 0, 0,
+                        originalBitmap.getWidth(), originalBitmap.getHeight(), matrix, true);
+                if (rotatedBitmap != originalBitmap) {
+                    BitmapPool.getInstance().put(originalBitmap);
+                }
+                return rotatedBitmap;
             }
             return originalBitmap;
         } catch (OutOfMemoryError oome) {
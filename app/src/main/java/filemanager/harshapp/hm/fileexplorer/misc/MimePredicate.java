@@ -51,7 +51,36 @@ public class MimePredicate implements Predicate<DocumentInfo> {
     public static final String[] COMPRESSED_MIMES = new String[] { 
     	"application/zip",
     	"application/rar",
-    	"application/gzip"};
+    	"application/gzip",
+    	"application/x-gzip",
+    	"application/x-tar",
+    	"application/x-gtar",
+    	"application/x-gtar-compressed",
+    	"application/x-compressed-tar"};
+
+    /**
+     * MIME types whose content is already compressed, so deflating them again
+     * costs time without saving space.
+     */
+    public static final String[] INCOMPRESSIBLE_MIMES = new String[] {
+            "image/jpeg",
+            "image/png",
+            "image/gif",
+            "image/webp",
+            "video/*",
+            "audio/mpeg",
+            "audio/mp4",
+            "audio/aac",
+            "audio/ogg",
+            "audio/flac",
+            "application/zip",
+            "application/rar",
+            "application/gzip",
+            "application/x-7z-compressed",
+            "application/x-bzip2",
+            "application/x-xz",
+            "application/epub+zip",
+            Document.MIME_TYPE_APK};
 
     public static final String[] SHARE_SKIP_MIMES = new String[] {
             DocumentsContract.Document.MIME_TYPE_APK };
@@ -41,6 +41,8 @@ public final class MimeTypes {
         MIME_TYPES.put("bz2", "application/x-bzip2");
         MIME_TYPES.put("cab", "application/vnd.ms-cab-compressed");
         MIME_TYPES.put("gz", "application/x-gzip");
+        MIME_TYPES.put("tgz", "application/x-gtar-compressed");
+        MIME_TYPES.put("tar", "application/x-tar");
         MIME_TYPES.put("lrf", BASIC_MIME_TYPE);
         MIME_TYPES.put("jar", "application/java-archive");
         MIME_TYPES.put("xz", "application/x-xz");
@@ -21,6 +21,8 @@ import android.os.ParcelFileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import filemanager.harshapp.hm.fileexplorer.libcore.io.IoUtils;
 
@@ -38,6 +40,26 @@ public class ParcelFileDescriptorUtil {
         return pipe[0];
     }
 
+    /**
+     * Same as {@link #pipeFrom(InputStream)}, copying on the given executor
+     * rather than on a new thread.
+     */
+    public static ParcelFileDescriptor pipeFrom(InputStream inputStream, Executor executor)
+            throws IOException {
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptorUtil.createPipe();
+        final OutputStream output = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+        try {
+            executor.execute(new Transfer(inputStream, output));
+        } catch (RejectedExecutionException e) {
+            IoUtils.closeQuietly(inputStream);
+            IoUtils.closeQuietly(output);
+            IoUtils.closeQuietly(pipe[0]);
+            throw new IOException(e);
+        }
+
+        return pipe[0];
+    }
+
     @SuppressWarnings("unused")
     public static ParcelFileDescriptor pipeTo(OutputStream outputStream)
             throws IOException {
@@ -50,14 +72,20 @@ public class ParcelFileDescriptorUtil {
     }
 
     static class TransferThread extends Thread {
+
+        TransferThread(InputStream in, OutputStream out) {
+            super(new Transfer(in, out), "ParcelFileDescriptor Transfer Thread");
+            setDaemon(true);
+        }
+    }
+
+    static class Transfer implements Runnable {
         final InputStream mIn;
         final OutputStream mOut;
 
-        TransferThread(InputStream in, OutputStream out) {
-            super("ParcelFileDescriptor Transfer Thread");
+        Transfer(InputStream in, OutputStream out) {
             mIn = in;
             mOut = out;
-            setDaemon(true);
         }
 
         @Override
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.misc;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.LruCache;
+
+import java.util.Locale;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Tiny versions of thumbnails, shown scaled up while the thumbnail itself
+ * loads. At {@link #PREVIEW_SIZE} pixels a side they take about a kilobyte
+ * each, so this cache holds the previews of many more documents than
+ * {@link ThumbnailCache} holds thumbnails, and rows scrolled back to during
+ * a fling show a blurred preview rather than an empty tile.
+ */
+public final class PreviewCache {
+    private static final String TAG = "PreviewCache";
+
+    private static final int PREVIEW_SIZE = 16;
+
+    private static PreviewCache sInstance;
+
+    private final LruCache<Uri, Entry> mCache;
+
+    /**
+     * The cache of the process, holding up to a hundred-and-twenty-eighth of
+     * the heap.
+     */
+    public static synchronized PreviewCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new PreviewCache(
+                    (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 128));
+        }
+        return sInstance;
+    }
+
+    private PreviewCache(int maxSize) {
+        mCache = new LruCache<Uri, Entry>(maxSize) {
+            @Override
+            protected int sizeOf(Uri key, Entry value) {
+                return value.preview.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * @return the preview of a document, unless there is none or it is
+     * older than the given last modified value.
+     */
+    @Nullable
+    public Bitmap get(Uri uri, long lastModified) {
+        final Entry entry = mCache.get(uri);
+        if (entry == null || entry.lastModified < lastModified) {
+            return null;
+        }
+        return entry.preview;
+    }
+
+    /**
+     * Keeps a preview scaled down from a thumbnail, unless a preview as
+     * recent is kept already.
+     */
+    public void put(Uri uri, Bitmap thumbnail, long lastModified) {
+        final Entry entry = mCache.get(uri);
+        if (entry != null && entry.lastModified >= lastModified) {
+            return;
+        }
+        final int width = thumbnail.getWidth();
+        final int height = thumbnail.getHeight();
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        final float scale = Math.min(1f, (float) PREVIEW_SIZE / Math.max(width, height));
+        final Bitmap preview = Bitmap.createScaledBitmap(thumbnail,
+                Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)),
+                true);
+        // A copy, as the thumbnail may be reused by BitmapPool
+        mCache.put(uri, new Entry(preview != thumbnail
+                ? preview : thumbnail.copy(thumbnail.getConfig(), false), lastModified));
+    }
+
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            mCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            mCache.trimToSize(mCache.size() / 2);
+        }
+    }
+
+    /**
+     * What the cache holds, for debugging.
+     */
+    public String getStats() {
+        return String.format(Locale.US,
+                "Previews: %d, %d KB of %d KB",
+                mCache.snapshot().size(), mCache.size() / 1024, mCache.maxSize() / 1024);
+    }
+
+    private static final class Entry {
+        final Bitmap preview;
+        final long lastModified;
+
+        Entry(Bitmap preview, long lastModified) {
+            this.preview = preview;
+            this.lastModified = lastModified;
+        }
+    }
+}
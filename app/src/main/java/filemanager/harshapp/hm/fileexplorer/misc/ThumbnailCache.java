@@ -26,12 +26,15 @@ import android.util.LruCache;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.TreeMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import androidx.annotation.IntDef;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import androidx.core.util.Pair;
 import androidx.core.util.Pools;
 
@@ -46,10 +49,13 @@ public class ThumbnailCache {
 
     /**
      * A 2-dimensional index into {@link #mCache} entries. Pair<Uri, Point> is the key to
-     * {@link #mCache}. TreeMap is used to search the closest size to a given size and a given uri.
+     * {@link #mCache}. Sizes of a uri are kept in an array sorted by width, which is replaced
+     * rather than modified, so lookups of the closest size never lock and only writers of the
+     * same uri retry.
      */
-    private final HashMap<Uri, TreeMap<Point, Pair<Uri, Point>>> mSizeIndex;
+    private final ConcurrentHashMap<Uri, Point[]> mSizeIndex;
     private final Cache mCache;
+    private final DiskThumbnailCache mDiskCache;
 
     /**
      * Creates a thumbnail LRU cache.
@@ -57,8 +63,27 @@ public class ThumbnailCache {
      * @param maxCacheSizeInBytes the maximum size of thumbnails in bytes this cache can hold.
      */
     public ThumbnailCache(int maxCacheSizeInBytes) {
-        mSizeIndex = new HashMap<>();
+        this(maxCacheSizeInBytes, null);
+    }
+
+    /**
+     * Creates a thumbnail LRU cache backed by thumbnails kept on disk.
+     *
+     * @param maxCacheSizeInBytes the maximum size of thumbnails in bytes this cache can hold.
+     * @param diskCache thumbnails kept across runs, or null if there are none.
+     */
+    public ThumbnailCache(int maxCacheSizeInBytes, @Nullable DiskThumbnailCache diskCache) {
+        mSizeIndex = new ConcurrentHashMap<>();
         mCache = new Cache(maxCacheSizeInBytes);
+        mDiskCache = diskCache;
+    }
+
+    /**
+     * @return thumbnails kept on disk across runs, or null if there are none.
+     */
+    @Nullable
+    public DiskThumbnailCache getDiskCache() {
+        return mDiskCache;
     }
 
     /**
@@ -69,45 +94,36 @@ public class ThumbnailCache {
      * @return the thumbnail result
      */
     public Result getThumbnail(Uri uri, Point size) {
-        TreeMap<Point, Pair<Uri, Point>> sizeMap;
-        sizeMap = mSizeIndex.get(uri);
-        if (sizeMap == null || sizeMap.isEmpty()) {
+        final Point[] sizes = mSizeIndex.get(uri);
+        if (sizes == null) {
             // There is not any thumbnail for this uri.
             return Result.obtainMiss();
         }
 
+        final int index = Arrays.binarySearch(sizes, size, SIZE_COMPARATOR);
         // Look for thumbnail of the same size.
-        Pair<Uri, Point> cacheKey = sizeMap.get(size);
-        if (cacheKey != null) {
-            Entry entry = mCache.get(cacheKey);
+        if (index >= 0) {
+            Entry entry = mCache.get(Pair.create(uri, sizes[index]));
             if (entry != null) {
                 return Result.obtain(Result.CACHE_HIT_EXACT, size, entry);
             }
         }
 
         // Look for thumbnail of bigger sizes.
-        Point otherSize = sizeMap.higherKey(size);
-        if (otherSize != null) {
-            cacheKey = sizeMap.get(otherSize);
-
-            if (cacheKey != null) {
-                Entry entry = mCache.get(cacheKey);
-                if (entry != null) {
-                    return Result.obtain(Result.CACHE_HIT_LARGER, otherSize, entry);
-                }
+        final int higher = index >= 0 ? index + 1 : -index - 1;
+        if (higher < sizes.length) {
+            Entry entry = mCache.get(Pair.create(uri, sizes[higher]));
+            if (entry != null) {
+                return Result.obtain(Result.CACHE_HIT_LARGER, sizes[higher], entry);
             }
         }
 
         // Look for thumbnail of smaller sizes.
-        otherSize = sizeMap.lowerKey(size);
-        if (otherSize != null) {
-            cacheKey = sizeMap.get(otherSize);
-
-            if (cacheKey != null) {
-                Entry entry = mCache.get(cacheKey);
-                if (entry != null) {
-                    return Result.obtain(Result.CACHE_HIT_SMALLER, otherSize, entry);
-                }
+        final int lower = index >= 0 ? index - 1 : -index - 2;
+        if (lower >= 0) {
+            Entry entry = mCache.get(Pair.create(uri, sizes[lower]));
+            if (entry != null) {
+                return Result.obtain(Result.CACHE_HIT_SMALLER, sizes[lower], entry);
             }
         }
 
@@ -125,20 +141,11 @@ public class ThumbnailCache {
     public void putThumbnail(Uri uri, Point size, Bitmap thumbnail, long lastModified) {
         Pair<Uri, Point> cacheKey = Pair.create(uri, size);
 
-        TreeMap<Point, Pair<Uri, Point>> sizeMap;
-        synchronized (mSizeIndex) {
-            sizeMap = mSizeIndex.get(uri);
-            if (sizeMap == null) {
-                sizeMap = new TreeMap<>(SIZE_COMPARATOR);
-                mSizeIndex.put(uri, sizeMap);
-            }
-        }
-
         Entry entry = new Entry(thumbnail, lastModified);
+        // Indexed first, so that a concurrent eviction of the new entry can only leave it
+        // unindexed, a miss, rather than leave the index pointing at nothing for good
+        addKey(uri, size);
         mCache.put(cacheKey, entry);
-        synchronized (sizeMap) {
-            sizeMap.put(size, cacheKey);
-        }
     }
 
     /**
@@ -146,31 +153,101 @@ public class ThumbnailCache {
      * @param uri the uri which thumbnail cache to remove
      */
     public void removeUri(Uri uri) {
-        TreeMap<Point, Pair<Uri, Point>> sizeMap;
-        synchronized (mSizeIndex) {
-            sizeMap = mSizeIndex.get(uri);
+        final Point[] sizes = mSizeIndex.get(uri);
+        if (sizes != null) {
+            // removeKey() will be called by LruCache, replacing the array rather than changing
+            // the one iterated over.
+            for (Point size : sizes) {
+                mCache.remove(Pair.create(uri, size));
+            }
         }
+    }
 
-        if (sizeMap != null) {
-            // Create an array to hold all values to avoid ConcurrentModificationException because
-            // removeKey() will be called by LruCache but we can't modify the map while we're
-            // iterating over the collection of values.
-            for (Pair<Uri, Point> index : sizeMap.values().toArray(new Pair[0])) {
-                mCache.remove(index);
+    private void addKey(Uri uri, Point size) {
+        while (true) {
+            final Point[] sizes = mSizeIndex.get(uri);
+            if (sizes == null) {
+                if (mSizeIndex.putIfAbsent(uri, new Point[] { size }) == null) {
+                    return;
+                }
+                continue;
+            }
+            final int index = Arrays.binarySearch(sizes, size, SIZE_COMPARATOR);
+            final Point[] newSizes;
+            if (index >= 0) {
+                if (sizes[index].equals(size)) {
+                    return;
+                }
+                // Same width, so it takes the place of the other size
+                newSizes = sizes.clone();
+                newSizes[index] = size;
+            } else {
+                final int insertion = -index - 1;
+                newSizes = new Point[sizes.length + 1];
+                System.arraycopy(sizes, 0, newSizes, 0, insertion);
+                newSizes[insertion] = size;
+                System.arraycopy(sizes, insertion, newSizes, insertion + 1,
+                        sizes.length - insertion);
+            }
+            if (mSizeIndex.replace(uri, sizes, newSizes)) {
+                return;
             }
         }
     }
 
     private void removeKey(Uri uri, Point size) {
-        TreeMap<Point, Pair<Uri, Point>> sizeMap;
-        synchronized (mSizeIndex) {
-            sizeMap = mSizeIndex.get(uri);
+        while (true) {
+            final Point[] sizes = mSizeIndex.get(uri);
+            if (sizes == null) {
+                return;
+            }
+            final int index = Arrays.binarySearch(sizes, size, SIZE_COMPARATOR);
+            if (index < 0 || !sizes[index].equals(size)) {
+                // Already replaced by a size of the same width
+                return;
+            }
+            if (sizes.length == 1) {
+                if (mSizeIndex.remove(uri, sizes)) {
+                    return;
+                }
+                continue;
+            }
+            final Point[] newSizes = new Point[sizes.length - 1];
+            System.arraycopy(sizes, 0, newSizes, 0, index);
+            System.arraycopy(sizes, index + 1, newSizes, index, sizes.length - index - 1);
+            if (mSizeIndex.replace(uri, sizes, newSizes)) {
+                return;
+            }
         }
+    }
 
-        assert(sizeMap != null);
-        synchronized (sizeMap) {
-            sizeMap.remove(size);
+    /**
+     * Checks that every size indexed for a uri is sorted and cached, so that lookups never
+     * find a size the cache no longer holds. Only meaningful once no writer is running.
+     */
+    @VisibleForTesting
+    boolean isIndexConsistent() {
+        final Set<Pair<Uri, Point>> keys = mCache.snapshot().keySet();
+        for (Map.Entry<Uri, Point[]> entry : mSizeIndex.entrySet()) {
+            final Point[] sizes = entry.getValue();
+            for (int i = 0; i < sizes.length; i++) {
+                if (i > 0 && SIZE_COMPARATOR.compare(sizes[i - 1], sizes[i]) >= 0) {
+                    return false;
+                }
+                if (!keys.contains(Pair.create(entry.getKey(), sizes[i]))) {
+                    return false;
+                }
+            }
         }
+        return true;
+    }
+
+    /**
+     * Evicts thumbnails until the cache holds at most the given number of bytes.
+     */
+    @VisibleForTesting
+    void trimToSize(int maxSizeInBytes) {
+        mCache.trimToSize(maxSizeInBytes);
     }
 
     public void onTrimMemory(int level) {
@@ -179,6 +256,8 @@ public class ThumbnailCache {
         } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
             mCache.trimToSize(mCache.size() / 2);
         }
+        // After evicting, so the evicted bitmaps don't stay pooled
+        BitmapPool.getInstance().onTrimMemory(level);
     }
 
     /**
@@ -234,6 +313,10 @@ public class ThumbnailCache {
             instance.mThumbnail = thumbnail;
             instance.mSize = size;
             instance.mLastModified = lastModified;
+            if (thumbnail != null) {
+                // Until recycled, by when a view showing it has pinned it too
+                BitmapPool.getInstance().pin(thumbnail);
+            }
 
             return instance;
         }
@@ -243,6 +326,9 @@ public class ThumbnailCache {
         public void recycle() {
             checkMainLoop();
 
+            if (mThumbnail != null) {
+                BitmapPool.getInstance().unpin(mThumbnail);
+            }
             mStatus = -1;
             mThumbnail = null;
             mSize = null;
@@ -300,7 +386,9 @@ public class ThumbnailCache {
 
         @Override
         protected int sizeOf(Pair<Uri, Point> key, Entry value) {
-            return value.mThumbnail.getByteCount();
+            // Pooled bitmaps may be larger than the thumbnails decoded into them
+            return Utils.hasKitKat()
+                    ? value.mThumbnail.getAllocationByteCount() : value.mThumbnail.getByteCount();
         }
 
         @Override
@@ -309,6 +397,10 @@ public class ThumbnailCache {
             if (newValue == null) {
                 removeKey(key.first, key.second);
             }
+            if (newValue == null || newValue.mThumbnail != oldValue.mThumbnail) {
+                // Reused once no view shows it anymore
+                BitmapPool.getInstance().put(oldValue.mThumbnail);
+            }
         }
     }
 
@@ -20,24 +20,32 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Point;
-import android.graphics.drawable.BitmapDrawable;
 import android.net.Uri;
 import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.OperationCanceledException;
 import android.util.Log;
 import android.view.View;
 import android.webkit.URLUtil;
 import android.widget.ImageView;
 
+import androidx.annotation.Nullable;
+import androidx.collection.ArrayMap;
+import androidx.core.util.Pair;
 import filemanager.harshapp.hm.fileexplorer.DocumentsApplication;
 import filemanager.harshapp.hm.fileexplorer.libcore.util.BiConsumer;
 import filemanager.harshapp.hm.fileexplorer.libcore.util.Consumer;
 import filemanager.harshapp.hm.fileexplorer.model.DocumentsContract;
 
 /**
- *  Loads a Thumbnails asynchronously then animates from the mime icon to the thumbnail
+ *  Loads a Thumbnails asynchronously then animates from the mime icon to the thumbnail.
+ *  Image views asking for a thumbnail already loading, in a size of the same bucket, wait for
+ *  that load rather than starting another, see {@link #findLoading} and {@link #addWaiter}.
+ *  Waiters may be shown a preview first, the thumbnail a camera embedded in a JPEG, while the
+ *  thumbnail itself is decoded.
  */
-public final class ThumbnailLoader extends AsyncTask<Uri, Void, Bitmap> implements ProviderExecutor.Preemptable {
+public final class ThumbnailLoader extends AsyncTask<Uri, Bitmap, Bitmap> implements ProviderExecutor.Preemptable {
 
     private static final String TAG = ThumbnailLoader.class.getCanonicalName();
 
@@ -62,7 +70,16 @@ public final class ThumbnailLoader extends AsyncTask<Uri, Void, Bitmap> implemen
         }
     };
 
-    private final ImageView mIconThumb;
+    // Loads which may still be shared, by uri and size bucket. Main thread only
+    private static final ArrayMap<Pair<Uri, Integer>, ThumbnailLoader> sLoading = new ArrayMap<>();
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private final Context mContext;
+    // Views waiting for the thumbnail, with what to do with it. Main thread only
+    private final ArrayMap<ImageView, Consumer<Bitmap>> mWaiters = new ArrayMap<>();
+    // Waiters to show a preview to before the thumbnail. Main thread only
+    private final ArrayMap<ImageView, Consumer<Bitmap>> mPreviewWaiters = new ArrayMap<>();
+    private final Pair<Uri, Integer> mLoadingKey;
     private final Point mThumbSize;
     private final Uri mUri;
     private final long mLastModified;
@@ -71,6 +88,8 @@ public final class ThumbnailLoader extends AsyncTask<Uri, Void, Bitmap> implemen
     private final CancellationSignal mSignal;
     private final String mPath;
     private final String mMimeType;
+    private final boolean mCompact;
+    private volatile boolean mWantsPreview;
 
     /**
      * @param uri - to a thumbnail.
@@ -78,23 +97,124 @@ public final class ThumbnailLoader extends AsyncTask<Uri, Void, Bitmap> implemen
      * @param thumbSize - size of the thumbnail.
      * @param lastModified - used for updating thumbnail caches.
      * @param addToCache - flag that determines if the loader saves the thumbnail to the cache.
+     * @param compact - decodes opaque thumbnails into RGB_565, see
+     * {@link ImageUtils#getThumbnailConfig}.
      */
     public ThumbnailLoader(Uri uri, ImageView iconThumb, Point thumbSize, long lastModified,
                            String path, String mimeType,
-                           Consumer<Bitmap> callback, boolean addToCache) {
+                           Consumer<Bitmap> callback, boolean addToCache, boolean compact) {
+        this(iconThumb.getContext(), uri, iconThumb, thumbSize, lastModified, path, mimeType,
+                callback, addToCache, compact);
+    }
+
+    /**
+     * Loads a thumbnail into the cache only, for a row not shown yet.
+     */
+    public ThumbnailLoader(Context context, Uri uri, Point thumbSize, long lastModified,
+                           String path, String mimeType, Consumer<Bitmap> callback,
+                           boolean compact) {
+        this(context, uri, null, thumbSize, lastModified, path, mimeType, callback, true,
+                compact);
+    }
 
+    private ThumbnailLoader(Context context, Uri uri, ImageView iconThumb, Point thumbSize,
+                            long lastModified, String path, String mimeType,
+                            Consumer<Bitmap> callback, boolean addToCache, boolean compact) {
+        mContext = context;
         mUri = uri;
-        mIconThumb = iconThumb;
         mThumbSize = thumbSize;
         mLastModified = lastModified;
-        mCallback = callback;
         mAddToCache = addToCache;
         mSignal = new CancellationSignal();
-        mIconThumb.setTag(this);
         mPath = path;
         mMimeType = mimeType;
+        mCompact = compact;
+        if (iconThumb != null) {
+            mCallback = null;
+            addWaiter(iconThumb, callback);
+        } else {
+            mCallback = callback;
+        }
+        // Only loads into the cache are shared, so that each waiter finds the thumbnail there
+        mLoadingKey = addToCache ? keyFor(uri, thumbSize) : null;
+        if (mLoadingKey != null) {
+            sLoading.put(mLoadingKey, this);
+        }
     }
 
+    private static Pair<Uri, Integer> keyFor(Uri uri, Point size) {
+        return Pair.create(uri, DiskThumbnailCache.getSizeBucket(size));
+    }
+
+    /**
+     * @return the load of a thumbnail of the uri in a size of the same bucket as the given one,
+     * which views can still wait for, or null if there is none. Main thread only.
+     */
+    public static ThumbnailLoader findLoading(Uri uri, Point size) {
+        final ThumbnailLoader loader = sLoading.get(keyFor(uri, size));
+        return loader != null && !loader.isCancelled() ? loader : null;
+    }
+
+    /**
+     * Shows the thumbnail in a view once loaded too. The view stops waiting for any other load.
+     * Main thread only.
+     */
+    public void addWaiter(ImageView iconThumb, Consumer<Bitmap> callback) {
+        addWaiter(iconThumb, callback, null);
+    }
+
+    /**
+     * Shows the thumbnail in a view once loaded too, and a preview meanwhile if one is found
+     * before the thumbnail. Main thread only.
+     */
+    public void addWaiter(ImageView iconThumb, Consumer<Bitmap> callback,
+                          @Nullable Consumer<Bitmap> preview) {
+        final Object tag = iconThumb.getTag();
+        if (tag instanceof ThumbnailLoader && tag != this) {
+            // Rebound to another document, yet the old load still fills the cache
+            ((ThumbnailLoader) tag).mWaiters.remove(iconThumb);
+            ((ThumbnailLoader) tag).removePreviewWaiter(iconThumb);
+        }
+        iconThumb.setTag(this);
+        mWaiters.put(iconThumb, callback);
+        if (preview != null) {
+            mPreviewWaiters.put(iconThumb, preview);
+            mWantsPreview = true;
+        } else {
+            removePreviewWaiter(iconThumb);
+        }
+    }
+
+    private void removePreviewWaiter(ImageView iconThumb) {
+        mPreviewWaiters.remove(iconThumb);
+        // No preview is read once no view is left waiting for one
+        mWantsPreview = !mPreviewWaiters.isEmpty();
+    }
+
+    /**
+     * Stops showing the thumbnail in a view. The load is cancelled once no view waits for it,
+     * unless one starts waiting before the main thread is idle again, as views rebinding to the
+     * same document do. Main thread only.
+     */
+    public void removeWaiter(ImageView iconThumb) {
+        if (iconThumb.getTag() == this) {
+            iconThumb.setTag(null);
+        }
+        removePreviewWaiter(iconThumb);
+        if (mWaiters.remove(iconThumb) != null && mWaiters.isEmpty()) {
+            sMainHandler.post(mCancelUnwaited);
+        }
+    }
+
+    private final Runnable mCancelUnwaited = new Runnable() {
+        @Override
+        public void run() {
+            if (mWaiters.isEmpty()) {
+                preempt();
+            }
+        }
+    };
+
     @Override
     public void preempt() {
         cancel(false);
@@ -107,29 +227,57 @@ public final class ThumbnailLoader extends AsyncTask<Uri, Void, Bitmap> implemen
             return null;
         }
 
-        final Context context = mIconThumb.getContext();
+        final Context context = mContext;
         final ContentResolver resolver = context.getContentResolver();
 
+        // APK icons aren't thumbnails of the file, and are kept by ApkInfoCache
+        final DiskThumbnailCache diskCache =
+                DocumentsApplication.getThumbnailCache(context).getDiskCache();
+        final String diskKey = diskCache != null && mLastModified > 0 && !Utils.isAPK(mMimeType)
+                ? DiskThumbnailCache.keyFor(mUri, mThumbSize, mLastModified) : null;
+
         ContentProviderClient client = null;
         Bitmap result = null;
         try {
+            if (diskKey != null) {
+                result = diskCache.getBitmap(diskKey, mCompact);
+                if (result != null) {
+                    BitmapPool.getInstance().pin(result);
+                    addToCache(context, result);
+                    return result;
+                }
+            }
+            if (mWantsPreview && mPath != null && "image/jpeg".equals(mMimeType)) {
+                final Bitmap preview = ImageUtils.getExifThumbnail(mPath);
+                if (preview != null && !isCancelled()) {
+                    publishProgress(preview);
+                    PreviewCache.getInstance().put(mUri, preview, mLastModified);
+                }
+            }
             if(URLUtil.isNetworkUrl(mUri.toString())){
-                result = ImageUtils.getThumbnail(resolver, mUri, mThumbSize.x, mThumbSize.y);
+                result = ImageUtils.getThumbnail(resolver, mUri, mThumbSize.x, mThumbSize.y,
+                        mCompact);
             }
             if (null == result) {
                 if (Utils.isAPK(mMimeType)) {
-                    result = ((BitmapDrawable) IconUtils.loadPackagePathIcon(context, mPath, DocumentsContract.Document.MIME_TYPE_APK)).getBitmap();
+                    result = mPath != null ? ApkInfoCache.getInstance(context).getIcon(mPath) : null;
                 } else {
                     client = DocumentsApplication.acquireUnstableProviderOrThrow(resolver, mUri.getAuthority());
-                    result = DocumentsContract.getDocumentThumbnail(resolver, mUri, mThumbSize, mSignal);
+                    result = DocumentsContract.getDocumentThumbnail(resolver, mUri, mThumbSize,
+                            mSignal, mCompact);
                 }
             }
             if (null == result){
-                result = ImageUtils.getThumbnail(mPath, mMimeType, mThumbSize.x, mThumbSize.y);
+                result = ImageUtils.getThumbnail(mPath, mMimeType, mThumbSize.x, mThumbSize.y,
+                        mCompact);
             }
-            if (result != null && mAddToCache) {
-                final ThumbnailCache thumbs = DocumentsApplication.getThumbnailsCache(context, mThumbSize);
-                thumbs.putThumbnail(mUri, mThumbSize, result, mLastModified);
+            if (result != null) {
+                // Until shown, so it isn't reused if evicted meanwhile
+                BitmapPool.getInstance().pin(result);
+                addToCache(context, result);
+                if (diskKey != null) {
+                    diskCache.putAsync(diskKey, result);
+                }
             }
         } catch (Exception e) {
             if (!(e instanceof OperationCanceledException)) {
@@ -142,11 +290,59 @@ public final class ThumbnailLoader extends AsyncTask<Uri, Void, Bitmap> implemen
         return result;
     }
 
+    private void addToCache(Context context, Bitmap result) {
+        if (mAddToCache) {
+            final ThumbnailCache thumbs = DocumentsApplication.getThumbnailsCache(context, mThumbSize);
+            thumbs.putThumbnail(mUri, mThumbSize, result, mLastModified);
+            PreviewCache.getInstance().put(mUri, result, mLastModified);
+        }
+    }
+
+    @Override
+    protected void onProgressUpdate(Bitmap... previews) {
+        for (int i = 0; i < mPreviewWaiters.size(); i++) {
+            final ImageView iconThumb = mPreviewWaiters.keyAt(i);
+            if (iconThumb.getTag() == this) {
+                mPreviewWaiters.valueAt(i).accept(previews[0]);
+            }
+        }
+        mPreviewWaiters.clear();
+    }
+
     @Override
     protected void onPostExecute(Bitmap result) {
-        if (mIconThumb.getTag() == this) {
-            mIconThumb.setTag(null);
+        finishLoading();
+        if (mCallback != null) {
             mCallback.accept(result);
         }
+        for (int i = 0; i < mWaiters.size(); i++) {
+            final ImageView iconThumb = mWaiters.keyAt(i);
+            if (iconThumb.getTag() == this) {
+                iconThumb.setTag(null);
+                mWaiters.valueAt(i).accept(result);
+            }
+        }
+        mWaiters.clear();
+        mPreviewWaiters.clear();
+        if (result != null) {
+            BitmapPool.getInstance().unpin(result);
+        }
+    }
+
+    @Override
+    protected void onCancelled(Bitmap result) {
+        finishLoading();
+        mWaiters.clear();
+        mPreviewWaiters.clear();
+        if (result != null) {
+            BitmapPool.getInstance().unpin(result);
+        }
+    }
+
+    private void finishLoading() {
+        sMainHandler.removeCallbacks(mCancelUnwaited);
+        if (mLoadingKey != null && sLoading.get(mLoadingKey) == this) {
+            sLoading.remove(mLoadingKey);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,441 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.misc;
+
+import android.Manifest;
+import android.annotation.TargetApi;
+import android.app.AlarmManager;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.Point;
+import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Environment;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import androidx.core.content.ContextCompat;
+import filemanager.harshapp.hm.fileexplorer.DocumentsApplication;
+import filemanager.harshapp.hm.fileexplorer.R;
+import filemanager.harshapp.hm.fileexplorer.libcore.io.IoUtils;
+import filemanager.harshapp.hm.fileexplorer.model.DocumentInfo;
+import filemanager.harshapp.hm.fileexplorer.model.DocumentsContract;
+import filemanager.harshapp.hm.fileexplorer.model.DocumentsContract.Document;
+import filemanager.harshapp.hm.fileexplorer.provider.ExternalStorageProvider;
+import filemanager.harshapp.hm.fileexplorer.service.ThumbnailPregenerateService;
+import filemanager.harshapp.hm.fileexplorer.setting.SettingsActivity;
+
+/**
+ * Stores the grid thumbnails of photos and videos in {@link DiskThumbnailCache}
+ * before they are first shown, so that scrolling through a camera folder of
+ * thousands of photos doesn't wait on decoding each of them. The folders
+ * walked are the recently visited ones shown as a grid, newest visit first,
+ * then the media folders of the primary storage and their subfolders. Newest
+ * files come first in each folder.
+ *
+ * <p>Passes are run by {@link ThumbnailPregenerateService} while the device
+ * is idle and charging. A pass writes at most {@link #PASS_BUDGET} bytes of
+ * thumbnails, and the thumbnails stored by passes that are still in the cache
+ * take at most a quarter of it, so they never push most of what the user
+ * looked at out of the cache. A pass also stops if storage runs low. An
+ * interrupted pass resumes at the folder it stopped in, and thumbnails
+ * already stored are skipped.
+ */
+public final class ThumbnailPregenerator {
+    private static final String TAG = "ThumbnailPregenerator";
+
+    private static final int JOB_ID = 1;
+
+    private static final String PREFS = "thumbnail_pregenerator";
+    private static final String KEY_VISITED = "visited";
+    private static final String KEY_CURSOR = "cursor";
+    private static final String KEY_PASS_BYTES = "passBytes";
+    private static final String KEY_GENERATED = "generated";
+    private static final String KEY_LAST_PASS = "lastPass";
+    private static final String KEY_STORED_BYTES = "storedBytes";
+    // Keys and lengths of the thumbnails stored by passes
+    private static final String STORED_FILE = "thumbnail_pregenerated";
+    private static final String SEPARATOR = "\n";
+
+    private static final String[] MEDIA_DIRS = {
+            Environment.DIRECTORY_DCIM,
+            Environment.DIRECTORY_PICTURES,
+            Environment.DIRECTORY_MOVIES,
+    };
+    private static final String[] MEDIA_MIMES = { "image/*", "video/*" };
+    private static final String[] PROJECTION = {
+            Document.COLUMN_DOCUMENT_ID,
+            Document.COLUMN_MIME_TYPE,
+            Document.COLUMN_LAST_MODIFIED,
+            Document.COLUMN_FLAGS,
+            Document.COLUMN_PATH,
+    };
+
+    private static final int MAX_VISITED = 20;
+    private static final int MEDIA_DEPTH = 2;
+    private static final long PASS_BUDGET = 16 * 1024 * 1024;
+    // Passes keep at most 1/MAX_CACHE_SHARE of the disk cache
+    private static final int MAX_CACHE_SHARE = 4;
+    private static final long MIN_FREE_SPACE = 256 * 1024 * 1024;
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+    private final Point mSize;
+    private final CancellationSignal mSignal = new CancellationSignal();
+
+    private long mPassBytes;
+    private int mGenerated;
+    private final LinkedHashMap<String, Long> mStored = new LinkedHashMap<>();
+    private long mStoredBytes;
+
+    /**
+     * Schedules passes while the device is idle and charging, about once a
+     * day, unless already scheduled. Thumbnails are only loaded on demand
+     * before Lollipop.
+     */
+    public static void schedule(Context context) {
+        if (Utils.hasLollipop()) {
+            scheduleJob(context);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void scheduleJob(Context context) {
+        final JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (scheduler == null) {
+            return;
+        }
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) {
+                return;
+            }
+        }
+        scheduler.schedule(new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, ThumbnailPregenerateService.class))
+                .setRequiresCharging(true)
+                .setRequiresDeviceIdle(true)
+                .setPeriodic(AlarmManager.INTERVAL_DAY)
+                .build());
+    }
+
+    /**
+     * Records a folder shown as a grid, so its thumbnails are stored ahead of
+     * its next visit. Only folders of local storage are recorded.
+     */
+    public static void noteVisited(Context context, DocumentInfo doc) {
+        if (!ExternalStorageProvider.AUTHORITY.equals(doc.authority)
+                || TextUtils.isEmpty(doc.documentId)) {
+            return;
+        }
+        final SharedPreferences prefs = getPrefs(context);
+        final List<String> visited = split(prefs.getString(KEY_VISITED, null));
+        if (!visited.isEmpty() && visited.get(0).equals(doc.documentId)) {
+            return;
+        }
+        visited.remove(doc.documentId);
+        visited.add(0, doc.documentId);
+        while (visited.size() > MAX_VISITED) {
+            visited.remove(visited.size() - 1);
+        }
+        prefs.edit().putString(KEY_VISITED, TextUtils.join(SEPARATOR, visited)).apply();
+    }
+
+    /**
+     * Progress of the passes, for debugging.
+     */
+    public static String getStats(Context context) {
+        final SharedPreferences prefs = getPrefs(context);
+        final long lastPass = prefs.getLong(KEY_LAST_PASS, 0);
+        return String.format(Locale.US,
+                "Visited folders: %d, thumbnails stored: %d\n"
+                        + "Still cached: %d KB\n"
+                        + "This pass: %d KB of %d KB, at: %s\n"
+                        + "Last pass: %s",
+                split(prefs.getString(KEY_VISITED, null)).size(),
+                prefs.getInt(KEY_GENERATED, 0),
+                prefs.getLong(KEY_STORED_BYTES, 0) / 1024,
+                prefs.getLong(KEY_PASS_BYTES, 0) / 1024, PASS_BUDGET / 1024,
+                prefs.getString(KEY_CURSOR, "-"),
+                lastPass != 0 ? String.format(Locale.US, "%tF %<tR", lastPass) : "never");
+    }
+
+    public ThumbnailPregenerator(Context context) {
+        mContext = context.getApplicationContext();
+        mPrefs = getPrefs(mContext);
+        final int size = mContext.getResources().getDimensionPixelSize(R.dimen.grid_width);
+        mSize = new Point(size, size);
+    }
+
+    /**
+     * Runs a pass, or resumes the one interrupted, on the calling thread.
+     *
+     * @return whether the pass is over, rather than cancelled.
+     */
+    public boolean run() {
+        final DiskThumbnailCache diskCache =
+                DocumentsApplication.getThumbnailCache(mContext).getDiskCache();
+        if (diskCache == null || !SettingsActivity.getDisplayFileThumbnail(mContext)
+                || ContextCompat.checkSelfPermission(mContext,
+                        Manifest.permission.WRITE_EXTERNAL_STORAGE)
+                        != PackageManager.PERMISSION_GRANTED) {
+            return true;
+        }
+
+        final List<String> visited = split(mPrefs.getString(KEY_VISITED, null));
+        final List<String> folders = new ArrayList<>(visited);
+        for (String dir : MEDIA_DIRS) {
+            final String docId = ExternalStorageProvider.ROOT_ID_PRIMARY_EMULATED + ":" + dir;
+            if (!folders.contains(docId)) {
+                folders.add(docId);
+            }
+        }
+
+        mPassBytes = mPrefs.getLong(KEY_PASS_BYTES, 0);
+        mGenerated = mPrefs.getInt(KEY_GENERATED, 0);
+        loadStored(diskCache);
+        final int start = Math.max(0, folders.indexOf(mPrefs.getString(KEY_CURSOR, null)));
+        boolean goOn = true;
+        for (int i = start; i < folders.size() && goOn; i++) {
+            final String folder = folders.get(i);
+            mPrefs.edit().putString(KEY_CURSOR, folder).apply();
+            goOn = pregenerate(diskCache, folder, i < visited.size() ? 0 : MEDIA_DEPTH);
+            saveProgress();
+        }
+        if (mSignal.isCanceled()) {
+            return false;
+        }
+        mPrefs.edit()
+                .remove(KEY_CURSOR)
+                .remove(KEY_PASS_BYTES)
+                .putLong(KEY_LAST_PASS, System.currentTimeMillis())
+                .apply();
+        return true;
+    }
+
+    /**
+     * Stops the pass at the next thumbnail, keeping where it stopped.
+     */
+    public void cancel() {
+        mSignal.cancel();
+    }
+
+    /**
+     * @return whether the pass goes on to the next folder, rather than being
+     * cancelled or out of budget.
+     */
+    private boolean pregenerate(DiskThumbnailCache diskCache, String folder, int depth) {
+        final String authority = ExternalStorageProvider.AUTHORITY;
+        final ArrayList<String> dirs = new ArrayList<>();
+        final ArrayList<Item> items = new ArrayList<>();
+        Cursor cursor = null;
+        try {
+            cursor = mContext.getContentResolver().query(
+                    DocumentsContract.buildChildDocumentsUri(authority, folder),
+                    PROJECTION, null, null, null);
+            while (cursor != null && cursor.moveToNext()) {
+                final String docId = cursor.getString(0);
+                final String mimeType = cursor.getString(1);
+                if (Document.MIME_TYPE_DIR.equals(mimeType)) {
+                    dirs.add(docId);
+                } else if ((cursor.getInt(3) & Document.FLAG_SUPPORTS_THUMBNAIL) != 0
+                        && MimePredicate.mimeMatches(MEDIA_MIMES, mimeType)) {
+                    items.add(new Item(docId, mimeType, cursor.getLong(2), cursor.getString(4)));
+                }
+            }
+        } catch (RuntimeException e) {
+            // Deleted or unmounted since
+            Log.w(TAG, "Failed to list " + folder + ": " + e);
+            return true;
+        } finally {
+            IoUtils.closeQuietly(cursor);
+        }
+
+        Collections.sort(items, NEWEST_FIRST);
+        final ContentResolver resolver = mContext.getContentResolver();
+        for (Item item : items) {
+            if (mSignal.isCanceled()) {
+                return false;
+            }
+            if (item.lastModified <= 0) {
+                continue;
+            }
+            final Uri uri = DocumentsContract.buildDocumentUri(authority, item.documentId);
+            final String key = DiskThumbnailCache.keyFor(uri, mSize, item.lastModified);
+            if (diskCache.contains(key)) {
+                continue;
+            }
+            if (mPassBytes >= PASS_BUDGET
+                    || mStoredBytes >= diskCache.getMaxSize() / MAX_CACHE_SHARE
+                    || mContext.getCacheDir().getUsableSpace() < MIN_FREE_SPACE) {
+                return false;
+            }
+            // Compact, as grids load them, see IconHelper
+            Bitmap bitmap = DocumentsContract.getDocumentThumbnail(resolver, uri, mSize,
+                    mSignal, true);
+            if (bitmap == null && item.path != null && !mSignal.isCanceled()) {
+                // As ThumbnailLoader falls back to, for videos not indexed yet
+                bitmap = ImageUtils.getThumbnail(item.path, item.mimeType, mSize.x, mSize.y,
+                        true);
+            }
+            if (bitmap == null) {
+                continue;
+            }
+            final File file = diskCache.put(key, bitmap);
+            if (file != null) {
+                final long length = file.length();
+                mPassBytes += length;
+                mGenerated++;
+                mStored.put(key, length);
+                mStoredBytes += length;
+            }
+            // Decoded into again for the next thumbnail
+            BitmapPool.getInstance().put(bitmap);
+        }
+
+        if (depth > 0) {
+            for (String dir : dirs) {
+                if (!pregenerate(diskCache, dir, depth - 1)) {
+                    return false;
+                }
+            }
+        }
+        return !mSignal.isCanceled();
+    }
+
+    private void saveProgress() {
+        saveStored();
+        mPrefs.edit()
+                .putLong(KEY_PASS_BYTES, mPassBytes)
+                .putInt(KEY_GENERATED, mGenerated)
+                .putLong(KEY_STORED_BYTES, mStoredBytes)
+                .apply();
+    }
+
+    /**
+     * Reads the thumbnails stored by earlier passes, leaving out those the
+     * cache has evicted since.
+     */
+    private void loadStored(DiskThumbnailCache diskCache) {
+        mStored.clear();
+        mStoredBytes = 0;
+        final File file = new File(mContext.getFilesDir(), STORED_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int split = line.lastIndexOf('\t');
+                if (split <= 0) {
+                    continue;
+                }
+                final String key = line.substring(0, split);
+                if (diskCache.contains(key)) {
+                    final long length = Long.parseLong(line.substring(split + 1));
+                    mStored.put(key, length);
+                    mStoredBytes += length;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Failed to read " + file + ": " + e);
+        } finally {
+            IoUtils.closeQuietly(reader);
+        }
+    }
+
+    private void saveStored() {
+        final File file = new File(mContext.getFilesDir(), STORED_FILE);
+        final File temp = new File(file.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(temp));
+            for (Map.Entry<String, Long> entry : mStored.entrySet()) {
+                writer.write(entry.getKey() + '\t' + entry.getValue() + '\n');
+            }
+            writer.close();
+            writer = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Failed to rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + file + ": " + e);
+            temp.delete();
+        } finally {
+            IoUtils.closeQuietly(writer);
+        }
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+    private static List<String> split(String value) {
+        if (TextUtils.isEmpty(value)) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(Arrays.asList(TextUtils.split(value, SEPARATOR)));
+    }
+
+    private static final Comparator<Item> NEWEST_FIRST = new Comparator<Item>() {
+        @Override
+        public int compare(Item lhs, Item rhs) {
+            return lhs.lastModified < rhs.lastModified ? 1
+                    : (lhs.lastModified == rhs.lastModified ? 0 : -1);
+        }
+    };
+
+    private static final class Item {
+        final String documentId;
+        final String mimeType;
+        final long lastModified;
+        final String path;
+
+        Item(String documentId, String mimeType, long lastModified, String path) {
+            this.documentId = documentId;
+            this.mimeType = mimeType;
+            this.lastModified = lastModified;
+            this.path = path;
+        }
+    }
+}
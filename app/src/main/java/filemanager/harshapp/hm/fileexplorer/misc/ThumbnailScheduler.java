@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.misc;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import androidx.collection.ArrayMap;
+
+/**
+ * Loads thumbnails on a few workers per authority, those of the rows nearest
+ * the visible ones first and, among equally near, the latest requested first.
+ * Unlike {@link ProviderExecutor}, a fling doesn't leave a queue of rows
+ * already scrolled past in front of the rows now on screen: loads of rows
+ * scrolled far out of view are cancelled before they start.
+ */
+public class ThumbnailScheduler {
+    private static final String TAG = "ThumbnailScheduler";
+
+    private static final int POOL_SIZE =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final long KEEP_ALIVE_MS = 30 * 1000;
+
+    @GuardedBy("sSchedulers")
+    private static final ArrayMap<String, ThumbnailScheduler> sSchedulers = new ArrayMap<>();
+
+    public static ThumbnailScheduler forAuthority(String authority) {
+        synchronized (sSchedulers) {
+            ThumbnailScheduler scheduler = sSchedulers.get(authority);
+            if (scheduler == null) {
+                scheduler = new ThumbnailScheduler(authority);
+                sSchedulers.put(authority, scheduler);
+            }
+            return scheduler;
+        }
+    }
+
+    /**
+     * Positions of the rows a list shows, which the loads for the list are
+     * ordered by. Updated on the main thread, read by the workers.
+     */
+    public static class Viewport {
+        // Rows kept loading beyond those visible, in screens
+        private static final int KEEP_SCREENS = 2;
+        private static final int MIN_SCREEN = 8;
+
+        private volatile int mFirst = 0;
+        private volatile int mLast = -1;
+
+        /**
+         * Sets the visible rows and cancels the loads of rows now too far
+         * from them.
+         */
+        public void setRange(int first, int last) {
+            if (first == mFirst && last == mLast) {
+                return;
+            }
+            mFirst = first;
+            mLast = last;
+            synchronized (sSchedulers) {
+                for (int i = 0; i < sSchedulers.size(); i++) {
+                    sSchedulers.valueAt(i).dropOutOfRange(this);
+                }
+            }
+        }
+
+        /**
+         * @return number of rows visible, or 0 if not known yet.
+         */
+        public int getVisibleCount() {
+            return Math.max(0, mLast - mFirst + 1);
+        }
+
+        /**
+         * @return how many rows a position is away from the visible ones, 0
+         * if it is visible or no range is known yet.
+         */
+        int distanceTo(int position) {
+            final int first = mFirst;
+            final int last = mLast;
+            if (position < 0 || last < first) {
+                return 0;
+            } else if (position < first) {
+                return first - position;
+            } else if (position > last) {
+                return position - last;
+            }
+            return 0;
+        }
+
+        boolean isOutOfRange(int position) {
+            return distanceTo(position) > KEEP_SCREENS * Math.max(MIN_SCREEN, getVisibleCount());
+        }
+    }
+
+    private final String mAuthority;
+
+    @GuardedBy("this")
+    private final ArrayList<Job> mPending = new ArrayList<>();
+    @GuardedBy("this")
+    private int mWorkers;
+    @GuardedBy("this")
+    private int mIdleWorkers;
+
+    private ThumbnailScheduler(String authority) {
+        mAuthority = authority;
+    }
+
+    /**
+     * Loads a thumbnail.
+     *
+     * @param viewport rows of the list the thumbnail is shown in, or null to
+     * load it as if visible.
+     * @param position row of the thumbnail in the list, or -1 if unknown.
+     */
+    public void execute(final ThumbnailLoader task, @Nullable final Viewport viewport,
+            final int position) {
+        task.executeOnExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                Preconditions.checkNotNull(command);
+                enqueue(new Job(command, task, viewport, position));
+            }
+        });
+    }
+
+    private synchronized void enqueue(Job job) {
+        mPending.add(job);
+        if (mIdleWorkers > 0) {
+            notify();
+        }
+        // Idle workers only stop counting as idle once they wake, so jobs queued meanwhile, as
+        // in a fling, would all wait for the same one
+        if (mPending.size() > mIdleWorkers && mWorkers < POOL_SIZE) {
+            mWorkers++;
+            final Thread worker = new Thread(mWorker,
+                    "ThumbnailScheduler: " + mAuthority + " #" + mWorkers);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    private void dropOutOfRange(Viewport viewport) {
+        ArrayList<Job> dropped = null;
+        synchronized (this) {
+            final Iterator<Job> it = mPending.iterator();
+            while (it.hasNext()) {
+                final Job job = it.next();
+                if (job.viewport == viewport && viewport.isOutOfRange(job.position)) {
+                    it.remove();
+                    if (dropped == null) {
+                        dropped = new ArrayList<>();
+                    }
+                    dropped.add(job);
+                }
+            }
+        }
+        if (dropped != null) {
+            for (Job job : dropped) {
+                job.task.preempt();
+            }
+        }
+    }
+
+    /**
+     * Removes the job nearest the visible rows, skipping cancelled ones.
+     */
+    @GuardedBy("this")
+    private Job takeLocked() {
+        Job best = null;
+        int bestDistance = Integer.MAX_VALUE;
+        int bestIndex = -1;
+        for (int i = mPending.size() - 1; i >= 0; i--) {
+            final Job job = mPending.get(i);
+            if (job.task.isCancelled()) {
+                mPending.remove(i);
+                bestIndex = bestIndex > i ? bestIndex - 1 : bestIndex;
+                continue;
+            }
+            final int distance = job.viewport != null
+                    ? job.viewport.distanceTo(job.position) : 0;
+            // Newer jobs come later, so ties keep the newest
+            if (distance < bestDistance) {
+                best = job;
+                bestDistance = distance;
+                bestIndex = i;
+            }
+        }
+        if (best != null) {
+            mPending.remove(bestIndex);
+        }
+        return best;
+    }
+
+    private final Runnable mWorker = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                final Job job;
+                synchronized (ThumbnailScheduler.this) {
+                    job = awaitJobLocked();
+                    if (job == null) {
+                        mWorkers--;
+                        return;
+                    }
+                }
+                job.command.run();
+            }
+        }
+    };
+
+    /**
+     * @return the next job, or null once idle for {@link #KEEP_ALIVE_MS}.
+     */
+    @GuardedBy("this")
+    private Job awaitJobLocked() {
+        final long deadline = SystemClock.elapsedRealtime() + KEEP_ALIVE_MS;
+        Job job = takeLocked();
+        while (job == null) {
+            final long timeout = deadline - SystemClock.elapsedRealtime();
+            if (timeout <= 0) {
+                return null;
+            }
+            mIdleWorkers++;
+            try {
+                wait(timeout);
+            } catch (InterruptedException e) {
+                // Look for more jobs
+            } finally {
+                mIdleWorkers--;
+            }
+            job = takeLocked();
+        }
+        return job;
+    }
+
+    private static class Job {
+        final Runnable command;
+        final ThumbnailLoader task;
+        final Viewport viewport;
+        final int position;
+
+        Job(Runnable command, ThumbnailLoader task, Viewport viewport, int position) {
+            this.command = command;
+            this.task = task;
+            this.viewport = viewport;
+            this.position = position;
+        }
+    }
+}
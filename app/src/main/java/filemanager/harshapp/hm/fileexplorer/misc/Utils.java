@@ -48,6 +48,8 @@ import android.webkit.WebView;
 import java.io.File;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.List;
 import java.util.Locale;
 
@@ -208,6 +210,25 @@ public class Utils extends UtilsFlavour{
         }
     }
     
+    /**
+     * Hex SHA-1 of a key, for naming cache files after keys of any length.
+     */
+    public static String sha1Hex(String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+                    key.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+                builder.append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every platform has SHA-1
+            return Integer.toHexString(key.hashCode()) + "_" + key.length();
+        }
+    }
+
     public static boolean isRooted(){
         for (String p : Utils.BinaryPlaces) {
             File su = new File(p + "su");
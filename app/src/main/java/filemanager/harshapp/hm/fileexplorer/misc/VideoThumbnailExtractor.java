@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.misc;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaMetadataRetriever;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+
+/**
+ * Extracts thumbnails of videos with a few {@link MediaMetadataRetriever}s
+ * reused from one video to the next, rather than a new retriever per video.
+ * At most {@link #MAX_EXTRACTIONS} videos are read at once, whatever the
+ * number of threads loading thumbnails, so folders of videos don't contend
+ * for the decoders.
+ *
+ * <p>The picture embedded by the video is used when there is one, as it
+ * costs no decoding of frames.
+ */
+public final class VideoThumbnailExtractor {
+    private static final String TAG = "VideoThumbnailExtractor";
+
+    private static final int MAX_EXTRACTIONS = 2;
+
+    private static VideoThumbnailExtractor sInstance;
+
+    private final Semaphore mPermits = new Semaphore(MAX_EXTRACTIONS, true);
+
+    @GuardedBy("this")
+    private final ArrayDeque<MediaMetadataRetriever> mIdle = new ArrayDeque<>();
+    @GuardedBy("this")
+    private long mEmbedded;
+    @GuardedBy("this")
+    private long mFrames;
+    @GuardedBy("this")
+    private long mFailures;
+
+    public static synchronized VideoThumbnailExtractor getInstance() {
+        if (sInstance == null) {
+            sInstance = new VideoThumbnailExtractor();
+        }
+        return sInstance;
+    }
+
+    private VideoThumbnailExtractor() {
+    }
+
+    /**
+     * Extracts a thumbnail of a video, waiting for a retriever if all are
+     * in use.
+     *
+     * @param maxWidth width the thumbnail should cover, or 0 for the full
+     * size of the video.
+     * @param maxHeight height the thumbnail should cover, or 0 for the full
+     * size of the video.
+     * @return the embedded picture or a representative frame, no smaller
+     * than asked for unless the video is, or {@code null} if the video
+     * can't be read.
+     */
+    @Nullable
+    public Bitmap extract(String path, int maxWidth, int maxHeight) {
+        try {
+            mPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        MediaMetadataRetriever retriever = null;
+        boolean reusable = false;
+        try {
+            retriever = obtainRetriever();
+            retriever.setDataSource(path);
+            Bitmap bitmap = getEmbeddedPicture(retriever, maxWidth, maxHeight);
+            if (bitmap != null) {
+                synchronized (this) {
+                    mEmbedded++;
+                }
+            } else {
+                bitmap = getFrame(retriever, maxWidth, maxHeight);
+                synchronized (this) {
+                    if (bitmap != null) {
+                        mFrames++;
+                    } else {
+                        mFailures++;
+                    }
+                }
+            }
+            reusable = true;
+            return bitmap;
+        } catch (RuntimeException e) {
+            // Unsupported or corrupt videos leave the retriever in an unknown state
+            Log.w(TAG, "Failed to extract thumbnail of " + path + ": " + e);
+            synchronized (this) {
+                mFailures++;
+            }
+            return null;
+        } finally {
+            if (retriever != null) {
+                recycleRetriever(retriever, reusable);
+            }
+            mPermits.release();
+        }
+    }
+
+    /**
+     * Releases the retrievers not in use, and the videos they still hold.
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            final MediaMetadataRetriever[] idle;
+            synchronized (this) {
+                idle = mIdle.toArray(new MediaMetadataRetriever[mIdle.size()]);
+                mIdle.clear();
+            }
+            for (MediaMetadataRetriever retriever : idle) {
+                releaseQuietly(retriever);
+            }
+        }
+    }
+
+    /**
+     * Counters of the extractor since the process started, for debugging.
+     */
+    public synchronized String getStats() {
+        return String.format(Locale.US,
+                "Idle retrievers: %d of %d\n"
+                        + "Embedded pictures: %d, frames: %d, failures: %d",
+                mIdle.size(), MAX_EXTRACTIONS, mEmbedded, mFrames, mFailures);
+    }
+
+    private synchronized MediaMetadataRetriever obtainRetriever() {
+        final MediaMetadataRetriever retriever = mIdle.pollFirst();
+        return retriever != null ? retriever : new MediaMetadataRetriever();
+    }
+
+    private void recycleRetriever(MediaMetadataRetriever retriever, boolean reusable) {
+        synchronized (this) {
+            if (reusable && mIdle.size() < MAX_EXTRACTIONS) {
+                mIdle.addFirst(retriever);
+                return;
+            }
+        }
+        releaseQuietly(retriever);
+    }
+
+    @Nullable
+    private static Bitmap getEmbeddedPicture(MediaMetadataRetriever retriever,
+            int maxWidth, int maxHeight) {
+        final byte[] picture = retriever.getEmbeddedPicture();
+        if (picture == null) {
+            return null;
+        }
+        final BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(picture, 0, picture.length, opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+            return null;
+        }
+        opts.inJustDecodeBounds = false;
+        if (maxWidth > 0 && maxHeight > 0) {
+            opts.inSampleSize = ImageUtils.findBestSampleSize(
+                    opts.outWidth, opts.outHeight, maxWidth, maxHeight);
+        }
+        return BitmapFactory.decodeByteArray(picture, 0, picture.length, opts);
+    }
+
+    @Nullable
+    private static Bitmap getFrame(MediaMetadataRetriever retriever, int maxWidth,
+            int maxHeight) {
+        if (Utils.hasOreoMR1() && maxWidth > 0 && maxHeight > 0) {
+            final Bitmap frame = getScaledFrame(retriever, maxWidth, maxHeight);
+            if (frame != null) {
+                return frame;
+            }
+        }
+        // A negative time picks a representative frame, near a sync frame to decode quickly
+        return retriever.getFrameAtTime(-1, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+    }
+
+    /**
+     * Decodes a frame scaled down to cover the given size, without holding
+     * the full size frame in memory.
+     */
+    @Nullable
+    @TargetApi(Build.VERSION_CODES.O_MR1)
+    private static Bitmap getScaledFrame(MediaMetadataRetriever retriever, int maxWidth,
+            int maxHeight) {
+        int width = parseInt(retriever.extractMetadata(
+                MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
+        int height = parseInt(retriever.extractMetadata(
+                MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        final int rotation = parseInt(retriever.extractMetadata(
+                MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION));
+        if (rotation == 90 || rotation == 270) {
+            final int swap = width;
+            width = height;
+            height = swap;
+        }
+        final float scale = Math.max((float) maxWidth / width, (float) maxHeight / height);
+        if (scale >= 1) {
+            return null;
+        }
+        return retriever.getScaledFrameAtTime(-1, MediaMetadataRetriever.OPTION_CLOSEST_SYNC,
+                Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)));
+    }
+
+    private static int parseInt(@Nullable String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void releaseQuietly(MediaMetadataRetriever retriever) {
+        try {
+            retriever.release();
+        } catch (RuntimeException ignored) {
+        }
+    }
+}
@@ -260,6 +260,10 @@ public class DocumentInfo implements Durable, Parcelable {
         return (flags & Document.FLAG_SUPPORTS_ARCHIVE) != 0;
     }
 
+    public boolean isExtractSupported() {
+        return (flags & Document.FLAG_SUPPORTS_EXTRACT) != 0;
+    }
+
     public boolean isBookmarkSupported() {
         return (flags & Document.FLAG_SUPPORTS_BOOKMARK) != 0;
     }
@@ -36,6 +36,7 @@ import android.os.Bundle;
 import android.os.CancellationSignal;
 import android.os.OperationCanceledException;
 import android.os.ParcelFileDescriptor;
+import android.os.ResultReceiver;
 import android.os.RemoteException;
 import android.provider.MediaStore;
 import android.provider.OpenableColumns;
@@ -54,6 +55,7 @@ import java.util.List;
 import androidx.annotation.Nullable;
 import androidx.exifinterface.media.ExifInterface;
 import filemanager.harshapp.hm.fileexplorer.libcore.io.IoUtils;
+import filemanager.harshapp.hm.fileexplorer.misc.BitmapPool;
 import filemanager.harshapp.hm.fileexplorer.misc.ContentProviderClientCompat;
 import filemanager.harshapp.hm.fileexplorer.misc.CrashReportingManager;
 import filemanager.harshapp.hm.fileexplorer.misc.ImageUtils;
@@ -429,6 +431,13 @@ public final class DocumentsContract {
         public static final int FLAG_SUPPORTS_EDIT = 1 << 18;
         public static final int FLAG_SUPPORTS_ARCHIVE = 1 << 19;
         public static final int FLAG_SUPPORTS_BOOKMARK = 1 << 20;
+        /**
+         * Flag indicating that a document within an archive can be extracted
+         * on its own with {@link DocumentsContract#uncompressDocument}.
+         *
+         * @see #COLUMN_FLAGS
+         */
+        public static final int FLAG_SUPPORTS_EXTRACT = 1 << 21;
     }
 
     /**
@@ -689,6 +698,8 @@ public final class DocumentsContract {
 
     public static final String METHOD_COMPRESS_DOCUMENT = "android:compressDocument";
     public static final String METHOD_UNCOMPRESS_DOCUMENT = "android:uncompressDocument";
+    /** Cancels an operation started with {@link #EXTRA_CANCEL_TOKEN}. */
+    public static final String METHOD_CANCEL_OPERATION = "android:cancelOperation";
 
     /** {@hide} */
     public static final String EXTRA_PARENT_URI = "parentUri";
@@ -700,6 +711,28 @@ public final class DocumentsContract {
     public static final String EXTRA_DELETE_AFTER = "delete_after";
     public static final String EXTRA_DOCUMENTS_COMPRESS = "documents_compress";
     public static final String EXTRA_DOCUMENTS_UNCOMPRESS = "documents_uncompress";
+    public static final String EXTRA_COMPRESSION = "compression";
+    /** {@link android.os.ResultReceiver} sent {@link #PROGRESS_UPDATE} while an operation runs. */
+    public static final String EXTRA_PROGRESS_RECEIVER = "progress_receiver";
+    /** Caller chosen string naming an operation, to cancel it while it runs. */
+    public static final String EXTRA_CANCEL_TOKEN = "cancel_token";
+    /** Set in the result of an operation which was canceled. */
+    public static final String EXTRA_CANCELED = "canceled";
+    /** Id of the {@code TransferJob} a copy or move belongs to, within this process. */
+    public static final String EXTRA_TRANSFER_JOB = "transfer_job";
+    public static final String EXTRA_BYTES_DONE = "bytes_done";
+    public static final String EXTRA_BYTES_TOTAL = "bytes_total";
+
+    /** Result code of progress updates, with {@link #EXTRA_BYTES_DONE} and {@link #EXTRA_BYTES_TOTAL}. */
+    public static final int PROGRESS_UPDATE = 1;
+
+    /**
+     * Compression presets for {@link #compressDocument}: trade archive size
+     * for speed.
+     */
+    public static final int COMPRESSION_FASTEST = 0;
+    public static final int COMPRESSION_BALANCED = 1;
+    public static final int COMPRESSION_SMALLEST = 2;
 
     private static final String PATH_ROOT = "root";
     private static final String PATH_RECENT = "recent";
@@ -1020,13 +1053,23 @@ public final class DocumentsContract {
      */
     public static Bitmap getDocumentThumbnail(
             ContentResolver resolver, Uri documentUri, Point size, CancellationSignal signal) {
+        return getDocumentThumbnail(resolver, documentUri, size, signal, false);
+    }
+
+    /**
+     * @param compact whether an opaque thumbnail is decoded into RGB_565, see
+     *            {@link ImageUtils#getThumbnailConfig}.
+     * @see #getDocumentThumbnail(ContentResolver, Uri, Point, CancellationSignal)
+     */
+    public static Bitmap getDocumentThumbnail(ContentResolver resolver, Uri documentUri,
+            Point size, CancellationSignal signal, boolean compact) {
     	final ContentProviderClient client = ContentProviderClientCompat.acquireUnstableContentProviderClient(resolver, 
     			documentUri.getAuthority());
         try {
             if(UsbStorageProvider.AUTHORITY.equals(documentUri.getAuthority())) {
-                return ImageUtils.getThumbnail(resolver, documentUri, size.x, size.y);
+                return ImageUtils.getThumbnail(resolver, documentUri, size.x, size.y, compact);
             }
-            return getDocumentThumbnails(client, documentUri, size, signal);
+            return getDocumentThumbnails(client, documentUri, size, signal, compact);
         } catch (Exception e) {
             if (!(e instanceof OperationCanceledException)) {
                 Log.w(TAG, "Failed to load thumbnail for " + documentUri + ": " + e);
@@ -1059,6 +1102,12 @@ public final class DocumentsContract {
     public static Bitmap getDocumentThumbnails(
             ContentProviderClient client, Uri documentUri, Point size, CancellationSignal signal)
             throws RemoteException, IOException {
+        return getDocumentThumbnails(client, documentUri, size, signal, false);
+    }
+
+    public static Bitmap getDocumentThumbnails(ContentProviderClient client, Uri documentUri,
+            Point size, CancellationSignal signal, boolean compact)
+            throws RemoteException, IOException {
         final Bundle openOpts = new Bundle();
         openOpts.putParcelable(EXTRA_SIZE, size);
 
@@ -1072,13 +1121,14 @@ public final class DocumentsContract {
 
             // Try seeking on the returned FD, since it gives us the most
             // optimal decode path; otherwise fall back to buffering.
-            BufferedInputStream is = null;
+            BufferedInputStream buffered = null;
             try {
                 OsCompat.lseek(fd, offset, OsCompat.SEEK_SET);
             } catch (Exception e) {
-                is = new BufferedInputStream(new FileInputStream(fd), THUMBNAIL_BUFFER_SIZE);
-                is.mark(THUMBNAIL_BUFFER_SIZE);
+                buffered = new BufferedInputStream(new FileInputStream(fd), THUMBNAIL_BUFFER_SIZE);
+                buffered.mark(THUMBNAIL_BUFFER_SIZE);
             }
+            final BufferedInputStream is = buffered;
 
             // We requested a rough thumbnail size, but the remote size may have
             // returned something giant, so defensively scale down as needed.
@@ -1095,17 +1145,23 @@ public final class DocumentsContract {
 
             opts.inJustDecodeBounds = false;
             opts.inSampleSize = Math.min(widthSample, heightSample);
-            if (is != null) {
-                is.reset();
-                bitmap = BitmapFactory.decodeStream(is, null, opts);
-            } else {
-                try {
-                    OsCompat.lseek(fd, offset, OsCompat.SEEK_SET);
-                } catch (Exception e) {
-                    throw new IOException(e);
+            opts.inPreferredConfig = ImageUtils.getThumbnailConfig(opts.outMimeType, compact);
+            bitmap = BitmapPool.getInstance().decode(opts, new BitmapPool.Decoder() {
+                @Override
+                public Bitmap decode(BitmapFactory.Options opts) throws IOException {
+                    if (is != null) {
+                        is.reset();
+                        return BitmapFactory.decodeStream(is, null, opts);
+                    } else {
+                        try {
+                            OsCompat.lseek(fd, offset, OsCompat.SEEK_SET);
+                        } catch (Exception e) {
+                            throw new IOException(e);
+                        }
+                        return BitmapFactory.decodeFileDescriptor(fd, null, opts);
+                    }
                 }
-                bitmap = BitmapFactory.decodeFileDescriptor(fd, null, opts);
-            }
+            });
 
             // Transform the bitmap if requested. We use a side-channel to
             // communicate the orientation, since EXIF thumbnails don't contain
@@ -1121,7 +1177,11 @@ public final class DocumentsContract {
 
                 final Matrix m = new Matrix();
                 m.setRotate(orientation, width / 2, height / 2);
-                bitmap = Bitmap.createBitmap(bitmap, 0, 0, width, height, m, false);
+                final Bitmap decoded = bitmap;
+                bitmap = Bitmap.createBitmap(decoded, 0, 0, width, height, m, false);
+                if (bitmap != decoded) {
+                    BitmapPool.getInstance().put(decoded);
+                }
             }
         } finally {
             IoUtils.closeQuietly(afd);
@@ -1258,10 +1318,18 @@ public final class DocumentsContract {
      */
     public static Uri copyDocument(ContentResolver resolver, Uri sourceDocumentUri,
                                    Uri targetParentDocumentUri) {
+        return copyDocument(resolver, sourceDocumentUri, targetParentDocumentUri, null);
+    }
+
+    /**
+     * @param transferJob id of the job the copy belongs to, see {@link #EXTRA_TRANSFER_JOB}.
+     */
+    public static Uri copyDocument(ContentResolver resolver, Uri sourceDocumentUri,
+                                   Uri targetParentDocumentUri, String transferJob) {
         final ContentProviderClient client = resolver.acquireUnstableContentProviderClient(
                 sourceDocumentUri.getAuthority());
         try {
-            return copyDocument(client, sourceDocumentUri, targetParentDocumentUri);
+            return copyDocument(client, sourceDocumentUri, targetParentDocumentUri, transferJob);
         } catch (Exception e) {
             Log.w(TAG, "Failed to copy document", e);
             return null;
@@ -1272,9 +1340,16 @@ public final class DocumentsContract {
 
     public static Uri copyDocument(ContentProviderClient client, Uri sourceDocumentUri,
                                    Uri targetParentDocumentUri) throws RemoteException {
+        return copyDocument(client, sourceDocumentUri, targetParentDocumentUri, null);
+    }
+
+    public static Uri copyDocument(ContentProviderClient client, Uri sourceDocumentUri,
+                                   Uri targetParentDocumentUri, String transferJob)
+            throws RemoteException {
         final Bundle in = new Bundle();
         in.putParcelable(DocumentsContract.EXTRA_URI, sourceDocumentUri);
         in.putParcelable(DocumentsContract.EXTRA_TARGET_URI, targetParentDocumentUri);
+        in.putString(DocumentsContract.EXTRA_TRANSFER_JOB, transferJob);
 
         final Bundle out = client.call(METHOD_COPY_DOCUMENT, null, in);
         return out.getParcelable(DocumentsContract.EXTRA_URI);
@@ -1291,11 +1366,20 @@ public final class DocumentsContract {
      */
     public static Uri moveDocument(ContentResolver resolver, Uri sourceDocumentUri,
             Uri sourceParentDocumentUri, Uri targetParentDocumentUri) {
+        return moveDocument(resolver, sourceDocumentUri, sourceParentDocumentUri,
+                targetParentDocumentUri, null);
+    }
+
+    /**
+     * @param transferJob id of the job the move belongs to, see {@link #EXTRA_TRANSFER_JOB}.
+     */
+    public static Uri moveDocument(ContentResolver resolver, Uri sourceDocumentUri,
+            Uri sourceParentDocumentUri, Uri targetParentDocumentUri, String transferJob) {
         final ContentProviderClient client = resolver.acquireUnstableContentProviderClient(
                 sourceDocumentUri.getAuthority());
         try {
             return moveDocument(client, sourceDocumentUri, sourceParentDocumentUri,
-                    targetParentDocumentUri);
+                    targetParentDocumentUri, transferJob);
         } catch (Exception e) {
             Log.w(TAG, "Failed to move document", e);
             return null;
@@ -1306,10 +1390,18 @@ public final class DocumentsContract {
 
     public static Uri moveDocument(ContentProviderClient client, Uri sourceDocumentUri,
             Uri sourceParentDocumentUri, Uri targetParentDocumentUri) throws RemoteException {
+        return moveDocument(client, sourceDocumentUri, sourceParentDocumentUri,
+                targetParentDocumentUri, null);
+    }
+
+    public static Uri moveDocument(ContentProviderClient client, Uri sourceDocumentUri,
+            Uri sourceParentDocumentUri, Uri targetParentDocumentUri, String transferJob)
+            throws RemoteException {
         final Bundle in = new Bundle();
         in.putParcelable(DocumentsContract.EXTRA_URI, sourceDocumentUri);
         in.putParcelable(DocumentsContract.EXTRA_PARENT_URI, sourceParentDocumentUri);
         in.putParcelable(DocumentsContract.EXTRA_TARGET_URI, targetParentDocumentUri);
+        in.putString(DocumentsContract.EXTRA_TRANSFER_JOB, transferJob);
 
         final Bundle out = client.call(METHOD_MOVE_DOCUMENT, null, in);
         return out.getParcelable(DocumentsContract.EXTRA_URI);
@@ -1350,6 +1442,15 @@ public final class DocumentsContract {
     }
 
     public static boolean compressDocument(ContentResolver resolver, Uri fromDocumentUri, ArrayList<String> fromDocumentIds) {
+        return compressDocument(resolver, fromDocumentUri, fromDocumentIds, COMPRESSION_BALANCED);
+    }
+
+    /**
+     * @param compression one of {@link #COMPRESSION_FASTEST},
+     *         {@link #COMPRESSION_BALANCED} or {@link #COMPRESSION_SMALLEST}.
+     */
+    public static boolean compressDocument(ContentResolver resolver, Uri fromDocumentUri,
+                                           ArrayList<String> fromDocumentIds, int compression) {
         final ContentProviderClient client = resolver.acquireUnstableContentProviderClient(
                 fromDocumentUri.getAuthority());
         try {
@@ -1357,6 +1458,7 @@ public final class DocumentsContract {
             in.putString(Document.COLUMN_DOCUMENT_ID, getDocumentId(fromDocumentUri));
             in.putParcelable(DocumentsContract.EXTRA_URI, fromDocumentUri);
             in.putStringArrayList(DocumentsContract.EXTRA_DOCUMENTS_COMPRESS, fromDocumentIds);
+            in.putInt(DocumentsContract.EXTRA_COMPRESSION, compression);
             resolver.call(fromDocumentUri, METHOD_COMPRESS_DOCUMENT, null, in);
             return true;
         } catch (Exception e) {
@@ -1368,15 +1470,28 @@ public final class DocumentsContract {
     }
 
     public static boolean uncompressDocument(ContentResolver resolver, Uri fromDocumentUri) {
+        return uncompressDocument(resolver, fromDocumentUri, null, null);
+    }
+
+    /**
+     * @param progress receives {@link #PROGRESS_UPDATE} while extracting, or null.
+     * @param cancelToken token to pass to {@link #cancelOperation(ContentResolver, Uri, String)}
+     *         from another thread, or null.
+     * @return false if extracting failed or was canceled.
+     */
+    public static boolean uncompressDocument(ContentResolver resolver, Uri fromDocumentUri,
+                                             ResultReceiver progress, String cancelToken) {
         final ContentProviderClient client = resolver.acquireUnstableContentProviderClient(
                 fromDocumentUri.getAuthority());
         try {
             final Bundle in = new Bundle();
             in.putString(Document.COLUMN_DOCUMENT_ID, getDocumentId(fromDocumentUri));
             in.putParcelable(DocumentsContract.EXTRA_URI, fromDocumentUri);
+            in.putParcelable(DocumentsContract.EXTRA_PROGRESS_RECEIVER, progress);
+            in.putString(DocumentsContract.EXTRA_CANCEL_TOKEN, cancelToken);
 
-            resolver.call(fromDocumentUri, METHOD_UNCOMPRESS_DOCUMENT, null, in);
-            return true;
+            final Bundle out = resolver.call(fromDocumentUri, METHOD_UNCOMPRESS_DOCUMENT, null, in);
+            return out == null || !out.getBoolean(DocumentsContract.EXTRA_CANCELED);
         } catch (Exception e) {
             Log.w(TAG, "Failed to uncompress document", e);
             return false;
@@ -1385,6 +1500,29 @@ public final class DocumentsContract {
         }
     }
 
+    /**
+     * Cancels an operation on a document of the given provider which was
+     * started with {@code cancelToken}.
+     */
+    public static boolean cancelOperation(ContentResolver resolver, Uri documentUri,
+                                          String cancelToken) {
+        final ContentProviderClient client = resolver.acquireUnstableContentProviderClient(
+                documentUri.getAuthority());
+        try {
+            final Bundle in = new Bundle();
+            in.putParcelable(DocumentsContract.EXTRA_URI, documentUri);
+            in.putString(DocumentsContract.EXTRA_CANCEL_TOKEN, cancelToken);
+
+            final Bundle out = resolver.call(documentUri, METHOD_CANCEL_OPERATION, null, in);
+            return out != null && out.getBoolean(DocumentsContract.EXTRA_RESULT);
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to cancel operation", e);
+            return false;
+        } finally {
+            ContentProviderClientCompat.releaseQuietly(client);
+        }
+    }
+
     public static boolean uploadDocument(ContentResolver resolver, Uri parentDocumentUri,
                                          Uri uploadDocumentUri, String mimeType, String displayName) {
         final ContentProviderClient client = resolver.acquireUnstableContentProviderClient(
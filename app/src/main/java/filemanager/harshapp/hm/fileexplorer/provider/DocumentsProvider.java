@@ -35,21 +35,27 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.CancellationSignal;
 import android.os.IBinder;
+import android.os.OperationCanceledException;
 import android.os.ParcelFileDescriptor;
+import android.os.ResultReceiver;
 import android.util.Log;
 
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import androidx.annotation.CallSuper;
+import androidx.annotation.Nullable;
 import filemanager.harshapp.hm.fileexplorer.libcore.io.IoUtils;
 import filemanager.harshapp.hm.fileexplorer.libcore.util.Objects;
 import filemanager.harshapp.hm.fileexplorer.misc.Utils;
 import filemanager.harshapp.hm.fileexplorer.model.DocumentsContract;
 import filemanager.harshapp.hm.fileexplorer.model.DocumentsContract.Document;
 import filemanager.harshapp.hm.fileexplorer.model.DocumentsContract.Root;
+import filemanager.harshapp.hm.fileexplorer.transfer.TransferJob;
 
 import static androidx.core.app.AppOpsManagerCompat.MODE_ALLOWED;
+import static filemanager.harshapp.hm.fileexplorer.model.DocumentsContract.METHOD_CANCEL_OPERATION;
 import static filemanager.harshapp.hm.fileexplorer.model.DocumentsContract.METHOD_COMPRESS_DOCUMENT;
 import static filemanager.harshapp.hm.fileexplorer.model.DocumentsContract.METHOD_COPY_DOCUMENT;
 import static filemanager.harshapp.hm.fileexplorer.model.DocumentsContract.METHOD_CREATE_DOCUMENT;
@@ -157,6 +163,9 @@ public abstract class DocumentsProvider extends ContentProvider {
 
     private UriMatcher mMatcher;
 
+    /** Cancellation signals of running operations, by the caller's token. */
+    private final HashMap<String, CancellationSignal> mOperations = new HashMap<>();
+
     /**
      * Implementation is provided by the parent class.
      */
@@ -291,6 +300,18 @@ public abstract class DocumentsProvider extends ContentProvider {
         throw new UnsupportedOperationException("Copy not supported");
     }
 
+    /**
+     * Copy as part of a larger transfer. Providers which resolve name
+     * conflicts themselves should use the job's resolver so one policy and
+     * one set of destination listings cover the whole transfer.
+     *
+     * @param job the transfer the copy belongs to, or {@code null}.
+     */
+    public String copyDocument(String sourceDocumentId, String targetParentDocumentId,
+            @Nullable TransferJob job) throws FileNotFoundException {
+        return copyDocument(sourceDocumentId, targetParentDocumentId);
+    }
+
     /**
      * Move the requested document or a document tree.
      *
@@ -314,6 +335,18 @@ public abstract class DocumentsProvider extends ContentProvider {
         throw new UnsupportedOperationException("Move not supported");
     }
 
+    /**
+     * Move as part of a larger transfer, see
+     * {@link #copyDocument(String, String, TransferJob)}.
+     *
+     * @param job the transfer the move belongs to, or {@code null}.
+     */
+    public String moveDocument(String sourceDocumentId, String sourceParentDocumentId,
+            String targetParentDocumentId, @Nullable TransferJob job)
+            throws FileNotFoundException {
+        return moveDocument(sourceDocumentId, sourceParentDocumentId, targetParentDocumentId);
+    }
+
     /**
      * Removes the requested document or a document tree.
      *
@@ -333,11 +366,37 @@ public abstract class DocumentsProvider extends ContentProvider {
     }
 
     public String compressDocument(String parentDocumentId, ArrayList<String> documentIds) throws FileNotFoundException {
-        throw new UnsupportedOperationException("Move not supported");
+        return compressDocument(parentDocumentId, documentIds, DocumentsContract.COMPRESSION_BALANCED);
     }
 
-    public String uncompressDocument(String parentDocumentId) throws FileNotFoundException {
-        throw new UnsupportedOperationException("Move not supported");
+    /**
+     * Compress the given documents into an archive in the parent document.
+     *
+     * @param compression one of {@link DocumentsContract#COMPRESSION_FASTEST},
+     *         {@link DocumentsContract#COMPRESSION_BALANCED} or
+     *         {@link DocumentsContract#COMPRESSION_SMALLEST}.
+     */
+    public String compressDocument(String parentDocumentId, ArrayList<String> documentIds,
+                                   int compression) throws FileNotFoundException {
+        throw new UnsupportedOperationException("Compress not supported");
+    }
+
+    public String uncompressDocument(String documentId) throws FileNotFoundException {
+        return uncompressDocument(documentId, null, null);
+    }
+
+    /**
+     * Extract the given archive, or a document within an archive, next to it.
+     *
+     * @param progress receives {@link DocumentsContract#PROGRESS_UPDATE} with the
+     *         bytes done and total, or null.
+     * @param signal canceled when the caller cancels the operation, in which case
+     *         {@link android.os.OperationCanceledException} is thrown.
+     */
+    public String uncompressDocument(String documentId, @Nullable ResultReceiver progress,
+                                     @Nullable CancellationSignal signal)
+            throws FileNotFoundException {
+        throw new UnsupportedOperationException("Uncompress not supported");
     }
 
     public boolean uploadDocument(String parentDocumentId, Uri uploadDocumentUri, String mimeType, String displayName) throws FileNotFoundException {
@@ -817,7 +876,9 @@ public abstract class DocumentsProvider extends ContentProvider {
             enforceReadPermissionInner(documentUri, null);
             enforceWritePermissionInner(targetUri, null);
 
-            final String newDocumentId = copyDocument(documentId, targetId);
+            final TransferJob job = TransferJob.get(
+                    extras.getString(DocumentsContract.EXTRA_TRANSFER_JOB));
+            final String newDocumentId = copyDocument(documentId, targetId, job);
 
             if (newDocumentId != null) {
                 final Uri newDocumentUri = buildDocumentUriMaybeUsingTree(documentUri,
@@ -847,7 +908,9 @@ public abstract class DocumentsProvider extends ContentProvider {
             enforceReadPermissionInner(parentSourceUri, null);
             enforceWritePermissionInner(targetUri, null);
 
-            final String newDocumentId = moveDocument(documentId, parentSourceId, targetId);
+            final TransferJob job = TransferJob.get(
+                    extras.getString(DocumentsContract.EXTRA_TRANSFER_JOB));
+            final String newDocumentId = moveDocument(documentId, parentSourceId, targetId, job);
 
             if (newDocumentId != null) {
                 final Uri newDocumentUri = buildDocumentUriMaybeUsingTree(documentUri,
@@ -878,7 +941,9 @@ public abstract class DocumentsProvider extends ContentProvider {
             enforceWritePermissionInner(documentUri, null);
             final String documentIdTo = extras.getString(DocumentsContract.EXTRA_DOCUMENT_TO);
             final ArrayList<String> documentIdToCompress = extras.getStringArrayList(DocumentsContract.EXTRA_DOCUMENTS_COMPRESS);
-            compressDocument(documentId, documentIdToCompress);
+            final int compression = extras.getInt(DocumentsContract.EXTRA_COMPRESSION,
+                    DocumentsContract.COMPRESSION_BALANCED);
+            compressDocument(documentId, documentIdToCompress, compression);
 
             // Document no longer exists, clean up any grants
                 /*context.revokeUriPermission(documentUri, Intent.FLAG_GRANT_READ_URI_PERMISSION
@@ -886,13 +951,41 @@ public abstract class DocumentsProvider extends ContentProvider {
             revokeDocumentPermission(documentId);
         } else if (METHOD_UNCOMPRESS_DOCUMENT.equals(method)) {
             enforceWritePermissionInner(documentUri, null);
-            final String documentIdTo = extras.getString(DocumentsContract.EXTRA_DOCUMENT_TO);
-            final String documentIdToCompress = extras.getString(DocumentsContract.EXTRA_DOCUMENTS_COMPRESS);
-            uncompressDocument(documentId);
+            final ResultReceiver progress =
+                    extras.getParcelable(DocumentsContract.EXTRA_PROGRESS_RECEIVER);
+            final String token = extras.getString(DocumentsContract.EXTRA_CANCEL_TOKEN);
+            final CancellationSignal signal = new CancellationSignal();
+            if (token != null) {
+                synchronized (mOperations) {
+                    mOperations.put(token, signal);
+                }
+            }
+            try {
+                uncompressDocument(documentId, progress, signal);
+            } catch (OperationCanceledException e) {
+                out.putBoolean(DocumentsContract.EXTRA_CANCELED, true);
+            } finally {
+                if (token != null) {
+                    synchronized (mOperations) {
+                        mOperations.remove(token);
+                    }
+                }
+            }
 
             // Document no longer exists, clean up any grants
             revokeDocumentPermission(documentId);
 
+        } else if (METHOD_CANCEL_OPERATION.equals(method)) {
+            enforceWritePermissionInner(documentUri, null);
+            final String token = extras.getString(DocumentsContract.EXTRA_CANCEL_TOKEN);
+            final CancellationSignal signal;
+            synchronized (mOperations) {
+                signal = mOperations.get(token);
+            }
+            if (signal != null) {
+                signal.cancel();
+            }
+            out.putBoolean(DocumentsContract.EXTRA_RESULT, signal != null);
         } else if (METHOD_UPLOAD_DOCUMENT.equals(method)) {
             enforceWritePermissionInner(documentUri, null);
             final Uri uploadDocumentUri = extras.getParcelable(DocumentsContract.EXTRA_UPLOAD_URI);
@@ -28,11 +28,13 @@ import android.graphics.Point;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.CancellationSignal;
 import android.os.Environment;
 import android.os.FileObserver;
 import android.os.Handler;
 import android.os.ParcelFileDescriptor;
+import android.os.ResultReceiver;
 import android.support.provider.DocumentFile;
 import android.text.TextUtils;
 import android.util.Log;
@@ -41,14 +43,17 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 
 import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
 import androidx.collection.ArrayMap;
 import androidx.core.os.EnvironmentCompat;
 import androidx.core.util.Pair;
 import filemanager.harshapp.hm.fileexplorer.BuildConfig;
 import filemanager.harshapp.hm.fileexplorer.DocumentsApplication;
 import filemanager.harshapp.hm.fileexplorer.R;
+import filemanager.harshapp.hm.fileexplorer.archive.ArchiveExtractor;
 import filemanager.harshapp.hm.fileexplorer.archive.DocumentArchiveHelper;
 import filemanager.harshapp.hm.fileexplorer.cursor.MatrixCursor;
 import filemanager.harshapp.hm.fileexplorer.cursor.MatrixCursor.RowBuilder;
@@ -66,6 +71,9 @@ import filemanager.harshapp.hm.fileexplorer.model.DocumentsContract;
 import filemanager.harshapp.hm.fileexplorer.model.DocumentsContract.Document;
 import filemanager.harshapp.hm.fileexplorer.model.DocumentsContract.Root;
 import filemanager.harshapp.hm.fileexplorer.setting.SettingsActivity;
+import filemanager.harshapp.hm.fileexplorer.transfer.ConflictResolver;
+import filemanager.harshapp.hm.fileexplorer.transfer.TransferJob;
+import filemanager.harshapp.hm.fileexplorer.transfer.VerifiedCopier;
 
 import static filemanager.harshapp.hm.fileexplorer.DocumentsApplication.isTelevision;
 import static filemanager.harshapp.hm.fileexplorer.misc.FileUtils.getTypeForFile;
@@ -758,7 +766,13 @@ public class ExternalStorageProvider extends StorageProvider {
 
     @Override
     public String copyDocument(String sourceDocumentId, String targetParentDocumentId) throws FileNotFoundException {
-        final String afterDocId = copy(sourceDocumentId, targetParentDocumentId);
+        return copyDocument(sourceDocumentId, targetParentDocumentId, null);
+    }
+
+    @Override
+    public String copyDocument(String sourceDocumentId, String targetParentDocumentId,
+                               TransferJob job) throws FileNotFoundException {
+        final String afterDocId = copy(sourceDocumentId, targetParentDocumentId, job);
         notifyDocumentsChanged(afterDocId);
         return afterDocId;
     }
@@ -767,19 +781,27 @@ public class ExternalStorageProvider extends StorageProvider {
     public String moveDocument(String sourceDocumentId, String sourceParentDocumentId,
                                String targetParentDocumentId)
             throws FileNotFoundException {
-        final String afterDocId = move(sourceDocumentId, targetParentDocumentId);
+        return moveDocument(sourceDocumentId, sourceParentDocumentId, targetParentDocumentId, null);
+    }
+
+    @Override
+    public String moveDocument(String sourceDocumentId, String sourceParentDocumentId,
+                               String targetParentDocumentId, TransferJob job)
+            throws FileNotFoundException {
+        final String afterDocId = move(sourceDocumentId, targetParentDocumentId, job);
         notifyDocumentsChanged(afterDocId);
         return afterDocId;
     }
 
     @Override
-    public String compressDocument(String parentDocumentId, ArrayList<String> documentIds) throws FileNotFoundException {
+    public String compressDocument(String parentDocumentId, ArrayList<String> documentIds,
+                                   int compression) throws FileNotFoundException {
         final File fileFrom = getFileForDocId(parentDocumentId);
         ArrayList<File> files = new ArrayList<>();
         for (String documentId : documentIds){
             files.add(getFileForDocId(documentId));
         }
-        if (!FileUtils.compressFile(fileFrom, files)) {
+        if (!FileUtils.compressFile(fileFrom, files, compression)) {
             throw new IllegalStateException("Failed to extract " + fileFrom);
         }
         notifyDocumentsChanged(parentDocumentId);
@@ -787,12 +809,43 @@ public class ExternalStorageProvider extends StorageProvider {
     }
 
     @Override
-    public String uncompressDocument(String documentId) throws FileNotFoundException {
-        final File fileFrom = getFileForDocId(documentId);
-        if (!FileUtils.uncompress(fileFrom)) {
-            throw new IllegalStateException("Failed to extract " + fileFrom);
+    protected int getArchiveEntryFlags() {
+        return Document.FLAG_SUPPORTS_EXTRACT;
+    }
+
+    @Override
+    public String uncompressDocument(String documentId, @Nullable final ResultReceiver progress,
+                                     @Nullable CancellationSignal signal)
+            throws FileNotFoundException {
+        final ArchiveExtractor.Listener listener = progress == null ? null
+                : new ArchiveExtractor.Listener() {
+            @Override
+            public void onProgress(long bytesDone, long bytesTotal) {
+                final Bundle data = new Bundle(2);
+                data.putLong(DocumentsContract.EXTRA_BYTES_DONE, bytesDone);
+                data.putLong(DocumentsContract.EXTRA_BYTES_TOTAL, bytesTotal);
+                progress.send(DocumentsContract.PROGRESS_UPDATE, data);
+            }
+        };
+
+        final boolean archived = mArchiveHelper.isArchivedDocument(documentId);
+        final String archiveId = archived ? mArchiveHelper.getRootArchiveId(documentId) : documentId;
+        final File fileFrom = getFileForDocId(archiveId);
+        try {
+            if (archived) {
+                // Chosen entries go where extracting the whole archive would put them
+                final File destFolder = new File(fileFrom.getParentFile(),
+                        ArchiveExtractor.getDestinationName(fileFrom.getName()));
+                mArchiveHelper.extractDocuments(Collections.singletonList(documentId),
+                        destFolder, listener, signal);
+            } else {
+                FileUtils.uncompress(fileFrom, listener, signal);
+            }
+        } catch (IOException e) {
+            CrashReportingManager.logException(e);
+            throw new IllegalStateException("Failed to extract " + fileFrom, e);
         }
-        notifyDocumentsChanged(documentId);
+        notifyDocumentsChanged(archiveId);
         return getDocIdForFile(fileFrom);
     }
 
@@ -921,6 +974,11 @@ public class ExternalStorageProvider extends StorageProvider {
             	return DocumentsContract.openImageThumbnail(file);
             }
         } catch (Exception e){
+            if (MediaDocumentsProvider.TYPE_VIDEO.equals(typeOnly)) {
+                // Not indexed by the media store, and no image to read, so the frame is
+                // extracted by the app rather than the whole video opened as one
+                throw new FileNotFoundException("No thumbnail for " + docId);
+            }
             return DocumentsContract.openImageThumbnail(file);
         } finally {
             Binder.restoreCallingIdentity(token);
@@ -1028,8 +1086,8 @@ public class ExternalStorageProvider extends StorageProvider {
         }
     }
 
-    private String copy(String sourceDocumentId,
-                        String targetParentDocumentId) throws FileNotFoundException {
+    private String copy(String sourceDocumentId, String targetParentDocumentId,
+                        TransferJob job) throws FileNotFoundException {
 
         final String afterDocId;
         final File source = getFile(sourceDocumentId);
@@ -1038,25 +1096,41 @@ public class ExternalStorageProvider extends StorageProvider {
         boolean isSourceOther = isFromOtherProvider(sourceDocumentId);
         boolean isTargetOther = isFromOtherProvider(targetParentDocumentId);
 
-        if((isSourceOther || isTargetOther)){
-            DocumentFile sourceDirectory = getDocumentFile(sourceDocumentId, source);
-            DocumentFile targetDirectory = getDocumentFile(targetParentDocumentId, target);
-            if (!FileUtils.moveDocument(getContext(), sourceDirectory, targetDirectory)) {
-                throw new IllegalStateException("Failed to copy " + source);
+        final VerifiedCopier verifier = SettingsActivity.getVerifyCopies(getContext())
+                ? new VerifiedCopier(true) : null;
+        final ConflictResolver resolver = null != job ? job.getResolver()
+                : new ConflictResolver(SettingsActivity.getConflictPolicy(getContext()));
+        try {
+            if((isSourceOther || isTargetOther)){
+                DocumentFile sourceDirectory = getDocumentFile(sourceDocumentId, source);
+                DocumentFile targetDirectory = getDocumentFile(targetParentDocumentId, target);
+                if (!FileUtils.moveDocument(getContext(), sourceDirectory, targetDirectory,
+                        verifier, resolver, job)) {
+                    throw new IllegalStateException("Failed to copy " + source);
+                }
+                afterDocId = targetParentDocumentId;
+            } else {
+                if (!FileUtils.moveDocument(source, target, null, verifier, resolver, job)) {
+                    throw new IllegalStateException("Failed to copy " + source);
+                }
+                afterDocId = getDocIdForFile(target);
             }
-            afterDocId = targetParentDocumentId;
-        } else {
-            if (!FileUtils.moveDocument(source, target, null)) {
-                throw new IllegalStateException("Failed to copy " + source);
+
+            if (null != verifier) {
+                final VerifiedCopier.Report report = verifier.await();
+                if (!report.isVerified()) {
+                    throw new IllegalStateException("Failed to verify " + report.getFailed());
+                }
             }
-            afterDocId = getDocIdForFile(target);
+        } finally {
+            IoUtils.closeQuietly(verifier);
         }
 
         return afterDocId;
     }
 
-    private String move(String sourceDocumentId,
-                        String targetParentDocumentId) throws FileNotFoundException {
+    private String move(String sourceDocumentId, String targetParentDocumentId,
+                        TransferJob job) throws FileNotFoundException {
 
         final String afterDocId;
         final File source = getFile(sourceDocumentId);
@@ -1068,9 +1142,14 @@ public class ExternalStorageProvider extends StorageProvider {
         if((isSourceOther || isTargetOther)){
             DocumentFile sourceDirectory = getDocumentFile(sourceDocumentId, source);
             DocumentFile targetDirectory = getDocumentFile(targetParentDocumentId, target);
-            if (!FileUtils.moveDocument(getContext(), sourceDirectory, targetDirectory)) {
+            final ConflictResolver resolver = null != job ? job.getResolver()
+                    : new ConflictResolver(ConflictResolver.POLICY_KEEP_BOTH);
+            final int skipped = resolver.getSkippedCount();
+            if (!FileUtils.moveDocument(getContext(), sourceDirectory, targetDirectory,
+                    null, resolver, job)) {
                 throw new IllegalStateException("Failed to move " + source);
-            } else {
+            } else if (resolver.getSkippedCount() == skipped) {
+                // Anything skipped by policy stays where it was
                 if(!sourceDirectory.delete()){
                     throw new IllegalStateException("Failed to move " + source);
                 }
@@ -36,10 +36,19 @@ public abstract class StorageProvider extends DocumentsProvider{
 
     @Override
     public boolean onCreate() {
-        mArchiveHelper = new DocumentArchiveHelper(this, (char) 0);
+        mArchiveHelper = new DocumentArchiveHelper(this, (char) 0, getArchiveEntryFlags());
         return super.onCreate();
     }
 
+    /**
+     * Flags added to every document within an archive, such as
+     * {@link DocumentsContract.Document#FLAG_SUPPORTS_EXTRACT} for providers
+     * which can extract them.
+     */
+    protected int getArchiveEntryFlags() {
+        return 0;
+    }
+
     protected interface AudioAlbumThumbnailQuery {
         String[] PROJECTION = new String[] {
         		Audio.Media._ID,
@@ -54,6 +54,7 @@ import filemanager.harshapp.hm.fileexplorer.BuildConfig;
 import filemanager.harshapp.hm.fileexplorer.DocumentsApplication;
 import filemanager.harshapp.hm.fileexplorer.R;
 import filemanager.harshapp.hm.fileexplorer.cursor.MatrixCursor;
+import filemanager.harshapp.hm.fileexplorer.libcore.io.IoUtils;
 import filemanager.harshapp.hm.fileexplorer.libcore.util.Objects;
 import filemanager.harshapp.hm.fileexplorer.misc.CrashReportingManager;
 import filemanager.harshapp.hm.fileexplorer.misc.FileUtils;
@@ -64,6 +65,10 @@ import filemanager.harshapp.hm.fileexplorer.model.DocumentsContract;
 import filemanager.harshapp.hm.fileexplorer.model.DocumentsContract.Document;
 import filemanager.harshapp.hm.fileexplorer.model.DocumentsContract.Root;
 import filemanager.harshapp.hm.fileexplorer.setting.SettingsActivity;
+import filemanager.harshapp.hm.fileexplorer.transfer.ConflictResolver;
+import filemanager.harshapp.hm.fileexplorer.transfer.TransferJob;
+import filemanager.harshapp.hm.fileexplorer.transfer.CopyEndpoint;
+import filemanager.harshapp.hm.fileexplorer.transfer.VerifiedCopier;
 import filemanager.harshapp.hm.fileexplorer.usb.UsbUtils;
 
 import static filemanager.harshapp.hm.fileexplorer.DocumentsApplication.isTelevision;
@@ -332,8 +337,14 @@ public class UsbStorageProvider extends DocumentsProvider {
 
     @Override
     public String moveDocument(String sourceDocumentId, String sourceParentDocumentId, String targetParentDocumentId) throws FileNotFoundException {
+        return moveDocument(sourceDocumentId, sourceParentDocumentId, targetParentDocumentId, null);
+    }
+
+    @Override
+    public String moveDocument(String sourceDocumentId, String sourceParentDocumentId,
+                               String targetParentDocumentId, TransferJob job) throws FileNotFoundException {
         try {
-            final String afterDocId = move(sourceDocumentId, targetParentDocumentId);
+            final String afterDocId = move(sourceDocumentId, targetParentDocumentId, job);
             notifyDocumentsChanged(afterDocId);
             return afterDocId;
         } catch (IOException e) {
@@ -343,8 +354,14 @@ public class UsbStorageProvider extends DocumentsProvider {
 
     @Override
     public String copyDocument(String sourceDocumentId, String targetParentDocumentId) throws FileNotFoundException {
+        return copyDocument(sourceDocumentId, targetParentDocumentId, null);
+    }
+
+    @Override
+    public String copyDocument(String sourceDocumentId, String targetParentDocumentId,
+                               TransferJob job) throws FileNotFoundException {
         try {
-            final String afterDocId = copy(sourceDocumentId, targetParentDocumentId);
+            final String afterDocId = copy(sourceDocumentId, targetParentDocumentId, job);
             notifyDocumentsChanged(afterDocId);
             return afterDocId;
         } catch (IOException e) {
@@ -665,8 +682,8 @@ public class UsbStorageProvider extends DocumentsProvider {
         return DocumentsApplication.getSAFManager(getContext()).getDocumentFile(docId, null);
     }
 
-    private String copy(String sourceDocumentId,
-                        String targetParentDocumentId) throws IOException {
+    private String copy(String sourceDocumentId, String targetParentDocumentId,
+                        TransferJob job) throws IOException {
 
         final String afterDocId;
         final UsbFile before = getFile(sourceDocumentId);
@@ -675,32 +692,72 @@ public class UsbStorageProvider extends DocumentsProvider {
         boolean isSourceUSB = sourceDocumentId.startsWith(ROOT_ID_USB);
         boolean isTargetUSB = targetParentDocumentId.startsWith(ROOT_ID_USB);
 
-        if(!(isSourceUSB && isTargetUSB)){
-            DocumentFile sourceDirectory = getDocumentFile(sourceDocumentId);
-            DocumentFile targetDirectory = getDocumentFile(targetParentDocumentId);
-            if (!FileUtils.moveDocument(getContext(), sourceDirectory, targetDirectory)) {
-                throw new IllegalStateException("Failed to copy ");
-            }
-            afterDocId = targetParentDocumentId;
-        } else {
+        // libaums serves one stream at a time, so USB read back can't overlap the next write
+        final VerifiedCopier verifier = SettingsActivity.getVerifyCopies(getContext())
+                ? new VerifiedCopier(!(isSourceUSB || isTargetUSB)) : null;
+        final ConflictResolver resolver = null != job ? job.getResolver()
+                : new ConflictResolver(SettingsActivity.getConflictPolicy(getContext()));
+        try {
+            if(!(isSourceUSB && isTargetUSB)){
+                DocumentFile sourceDirectory = getDocumentFile(sourceDocumentId);
+                DocumentFile targetDirectory = getDocumentFile(targetParentDocumentId);
+                if (!FileUtils.moveDocument(getContext(), sourceDirectory, targetDirectory,
+                        verifier, resolver, job)) {
+                    throw new IllegalStateException("Failed to copy ");
+                }
+                afterDocId = targetParentDocumentId;
+            } else {
 
-            UsbPartition usbPartition = mRoots.get(getRootIdForDocId(sourceDocumentId));
-            final FileSystem fileSystem = usbPartition.fileSystem;
-            final UsbFile newFile = after.createFile(before.getName());
-            InputStream inputStream = UsbFileStreamFactory.createBufferedInputStream(before, fileSystem);
-            OutputStream outputStream = UsbFileStreamFactory.createBufferedOutputStream(newFile, fileSystem);
+                UsbPartition usbPartition = mRoots.get(getRootIdForDocId(sourceDocumentId));
+                final FileSystem fileSystem = usbPartition.fileSystem;
+                final int splitIndex = sourceDocumentId.lastIndexOf(DIRECTORY_SEPERATOR);
+                final boolean sourceInDir = splitIndex > 0 && targetParentDocumentId.equals(
+                        sourceDocumentId.substring(0, splitIndex));
+                final String name = resolver.resolve(after, targetParentDocumentId, before,
+                        sourceInDir);
+                if (null == name) {
+                    // Skipped by policy
+                    return getDocIdForFile(after);
+                }
+                UsbFile newFile = resolver.findExisting(after, targetParentDocumentId, name);
+                if (sourceInDir && name.equalsIgnoreCase(before.getName())) {
+                    throw new IllegalStateException("Refusing to copy onto " + before);
+                }
+                if (null == newFile) {
+                    newFile = after.createFile(name);
+                } else {
+                    // Overwriting, drop the old clusters first
+                    newFile.setLength(0);
+                }
+                if (null != verifier) {
+                    verifier.copy(CopyEndpoint.forUsbFile(before, fileSystem),
+                            CopyEndpoint.forUsbFile(newFile, fileSystem), job);
+                } else {
+                    InputStream inputStream = UsbFileStreamFactory.createBufferedInputStream(before, fileSystem);
+                    OutputStream outputStream = UsbFileStreamFactory.createBufferedOutputStream(newFile, fileSystem);
 
-            if (!FileUtils.copy(inputStream, outputStream)) {
-                throw new IllegalStateException("Failed to copy " + before);
+                    if (!FileUtils.copy(inputStream, outputStream, job)) {
+                        throw new IllegalStateException("Failed to copy " + before);
+                    }
+                }
+                afterDocId = getDocIdForFile(after);
             }
-            afterDocId = getDocIdForFile(after);
+
+            if (null != verifier) {
+                final VerifiedCopier.Report report = verifier.await();
+                if (!report.isVerified()) {
+                    throw new IllegalStateException("Failed to verify " + report.getFailed());
+                }
+            }
+        } finally {
+            IoUtils.closeQuietly(verifier);
         }
 
         return afterDocId;
     }
 
-    private String move(String sourceDocumentId,
-                        String targetParentDocumentId) throws IOException {
+    private String move(String sourceDocumentId, String targetParentDocumentId,
+                        TransferJob job) throws IOException {
         final String afterDocId;
         final UsbFile before = getFile(sourceDocumentId);
         final UsbFile after = getFile(targetParentDocumentId);
@@ -711,9 +768,14 @@ public class UsbStorageProvider extends DocumentsProvider {
         if(!(isSourceUSB && isTargetUSB)){
             DocumentFile sourceDirectory = getDocumentFile(sourceDocumentId);
             DocumentFile targetDirectory = getDocumentFile(targetParentDocumentId);
-            if (!FileUtils.moveDocument(getContext(), sourceDirectory, targetDirectory)) {
+            final ConflictResolver resolver = null != job ? job.getResolver()
+                    : new ConflictResolver(ConflictResolver.POLICY_KEEP_BOTH);
+            final int skipped = resolver.getSkippedCount();
+            if (!FileUtils.moveDocument(getContext(), sourceDirectory, targetDirectory,
+                    null, resolver, job)) {
                 throw new IllegalStateException("Failed to move ");
-            } else {
+            } else if (resolver.getSkippedCount() == skipped) {
+                // Anything skipped by policy stays where it was
                 if(!sourceDirectory.delete()){
                     throw new IllegalStateException("Failed to move ");
                 }
@@ -0,0 +1,53 @@
+package filemanager.harshapp.hm.fileexplorer.service;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.Build;
+import android.os.Process;
+
+import filemanager.harshapp.hm.fileexplorer.misc.ThumbnailPregenerator;
+
+/**
+ * Runs a pass of {@link ThumbnailPregenerator} on a background priority
+ * thread, scheduled by {@link ThumbnailPregenerator#schedule}. The pass stops
+ * as soon as the device is no longer idle or charging, and resumes when it
+ * is again.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class ThumbnailPregenerateService extends JobService {
+
+    private ThumbnailPregenerator mPregenerator;
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final ThumbnailPregenerator pregenerator = new ThumbnailPregenerator(this);
+        mPregenerator = pregenerator;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                boolean finished = true;
+                try {
+                    finished = pregenerator.run();
+                } finally {
+                    // Failed passes are retried on the next period instead
+                    if (finished) {
+                        jobFinished(params, false);
+                    }
+                }
+            }
+        }, "ThumbnailPregenerator").start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        if (mPregenerator != null) {
+            mPregenerator.cancel();
+            mPregenerator = null;
+        }
+        // Resumed where it stopped
+        return true;
+    }
+}
@@ -59,6 +59,9 @@ public class SettingsActivity extends SettingsCommonActivity {
     public static final String KEY_THEME_STYLE = "themeStyle";
     public static final String KEY_FOLDER_ANIMATIONS = "folderAnimations";
     public static final String KEY_RECENT_MEDIA = "recentMedia";
+    public static final String KEY_VERIFY_COPIES = "verifyCopies";
+    public static final String KEY_CONFLICT_POLICY = "conflictPolicy";
+    public static final String KEY_ARCHIVE_COMPRESSION = "archiveCompression";
 
 	private Resources res;
 	private int actionBarColor;
@@ -96,6 +99,21 @@ public class SettingsActivity extends SettingsCommonActivity {
                 .getBoolean(KEY_RECENT_MEDIA, !isWatch());
     }
 
+    public static boolean getVerifyCopies(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(KEY_VERIFY_COPIES, false);
+    }
+
+    public static int getConflictPolicy(Context context) {
+        return Integer.valueOf(PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(KEY_CONFLICT_POLICY, "0"));
+    }
+
+    public static int getArchiveCompression(Context context) {
+        return Integer.valueOf(PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(KEY_ARCHIVE_COMPRESSION, "1"));
+    }
+
     public static boolean getRootMode(Context context) {
         return PreferenceManager.getDefaultSharedPreferences(context)
                 .getBoolean(KEY_ROOT_MODE, true);
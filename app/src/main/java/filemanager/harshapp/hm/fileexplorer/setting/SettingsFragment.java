@@ -17,10 +17,18 @@ import android.widget.LinearLayout;
 import com.google.android.material.appbar.AppBarLayout;
 
 import androidx.appcompat.widget.Toolbar;
+import filemanager.harshapp.hm.fileexplorer.BuildConfig;
 import filemanager.harshapp.hm.fileexplorer.DocumentsApplication;
 import filemanager.harshapp.hm.fileexplorer.R;
+import filemanager.harshapp.hm.fileexplorer.archive.ArchivePool;
+import filemanager.harshapp.hm.fileexplorer.misc.ApkInfoCache;
+import filemanager.harshapp.hm.fileexplorer.misc.BitmapPool;
+import filemanager.harshapp.hm.fileexplorer.misc.DiskThumbnailCache;
+import filemanager.harshapp.hm.fileexplorer.misc.PreviewCache;
 import filemanager.harshapp.hm.fileexplorer.misc.SecurityHelper;
+import filemanager.harshapp.hm.fileexplorer.misc.ThumbnailPregenerator;
 import filemanager.harshapp.hm.fileexplorer.misc.Utils;
+import filemanager.harshapp.hm.fileexplorer.misc.VideoThumbnailExtractor;
 
 import static android.app.Activity.RESULT_OK;
 import static filemanager.harshapp.hm.fileexplorer.DocumentsApplication.isWatch;
@@ -41,6 +49,14 @@ import static filemanager.harshapp.hm.fileexplorer.setting.SettingsActivity.KEY_
 public class SettingsFragment extends PreferenceFragment
 		implements OnPreferenceClickListener, OnPreferenceChangeListener {
 
+	private static final String KEY_ARCHIVE_POOL_STATS = "archivePoolStats";
+	private static final String KEY_THUMBNAIL_CACHE_STATS = "thumbnailCacheStats";
+	private static final String KEY_BITMAP_POOL_STATS = "bitmapPoolStats";
+	private static final String KEY_VIDEO_THUMBNAIL_STATS = "videoThumbnailStats";
+	private static final String KEY_APK_INFO_STATS = "apkInfoStats";
+	private static final String KEY_PREVIEW_CACHE_STATS = "previewCacheStats";
+	private static final String KEY_THUMBNAIL_PREGENERATION_STATS = "thumbnailPregenerationStats";
+
 	private SecurityHelper securityHelper;
 	private Preference preference;
 
@@ -88,14 +104,69 @@ public class SettingsFragment extends PreferenceFragment
 		findPreference(KEY_ADVANCED_DEVICES).setOnPreferenceClickListener(this);
 		findPreference(KEY_ROOT_MODE).setOnPreferenceClickListener(this);
 		findPreference(KEY_FOLDER_ANIMATIONS).setOnPreferenceClickListener(this);
+
+		//Debug
+		if(!BuildConfig.DEBUG){
+			getPreferenceScreen().removePreference(findPreference("pref_debug"));
+		} else {
+			Preference preferenceArchivePool = findPreference(KEY_ARCHIVE_POOL_STATS);
+			preferenceArchivePool.setSummary(ArchivePool.getInstance().getStats());
+			preferenceArchivePool.setOnPreferenceClickListener(this);
+			Preference preferenceThumbnails = findPreference(KEY_THUMBNAIL_CACHE_STATS);
+			preferenceThumbnails.setSummary(getThumbnailCacheStats());
+			preferenceThumbnails.setOnPreferenceClickListener(this);
+			Preference preferenceBitmaps = findPreference(KEY_BITMAP_POOL_STATS);
+			preferenceBitmaps.setSummary(BitmapPool.getInstance().getStats());
+			preferenceBitmaps.setOnPreferenceClickListener(this);
+			Preference preferenceVideos = findPreference(KEY_VIDEO_THUMBNAIL_STATS);
+			preferenceVideos.setSummary(VideoThumbnailExtractor.getInstance().getStats());
+			preferenceVideos.setOnPreferenceClickListener(this);
+			Preference preferenceApks = findPreference(KEY_APK_INFO_STATS);
+			preferenceApks.setSummary(ApkInfoCache.getInstance(getActivity()).getStats());
+			preferenceApks.setOnPreferenceClickListener(this);
+			Preference preferencePreviews = findPreference(KEY_PREVIEW_CACHE_STATS);
+			preferencePreviews.setSummary(PreviewCache.getInstance().getStats());
+			preferencePreviews.setOnPreferenceClickListener(this);
+			Preference preferencePregeneration = findPreference(KEY_THUMBNAIL_PREGENERATION_STATS);
+			preferencePregeneration.setSummary(ThumbnailPregenerator.getStats(getActivity()));
+			preferencePregeneration.setOnPreferenceClickListener(this);
+		}
 	}
 
 	@Override
 	public boolean onPreferenceClick(Preference preference) {
+		if (KEY_ARCHIVE_POOL_STATS.equals(preference.getKey())) {
+			preference.setSummary(ArchivePool.getInstance().getStats());
+			return true;
+		} else if (KEY_THUMBNAIL_CACHE_STATS.equals(preference.getKey())) {
+			preference.setSummary(getThumbnailCacheStats());
+			return true;
+		} else if (KEY_BITMAP_POOL_STATS.equals(preference.getKey())) {
+			preference.setSummary(BitmapPool.getInstance().getStats());
+			return true;
+		} else if (KEY_VIDEO_THUMBNAIL_STATS.equals(preference.getKey())) {
+			preference.setSummary(VideoThumbnailExtractor.getInstance().getStats());
+			return true;
+		} else if (KEY_APK_INFO_STATS.equals(preference.getKey())) {
+			preference.setSummary(ApkInfoCache.getInstance(getActivity()).getStats());
+			return true;
+		} else if (KEY_PREVIEW_CACHE_STATS.equals(preference.getKey())) {
+			preference.setSummary(PreviewCache.getInstance().getStats());
+			return true;
+		} else if (KEY_THUMBNAIL_PREGENERATION_STATS.equals(preference.getKey())) {
+			preference.setSummary(ThumbnailPregenerator.getStats(getActivity()));
+			return true;
+		}
 		SettingsActivity.logSettingEvent(preference.getKey());
 		return false;
 	}
 
+	private String getThumbnailCacheStats() {
+		final DiskThumbnailCache diskCache =
+				DocumentsApplication.getThumbnailCache(getActivity()).getDiskCache();
+		return diskCache != null ? diskCache.getStats() : null;
+	}
+
 	@Override
 	public void onActivityResult(int requestCode, int resultCode, Intent data) {
 		super.onActivityResult(requestCode, resultCode, data);
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.transfer;
+
+import java.util.ArrayDeque;
+
+import androidx.annotation.GuardedBy;
+
+/**
+ * Shared pool of large transfer buffers, so copying many files does not
+ * allocate a fresh buffer per file. Buffers beyond the pool size are simply
+ * dropped on release.
+ */
+public final class BufferPool {
+
+    public static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_POOLED = 8;
+
+    @GuardedBy("sPool")
+    private static final ArrayDeque<byte[]> sPool = new ArrayDeque<>();
+
+    private BufferPool() {
+    }
+
+    public static byte[] acquire() {
+        synchronized (sPool) {
+            final byte[] buffer = sPool.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    public static void release(byte[] buffer) {
+        if (buffer == null || buffer.length != BUFFER_SIZE) {
+            return;
+        }
+        synchronized (sPool) {
+            if (sPool.size() < MAX_POOLED) {
+                sPool.push(buffer);
+            }
+        }
+    }
+}
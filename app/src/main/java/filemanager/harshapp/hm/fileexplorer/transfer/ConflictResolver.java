@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.transfer;
+
+import android.support.provider.DocumentFile;
+import android.util.Log;
+
+import com.github.mjdev.libaums.fs.UsbFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Picks destination names for a transfer job. Each destination directory is
+ * listed once, the first time something is copied into it, and every later
+ * decision for that directory is made against the in-memory listing, which is
+ * updated as names are handed out. One instance covers one job so the same
+ * policy applies to every file in it.
+ *
+ * <p>Names are compared ignoring case, since most removable and emulated
+ * storage is case insensitive.
+ */
+public class ConflictResolver {
+    private static final String TAG = "ConflictResolver";
+
+    /** Copy under a new " (n)" name, leaving the existing file alone. */
+    public static final int POLICY_KEEP_BOTH = 0;
+    /** Leave the existing file and don't copy. */
+    public static final int POLICY_SKIP = 1;
+    /** Replace the existing file. */
+    public static final int POLICY_OVERWRITE = 2;
+    /** Replace the existing file only if the source was modified later. */
+    public static final int POLICY_NEWER_WINS = 3;
+
+    private final int mPolicy;
+    private final HashMap<String, Listing> mListings = new HashMap<>();
+
+    private int mSkipped;
+    private int mReplaced;
+    private int mRenamed;
+
+    public ConflictResolver(int policy) {
+        mPolicy = policy;
+    }
+
+    /**
+     * @return the name to copy a file to, or {@code null} if the policy says
+     * it should be skipped. An existing entry that is the source itself is
+     * never handed out for writing; the copy gets a new name instead.
+     */
+    public String resolve(File dir, String name, File source) {
+        final Listing listing = getListing(dir);
+        final Entry existing = listing.get(name);
+        final boolean isSource = existing != null && isSameFile(new File(dir, existing.name), source);
+        return resolve(listing, name, source.lastModified(), isSource);
+    }
+
+    public String resolve(DocumentFile dir, String name, DocumentFile source) {
+        final Listing listing = getListing(dir);
+        final Entry existing = listing.get(name);
+        final boolean isSource = existing != null && existing.handle != null
+                && ((DocumentFile) existing.handle).getUri().equals(source.getUri());
+        return resolve(listing, name, source.lastModified(), isSource);
+    }
+
+    /**
+     * @param dirId document id of {@code dir}, which keys its listing as usb
+     *              files carry no path.
+     * @param sourceInDir whether the source is a child of {@code dir}, usb
+     *                    files have no identity to compare otherwise.
+     */
+    public String resolve(UsbFile dir, String dirId, UsbFile source, boolean sourceInDir)
+            throws IOException {
+        final Listing listing = getListing(dir, dirId);
+        final Entry existing = listing.get(source.getName());
+        final boolean isSource = existing != null && sourceInDir
+                && existing.name.equalsIgnoreCase(source.getName());
+        return resolve(listing, source.getName(), source.lastModified(), isSource);
+    }
+
+    /**
+     * @return the document that was listed under the given name, so that it
+     * can be written over instead of created again.
+     */
+    public DocumentFile findExisting(DocumentFile dir, String name) {
+        final Entry entry = getListing(dir).get(name);
+        return entry != null ? (DocumentFile) entry.handle : null;
+    }
+
+    public UsbFile findExisting(UsbFile dir, String dirId, String name) throws IOException {
+        final Entry entry = getListing(dir, dirId).get(name);
+        return entry != null ? (UsbFile) entry.handle : null;
+    }
+
+    /**
+     * Record a document created under a name other than the one asked for,
+     * which providers may do when they pick the extension themselves.
+     */
+    public void onCreated(DocumentFile dir, DocumentFile created) {
+        final Listing listing = getListing(dir);
+        listing.put(new Entry(created.getName(), created.lastModified(), false, created));
+    }
+
+    /**
+     * Directory to copy the contents of a source directory into. Existing
+     * directories are merged into unless the policy keeps both or the existing
+     * one is the source, in which case a new one is made. Newly made directories are known to be empty and are
+     * never listed.
+     *
+     * @return the directory, or {@code null} if it could not be made.
+     */
+    public File openDirectory(File parent, File source) {
+        final String name = source.getName();
+        final Listing listing = getListing(parent);
+        final Entry existing = listing.get(name);
+        if (existing != null && existing.directory && mPolicy != POLICY_KEEP_BOTH
+                && !isSameFile(new File(parent, existing.name), source)) {
+            return new File(parent, existing.name);
+        }
+        final String dirName = existing != null ? uniqueName(listing, name, true) : name;
+        final File dir = new File(parent, dirName);
+        if (!dir.mkdirs()) {
+            return null;
+        }
+        listing.put(new Entry(dirName, dir.lastModified(), true, null));
+        mListings.put(keyFor(dir), new Listing());
+        return dir;
+    }
+
+    public DocumentFile openDirectory(DocumentFile parent, DocumentFile source) {
+        final String name = source.getName();
+        final Listing listing = getListing(parent);
+        final Entry existing = listing.get(name);
+        if (existing != null && existing.directory && mPolicy != POLICY_KEEP_BOTH
+                && existing.handle != null
+                && !((DocumentFile) existing.handle).getUri().equals(source.getUri())) {
+            return (DocumentFile) existing.handle;
+        }
+        final String dirName = existing != null ? uniqueName(listing, name, true) : name;
+        final DocumentFile dir = parent.createDirectory(dirName);
+        if (dir == null) {
+            return null;
+        }
+        listing.put(new Entry(dir.getName(), dir.lastModified(), true, dir));
+        mListings.put(keyFor(dir), new Listing());
+        return dir;
+    }
+
+    public int getSkippedCount() {
+        return mSkipped;
+    }
+
+    public int getReplacedCount() {
+        return mReplaced;
+    }
+
+    public int getRenamedCount() {
+        return mRenamed;
+    }
+
+    @Override
+    public String toString() {
+        return "ConflictResolver{policy=" + mPolicy + ", directories=" + mListings.size()
+                + ", skipped=" + mSkipped + ", replaced=" + mReplaced
+                + ", renamed=" + mRenamed + "}";
+    }
+
+    private String resolve(Listing listing, String name, long lastModified, boolean isSource) {
+        final Entry existing = listing.get(name);
+        if (existing == null) {
+            listing.put(new Entry(name, lastModified, false, null));
+            return name;
+        }
+
+        // Opening the source for writing would truncate it before it is read
+        switch (isSource && mPolicy == POLICY_OVERWRITE ? POLICY_KEEP_BOTH : mPolicy) {
+            case POLICY_SKIP:
+                mSkipped++;
+                return null;
+            case POLICY_NEWER_WINS:
+                if (existing.directory) {
+                    break;
+                }
+                if (existing.lastModified >= lastModified) {
+                    mSkipped++;
+                    return null;
+                }
+                mReplaced++;
+                existing.lastModified = lastModified;
+                return existing.name;
+            case POLICY_OVERWRITE:
+                if (existing.directory) {
+                    // A file can't replace a directory, fall back to a new name
+                    break;
+                }
+                mReplaced++;
+                existing.lastModified = lastModified;
+                return existing.name;
+        }
+
+        final String unique = uniqueName(listing, name, false);
+        listing.put(new Entry(unique, lastModified, false, null));
+        mRenamed++;
+        return unique;
+    }
+
+    private static String uniqueName(Listing listing, String name, boolean directory) {
+        final int dot = directory ? -1 : name.lastIndexOf('.');
+        final String base = dot > 0 ? name.substring(0, dot) : name;
+        final String ext = dot > 0 ? name.substring(dot) : "";
+        int n = 1;
+        String candidate;
+        do {
+            candidate = base + " (" + n++ + ")" + ext;
+        } while (listing.get(candidate) != null);
+        return candidate;
+    }
+
+    private static boolean isSameFile(File a, File b) {
+        try {
+            return a.getCanonicalPath().equals(b.getCanonicalPath());
+        } catch (IOException e) {
+            return a.getAbsolutePath().equals(b.getAbsolutePath());
+        }
+    }
+
+    private Listing getListing(File dir) {
+        final String key = keyFor(dir);
+        Listing listing = mListings.get(key);
+        if (listing == null) {
+            listing = new Listing();
+            final File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    listing.put(new Entry(file.getName(), file.lastModified(),
+                            file.isDirectory(), null));
+                }
+            }
+            mListings.put(key, listing);
+        }
+        return listing;
+    }
+
+    private Listing getListing(DocumentFile dir) {
+        final String key = keyFor(dir);
+        Listing listing = mListings.get(key);
+        if (listing == null) {
+            listing = new Listing();
+            for (DocumentFile file : dir.listFiles()) {
+                final String name = file.getName();
+                if (name != null) {
+                    listing.put(new Entry(name, file.lastModified(), file.isDirectory(), file));
+                }
+            }
+            mListings.put(key, listing);
+        }
+        return listing;
+    }
+
+    private Listing getListing(UsbFile dir, String dirId) throws IOException {
+        // Usb files carry no path, and the provider may hand out another
+        // instance for the same directory, so the document id names it
+        final String key = "usb:" + dirId;
+        Listing listing = mListings.get(key);
+        if (listing == null) {
+            listing = new Listing();
+            for (UsbFile file : dir.listFiles()) {
+                listing.put(new Entry(file.getName(), file.lastModified(),
+                        file.isDirectory(), file));
+            }
+            mListings.put(key, listing);
+        }
+        return listing;
+    }
+
+    private static String keyFor(File dir) {
+        return dir.getAbsolutePath();
+    }
+
+    private static String keyFor(DocumentFile dir) {
+        return dir.getUri().toString();
+    }
+
+    private static class Entry {
+        final String name;
+        final boolean directory;
+        final Object handle;
+        long lastModified;
+
+        Entry(String name, long lastModified, boolean directory, Object handle) {
+            this.name = name;
+            this.lastModified = lastModified;
+            this.directory = directory;
+            this.handle = handle;
+        }
+    }
+
+    private static class Listing {
+        private final HashMap<String, Entry> mEntries = new HashMap<>();
+
+        Entry get(String name) {
+            return mEntries.get(name.toLowerCase(Locale.US));
+        }
+
+        void put(Entry entry) {
+            if (entry.name == null) {
+                Log.w(TAG, "Ignoring unnamed entry");
+                return;
+            }
+            mEntries.put(entry.name.toLowerCase(Locale.US), entry);
+        }
+    }
+}
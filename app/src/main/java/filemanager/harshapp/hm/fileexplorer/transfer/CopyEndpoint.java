@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.transfer;
+
+import android.content.Context;
+import android.support.provider.DocumentFile;
+
+import com.github.mjdev.libaums.fs.FileSystem;
+import com.github.mjdev.libaums.fs.UsbFile;
+import com.github.mjdev.libaums.fs.UsbFileStreamFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import filemanager.harshapp.hm.fileexplorer.misc.FileUtils;
+
+/**
+ * One end of a single file copy. Wraps the different storage backends so the
+ * copy engine can open them for reading and writing as many times as it needs.
+ */
+public abstract class CopyEndpoint {
+
+    public abstract String getName();
+
+    public abstract InputStream openInputStream() throws IOException;
+
+    public abstract OutputStream openOutputStream() throws IOException;
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+
+    public static CopyEndpoint forFile(final File file) {
+        return new CopyEndpoint() {
+            @Override
+            public String getName() {
+                return file.getPath();
+            }
+
+            @Override
+            public InputStream openInputStream() throws IOException {
+                return new FileInputStream(file);
+            }
+
+            @Override
+            public OutputStream openOutputStream() throws IOException {
+                return new FileOutputStream(file);
+            }
+        };
+    }
+
+    public static CopyEndpoint forDocument(final Context context, final DocumentFile file) {
+        return new CopyEndpoint() {
+            @Override
+            public String getName() {
+                return file.getName();
+            }
+
+            @Override
+            public InputStream openInputStream() throws IOException {
+                return FileUtils.getInputStream(context, file);
+            }
+
+            @Override
+            public OutputStream openOutputStream() throws IOException {
+                return FileUtils.getOutputStream(context, file);
+            }
+        };
+    }
+
+    public static CopyEndpoint forUsbFile(final UsbFile file, final FileSystem fileSystem) {
+        return new CopyEndpoint() {
+            @Override
+            public String getName() {
+                return file.getName();
+            }
+
+            @Override
+            public InputStream openInputStream() throws IOException {
+                return UsbFileStreamFactory.createBufferedInputStream(file, fileSystem);
+            }
+
+            @Override
+            public OutputStream openOutputStream() throws IOException {
+                return UsbFileStreamFactory.createBufferedOutputStream(file, fileSystem);
+            }
+        };
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.transfer;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+import android.support.provider.DocumentFile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+import filemanager.harshapp.hm.fileexplorer.libcore.io.IoUtils;
+
+/**
+ * Single file copy used by every transfer path. When both ends are backed by
+ * real file descriptors the kernel moves the bytes with
+ * {@link FileChannel#transferTo}; otherwise a pooled {@link BufferPool} buffer
+ * is used to stream between them.
+ */
+public final class CopyEngine {
+
+    /** Bytes handed to {@link FileChannel#transferTo} per call, so progress can be reported. */
+    private static final long TRANSFER_CHUNK = 8 * 1024 * 1024;
+
+    /**
+     * Told about bytes as they are written, on the copying thread.
+     */
+    public interface Listener {
+        void onBytesCopied(long bytes);
+    }
+
+    private CopyEngine() {
+    }
+
+    public static void copy(File source, File dest) throws IOException {
+        copy(source, dest, null);
+    }
+
+    public static void copy(File source, File dest, Listener listener) throws IOException {
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(source);
+            out = new FileOutputStream(dest);
+            copy(in.getChannel(), out.getChannel(), listener);
+        } finally {
+            IoUtils.closeQuietly(in);
+            IoUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Copy between documents. Uses file descriptors from
+     * {@link ContentResolver#openFileDescriptor} so local and SD card documents
+     * go through the same channel transfer as plain files.
+     */
+    public static void copy(Context context, DocumentFile source, DocumentFile dest) throws IOException {
+        copy(context, source, dest, null);
+    }
+
+    public static void copy(Context context, DocumentFile source, DocumentFile dest,
+                            Listener listener) throws IOException {
+        final ContentResolver resolver = context.getContentResolver();
+        ParcelFileDescriptor inPfd = null;
+        ParcelFileDescriptor outPfd = null;
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            inPfd = resolver.openFileDescriptor(source.getUri(), "r");
+            // "w" keeps the old bytes past the end of a shorter copy on some providers
+            outPfd = resolver.openFileDescriptor(dest.getUri(), "wt");
+            if (inPfd == null || outPfd == null) {
+                throw new FileNotFoundException("Failed to open " + source.getUri());
+            }
+            in = new FileInputStream(inPfd.getFileDescriptor());
+            out = new FileOutputStream(outPfd.getFileDescriptor());
+            if (inPfd.getStatSize() >= 0 && outPfd.getStatSize() >= 0) {
+                copy(in.getChannel(), out.getChannel(), listener);
+            } else {
+                // One side is a pipe
+                copy(in, out, listener);
+            }
+        } finally {
+            IoUtils.closeQuietly(in);
+            IoUtils.closeQuietly(out);
+            IoUtils.closeQuietly(inPfd);
+            IoUtils.closeQuietly(outPfd);
+        }
+    }
+
+    /**
+     * Stream copy with a pooled buffer. Neither stream is closed.
+     */
+    public static long copy(InputStream in, OutputStream out) throws IOException {
+        return copy(in, out, null);
+    }
+
+    public static long copy(InputStream in, OutputStream out, Listener listener) throws IOException {
+        final byte[] buffer = BufferPool.acquire();
+        long total = 0;
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                total += read;
+                if (listener != null) {
+                    listener.onBytesCopied(read);
+                }
+            }
+            out.flush();
+        } finally {
+            BufferPool.release(buffer);
+        }
+        return total;
+    }
+
+    private static void copy(FileChannel in, FileChannel out, Listener listener) throws IOException {
+        final long size = in.size();
+        long position = 0;
+        while (position < size) {
+            final long transferred = in.transferTo(position,
+                    Math.min(size - position, TRANSFER_CHUNK), out);
+            if (transferred <= 0) {
+                break;
+            }
+            position += transferred;
+            if (listener != null) {
+                listener.onBytesCopied(transferred);
+            }
+        }
+        if (position < size) {
+            throw new IOException("Short copy, " + position + " of " + size + " bytes");
+        }
+    }
+}
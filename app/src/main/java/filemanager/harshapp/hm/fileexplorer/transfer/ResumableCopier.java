@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.transfer;
+
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+import android.support.provider.DocumentFile;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import filemanager.harshapp.hm.fileexplorer.libcore.io.IoUtils;
+import filemanager.harshapp.hm.fileexplorer.libcore.io.Streams;
+import filemanager.harshapp.hm.fileexplorer.misc.FileUtils;
+
+import static filemanager.harshapp.hm.fileexplorer.misc.MimeTypes.BASIC_MIME_TYPE;
+
+/**
+ * Copies large files in chunks, checkpointing the verified offset and a
+ * running checksum as it goes. Data is written to a hidden partial file which
+ * is renamed into place only once complete, so an interrupted copy never
+ * leaves a truncated file under the real name. Copying the same source to
+ * the same place again checks the existing prefix against the checkpoint and
+ * continues from there.
+ */
+public class ResumableCopier {
+    private static final String TAG = "ResumableCopier";
+
+    /** Smaller files are cheap to copy again and are not checkpointed. */
+    public static final long MIN_RESUMABLE_SIZE = 64 * 1024 * 1024;
+
+    private static final long CHECKPOINT_INTERVAL = 8 * 1024 * 1024;
+
+    private static final String PARTIAL_SUFFIX = ".partial";
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+    private static final String CHECKPOINT_DIR = "transfers";
+
+    public static boolean isResumable(long length) {
+        return length >= MIN_RESUMABLE_SIZE;
+    }
+
+    /**
+     * Copy between local files. The checkpoint is kept next to the partial file.
+     */
+    public static void copy(File source, File dest) throws IOException {
+        copy(source, dest, null);
+    }
+
+    public static void copy(File source, File dest, CopyEngine.Listener listener) throws IOException {
+        final File partial = new File(dest.getParentFile(), "." + dest.getName() + PARTIAL_SUFFIX);
+        final File checkpointFile = new File(dest.getParentFile(), partial.getName() + CHECKPOINT_SUFFIX);
+        final TransferCheckpoint checkpoint = new TransferCheckpoint(source.getPath(),
+                source.length(), source.lastModified());
+
+        InputStream in = null;
+        RandomAccessFile out = null;
+        try {
+            in = new FileInputStream(source);
+            out = new RandomAccessFile(partial, "rw");
+            transfer(in, out.getChannel(), out.getChannel(), checkpoint, checkpointFile, listener);
+        } finally {
+            IoUtils.closeQuietly(in);
+            IoUtils.closeQuietly(out);
+        }
+
+        if (!partial.renameTo(dest)) {
+            throw new IOException("Failed to rename " + partial + " to " + dest);
+        }
+        checkpointFile.delete();
+    }
+
+    /**
+     * Copy through the storage access framework. Only destinations that hand
+     * out a seekable file descriptor can be resumed; for others this returns
+     * {@code null} without writing anything, and the caller should fall back
+     * to a plain stream copy.
+     */
+    public static DocumentFile copy(Context context, DocumentFile source, DocumentFile destDir,
+                                    String displayName) throws IOException {
+        return copy(context, source, destDir, displayName, null);
+    }
+
+    public static DocumentFile copy(Context context, DocumentFile source, DocumentFile destDir,
+                                    String displayName, CopyEngine.Listener listener)
+            throws IOException {
+        final String partialName = "." + displayName + PARTIAL_SUFFIX;
+        DocumentFile partial = destDir.findFile(partialName);
+        if (partial == null) {
+            partial = destDir.createFile(BASIC_MIME_TYPE, partialName);
+        }
+        if (partial == null) {
+            throw new FileNotFoundException("Failed to create " + partialName);
+        }
+
+        final File checkpointDir = new File(context.getFilesDir(), CHECKPOINT_DIR);
+        checkpointDir.mkdirs();
+        final File checkpointFile = new File(checkpointDir,
+                Integer.toHexString(partial.getUri().toString().hashCode()) + CHECKPOINT_SUFFIX);
+        final TransferCheckpoint checkpoint = new TransferCheckpoint(source.getUri().toString(),
+                source.length(), source.lastModified());
+
+        InputStream in = null;
+        ParcelFileDescriptor pfd = null;
+        FileInputStream reader = null;
+        FileOutputStream writer = null;
+        try {
+            pfd = context.getContentResolver().openFileDescriptor(partial.getUri(), "rw");
+            if (pfd == null || pfd.getStatSize() < 0) {
+                // Pipe backed, there is nothing to seek into
+                partial.delete();
+                return null;
+            }
+            reader = new FileInputStream(pfd.getFileDescriptor());
+            writer = new FileOutputStream(pfd.getFileDescriptor());
+            in = FileUtils.getInputStream(context, source);
+            transfer(in, reader.getChannel(), writer.getChannel(), checkpoint, checkpointFile,
+                    listener);
+        } finally {
+            IoUtils.closeQuietly(in);
+            IoUtils.closeQuietly(reader);
+            IoUtils.closeQuietly(writer);
+            IoUtils.closeQuietly(pfd);
+        }
+
+        if (!partial.renameTo(displayName)) {
+            throw new IOException("Failed to rename " + partialName + " to " + displayName);
+        }
+        checkpointFile.delete();
+        return partial;
+    }
+
+    private static void transfer(InputStream in, FileChannel reader, FileChannel writer,
+                                 TransferCheckpoint checkpoint, File checkpointFile,
+                                 CopyEngine.Listener listener) throws IOException {
+        final CRC32 crc = new CRC32();
+        long offset = 0;
+
+        final TransferCheckpoint saved = TransferCheckpoint.readFrom(checkpointFile);
+        if (checkpoint.isSameSource(saved) && saved.offset <= reader.size()
+                && checksumPrefix(reader, saved.offset, crc) == saved.checksum) {
+            offset = saved.offset;
+            Log.i(TAG, "Resuming " + checkpoint.sourceKey + " at " + offset);
+        } else {
+            crc.reset();
+        }
+
+        // Anything past the last checkpoint was never verified
+        writer.truncate(offset);
+        writer.position(offset);
+        skipFully(in, offset);
+        if (listener != null && offset > 0) {
+            // Resumed bytes count as copied
+            listener.onBytesCopied(offset);
+        }
+
+        final byte[] buffer = BufferPool.acquire();
+        final ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+        long sinceCheckpoint = 0;
+        int read;
+        try {
+            while ((read = in.read(buffer)) != -1) {
+                wrapped.clear();
+                wrapped.limit(read);
+                while (wrapped.hasRemaining()) {
+                    writer.write(wrapped);
+                }
+                crc.update(buffer, 0, read);
+                offset += read;
+                sinceCheckpoint += read;
+                if (listener != null) {
+                    listener.onBytesCopied(read);
+                }
+
+                if (sinceCheckpoint >= CHECKPOINT_INTERVAL) {
+                    // Data must be durable before the checkpoint claims it is
+                    writer.force(false);
+                    checkpoint.offset = offset;
+                    checkpoint.checksum = crc.getValue();
+                    checkpoint.writeTo(checkpointFile);
+                    sinceCheckpoint = 0;
+                }
+            }
+            writer.force(false);
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    private static long checksumPrefix(FileChannel channel, long length, CRC32 crc) throws IOException {
+        final byte[] array = BufferPool.acquire();
+        final ByteBuffer buffer = ByteBuffer.wrap(array);
+        long position = 0;
+        try {
+            while (position < length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), length - position));
+                final int read = channel.read(buffer, position);
+                if (read <= 0) {
+                    break;
+                }
+                crc.update(array, 0, read);
+                position += read;
+            }
+        } finally {
+            BufferPool.release(array);
+        }
+        return position == length ? crc.getValue() : -1;
+    }
+
+    private static void skipFully(InputStream in, long byteCount) throws IOException {
+        long remaining = byteCount;
+        while (remaining > 0) {
+            final long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                break;
+            }
+            remaining -= skipped;
+        }
+        if (remaining > 0 && Streams.skipByReading(in, remaining) < remaining) {
+            throw new IOException("Source is shorter than checkpoint");
+        }
+    }
+}
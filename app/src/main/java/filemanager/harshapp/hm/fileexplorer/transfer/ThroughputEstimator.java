@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.transfer;
+
+import android.os.SystemClock;
+
+/**
+ * Estimates transfer throughput as an exponential moving average of the
+ * observed rate between samples, so a single slow file does not swing the ETA.
+ */
+public class ThroughputEstimator {
+
+    /** Weight of the newest sample. */
+    private static final double ALPHA = 0.3;
+    /** Samples closer together than this are merged into the next one. */
+    private static final long MIN_SAMPLE_INTERVAL = 250;
+
+    private long mLastTime;
+    private long mLastBytes;
+    private double mBytesPerSecond = -1;
+
+    public ThroughputEstimator() {
+        mLastTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Record the total number of bytes transferred so far.
+     */
+    public synchronized void update(long bytesDone) {
+        final long now = SystemClock.elapsedRealtime();
+        final long elapsed = now - mLastTime;
+        if (elapsed < MIN_SAMPLE_INTERVAL) {
+            return;
+        }
+        final double rate = (bytesDone - mLastBytes) * 1000d / elapsed;
+        mBytesPerSecond = mBytesPerSecond < 0 ? rate : ALPHA * rate + (1 - ALPHA) * mBytesPerSecond;
+        mLastTime = now;
+        mLastBytes = bytesDone;
+    }
+
+    public synchronized long getBytesPerSecond() {
+        return mBytesPerSecond < 0 ? 0 : (long) mBytesPerSecond;
+    }
+
+    /**
+     * @return estimated seconds left for the remaining bytes, or -1 when no
+     * rate has been observed yet.
+     */
+    public synchronized long getEtaSeconds(long bytesRemaining) {
+        if (mBytesPerSecond <= 0) {
+            return -1;
+        }
+        return (long) Math.ceil(bytesRemaining / mBytesPerSecond);
+    }
+}
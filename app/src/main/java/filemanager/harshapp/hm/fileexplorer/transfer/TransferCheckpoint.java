@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.transfer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+
+import filemanager.harshapp.hm.fileexplorer.libcore.io.IoUtils;
+import filemanager.harshapp.hm.fileexplorer.libcore.io.Streams;
+import filemanager.harshapp.hm.fileexplorer.libcore.util.Objects;
+import filemanager.harshapp.hm.fileexplorer.model.Durable;
+import filemanager.harshapp.hm.fileexplorer.model.DurableUtils;
+
+/**
+ * Progress of a partially copied file: how many bytes of the destination are
+ * known good and the checksum of those bytes, along with the identity of the
+ * source so a checkpoint is never applied to a file that changed.
+ */
+public class TransferCheckpoint implements Durable {
+    private static final int VERSION_INIT = 1;
+
+    public String sourceKey;
+    public long sourceLength;
+    public long sourceModified;
+    public long offset;
+    public long checksum;
+
+    public TransferCheckpoint() {
+        reset();
+    }
+
+    public TransferCheckpoint(String sourceKey, long sourceLength, long sourceModified) {
+        reset();
+        this.sourceKey = sourceKey;
+        this.sourceLength = sourceLength;
+        this.sourceModified = sourceModified;
+    }
+
+    @Override
+    public void reset() {
+        sourceKey = null;
+        sourceLength = -1;
+        sourceModified = -1;
+        offset = 0;
+        checksum = 0;
+    }
+
+    @Override
+    public void read(DataInputStream in) throws IOException {
+        final int version = in.readInt();
+        switch (version) {
+            case VERSION_INIT:
+                sourceKey = DurableUtils.readNullableString(in);
+                sourceLength = in.readLong();
+                sourceModified = in.readLong();
+                offset = in.readLong();
+                checksum = in.readLong();
+                break;
+            default:
+                throw new ProtocolException("Unknown version " + version);
+        }
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(VERSION_INIT);
+        DurableUtils.writeNullableString(out, sourceKey);
+        out.writeLong(sourceLength);
+        out.writeLong(sourceModified);
+        out.writeLong(offset);
+        out.writeLong(checksum);
+    }
+
+    /**
+     * Whether this checkpoint was taken while copying the same, unchanged source.
+     */
+    public boolean isSameSource(TransferCheckpoint other) {
+        return other != null && Objects.equals(sourceKey, other.sourceKey)
+                && sourceLength == other.sourceLength
+                && sourceModified == other.sourceModified;
+    }
+
+    /**
+     * @return the checkpoint stored in the given file, or {@code null} if
+     * there is none or it can't be read.
+     */
+    public static TransferCheckpoint readFrom(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            return DurableUtils.readFromArrayOrNull(Streams.readFully(in), new TransferCheckpoint());
+        } catch (IOException e) {
+            return null;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Store this checkpoint, replacing the previous one atomically so a crash
+     * never leaves a torn checkpoint behind.
+     */
+    public void writeTo(File file) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(DurableUtils.writeToArray(this));
+            out.getFD().sync();
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Failed to store checkpoint " + file);
+        }
+    }
+}
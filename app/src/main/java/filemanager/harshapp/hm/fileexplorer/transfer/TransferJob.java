@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.transfer;
+
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import filemanager.harshapp.hm.fileexplorer.model.DocumentsContract;
+
+/**
+ * State shared by every copy and move call of one transfer the user started:
+ * a single {@link ConflictResolver}, so the policy and the destination
+ * listings carry over from one item to the next, and a count of the bytes
+ * written so far.
+ *
+ * <p>Providers run in this process, so a started job is found again by the id
+ * passed along in {@link DocumentsContract#EXTRA_TRANSFER_JOB}.
+ */
+public final class TransferJob implements CopyEngine.Listener {
+
+    public interface ProgressListener {
+        /** Called on the copying thread with the total bytes written. */
+        void onProgress(long bytesCopied);
+    }
+
+    private static final ConcurrentHashMap<String, TransferJob> sJobs = new ConcurrentHashMap<>();
+    private static final AtomicInteger sNextId = new AtomicInteger();
+
+    private final String mId;
+    private final ConflictResolver mResolver;
+    private final ProgressListener mListener;
+    private final AtomicLong mBytesCopied = new AtomicLong();
+
+    private TransferJob(String id, int policy, ProgressListener listener) {
+        mId = id;
+        mResolver = new ConflictResolver(policy);
+        mListener = listener;
+    }
+
+    /**
+     * Register a job so providers can find it by {@link #getId()}. Must be
+     * followed by {@link #finish()}.
+     */
+    public static TransferJob start(int policy, @Nullable ProgressListener listener) {
+        final TransferJob job = new TransferJob(
+                "transfer-" + sNextId.incrementAndGet(), policy, listener);
+        sJobs.put(job.mId, job);
+        return job;
+    }
+
+    @Nullable
+    public static TransferJob get(@Nullable String id) {
+        return id != null ? sJobs.get(id) : null;
+    }
+
+    public void finish() {
+        sJobs.remove(mId);
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public ConflictResolver getResolver() {
+        return mResolver;
+    }
+
+    public long getBytesCopied() {
+        return mBytesCopied.get();
+    }
+
+    @Override
+    public void onBytesCopied(long bytes) {
+        final long total = mBytesCopied.addAndGet(bytes);
+        if (mListener != null) {
+            mListener.onProgress(total);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TransferJob{id=" + mId + ", bytesCopied=" + mBytesCopied.get()
+                + ", " + mResolver + "}";
+    }
+}
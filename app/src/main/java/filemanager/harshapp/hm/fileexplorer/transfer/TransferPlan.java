@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.transfer;
+
+import java.util.ArrayList;
+
+import androidx.collection.ArrayMap;
+import filemanager.harshapp.hm.fileexplorer.model.DocumentInfo;
+
+/**
+ * Result of walking a set of sources before a transfer starts. Carries the
+ * byte and file totals used to drive progress, the free space found on the destination and
+ * the top level names that already exist there.
+ */
+public class TransferPlan {
+
+    /** Free space could not be determined for the destination. */
+    public static final long UNKNOWN_SPACE = -1;
+
+    long totalBytes;
+    int fileCount;
+    long requiredBytes;
+    long freeBytes = UNKNOWN_SPACE;
+
+    final ArrayMap<String, Long> mSourceBytes = new ArrayMap<>();
+    final ArrayList<String> mCollisions = new ArrayList<>();
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Files below all the sources, directories not counted.
+     */
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * Bytes that need new space on the destination, which leaves out sources
+     * that are only renamed.
+     */
+    public long getRequiredBytes() {
+        return requiredBytes;
+    }
+
+    public long getFreeBytes() {
+        return freeBytes;
+    }
+
+    /**
+     * Bytes that will be written for the given top level source, including
+     * everything below it when it is a directory.
+     */
+    public long getBytes(DocumentInfo doc) {
+        final Long bytes = mSourceBytes.get(doc.documentId);
+        return bytes != null ? bytes : 0;
+    }
+
+    public boolean hasEnoughSpace() {
+        return freeBytes == UNKNOWN_SPACE || freeBytes >= requiredBytes;
+    }
+
+    public boolean hasCollisions() {
+        return !mCollisions.isEmpty();
+    }
+
+    /**
+     * Display names of top level sources that already exist in the destination.
+     */
+    public ArrayList<String> getCollisions() {
+        return mCollisions;
+    }
+
+    @Override
+    public String toString() {
+        return "TransferPlan{bytes=" + totalBytes + ", files=" + fileCount + ", required=" + requiredBytes
+                + ", free=" + freeBytes + ", collisions=" + mCollisions.size() + "}";
+    }
+}
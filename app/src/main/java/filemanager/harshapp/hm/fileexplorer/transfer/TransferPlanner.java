@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.transfer;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import filemanager.harshapp.hm.fileexplorer.libcore.io.IoUtils;
+import filemanager.harshapp.hm.fileexplorer.misc.CrashReportingManager;
+import filemanager.harshapp.hm.fileexplorer.misc.FileUtils;
+import filemanager.harshapp.hm.fileexplorer.misc.StorageUtils;
+import filemanager.harshapp.hm.fileexplorer.model.DocumentInfo;
+import filemanager.harshapp.hm.fileexplorer.model.DocumentsContract;
+import filemanager.harshapp.hm.fileexplorer.model.DocumentsContract.Document;
+import filemanager.harshapp.hm.fileexplorer.model.RootInfo;
+import filemanager.harshapp.hm.fileexplorer.provider.DocumentsProvider;
+import filemanager.harshapp.hm.fileexplorer.provider.DownloadStorageProvider;
+import filemanager.harshapp.hm.fileexplorer.provider.ExternalStorageProvider;
+import filemanager.harshapp.hm.fileexplorer.provider.MediaDocumentsProvider;
+import filemanager.harshapp.hm.fileexplorer.provider.NonMediaDocumentsProvider;
+
+/**
+ * Builds a {@link TransferPlan} before any bytes are copied. Directories are
+ * walked breadth first on a small worker pool, one directory listing per task,
+ * so deep trees on slow providers are sized concurrently.
+ */
+public class TransferPlanner {
+    private static final String TAG = "TransferPlanner";
+
+    private static final int MAX_WORKERS = 4;
+
+    private static final String[] CHILD_PROJECTION = new String[] {
+            Document.COLUMN_DOCUMENT_ID, Document.COLUMN_MIME_TYPE,
+            Document.COLUMN_DISPLAY_NAME, Document.COLUMN_SIZE,
+    };
+
+    private final ContentResolver mResolver;
+
+    public TransferPlanner(Context context) {
+        mResolver = context.getContentResolver();
+    }
+
+    /**
+     * Walk the given sources and measure the destination.
+     *
+     * @param target destination directory.
+     * @param root root of the destination, used for free space when the
+     *             destination is not on local storage. May be {@code null}.
+     * @param move whether the sources are removed afterwards; sources moved
+     *             within their own root are only renamed and need no space.
+     */
+    public TransferPlan plan(List<DocumentInfo> docs, DocumentInfo target, RootInfo root,
+                             boolean move, CancellationSignal signal) {
+        final TransferPlan plan = new TransferPlan();
+
+        // Compared ignoring case, like ConflictResolver does
+        final HashSet<String> existingNames = new HashSet<>();
+        listExistingNames(target, existingNames);
+        for (DocumentInfo doc : docs) {
+            if (doc.displayName != null
+                    && existingNames.contains(doc.displayName.toLowerCase(Locale.US))) {
+                plan.mCollisions.add(doc.displayName);
+            }
+        }
+
+        final int workers = Math.max(1, Math.min(MAX_WORKERS,
+                Runtime.getRuntime().availableProcessors()));
+        final ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            for (DocumentInfo doc : docs) {
+                final long bytes = walk(executor, doc, plan, signal);
+                plan.mSourceBytes.put(doc.documentId, bytes);
+                plan.totalBytes += bytes;
+                if (!move || !isSameRoot(doc, target)) {
+                    plan.requiredBytes += bytes;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        plan.freeBytes = getFreeBytes(target, root);
+        Log.d(TAG, "Planned " + plan);
+        return plan;
+    }
+
+    /**
+     * Counts the files below the given source in the plan.
+     *
+     * @return bytes below the given source.
+     */
+    private long walk(ExecutorService executor, DocumentInfo doc, TransferPlan plan,
+                      CancellationSignal signal) {
+        if (!doc.isDirectory()) {
+            plan.fileCount++;
+            return Math.max(doc.size, 0);
+        }
+
+        final ExecutorCompletionService<Listing> service = new ExecutorCompletionService<>(executor);
+        int pending = 0;
+        service.submit(newListing(doc));
+        pending++;
+
+        long bytes = 0;
+        while (pending > 0) {
+            if (signal != null) {
+                signal.throwIfCanceled();
+            }
+            final Listing listing;
+            try {
+                listing = service.take().get();
+            } catch (InterruptedException e) {
+                throw new OperationCanceledException();
+            } catch (ExecutionException e) {
+                Log.w(TAG, "Failed to list " + doc, e.getCause());
+                CrashReportingManager.logException(e);
+                pending--;
+                continue;
+            }
+            pending--;
+            bytes += listing.bytes;
+            plan.fileCount += listing.files;
+            for (Listing child : listing.directories) {
+                service.submit(child);
+                pending++;
+            }
+        }
+        return bytes;
+    }
+
+    private Listing newListing(DocumentInfo doc) {
+        if (hasLocalPath(doc) && new File(doc.path).isDirectory()) {
+            return new Listing(new File(doc.path), null, null);
+        }
+        return new Listing(null, doc.authority, doc.documentId);
+    }
+
+    private void listExistingNames(DocumentInfo target, Set<String> names) {
+        if (hasLocalPath(target) && new File(target.path).isDirectory()) {
+            for (File file : FileUtils.listFilesOrEmpty(new File(target.path))) {
+                names.add(file.getName().toLowerCase(Locale.US));
+            }
+            return;
+        }
+        final Uri uri = DocumentsContract.buildChildDocumentsUri(target.authority, target.documentId);
+        Cursor cursor = null;
+        try {
+            cursor = mResolver.query(uri, CHILD_PROJECTION, null, null, null);
+            while (cursor != null && cursor.moveToNext()) {
+                final String name = DocumentInfo.getCursorString(cursor, Document.COLUMN_DISPLAY_NAME);
+                if (name != null) {
+                    names.add(name.toLowerCase(Locale.US));
+                }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to list " + target, e);
+        } finally {
+            IoUtils.closeQuietly(cursor);
+        }
+    }
+
+    private static boolean isSameRoot(DocumentInfo doc, DocumentInfo target) {
+        if (!TextUtils.equals(doc.authority, target.authority)
+                || doc.documentId.indexOf(':', 1) < 0 || target.documentId.indexOf(':', 1) < 0) {
+            return false;
+        }
+        return DocumentsProvider.getRootIdForDocId(doc.documentId)
+                .equals(DocumentsProvider.getRootIdForDocId(target.documentId));
+    }
+
+    /**
+     * @return whether the path of the document is one on this device. Network,
+     * cloud and rooted storage report paths that can't be read as files here.
+     */
+    private static boolean hasLocalPath(DocumentInfo doc) {
+        if (TextUtils.isEmpty(doc.path)) {
+            return false;
+        }
+        return ExternalStorageProvider.AUTHORITY.equals(doc.authority)
+                || DownloadStorageProvider.AUTHORITY.equals(doc.authority)
+                || MediaDocumentsProvider.AUTHORITY.equals(doc.authority)
+                || NonMediaDocumentsProvider.AUTHORITY.equals(doc.authority);
+    }
+
+    private static long getFreeBytes(DocumentInfo target, RootInfo root) {
+        if (hasLocalPath(target)) {
+            final long free = StorageUtils.getExtStorageSize(target.path, false);
+            if (free > 0) {
+                return free;
+            }
+        }
+        if (root != null && root.availableBytes >= 0) {
+            return root.availableBytes;
+        }
+        return TransferPlan.UNKNOWN_SPACE;
+    }
+
+    /**
+     * Lists a single directory, returning the number and size of its files and the
+     * subdirectories still to be walked.
+     */
+    private class Listing implements Callable<Listing> {
+        private final File mDir;
+        private final String mAuthority;
+        private final String mDocumentId;
+
+        long bytes;
+        int files;
+        final ArrayList<Listing> directories = new ArrayList<>();
+
+        Listing(File dir, String authority, String documentId) {
+            mDir = dir;
+            mAuthority = authority;
+            mDocumentId = documentId;
+        }
+
+        @Override
+        public Listing call() throws Exception {
+            if (mDir != null) {
+                for (File file : FileUtils.listFilesOrEmpty(mDir)) {
+                    if (file.isDirectory()) {
+                        directories.add(new Listing(file, null, null));
+                    } else {
+                        bytes += file.length();
+                        files++;
+                    }
+                }
+                return this;
+            }
+
+            final Uri uri = DocumentsContract.buildChildDocumentsUri(mAuthority, mDocumentId);
+            Cursor cursor = null;
+            try {
+                cursor = mResolver.query(uri, CHILD_PROJECTION, null, null, null);
+                while (cursor != null && cursor.moveToNext()) {
+                    final String mimeType = DocumentInfo.getCursorString(cursor, Document.COLUMN_MIME_TYPE);
+                    if (Document.MIME_TYPE_DIR.equals(mimeType)) {
+                        final String documentId = DocumentInfo.getCursorString(cursor,
+                                Document.COLUMN_DOCUMENT_ID);
+                        directories.add(new Listing(null, mAuthority, documentId));
+                    } else {
+                        bytes += Math.max(DocumentInfo.getCursorLong(cursor, Document.COLUMN_SIZE), 0);
+                        files++;
+                    }
+                }
+            } finally {
+                IoUtils.closeQuietly(cursor);
+            }
+            return this;
+        }
+    }
+}
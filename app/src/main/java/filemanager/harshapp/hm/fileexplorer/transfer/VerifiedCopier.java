@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2014 Hari Krishna Dulipudi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package filemanager.harshapp.hm.fileexplorer.transfer;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+
+import filemanager.harshapp.hm.fileexplorer.libcore.io.IoUtils;
+import filemanager.harshapp.hm.fileexplorer.misc.CrashReportingManager;
+
+/**
+ * Copies files while computing a checksum of the bytes written, then reads the
+ * destination back and compares. Read back happens on a separate thread so
+ * verifying one file overlaps with copying the next. Files that do not match
+ * are copied again, up to {@link #MAX_ATTEMPTS} times.
+ *
+ * <p>One instance covers one transfer job; call {@link #await()} once every
+ * file has been handed to {@link #copy(CopyEndpoint, CopyEndpoint)}.
+ */
+public class VerifiedCopier implements Closeable {
+    private static final String TAG = "VerifiedCopier";
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final ExecutorService mVerifier;
+    private final ArrayList<Future<Result>> mPending = new ArrayList<>();
+
+    /**
+     * @param concurrent whether destinations may be read back while the next
+     *                   file is written. Pass {@code false} for backends that
+     *                   can't serve two streams at once.
+     */
+    public VerifiedCopier(boolean concurrent) {
+        mVerifier = concurrent ? Executors.newSingleThreadExecutor() : null;
+    }
+
+    /**
+     * Copy a single file and queue its verification.
+     */
+    public void copy(CopyEndpoint source, CopyEndpoint dest) throws IOException {
+        copy(source, dest, null);
+    }
+
+    /**
+     * @param listener told about the first copy only, not about copies made
+     *                 again after a failed check.
+     */
+    public void copy(CopyEndpoint source, CopyEndpoint dest, CopyEngine.Listener listener)
+            throws IOException {
+        final long checksum = copyWithChecksum(source, dest, listener);
+        final VerifyTask task = new VerifyTask(source, dest, checksum);
+        if (mVerifier != null) {
+            mPending.add(mVerifier.submit(task));
+        } else {
+            final FutureTask<Result> future = new FutureTask<>(task);
+            future.run();
+            mPending.add(future);
+        }
+    }
+
+    /**
+     * Wait for every queued verification to finish.
+     */
+    public Report await() {
+        final Report report = new Report();
+        for (Future<Result> future : mPending) {
+            try {
+                report.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                CrashReportingManager.logException(e);
+            }
+        }
+        mPending.clear();
+        Log.d(TAG, "Verified " + report);
+        return report;
+    }
+
+    @Override
+    public void close() {
+        if (mVerifier != null) {
+            mVerifier.shutdownNow();
+        }
+    }
+
+    private static long copyWithChecksum(CopyEndpoint source, CopyEndpoint dest,
+                                         CopyEngine.Listener listener) throws IOException {
+        InputStream in = null;
+        OutputStream out = null;
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = BufferPool.acquire();
+        try {
+            in = source.openInputStream();
+            out = dest.openOutputStream();
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                crc.update(buffer, 0, read);
+                if (listener != null) {
+                    listener.onBytesCopied(read);
+                }
+            }
+            out.flush();
+        } finally {
+            IoUtils.closeQuietly(in);
+            IoUtils.closeQuietly(out);
+            BufferPool.release(buffer);
+        }
+        return crc.getValue();
+    }
+
+    private static long checksum(CopyEndpoint endpoint) throws IOException {
+        InputStream in = null;
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = BufferPool.acquire();
+        try {
+            in = endpoint.openInputStream();
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        } finally {
+            IoUtils.closeQuietly(in);
+            BufferPool.release(buffer);
+        }
+        return crc.getValue();
+    }
+
+    private static class VerifyTask implements Callable<Result> {
+        private final CopyEndpoint mSource;
+        private final CopyEndpoint mDest;
+        private final long mChecksum;
+
+        VerifyTask(CopyEndpoint source, CopyEndpoint dest, long checksum) {
+            mSource = source;
+            mDest = dest;
+            mChecksum = checksum;
+        }
+
+        @Override
+        public Result call() {
+            long expected = mChecksum;
+            for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+                try {
+                    if (attempt > 1) {
+                        Log.w(TAG, "Checksum mismatch, copying again " + mDest);
+                        expected = copyWithChecksum(mSource, mDest, null);
+                    }
+                    if (checksum(mDest) == expected) {
+                        return new Result(mDest.getName(), true, attempt);
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to verify " + mDest, e);
+                }
+            }
+            return new Result(mDest.getName(), false, MAX_ATTEMPTS);
+        }
+    }
+
+    /**
+     * Verification outcome of a single file.
+     */
+    public static class Result {
+        public final String name;
+        public final boolean verified;
+        public final int attempts;
+
+        Result(String name, boolean verified, int attempts) {
+            this.name = name;
+            this.verified = verified;
+            this.attempts = attempts;
+        }
+    }
+
+    /**
+     * Verification outcome of a whole job.
+     */
+    public static class Report {
+        private final ArrayList<Result> mResults = new ArrayList<>();
+        private final ArrayList<String> mFailed = new ArrayList<>();
+        private int mRetried;
+
+        void add(Result result) {
+            mResults.add(result);
+            if (!result.verified) {
+                mFailed.add(result.name);
+            } else if (result.attempts > 1) {
+                mRetried++;
+            }
+        }
+
+        public List<Result> getResults() {
+            return mResults;
+        }
+
+        public boolean isVerified() {
+            return mFailed.isEmpty();
+        }
+
+        /**
+         * Names of destination files that still differ from their source.
+         */
+        public List<String> getFailed() {
+            return mFailed;
+        }
+
+        /**
+         * Number of files that matched only after being copied again.
+         */
+        public int getRetriedCount() {
+            return mRetried;
+        }
+
+        @Override
+        public String toString() {
+            return "Report{files=" + mResults.size() + ", retried=" + mRetried
+                    + ", failed=" + mFailed + "}";
+        }
+    }
+}